@@ -595,6 +595,13 @@ public class ByteArray implements Serializable, Cloneable {
         return new String(bytes, StandardCharsets.UTF_8);
     }
 
+    /**
+     * 将此字节数组包装为共享底层存储的 {@link ByteBuffer}，不会发生拷贝，返回缓冲的位置为 0，界限为此数组的长度
+     */
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(byteArray, startPoint, length()).slice();
+    }
+
     /**
      * 从此字节数组中截取部分作为共享数组
      *
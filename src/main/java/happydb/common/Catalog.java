@@ -24,6 +24,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 目录，保存表到模式、页面管理类的映射
+ * <P>表是延迟打开的：加载目录时只解析表模式，直到表（或它的 undo 表、索引）第一次被访问时才打开文件、创建页面管理器并初始化索引，
+ * 因此启动时间只与表的数量有关，而与数据量无关。开启 {@link Database#catalogWarmUp} 后，后台线程会在启动后依次打开所有表</P>
  *
  * @Author happysnaker
  * @Date 2022/11/17
@@ -47,6 +49,10 @@ public class Catalog {
      * 索引映射，一个字段上的索引是一个单例类
      */
     final Map<IndexKey, Index> indexMap = new ConcurrentHashMap<>();
+    /**
+     * 已经解析但尚未打开的表
+     */
+    final Map<String, TableDesc> unopenedMap = new ConcurrentHashMap<>();
     /**
      * 目录文件
      */
@@ -70,6 +76,7 @@ public class Catalog {
                 ans.add(it.getKey());
             }
         }
+        ans.addAll(unopenedMap.keySet());
         return ans;
     }
 
@@ -89,7 +96,16 @@ public class Catalog {
      * @throws java.util.NoSuchElementException 如果不存在
      */
     public TableDesc getTableDesc(String tableName) throws NoSuchElementException {
-        if (!catalogMap.containsKey(tableName)) {
+        Pair<TableDesc, PageManager> pair = catalogMap.get(tableName);
+        if (pair != null) {
+            return pair.getKey();
+        }
+        // 获取模式不需要打开表
+        TableDesc td = unopenedMap.get(tableName);
+        if (td != null) {
+            return td;
+        }
+        if (!openTable(tableName) || !catalogMap.containsKey(tableName)) {
             throw new NoSuchElementException();
         }
         return catalogMap.get(tableName).getKey();
@@ -104,7 +120,11 @@ public class Catalog {
      * @throws java.util.NoSuchElementException 如果不存在
      */
     public PageManager getPageManager(String tableName) throws NoSuchElementException {
-        if (!catalogMap.containsKey(tableName)) {
+        Pair<TableDesc, PageManager> pair = catalogMap.get(tableName);
+        if (pair != null) {
+            return pair.getVal();
+        }
+        if (!openTable(tableName) || !catalogMap.containsKey(tableName)) {
             throw new NoSuchElementException();
         }
         return catalogMap.get(tableName).getVal();
@@ -122,7 +142,11 @@ public class Catalog {
      */
     public Index getIndex(String tableName, int fieldIndex, IndexType type) throws NoSuchElementException {
         IndexKey key = new IndexKey(tableName, fieldIndex, type);
-        if (!indexMap.containsKey(key)) {
+        Index index = indexMap.get(key);
+        if (index != null) {
+            return index;
+        }
+        if (!openTable(tableName) || !indexMap.containsKey(key)) {
             throw new NoSuchElementException();
         }
         return indexMap.get(key);
@@ -137,13 +161,14 @@ public class Catalog {
      */
     public synchronized void createTable(TableDesc table) throws IOException, DuplicateValueException, DbException {
         assert table.getTableName() != null;
-        if (catalogMap.containsKey(table.getTableName())) {
+        if (catalogMap.containsKey(table.getTableName()) || unopenedMap.containsKey(table.getTableName())) {
             throw new DuplicateValueException("表名重复");
         }
         ByteArray data = table.serialized();
         dbFile.append(data, true);
         try {
-            processCatalog(data.readString(data.readInt()));
+            TableDesc td = processCatalog(data.readString(data.readInt()));
+            openTable(td.getTableName());
         } catch (ParseException e) {
             throw new RuntimeException(e);
         }
@@ -157,17 +182,6 @@ public class Catalog {
                 int len = byteAr.readInt();
                 processCatalog(byteAr.readString(len));
             }
-
-
-
-            for (Pair<TableDesc, PageManager> it : this.catalogMap.values()) {
-                if (it.getVal() instanceof HeapPageManager pm) {
-                    pm.loadFreePage();
-                }
-                if (it.getVal() instanceof UndoLogPageManager pm) {
-                    pm.loadFreePage();
-                }
-            }
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -176,12 +190,13 @@ public class Catalog {
 
 
     /**
-     * 解析一行 catalog 记录，这将初始化堆文件、日志文件以及索引文件
+     * 解析一行 catalog 记录，将表模式加入未打开的表中，此方法不会打开任何文件
      * @param catalog
+     * @return 表模式
      * @throws ParseException
      */
-    private void processCatalog(String catalog) throws ParseException {
-        // table_name (field_name field_type index_type) (field_name field_type index_type)
+    private TableDesc processCatalog(String catalog) throws ParseException {
+        // table_name (field_name field_type index_type [max_length]) (field_name field_type index_type [max_length]) [COMPRESSED]
         int firstSpaceIndex = catalog.indexOf(' ');
         if (firstSpaceIndex == -1) {
             throw new ParseException("Catalog 格式不正确");
@@ -192,11 +207,15 @@ public class Catalog {
         List<String> fieldNameAr = new ArrayList<>();
         List<Type> fieldTypeAr = new ArrayList<>();
         List<Integer> indexTypeAr = new ArrayList<>();
+        Map<Integer, Integer> maxLengths = new HashMap<>();
         while ((left = catalog.indexOf('(')) != -1 && (right = catalog.indexOf(')')) != -1) {
             String[] items = catalog.substring(left + 1, right).split("\\s+");
-            if (items.length != 3)
+            if (items.length != 3 && items.length != 4)
                 throw new ParseException("Catalog 格式不正确");
             try {
+                if (items.length == 4) {
+                    maxLengths.put(fieldNameAr.size(), Integer.valueOf(items[3]));
+                }
                 fieldNameAr.add(items[0]);
                 fieldTypeAr.add(Type.valueOf(items[1]));
                 indexTypeAr.add(Integer.valueOf(items[2]));
@@ -205,61 +224,152 @@ public class Catalog {
             }
             catalog = catalog.substring(right + 1);
         }
-        File heapFile = Database.getDbFile(tableName + ".dat");
-        File undoFile = Database.getDbFile(tableName + UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX + ".log");
-
+        boolean compressed = catalog.trim().equals(TableDesc.COMPRESSED);
+        String[] fieldAr = fieldNameAr.toArray(new String[0]);
+        Type[] typeAr = fieldTypeAr.toArray(new Type[0]);
+        int[] indexAr = indexTypeAr.stream().mapToInt(a -> a).toArray();
+        TableDesc tableDesc = new TableDesc(tableName, fieldAr, typeAr, indexAr);
         try {
-            if (!heapFile.exists()) {
-                boolean b = heapFile.createNewFile();
+            maxLengths.forEach(tableDesc::setMaxLength);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException(e);
+        }
+        tableDesc.setCompressed(compressed);
+        unopenedMap.put(tableName, tableDesc);
+        return tableDesc;
+    }
+
+    /**
+     * 返回表、undo 表或索引表所属的真实表名
+     */
+    private static String getReallyTableName(String tableName) {
+        if (tableName.endsWith(UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX)) {
+            return tableName.substring(0, tableName.length() - UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX.length());
+        }
+        int i = tableName.indexOf('-');
+        return i == -1 ? tableName : tableName.substring(0, i);
+    }
+
+    /**
+     * 如果表、undo 表或索引表所属的真实表尚未打开，则打开它，这将初始化堆文件、日志文件以及索引文件
+     * <P>打开过程中先注册页面管理器再初始化索引，索引初始化时对目录的重入访问因此不会再次打开表；
+     * 其他线程在打开完成之前会堵塞在目录的监视器上</P>
+     *
+     * @param tableName 表名、undo 表名或索引表名
+     * @return 如果表存在（无论是否由此次调用打开）返回真，否则返回假
+     */
+    private boolean openTable(String tableName) {
+        String reallyTableName = getReallyTableName(tableName);
+        if (!unopenedMap.containsKey(reallyTableName)) {
+            return catalogMap.containsKey(reallyTableName);
+        }
+        synchronized (this) {
+            TableDesc tableDesc = unopenedMap.get(reallyTableName);
+            if (tableDesc == null || catalogMap.containsKey(reallyTableName)) {
+                return catalogMap.containsKey(reallyTableName);
             }
-            if (!undoFile.exists()) {
-                boolean b = undoFile.createNewFile();
+            try {
+                open(tableDesc);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
-            String[] fieldAr = fieldNameAr.toArray(new String[0]);
-            Type[] typeAr = fieldTypeAr.toArray(new Type[0]);
-            int[] indexAr = indexTypeAr.stream().mapToInt(a -> a).toArray();
-            TableDesc tableDesc = new TableDesc(tableName, fieldAr, typeAr, indexAr);
-            HeapPageManager heapPageManager = new HeapPageManager(tableName, new DbFile(heapFile));
-            UndoLogPageManager undoLogPageManager = new UndoLogPageManager(
-                    tableName + UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX, new DbFile(undoFile));
-            addTable(tableDesc, heapPageManager);
-            addTable(new TableDesc(tableName + UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX, fieldAr, typeAr,
-                    indexAr), undoLogPageManager);
-
-
-            // 初始化索引
-            for (int i = 0; i < indexTypeAr.size(); i++) {
-                for (IndexType indexType : IndexType.intToIndexSet(indexTypeAr.get(i))) {
-
-                    if (indexType == IndexType.PRIMARY_KEY || indexType == IndexType.BTREE_UNIQUE
-                            || indexType == IndexType.HASH_UNIQUE) {
-                        continue;
-                    }
-
-                    String indexTableName = String.format("%s-%d-%s", tableName, i, indexType.toString());
-                    File indexFile = Database.getDbFile(indexTableName + ".index");
-                    if (!indexFile.exists()) {
-                        boolean b = indexFile.createNewFile();
-                    }
-
-                    if (indexType == IndexType.BTREE) {
-                        addTable(new TableDesc(indexTableName, fieldAr, typeAr, indexAr),
-                                new BTreePageManager(indexTableName, new DbFile(indexFile)));
-                        Index index = new BTreeIndex(indexTableName);
-                        this.indexMap.put(new IndexKey(getTableNameFromIndexTableName(indexTableName), i, indexType), index);
-                    } else if (indexType == IndexType.HASH) {
-                        addTable(new TableDesc(indexTableName, fieldAr, typeAr, indexAr),
-                                new HashPageManager(indexTableName, new DbFile(indexFile)));
-                        Index index = new HashIndex(indexTableName);
-                        this.indexMap.put(new IndexKey(getTableNameFromIndexTableName(indexTableName), i, indexType), index);
-                    }
+            unopenedMap.remove(reallyTableName);
+            return true;
+        }
+    }
+
+    /**
+     * 打开表的堆文件或索引文件，开启了页面压缩的表使用 {@link CompressedDbFile}，undo 日志文件总是不压缩的
+     */
+    private static PageFile openPageFile(File file, TableDesc tableDesc) throws IOException {
+        return tableDesc.isCompressed() ? new CompressedDbFile(file) : new DbFile(file);
+    }
+
+    private void open(TableDesc tableDesc) throws IOException, DbException {
+        String tableName = tableDesc.getTableName();
+        File heapFile = Database.getDbFile(tableName + ".dat");
+        File undoFile = Database.getDbFile(tableName + UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX + ".log");
+
+        if (!heapFile.exists()) {
+            boolean b = heapFile.createNewFile();
+        }
+        if (!undoFile.exists()) {
+            boolean b = undoFile.createNewFile();
+        }
+        int n = tableDesc.numFields();
+        String[] fieldAr = new String[n];
+        Type[] typeAr = new Type[n];
+        int[] indexAr = new int[n];
+        for (int i = 0; i < n; i++) {
+            fieldAr[i] = tableDesc.getFieldName(i);
+            typeAr[i] = tableDesc.getFieldType(i);
+            indexAr[i] = tableDesc.getIndexType(i);
+        }
+        HeapPageManager heapPageManager = new HeapPageManager(tableName, openPageFile(heapFile, tableDesc));
+        UndoLogPageManager undoLogPageManager = new UndoLogPageManager(
+                tableName + UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX, new DbFile(undoFile));
+        addTable(tableDesc, heapPageManager);
+        addTable(new TableDesc(tableName + UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX, fieldAr, typeAr,
+                indexAr), undoLogPageManager);
+
+
+        // 初始化索引
+        for (int i = 0; i < indexAr.length; i++) {
+            for (IndexType indexType : IndexType.intToIndexSet(indexAr[i])) {
+
+                if (indexType == IndexType.PRIMARY_KEY || indexType == IndexType.BTREE_UNIQUE
+                        || indexType == IndexType.HASH_UNIQUE) {
+                    continue;
+                }
+
+                String indexTableName = String.format("%s-%d-%s", tableName, i, indexType.toString());
+                File indexFile = Database.getDbFile(indexTableName + ".index");
+                if (!indexFile.exists()) {
+                    boolean b = indexFile.createNewFile();
+                }
+
+                if (indexType == IndexType.BTREE) {
+                    addTable(new TableDesc(indexTableName, fieldAr, typeAr, indexAr),
+                            new BTreePageManager(indexTableName, openPageFile(indexFile, tableDesc)));
+                    Index index = new BTreeIndex(indexTableName);
+                    this.indexMap.put(new IndexKey(getTableNameFromIndexTableName(indexTableName), i, indexType), index);
+                } else if (indexType == IndexType.HASH) {
+                    addTable(new TableDesc(indexTableName, fieldAr, typeAr, indexAr),
+                            new HashPageManager(indexTableName, openPageFile(indexFile, tableDesc)));
+                    Index index = new HashIndex(indexTableName);
+                    this.indexMap.put(new IndexKey(getTableNameFromIndexTableName(indexTableName), i, indexType), index);
                 }
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
     }
 
+    /**
+     * 启动一个后台线程依次打开所有尚未打开的表
+     */
+    public void warmUp() {
+        Thread thread = new Thread(() -> {
+            for (String tableName : new ArrayList<>(unopenedMap.keySet())) {
+                if (!Database.open) {
+                    return;
+                }
+                try {
+                    openTable(tableName);
+                } catch (Exception e) {
+                    Debug.log("预热表 " + tableName + " 失败：" + e.getMessage());
+                }
+            }
+        }, "catalog-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 表是否已经打开，仅用于测试
+     */
+    boolean isOpened(String tableName) {
+        return catalogMap.containsKey(tableName);
+    }
+
 
     public void close() {
         this.dbFile.close();
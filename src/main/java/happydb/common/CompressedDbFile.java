@@ -0,0 +1,326 @@
+package happydb.common;
+
+import happydb.storage.BufferPool;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 以压缩形式存储页面的文件，对外仍然表现为一个由定长页面组成的 {@link PageFile}，页面管理器无需感知压缩的存在
+ * <P>对外的偏移与长度都是逻辑上的，即页号乘以页面大小。实际数据文件被划分为 {@link #SECTOR_SIZE} 大小的扇区，
+ * 每个页面经 {@link PageCompressor} 压缩后占用若干连续扇区（称为区段），区段以 4 字节的压缩长度开头，
+ * 如果压缩后的长度不小于页面大小，则直接存储原始页面，此时长度字段等于页面大小</P>
+ * <P>页号到区段的映射保存在同名的 .map 文件中，每个页面占用 8 字节（起始扇区、扇区数），扇区数为 0 表示全零的页面，
+ * 因此通过 {@link #setLength(long)} 扩展的空页面不占用任何扇区</P>
+ * <P>页面从不原地覆盖：每次写入都分配新区段，新的映射只保存在内存中，直到 {@link #force()} 先将数据刷盘，再写入并刷新映射，
+ * 映射落盘是页面写入的提交点。被替换的扇区直到映射落盘之后才会被复用，因此崩溃时映射要么指向旧区段，要么指向已经落盘的新区段。
+ * 崩溃后未被映射引用的扇区在下次打开时自动视为空闲</P>
+ * <P><strong>此类只支持整页写入，不支持追加与内存映射读取</strong>；读取可以是任意范围，读取时需要解压所覆盖的所有页面。
+ * 读写之间通过读写锁互斥，压缩本身在锁外进行</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/3/12
+ * @Email happysnaker@foxmail.com
+ */
+public class CompressedDbFile implements PageFile {
+    /**
+     * 扇区大小，区段以扇区为单位分配
+     */
+    public static int SECTOR_SIZE = 512;
+
+    private static final int EXTENT_HEADER_SIZE = 4;
+
+    private static final int MAP_ENTRY_SIZE = 8;
+
+    private static final Extent ZERO_PAGE = new Extent(0, 0);
+
+    /**
+     * 一个页面占用的连续扇区
+     */
+    private record Extent(int sector, int count) {
+    }
+
+    private final int pageSize;
+
+    @Getter
+    private final File file;
+
+    /**
+     * 存放区段的数据文件，与此文件的路径相同
+     */
+    private final DbFile data;
+
+    private final DbFile mapFile;
+
+    /**
+     * 页号到区段的映射
+     */
+    private final List<Extent> extents = new ArrayList<>();
+
+    /**
+     * 已被占用的扇区，包括等待复用的扇区
+     */
+    private final BitSet used = new BitSet();
+
+    /**
+     * 已被替换但在下一次刷盘之前不能复用的扇区
+     */
+    private final BitSet pendingFree = new BitSet();
+
+    /**
+     * 映射已在内存中更新但尚未写入映射文件的页号
+     */
+    private final BitSet pendingMap = new BitSet();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public CompressedDbFile(File file) throws IOException {
+        this.file = file;
+        this.pageSize = BufferPool.getPageSize();
+        this.data = new DbFile(file);
+        this.mapFile = new DbFile(new File(file.getPath() + ".map"));
+        int n = (int) (mapFile.getLength() / MAP_ENTRY_SIZE);
+        ByteArray byteAr = mapFile.read(0, n * MAP_ENTRY_SIZE);
+        for (int i = 0; i < n; i++) {
+            Extent extent = new Extent(byteAr.readInt(), byteAr.readInt());
+            extents.add(extent.count == 0 ? ZERO_PAGE : extent);
+            used.set(extent.sector, extent.sector + extent.count);
+        }
+    }
+
+    public CompressedDbFile(String file) throws IOException {
+        this(new File(file));
+    }
+
+    /**
+     * 返回数据文件实际占用的字节数，用于观察压缩效果
+     */
+    public long getPhysicalLength() throws IOException {
+        return data.getLength();
+    }
+
+    /**
+     * 分配 count 个连续的空闲扇区，采用首次适应
+     */
+    private int allocate(int count) {
+        int start = used.nextClearBit(0);
+        while (true) {
+            int next = used.nextSetBit(start);
+            if (next == -1 || next - start >= count) {
+                break;
+            }
+            start = used.nextClearBit(next);
+        }
+        used.set(start, start + count);
+        return start;
+    }
+
+    /**
+     * 将尚未写入的映射写入映射文件，调用方必须持有写锁，并且保证这些映射引用的区段都已经落盘
+     */
+    private void writeMap() throws IOException {
+        for (int pageNo = pendingMap.nextSetBit(0); pageNo >= 0; pageNo = pendingMap.nextSetBit(pageNo + 1)) {
+            Extent extent = extents.get(pageNo);
+            mapFile.write((long) pageNo * MAP_ENTRY_SIZE,
+                    new ByteList().writeInt(extent.sector).writeInt(extent.count), false);
+        }
+        pendingMap.clear();
+    }
+
+    /**
+     * 调整逻辑页面数量，新增的页面为全零页面，被截断页面的扇区等待下一次刷盘后复用
+     */
+    private void resize(int numPages) throws IOException {
+        if (numPages == extents.size()) {
+            return;
+        }
+        while (extents.size() > numPages) {
+            Extent extent = extents.remove(extents.size() - 1);
+            pendingFree.set(extent.sector, extent.sector + extent.count);
+        }
+        pendingMap.clear(numPages, Math.max(numPages, pendingMap.length()));
+        while (extents.size() < numPages) {
+            extents.add(ZERO_PAGE);
+        }
+        mapFile.setLength((long) numPages * MAP_ENTRY_SIZE);
+    }
+
+    private void checkPageAligned(long offset, int len) {
+        if (offset % pageSize != 0 || len % pageSize != 0) {
+            throw new IllegalArgumentException("压缩文件只支持整页写入");
+        }
+    }
+
+    /**
+     * 将页面压缩为区段，区段长度为扇区大小的整数倍
+     */
+    private ByteArray toExtent(ByteArray page) {
+        byte[] src = page.getByteArray();
+        byte[] compressed = PageCompressor.compress(src);
+        byte[] payload = compressed.length < pageSize ? compressed : src;
+        int count = (EXTENT_HEADER_SIZE + payload.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        ByteArray extent = ByteArray.allocate(count * SECTOR_SIZE);
+        extent.update(0, payload.length);
+        extent.update(EXTENT_HEADER_SIZE, new ByteArray(payload));
+        return extent;
+    }
+
+    /**
+     * 写入从 firstPage 开始的连续页面，调用方必须持有写锁
+     * <P>每个页面总是写入新分配的区段，新的映射在 {@link #force()} 时才会落盘，因此映射永远不会指向写了一半的区段</P>
+     */
+    private void writePages(int firstPage, ByteArray[] pages) throws IOException {
+        if (firstPage + pages.length > extents.size()) {
+            resize(firstPage + pages.length);
+        }
+        for (int i = 0; i < pages.length; i++) {
+            int count = pages[i].length() / SECTOR_SIZE;
+            Extent extent = new Extent(allocate(count), count);
+            data.write((long) extent.sector * SECTOR_SIZE, pages[i], false);
+            Extent old = extents.set(firstPage + i, extent);
+            pendingFree.set(old.sector, old.sector + old.count);
+            pendingMap.set(firstPage + i);
+        }
+    }
+
+    /**
+     * 将页面解压到 dst 中
+     */
+    private void readPage(int pageNo, byte[] dst) throws IOException {
+        Extent extent = extents.get(pageNo);
+        if (extent.count == 0) {
+            Arrays.fill(dst, (byte) 0);
+            return;
+        }
+        ByteArray raw = data.read((long) extent.sector * SECTOR_SIZE, extent.count * SECTOR_SIZE);
+        int len = raw.readInt(0);
+        if (len <= 0 || len > raw.length() - EXTENT_HEADER_SIZE) {
+            throw new IOException(String.format("文件 %s 的第 %d 页已损坏", getFile().getName(), pageNo));
+        }
+        if (len == pageSize) {
+            System.arraycopy(raw.getRawByteArray(), EXTENT_HEADER_SIZE, dst, 0, pageSize);
+            return;
+        }
+        try {
+            PageCompressor.decompress(raw.getRawByteArray(), EXTENT_HEADER_SIZE, len, dst, 0, pageSize);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(String.format("文件 %s 的第 %d 页已损坏", getFile().getName(), pageNo), e);
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteArray data, boolean flush) throws IOException {
+        checkPageAligned(offset, data.length());
+        int firstPage = (int) (offset / pageSize);
+        ByteArray[] pages = new ByteArray[data.length() / pageSize];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = toExtent(data.subArray(i * pageSize, (i + 1) * pageSize));
+        }
+        lock.writeLock().lock();
+        try {
+            writePages(firstPage, pages);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (flush) {
+            force();
+        }
+    }
+
+    @Override
+    public void writeVectored(long offset, boolean flush, ByteArray... arrays) throws IOException {
+        write(offset, new ByteArray(arrays), flush);
+    }
+
+    @Override
+    public void read(long offset, ByteArray buffer) throws IOException, NoSuchElementException {
+        int len = buffer.length();
+        byte[] page = new byte[pageSize];
+        lock.readLock().lock();
+        try {
+            if (offset + len > (long) extents.size() * pageSize) {
+                throw new NoSuchElementException("读取长度与缓冲区长度不相等");
+            }
+            int done = 0;
+            while (done < len) {
+                long pos = offset + done;
+                int inPage = (int) (pos % pageSize);
+                int n = Math.min(pageSize - inPage, len - done);
+                readPage((int) (pos / pageSize), page);
+                buffer.toByteBuffer().put(done, page, inPage, n);
+                done += n;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteArray readPage(long offset, int len) throws IOException, NoSuchElementException {
+        return read(offset, len);
+    }
+
+    /**
+     * 设置逻辑长度，长度必须是页面大小的整数倍
+     */
+    @Override
+    public void setLength(long newLength) throws IOException {
+        checkPageAligned(newLength, 0);
+        lock.writeLock().lock();
+        try {
+            resize((int) (newLength / pageSize));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLength() {
+        lock.readLock().lock();
+        try {
+            return (long) extents.size() * pageSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 先将数据刷盘，再写入并刷新映射，此后被替换的扇区可以被复用
+     */
+    @Override
+    public void force() throws IOException {
+        lock.writeLock().lock();
+        try {
+            // 映射落盘之前数据必须已经落盘，否则崩溃后映射可能指向残缺的区段
+            data.force();
+            writeMap();
+            mapFile.force();
+            used.andNot(pendingFree);
+            pendingFree.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 关闭文件之前提交尚未落盘的映射，否则已经写入的页面在重新打开后会丢失
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            force();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            data.close();
+            mapFile.close();
+        }
+    }
+}
@@ -2,9 +2,12 @@ package happydb.common;
 
 import happydb.log.CheckPoint;
 import happydb.log.LogBuffer;
+import happydb.log.Purge;
 import happydb.log.Recovery;
+import happydb.optimizer.TableStateView;
 import happydb.replication.RaftLogManager;
 import happydb.storage.BufferPool;
+import happydb.storage.PageCleaner;
 import happydb.storage.PageId;
 import happydb.transaction.LockTable;
 import happydb.transaction.ReadView;
@@ -41,6 +44,16 @@ public class Database {
      */
     public static boolean enableReplication = false;
 
+    /**
+     * 是否以内存映射的方式读取页面文件，开启后页面直接从映射区域中反序列化，省去一次内核到用户空间的拷贝，写入仍然通过文件通道完成
+     */
+    public static boolean enableMmap = false;
+
+    /**
+     * 是否在启动后由后台线程预先打开所有表，表默认在第一次被访问时才打开，见 {@link Catalog}
+     */
+    public static boolean catalogWarmUp = false;
+
     public static int ISOLATION_LEVEL = ReadView.READ_REPEAT;
 
     private static AtomicReference<Database> _instance;
@@ -79,6 +92,9 @@ public class Database {
             if (!recoveryTest)
                 Recovery.recovery();
 
+            if (catalogWarmUp)
+                getCatalog().warmUp();
+
 //            演示没有激烈检查点刷盘时恢复例程的正确性，需要注释掉此行代码
             Runtime.getRuntime().addShutdownHook(new Thread(Database::shutDown));
         } catch (Exception e) {
@@ -140,6 +156,10 @@ public class Database {
                 }
             }, CheckPoint.RATE, CheckPoint.RATE, TimeUnit.SECONDS);
         }
+        PageCleaner.start();
+        Purge.clear();
+        Purge.start();
+        TableStateView.getInstance().clear();
     }
 
     /**
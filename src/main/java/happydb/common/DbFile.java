@@ -1,6 +1,5 @@
 package happydb.common;
 
-import lombok.Data;
 import lombok.Getter;
 
 import java.io.File;
@@ -8,18 +7,47 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 在 HelloDb 中，与磁盘打交道是再正常不过的事情，此类封装了一些方法来简化操作，<strong>此类的任何方法都是严格并发安全的</strong>
+ * <P>每个文件仅持有一个长期打开的 {@link FileChannel}，读写均基于 {@link FileChannel#read(ByteBuffer, long)} 与
+ * {@link FileChannel#write(ByteBuffer, long)} 的定位 IO 实现，它们不依赖也不修改通道的文件指针，因此读者与写者之间互不堵塞</P>
+ * <P>只有依赖文件指针或文件长度的操作（追加、向量读写、设置长度）才需要获取 {@link #positionLock}</P>
  * @Author happysnaker
  * @Date 2022/11/15
  * @Email happysnaker@foxmail.com
  */
-public class DbFile {
+public class DbFile implements PageFile {
     @Getter
     private final File file;
 
+    /**
+     * 长期持有的文件句柄，在第一次使用时打开，如果通道被关闭（例如线程中断或调用 {@link #close()}），下一次使用时会重新打开
+     */
+    private volatile RandomAccessFile raf;
+
+    private volatile FileChannel channel;
+
+    /**
+     * 保护文件指针与文件长度的锁，定位读写无需获取此锁
+     */
+    private final Object positionLock = new Object();
+
+    /**
+     * 内存映射时每个映射块的大小，文件按此大小分块映射，块大小为页面大小的整数倍，因此对齐的页面永远不会跨越两个映射块
+     */
+    public static final int MMAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * 已映射的块，键为块号，文件末尾的块会随着文件增长而被重新映射
+     */
+    private final Map<Long, MappedByteBuffer> mappedChunks = new ConcurrentHashMap<>();
+
     public DbFile(File file) throws FileNotFoundException {
         this.file = file;
     }
@@ -28,6 +56,33 @@ public class DbFile {
         this(new File(file));
     }
 
+    /**
+     * 获取文件通道，如果通道尚未打开或已被关闭，则重新打开它
+     */
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                if (raf != null) {
+                    raf.close();
+                }
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * 将字节数组包装为共享底层数组的 {@link ByteBuffer}，不会发生拷贝
+     */
+    private static ByteBuffer wrap(ByteArray data) {
+        return data.toByteBuffer();
+    }
+
 
     /**
      * 向文件中指定偏移写入数据，此方法默认强制刷新缓冲
@@ -35,7 +90,7 @@ public class DbFile {
      * @param data 数据
      * @throws IOException
      */
-    public synchronized void write(long offset, ByteArray data) throws IOException {
+    public void write(long offset, ByteArray data) throws IOException {
         write(offset, data, true);
     }
 
@@ -46,17 +101,40 @@ public class DbFile {
      * @param flush 指示是否要强制刷新
      * @throws IOException
      */
-    public synchronized void write(long offset, ByteArray data, boolean flush) throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.seek(offset);
-            for (int i = 0; i < data.length(); i++) {
-                raf.write(data.get(i));
-            }
-//            raf.write(data.getByteArray());
+    public void write(long offset, ByteArray data, boolean flush) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buffer = wrap(data);
+        long pos = offset;
+        while (buffer.hasRemaining()) {
+            pos += ch.write(buffer, pos);
+        }
+        if (flush) {
+            ch.force(true);
+        }
+    }
 
+    /**
+     * 从指定偏移开始，将多个字节数组按顺序连续写入文件（聚集写），适用于一次性刷新多个相邻的页面
+     * @param offset 起始偏移
+     * @param flush 指示是否要强制刷新
+     * @param arrays 按顺序写入的数据
+     * @throws IOException
+     */
+    public void writeVectored(long offset, boolean flush, ByteArray... arrays) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[arrays.length];
+        long total = 0;
+        for (int i = 0; i < arrays.length; i++) {
+            buffers[i] = wrap(arrays[i]);
+            total += arrays[i].length();
+        }
+        synchronized (positionLock) {
+            FileChannel ch = channel();
+            ch.position(offset);
+            while (total > 0) {
+                total -= ch.write(buffers);
+            }
             if (flush) {
-                raf.getFD().sync();
-                raf.getChannel().force(true);
+                ch.force(true);
             }
         }
     }
@@ -67,8 +145,10 @@ public class DbFile {
      * @param flush 指示是否要强制刷新
      * @throws IOException
      */
-    public synchronized void append(ByteArray data, boolean flush) throws IOException {
-        write(file.length(), data, flush);
+    public void append(ByteArray data, boolean flush) throws IOException {
+        synchronized (positionLock) {
+            write(channel().size(), data, flush);
+        }
     }
 
     /**
@@ -78,16 +158,44 @@ public class DbFile {
      * @throws IOException
      * @throws NoSuchElementException 如果内容不足以填满字节数组
      */
-    public synchronized void read(long offset, ByteArray buffer) throws IOException, NoSuchElementException {
-        byte[] bytes = new byte[buffer.length()];
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.seek(offset);
-            int read = raf.read(bytes);
-            if (read != bytes.length) {
+    public void read(long offset, ByteArray buffer) throws IOException, NoSuchElementException {
+        FileChannel ch = channel();
+        ByteBuffer bb = wrap(buffer);
+        long pos = offset;
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, pos);
+            if (n < 0) {
                 throw new NoSuchElementException("读取长度与缓冲区长度不相等");
             }
+            pos += n;
+        }
+    }
+
+    /**
+     * 从指定偏移开始，连续读取数据并按顺序填满多个字节数组（分散读），适用于一次性读取多个相邻的页面
+     * @param offset 起始偏移
+     * @param buffers 按顺序填充的字节数组
+     * @throws IOException
+     * @throws NoSuchElementException 如果内容不足以填满所有字节数组
+     */
+    public void readVectored(long offset, ByteArray... buffers) throws IOException, NoSuchElementException {
+        ByteBuffer[] bbs = new ByteBuffer[buffers.length];
+        long total = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            bbs[i] = wrap(buffers[i]);
+            total += buffers[i].length();
+        }
+        synchronized (positionLock) {
+            FileChannel ch = channel();
+            ch.position(offset);
+            while (total > 0) {
+                long n = ch.read(bbs);
+                if (n < 0) {
+                    throw new NoSuchElementException("读取长度与缓冲区长度不相等");
+                }
+                total -= n;
+            }
         }
-        buffer.update(0, ByteBuffer.wrap(bytes));
     }
 
     /**
@@ -98,12 +206,70 @@ public class DbFile {
      * @throws IOException
      * @throws NoSuchElementException 如果文件内容从指定偏移开始不足 len 字节抛出
      */
-    public synchronized ByteArray read(long offset, int len) throws IOException, NoSuchElementException {
+    public ByteArray read(long offset, int len) throws IOException, NoSuchElementException {
         ByteArray array = ByteArray.allocate(len);
         read(offset, array);
         return array;
     }
 
+    /**
+     * 以内存映射的方式读取文件中指定偏移的数据，返回的字节数组直接引用映射区域，不发生拷贝
+     * <P>返回的字节数组是只读的，写入仍然应该通过 {@link #write(long, ByteArray, boolean)} 完成，
+     * 由于映射与通道共享操作系统的页缓存，写入的内容对之后的映射读取是立即可见的</P>
+     * <P>如果请求的区域跨越了两个映射块，则退化为普通读取</P>
+     * @param offset 指定偏移
+     * @param len 要读取的长度
+     * @return 引用映射区域的只读字节数组
+     * @throws IOException
+     * @throws NoSuchElementException 如果文件内容从指定偏移开始不足 len 字节抛出
+     */
+    public ByteArray map(long offset, int len) throws IOException, NoSuchElementException {
+        long chunk = offset / MMAP_CHUNK_SIZE;
+        int pos = (int) (offset % MMAP_CHUNK_SIZE);
+        if (pos + len > MMAP_CHUNK_SIZE) {
+            return read(offset, len);
+        }
+        MappedByteBuffer buffer = mappedChunks.get(chunk);
+        if (buffer == null || buffer.capacity() < pos + len) {
+            buffer = remap(chunk, pos + len);
+        }
+        return new MappedByteArray(buffer.slice(pos, len));
+    }
+
+    /**
+     * 重新映射指定的块，映射的长度为此块在当前文件中的全部内容（不超过块大小）
+     * @param chunk 块号
+     * @param need 至少需要映射的长度
+     */
+    private MappedByteBuffer remap(long chunk, int need) throws IOException {
+        synchronized (positionLock) {
+            MappedByteBuffer buffer = mappedChunks.get(chunk);
+            if (buffer != null && buffer.capacity() >= need) {
+                return buffer;
+            }
+            FileChannel ch = channel();
+            long start = chunk * MMAP_CHUNK_SIZE;
+            long size = Math.min(MMAP_CHUNK_SIZE, ch.size() - start);
+            if (size < need) {
+                throw new NoSuchElementException("读取长度与缓冲区长度不相等");
+            }
+            buffer = ch.map(FileChannel.MapMode.READ_ONLY, start, size);
+            mappedChunks.put(chunk, buffer);
+            return buffer;
+        }
+    }
+
+    /**
+     * 读取一个页面的数据，如果开启了 {@link Database#enableMmap}，则以内存映射的方式读取，否则读取到堆内存中
+     * @param offset 页面偏移
+     * @param len 页面大小
+     * @throws IOException
+     * @throws NoSuchElementException 如果文件内容从指定偏移开始不足 len 字节抛出
+     */
+    public ByteArray readPage(long offset, int len) throws IOException, NoSuchElementException {
+        return Database.enableMmap ? map(offset, len) : read(offset, len);
+    }
+
     /**
      *设置此文件的长度。 <p> 如果 {@code length} 方法返回的文件的当前长度大于 {@code newLength} 参数，
      * 那么文件将被截断。在这种情况下，如果 {@code getFilePointer} 方法返回的文件偏移量大于 {@code newLength}，
@@ -113,9 +279,17 @@ public class DbFile {
      * @param      newLength    所需的文件长度
      * @throws     IOException  If an I/O error occurs
      */
-    public synchronized void setLength(long newLength) throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.setLength(newLength);
+    public void setLength(long newLength) throws IOException {
+        synchronized (positionLock) {
+            FileChannel ch = channel();
+            long size = ch.size();
+            if (newLength < size) {
+                // 被截断区域的映射不再有效
+                mappedChunks.keySet().removeIf(chunk -> (chunk + 1) * MMAP_CHUNK_SIZE > newLength);
+                ch.truncate(newLength);
+            } else if (newLength > size) {
+                ch.write(ByteBuffer.allocate(1), newLength - 1);
+            }
         }
     }
 
@@ -123,13 +297,30 @@ public class DbFile {
      * 获取文件长度
      */
     public long getLength() throws IOException {
-        return getFile().length();
+        return channel().size();
     }
 
     /**
-     * 关闭文件句柄
+     * 将所有已写入的数据强制刷新到磁盘
      */
-    public void close() {
+    public void force() throws IOException {
+        channel().force(true);
+    }
 
+    /**
+     * 关闭文件句柄，如果之后再次使用此类，句柄将被重新打开
+     */
+    public synchronized void close() {
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            raf = null;
+            channel = null;
+            mappedChunks.clear();
+        }
     }
 }
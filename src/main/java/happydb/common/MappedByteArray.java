@@ -0,0 +1,184 @@
+package happydb.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+/**
+ * 基于 {@link ByteBuffer} 的字节数组，底层缓冲可以是 {@link DbFile#map(long, int)} 返回的内存映射区域，也可以是堆外内存
+ * <P>此类重写了 {@link ByteArray} 的读写方法，使页面可以直接从映射区域或堆外页帧中解析，而无需先将数据拷贝到 byte[] 中</P>
+ * <P>此类所有的读写均使用绝对下标，不会修改底层缓冲的位置，因此共享同一缓冲的多个实例互不影响。
+ * <strong>如果底层缓冲是只读的（例如内存映射区域），任何写入操作都会抛出 {@link java.nio.ReadOnlyBufferException}</strong></P>
+ *
+ * @Author happysnaker
+ * @Date 2023/2/6
+ * @Email happysnaker@foxmail.com
+ */
+public class MappedByteArray extends ByteArray {
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * 底层缓冲，下标 0 即为此字节数组的起始位置
+     */
+    private final ByteBuffer buffer;
+
+    public MappedByteArray(ByteBuffer buffer) {
+        super(EMPTY, 0, 0);
+        this.buffer = buffer.slice();
+        this.length = this.buffer.remaining();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= length())
+            throw new IndexOutOfBoundsException(String.format("index %d out og bound [0, %d)", index, length()));
+    }
+
+    @Override
+    public void set(int index, byte val) throws IndexOutOfBoundsException {
+        checkIndex(index);
+        buffer.put(index, val);
+    }
+
+    @Override
+    public byte get(int index) throws IndexOutOfBoundsException {
+        checkIndex(index);
+        return buffer.get(index);
+    }
+
+    @Override
+    public byte[] getRawByteArray() {
+        return getByteArray();
+    }
+
+    @Override
+    public byte[] getByteArray() {
+        byte[] ans = new byte[length()];
+        buffer.get(0, ans);
+        return ans;
+    }
+
+    @Override
+    public byte readByte() {
+        if (!hasNextByte())
+            throw new NoSuchElementException();
+        return buffer.get(readPos++);
+    }
+
+    @Override
+    public short readShort() {
+        if (!hasNextShort())
+            throw new NoSuchElementException();
+        short ans = buffer.getShort(readPos);
+        readPos += Short.BYTES;
+        return ans;
+    }
+
+    @Override
+    public int readInt() {
+        if (!hasNextInt())
+            throw new NoSuchElementException();
+        int ans = buffer.getInt(readPos);
+        readPos += Integer.BYTES;
+        return ans;
+    }
+
+    @Override
+    public double readDouble() {
+        if (nextBytes() < Double.BYTES)
+            throw new NoSuchElementException();
+        double ans = buffer.getDouble(readPos);
+        readPos += Double.BYTES;
+        return ans;
+    }
+
+    @Override
+    public long readLong() {
+        if (!hasNextLong())
+            throw new NoSuchElementException();
+        long ans = buffer.getLong(readPos);
+        readPos += Long.BYTES;
+        return ans;
+    }
+
+    @Override
+    public ByteArray readByteArray(int len) {
+        if (nextBytes() < len)
+            throw new NoSuchElementException();
+        readPos += len;
+        return subArray(readPos - len, readPos);
+    }
+
+    @Override
+    public String readString(int length) {
+        if (nextBytes() < length)
+            throw new NoSuchElementException();
+        byte[] bytes = new byte[length];
+        buffer.get(readPos, bytes);
+        readPos += length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public short readShort(int start) {
+        if (start + Short.BYTES > length())
+            throw new NoSuchElementException();
+        return buffer.getShort(start);
+    }
+
+    @Override
+    public int readInt(int start) {
+        if (start + Integer.BYTES > length())
+            throw new NoSuchElementException();
+        return buffer.getInt(start);
+    }
+
+    @Override
+    public long readLong(int start) {
+        if (start + Long.BYTES > length())
+            throw new NoSuchElementException();
+        return buffer.getLong(start);
+    }
+
+    @Override
+    public byte readByte(int start) {
+        if (start + 1 > length())
+            throw new NoSuchElementException();
+        return buffer.get(start);
+    }
+
+    @Override
+    public double readDouble(int start) {
+        if (start + Double.BYTES > length())
+            throw new NoSuchElementException();
+        return buffer.getDouble(start);
+    }
+
+    @Override
+    public String readString(int start, int length) {
+        if (start + length > length())
+            throw new NoSuchElementException();
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public ByteArray subArray(int fromIndex, int toIndex) {
+        return new MappedByteArray(buffer.slice(fromIndex, toIndex - fromIndex));
+    }
+
+    @Override
+    public ByteArray subArray(int fromIndex) {
+        return subArray(fromIndex, length());
+    }
+
+    @Override
+    ByteBuffer toByteBuffer() {
+        return buffer.duplicate().clear();
+    }
+
+    @Override
+    public ByteArray clone() {
+        return new ByteArray(getByteArray());
+    }
+}
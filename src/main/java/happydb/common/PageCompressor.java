@@ -0,0 +1,188 @@
+package happydb.common;
+
+import java.util.Arrays;
+
+/**
+ * 页面压缩器，实现了 LZ4 块格式的一个简化版本，不依赖任何本地库
+ * <P>压缩后的数据由若干序列组成，每个序列包含一个令牌字节、字面量以及一个回溯匹配：</P>
+ * <pre>
+ *   token(高 4 位字面量长度, 低 4 位匹配长度 - 4) [字面量长度扩展] 字面量 offset(2 字节小端) [匹配长度扩展]
+ * </pre>
+ * <P>长度字段为 15 时后跟扩展字节，每个扩展字节累加到长度上，直到遇到不为 255 的字节为止。最后一个序列只有字面量，没有匹配。
+ * 匹配允许与输出重叠（例如 offset 为 1 时表示重复上一个字节），因此页面中大段的零填充只需要几个字节即可表示</P>
+ * <P>此类的方法都是无状态的，可以被多个线程并发调用</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/3/12
+ * @Email happysnaker@foxmail.com
+ */
+public class PageCompressor {
+    private static final int MIN_MATCH = 4;
+
+    /**
+     * 最后若干字节总是作为字面量输出，这保证了匹配扩展时不会越界
+     */
+    private static final int LAST_LITERALS = 5;
+
+    /**
+     * 距离末尾不足此长度时不再查找匹配
+     */
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    private static final int MAX_OFFSET = 65535;
+
+    private static final int HASH_LOG = 12;
+
+    /**
+     * 返回长度为 len 的数据压缩后的最大可能长度
+     */
+    public static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeLength(byte[] dst, int op, int len) {
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    /**
+     * 输出一个序列，matchLen 为 0 时表示最后一个只有字面量的序列
+     */
+    private static int writeSequence(byte[] dst, int op, byte[] src, int anchor, int litLen, int offset, int matchLen) {
+        int tokenPos = op++;
+        int token = Math.min(litLen, 15) << 4;
+        if (litLen >= 15) {
+            op = writeLength(dst, op, litLen - 15);
+        }
+        System.arraycopy(src, anchor, dst, op, litLen);
+        op += litLen;
+        if (matchLen > 0) {
+            int ml = matchLen - MIN_MATCH;
+            token |= Math.min(ml, 15);
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            if (ml >= 15) {
+                op = writeLength(dst, op, ml - 15);
+            }
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    /**
+     * 压缩数据
+     *
+     * @param src 源数据
+     * @param off 起始位置
+     * @param len 长度
+     * @return 压缩后的数据，长度可能大于源数据
+     */
+    public static byte[] compress(byte[] src, int off, int len) {
+        byte[] dst = new byte[maxCompressedLength(len)];
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+        int end = off + len, matchLimit = end - MATCH_FIND_LIMIT, literalLimit = end - LAST_LITERALS;
+        int ip = off, anchor = off, op = 0;
+        while (ip < matchLimit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+            // 向前扩展匹配
+            while (ip > anchor && ref > off && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < literalLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                matchLen++;
+            }
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+        }
+        op = writeSequence(dst, op, src, anchor, end - anchor, 0, 0);
+        return Arrays.copyOf(dst, op);
+    }
+
+    public static byte[] compress(byte[] src) {
+        return compress(src, 0, src.length);
+    }
+
+    /**
+     * 解压数据，解压后的长度必须恰好为 dstLen
+     *
+     * @param src    压缩数据
+     * @param off    压缩数据起始位置
+     * @param len    压缩数据长度
+     * @param dst    目标数组
+     * @param dstOff 目标起始位置
+     * @param dstLen 解压后的长度
+     * @throws IllegalArgumentException 如果压缩数据已经损坏
+     */
+    public static void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen)
+            throws IllegalArgumentException {
+        int ip = off, end = off + len, op = dstOff, opEnd = dstOff + dstLen;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        litLen += b;
+                    } while (b == 255);
+                }
+                if (ip + litLen > end || op + litLen > opEnd) {
+                    throw new IllegalArgumentException("压缩数据已损坏");
+                }
+                System.arraycopy(src, ip, dst, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if (ip >= end) {
+                    break;
+                }
+                int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLen = token & 0xF;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff || op + matchLen > opEnd) {
+                    throw new IllegalArgumentException("压缩数据已损坏");
+                }
+                // 匹配可能与输出重叠，必须逐字节拷贝
+                for (int i = 0; i < matchLen; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("压缩数据已损坏", e);
+        }
+        if (op != opEnd) {
+            throw new IllegalArgumentException("解压后的长度与预期不符");
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package happydb.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * 由定长页面组成的文件，页面管理器通过此接口读写堆文件与索引文件
+ * <P>{@link DbFile} 直接读写磁盘文件，{@link CompressedDbFile} 以压缩形式存储页面，页面管理器无需关心具体的实现</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/3/12
+ * @Email happysnaker@foxmail.com
+ */
+public interface PageFile {
+    /**
+     * 返回文件对外表现的路径
+     */
+    File getFile();
+
+    /**
+     * 向文件中指定偏移写入数据，此方法默认强制刷新缓冲
+     */
+    default void write(long offset, ByteArray data) throws IOException {
+        write(offset, data, true);
+    }
+
+    /**
+     * 向文件中指定偏移写入数据
+     *
+     * @param flush 指示是否要强制刷新
+     */
+    void write(long offset, ByteArray data, boolean flush) throws IOException;
+
+    /**
+     * 从指定偏移开始，将多个字节数组按顺序连续写入文件（聚集写）
+     *
+     * @param flush 指示是否要强制刷新
+     */
+    void writeVectored(long offset, boolean flush, ByteArray... arrays) throws IOException;
+
+    /**
+     * 从文件中指定偏移读取固定大小的数据，并放入字节数组中
+     *
+     * @throws NoSuchElementException 如果内容不足以填满字节数组
+     */
+    void read(long offset, ByteArray buffer) throws IOException, NoSuchElementException;
+
+    /**
+     * 从文件中指定偏移读取固定大小的数据，并返回字节数组
+     *
+     * @throws NoSuchElementException 如果文件内容从指定偏移开始不足 len 字节抛出
+     */
+    default ByteArray read(long offset, int len) throws IOException, NoSuchElementException {
+        ByteArray array = ByteArray.allocate(len);
+        read(offset, array);
+        return array;
+    }
+
+    /**
+     * 读取一个页面的数据，实现可以返回引用内存映射区域的只读字节数组
+     *
+     * @throws NoSuchElementException 如果文件内容从指定偏移开始不足 len 字节抛出
+     */
+    ByteArray readPage(long offset, int len) throws IOException, NoSuchElementException;
+
+    /**
+     * 设置文件的长度，文件可能被截断或扩展
+     */
+    void setLength(long newLength) throws IOException;
+
+    /**
+     * 获取文件长度
+     */
+    long getLength() throws IOException;
+
+    /**
+     * 将所有已写入的数据强制刷新到磁盘
+     */
+    void force() throws IOException;
+
+    /**
+     * 关闭文件句柄
+     */
+    void close();
+}
@@ -44,7 +44,7 @@ public class Aggregator {
         this.tableDesc = getAggregateTableDesc(tableDesc, groupByField, nodes);
 
         for (AggregatorNode node : nodes) {
-            if (node.op != AggregatorNode.Op.COUNT && tableDesc.getFieldType(node.aggregateField) == Type.STRING_TYPE) {
+            if (node.op != AggregatorNode.Op.COUNT && tableDesc.getFieldType(node.aggregateField).isString()) {
                 throw new IllegalArgumentException("STRING 类型不允许相应分组运算符 " + node.op);
             }
         }
@@ -4,6 +4,7 @@ import happydb.common.Database;
 import happydb.common.Permissions;
 import happydb.exception.DbException;
 import happydb.index.Index;
+import happydb.index.IndexCursor;
 import happydb.index.IndexType;
 import happydb.log.UndoLog;
 import happydb.log.UndoLogId;
@@ -16,9 +17,6 @@ import happydb.transaction.TransactionId;
 import lombok.Getter;
 import net.sf.jsqlparser.statement.insert.Insert;
 
-import java.util.Iterator;
-import java.util.List;
-
 /**
  * 一切查询运算符的源头之一，BTreeSeqScan 利用 B+ 树索引，选择是否全表扫描还是基于条件的查询，返回元组迭代流，
  * BTreeSeqScan 必须要过滤被逻辑删除的元组以及那些事务看不见的元组（由事务隔离机制决定），并通过版本引用获取对本事务可见的记录。
@@ -62,42 +60,64 @@ public class BTreeSeqScan extends AbstractOpIterator {
     }
 
 
-    protected List<RecordId> recordIds;
-    protected Iterator<RecordId> iterator;
+    /**
+     * 索引游标，扫描按需从索引中读取记录 ID，返回第一条记录无需遍历整个索引
+     */
+    protected IndexCursor cursor;
+
+    /**
+     * 按照游标读入的记录 ID 预读堆页面
+     */
+    protected ReadAhead readAhead;
 
     @Override
     protected void closeOpIterator() throws DbException {
-        iterator = null;
-        recordIds = null;
+        if (cursor != null) {
+            cursor.close();
+        }
+        cursor = null;
+        readAhead = null;
     }
 
     @Override
     protected void openOpIterator() throws DbException {
+        this.cursor = openCursor();
+        this.readAhead = new ReadAhead();
+        this.readView = ReadView.createReadView(tid, Database.ISOLATION_LEVEL);
+    }
+
+    private IndexCursor openCursor() throws DbException {
         if (predicate != null) {
             Index index = Database.getCatalog().getIndex(tableName, predicate.getField(), IndexType.BTREE);
-            recordIds = index.search(tid, predicate.getOp(), predicate.getOperand());
-        } else {
-            TableDesc tableDesc = Database.getCatalog().getTableDesc(tableName);
-            Index index = Database.getCatalog().getIndex(tableName, tableDesc.getPrimaryKeyFieldIndex(), IndexType.BTREE);
-            recordIds = index.search(tid, null, null);
+            return index.cursor(tid, predicate.getOp(), predicate.getOperand());
         }
-        this.iterator = recordIds.iterator();
-        this.readView = ReadView.createReadView(tid, Database.ISOLATION_LEVEL);
+        TableDesc tableDesc = Database.getCatalog().getTableDesc(tableName);
+        Index index = Database.getCatalog().getIndex(tableName, tableDesc.getPrimaryKeyFieldIndex(), IndexType.BTREE);
+        return index.cursor(tid, null, null);
     }
 
     @Override
     public void rewind() throws DbException {
-        this.iterator = recordIds.iterator();
+        this.cursor.close();
+        this.cursor = openCursor();
+        this.readAhead = new ReadAhead();
     }
 
     @Override
     protected Record fetchNext() throws DbException {
         Record record = null;
-        while (iterator.hasNext()) {
-            RecordId next = iterator.next();
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, next.getPid(), Permissions.READ_ONLY);
+        // 全表扫描读入的堆页面只会被访问一次，不应该挤出缓冲池中的热点页面
+        ReplacementPolicy.AccessType accessType = predicate == null ?
+                ReplacementPolicy.AccessType.SCAN : ReplacementPolicy.AccessType.NORMAL;
+        while (cursor.hasNext()) {
+            RecordId next = cursor.next();
+            // 扫描顺序访问堆页面时，预读游标已经读入的之后的页面
+            if (readAhead.access(next.getPid(), false)) {
+                readAhead.prefetchRecords(cursor.batch(), cursor.batchPosition());
+            }
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, next.getPid(), Permissions.READ_ONLY, accessType);
 
-            record = page.readRecord(next);
+            record = page.readRecordIfPresent(next);
             if ((record = isVisible(record)) != null && record.isValid()) {
                 return record;
             }
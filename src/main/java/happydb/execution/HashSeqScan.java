@@ -4,6 +4,7 @@ import happydb.common.Database;
 import happydb.common.Permissions;
 import happydb.exception.DbException;
 import happydb.index.Index;
+import happydb.index.IndexCursor;
 import happydb.index.IndexType;
 import happydb.log.UndoLog;
 import happydb.log.UndoLogId;
@@ -14,9 +15,6 @@ import happydb.transaction.ReadView;
 import happydb.transaction.TransactionId;
 import lombok.Getter;
 
-import java.util.Iterator;
-import java.util.List;
-
 /**
  * 一切查询运算符的源头之一，此类利用哈希索引进行等值条件下的元组查询，返回元组迭代流，
  * 此类会过滤过滤被逻辑删除的元组以及那些事务看不见的元组（由事务隔离机制决定），并通过版本引用获取对本事务可见的记录。
@@ -58,37 +56,39 @@ public class HashSeqScan extends AbstractOpIterator {
     }
 
 
-    protected List<RecordId> recordIds;
-    protected Iterator<RecordId> iterator;
+    /**
+     * 索引游标，在第一次迭代时才进行查找
+     */
+    protected IndexCursor cursor;
 
     @Override
     protected void closeOpIterator() throws DbException {
-        iterator = null;
-        recordIds = null;
+        if (cursor != null) {
+            cursor.close();
+        }
+        cursor = null;
     }
 
     @Override
     protected void openOpIterator() throws DbException {
         Index index = Database.getCatalog().getIndex(tableName, predicate.getField(), IndexType.HASH);
-        recordIds = index.search(tid, predicate.getOp(), predicate.getOperand());
-
-        this.iterator = recordIds.iterator();
+        this.cursor = index.cursor(tid, predicate.getOp(), predicate.getOperand());
         this.readView = ReadView.createReadView(tid, Database.ISOLATION_LEVEL);
     }
 
     @Override
     public void rewind() throws DbException {
-        this.iterator = recordIds.iterator();
+        this.cursor.seek(predicate.getOperand());
     }
 
     @Override
     protected Record fetchNext() throws DbException {
         Record record = null;
-        while (iterator.hasNext()) {
-            RecordId next = iterator.next();
+        while (cursor.hasNext()) {
+            RecordId next = cursor.next();
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, next.getPid(), Permissions.READ_ONLY);
 
-            record = page.readRecord(next);
+            record = page.readRecordIfPresent(next);
             if ((record = isVisible(record)) != null && record.isValid()) {
                 return record;
             }
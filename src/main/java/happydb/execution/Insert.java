@@ -5,6 +5,8 @@ import happydb.common.Permissions;
 import happydb.exception.DbException;
 import happydb.index.Index;
 import happydb.index.IndexType;
+import happydb.index.btree.BTreeBulkLoader;
+import happydb.index.btree.BTreeIndex;
 import happydb.log.UndoLog;
 import happydb.optimizer.TableStateView;
 import happydb.storage.*;
@@ -14,10 +16,12 @@ import happydb.transaction.TransactionId;
 import lombok.NonNull;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeSet;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -25,7 +29,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * <ol>
  *     <li>完备这些元组，这包括设置有效位为真，设置最后修改的事务 ID 为当前事务</li>
  *     <li>
- *         获取表锁，判断待插入唯一索引键是否重复，如果重复则抛出异常，请注意，<strong>已经插入的记录不会取消</strong>，
+ *         获取记录所有唯一键上的闩锁，判断待插入唯一索引键是否重复，如果重复则抛出异常，请注意，<strong>已经插入的记录不会取消</strong>，
  *         由于存在被逻辑删除的记录以及其他事务并发，具体判断规则如下：
  *          <ul>
  *              <li>使用索引搜索等值条件的记录 ID 列表，如果存在任意一个行记录被其他事务锁定，则认为已有记录，抛出异常</li>
@@ -40,9 +44,11 @@ import java.util.concurrent.locks.ReentrantLock;
  *     <li>调用 {@link happydb.log.LogBuffer} 创建 {@link happydb.log.InsertRedoLog}，将页面弄脏并放入 flushLst 中</li>
  *     <li>为记录每一个包含索引的字段建立索引</li>
  *     <li>动态维护直方图，直方图允许一定的误差，不管是否回滚，都执行插入</li>
- *     <li>释放表锁</li>
+ *     <li>释放唯一键闩锁</li>
  *     <li><strong>Insert 将在 {@link #open()} 时完成一切操作</strong>，在 {@link #next()} 时，仅返回一行记录影响的行数，多次调用将返回 null </li>
  * </ol>
+ * <P>批量导入模式下，开始插入时为空的 B+ 树索引不会逐条插入，而是在所有记录插入之后由 {@link BTreeBulkLoader} 一次性构建，
+ * 这些索引上的唯一性检查也推迟到构建时进行，因此批量导入只适用于向空表导入数据并且没有其他事务并发写入此表的场景</P>
  *
  * @Author happysnaker
  * @Date 2022/12/4
@@ -50,21 +56,51 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Insert extends AbstractOpIterator {
 
-    final static Map<String, ReentrantLock> tableLock = new ConcurrentHashMap<>();
+    /**
+     * 唯一键闩锁的条带数
+     */
+    private static final int KEY_LATCH_STRIPES = 1024;
 
     /**
-     * 获取锁，由于一次操作将释放锁，因此这里是基于线程的而不是基于事务的锁，一次操作总是单线程的
+     * 唯一键闩锁，键按哈希值映射到条带，插入同一个唯一键的操作从唯一性检查到建立索引期间互斥，
+     * 而插入不同键的操作通常落在不同的条带上，可以并发执行。没有唯一索引的表插入时不需要任何闩锁
+     * <P>由于一次操作将释放闩锁，因此这里是基于线程的而不是基于事务的锁，一次操作总是单线程的</P>
+     */
+    private static final ReentrantLock[] keyLatches = new ReentrantLock[KEY_LATCH_STRIPES];
+
+    static {
+        for (int i = 0; i < keyLatches.length; i++) {
+            keyLatches[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * 按条带顺序获取记录所有唯一键上的闩锁，固定的加锁顺序保证插入之间不会死锁
      *
-     * @param tableName
-     * @return
+     * @return 已经获取的条带，按升序排列
      */
-    protected static ReentrantLock getLock(String tableName) {
-        if (!tableLock.containsKey(tableName)) {
-            synchronized (tableLock) {
-                tableLock.putIfAbsent(tableName, new ReentrantLock());
+    private static int[] lockUniqueKeys(TableDesc td, Record record) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            Set<IndexType> set = IndexType.intToIndexSet(td.getIndexType(i));
+            if (set.contains(IndexType.BTREE_UNIQUE) || set.contains(IndexType.HASH_UNIQUE)) {
+                int hash = Objects.hash(td.getTableName(), i, record.getField(i).getObject());
+                stripes.add(Math.floorMod(hash, KEY_LATCH_STRIPES));
             }
         }
-        return tableLock.get(tableName);
+        int[] ans = new int[stripes.size()];
+        int k = 0;
+        for (int stripe : stripes) {
+            keyLatches[stripe].lock();
+            ans[k++] = stripe;
+        }
+        return ans;
+    }
+
+    private static void unlockUniqueKeys(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            keyLatches[stripes[i]].unlock();
+        }
     }
 
     OpIterator child;
@@ -75,12 +111,43 @@ public class Insert extends AbstractOpIterator {
 
     ReadView readView;
 
+    /**
+     * 是否为批量导入模式
+     */
+    boolean bulkLoad;
+
+    /**
+     * 批量导入模式下推迟构建的 B+ 树索引，键为字段下标
+     */
+    Map<Integer, BTreeBulkLoader> loaders = new HashMap<>();
+
     public Insert(@NonNull OpIterator child, @NonNull TransactionId tid) {
+        this(child, tid, false);
+    }
+
+    /**
+     * @param child    待插入的记录
+     * @param tid      事务 ID
+     * @param bulkLoad 是否为批量导入模式
+     */
+    public Insert(@NonNull OpIterator child, @NonNull TransactionId tid, boolean bulkLoad) {
         this.child = child;
         this.tid = tid;
+        this.bulkLoad = bulkLoad;
         this.readView = ReadView.createReadView(tid, ReadView.READ_COMMIT);
     }
 
+    /**
+     * 检查字符串字段没有超过表上声明的最大长度，例如 VARCHAR(n)
+     */
+    private static void assertLength(TableDesc td, Record record) throws DbException {
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i).isString() && ((StringField) record.getField(i)).length() > td.getMaxLength(i)) {
+                throw new DbException("字段 " + td.getFieldName(i) + " 的长度超过了最大长度 " + td.getMaxLength(i));
+            }
+        }
+    }
+
     private void assertUnique(TableDesc td, Record record) throws DbException, IOException {
         for (int i = 0; i < td.numFields(); i++) {
             Set<IndexType> set = IndexType.intToIndexSet(td.getIndexType(i));
@@ -105,7 +172,10 @@ public class Insert extends AbstractOpIterator {
                         }
 
                         Record r = ((HeapPage) Database.getBufferPool()
-                                .getPage(tid, recordId.getPid(), Permissions.READ_ONLY)).readRecord(recordId);
+                                .getPage(tid, recordId.getPid(), Permissions.READ_ONLY)).readRecordIfPresent(recordId);
+                        if (r == null) {
+                            continue;
+                        }
                         if (!readView.isVisible(r)) {
                             hasRecord = true;
                             break;
@@ -132,6 +202,10 @@ public class Insert extends AbstractOpIterator {
                 if (indexType != IndexType.BTREE && indexType != IndexType.HASH) {
                     continue;
                 }
+                if (indexType == IndexType.BTREE && loaders.containsKey(i)) {
+                    loaders.get(i).add(record.getField(i), record.getRecordId());
+                    continue;
+                }
                 Index index = indexType == IndexType.BTREE ? Database.getCatalog().getIndex(td.getTableName(), i, IndexType.BTREE)
                         : Database.getCatalog().getIndex(td.getTableName(), i, IndexType.HASH);
 
@@ -142,17 +216,18 @@ public class Insert extends AbstractOpIterator {
 
     private void doInsert(Record record) throws IOException, DbException {
         // step1
+        assertLength(Database.getCatalog().getTableDesc(child.getTableDesc().getTableName()), record);
         record.setValid(true);
         record.setLastModify(tid);
 
         // step2
-        getLock(child.getTableDesc().getTableName()).lock();
+        int[] stripes = lockUniqueKeys(child.getTableDesc(), record);
         try {
             assertUnique(child.getTableDesc(), record);
 
             // step3
             HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager(child.getTableDesc().getTableName());
-            RecordId malloc = pm.malloc();
+            RecordId malloc = pm.malloc(record.getSerializedLen());
             record.setRecordId(malloc);
             Database.getLockTable().lock(tid, malloc);
 
@@ -181,22 +256,55 @@ public class Insert extends AbstractOpIterator {
             TableStateView.getInstance().insertRecord(child.getTableDesc().getTableName(), record);
         } finally {
             // step9
-            getLock(child.getTableDesc().getTableName()).unlock();
+            unlockUniqueKeys(stripes);
         }
     }
 
 
+    /**
+     * 为所有开始插入时为空的 B+ 树索引创建批量构建器
+     */
+    private void createLoaders(TableDesc td) {
+        for (int i = 0; i < td.numFields(); i++) {
+            Set<IndexType> set = IndexType.intToIndexSet(td.getIndexType(i));
+            if (!set.contains(IndexType.BTREE)) {
+                continue;
+            }
+            BTreeIndex index = (BTreeIndex) Database.getCatalog().getIndex(td.getTableName(), i, IndexType.BTREE);
+            if (index.getSuperPage().getBtreeRootPageId().getPageNumber() == 0) {
+                loaders.put(i, new BTreeBulkLoader(index, tid, set.contains(IndexType.BTREE_UNIQUE)));
+            }
+        }
+    }
+
     @Override
     protected void openOpIterator() throws DbException {
         child.open();
+        if (bulkLoad) {
+            createLoaders(child.getTableDesc());
+        }
 
-        for (Record record : child.getRecordAr()) {
-            try {
-                doInsert(record);
-            } catch (DbException | IOException e) {
-                throw new DbException(e);
+        try {
+            for (Record record : child.getRecordAr()) {
+                try {
+                    doInsert(record);
+                } catch (DbException | IOException e) {
+                    throw new DbException(e);
+                }
+                rowsAffected++;
+            }
+            for (BTreeBulkLoader loader : loaders.values()) {
+                try {
+                    loader.build();
+                } catch (IOException e) {
+                    throw new DbException(e);
+                }
+            }
+        } finally {
+            for (BTreeBulkLoader loader : loaders.values()) {
+                loader.close();
             }
-            rowsAffected++;
+            loaders.clear();
         }
         assert rowsAffected > 0; // 不允许插入空行
     }
@@ -63,8 +63,12 @@ public class Update extends AbstractOpIterator {
         update.setValid(true);
         update.setLastModify(tid);
 
-        if (td.getFieldType(updateField) == Type.STRING_TYPE) {
-            update.setField(updateField, new StringField(expression));
+        if (td.getFieldType(updateField).isString()) {
+            StringField field = new StringField(expression, td.getFieldType(updateField));
+            if (field.length() > td.getMaxLength(updateField)) {
+                throw new DbException("字段 " + td.getFieldName(updateField) + " 的长度超过了最大长度 " + td.getMaxLength(updateField));
+            }
+            update.setField(updateField, field);
         } else {
             String expr = expression;
             for (int i = 0; i < td.numFields(); i++) {
@@ -78,17 +78,18 @@ public class UpdateOperateScan extends AbstractOpIterator {
         it.open();
         while (it.hasNext()) {
             Record next = it.next();
-            boolean prevHoldLock = Database.getLockTable().holdLock(tid, next.getRecordId());
-            Database.getLockTable().lock(tid, next.getRecordId());
+            RecordId rid = next.getRecordId();
+            boolean prevHoldLock = Database.getLockTable().holdLock(tid, rid);
+            Database.getLockTable().lock(tid, rid);
             // 加锁之后重新读一遍，双重验证，因为记录可能被修改额了
             next = ((HeapPage) Database.getBufferPool()
-                    .getPage(tid, next.getRecordId().getPid(), Permissions.READ_ONLY)).readRecord(next.getRecordId());
-            if (next.isValid() && filter(next, filters)) {
+                    .getPage(tid, rid.getPid(), Permissions.READ_ONLY)).readRecordIfPresent(rid);
+            if (next != null && next.isValid() && filter(next, filters)) {
                 records.add(next);
             } else {
                 // 必须要小心，如果事务之前就持有锁，那么不能释放它们！！！
                 if (!prevHoldLock) {
-                    Database.getLockTable().unsafeUnLock(tid, next.getRecordId());
+                    Database.getLockTable().unsafeUnLock(tid, rid);
                 }
             }
         }
@@ -214,12 +215,12 @@ public class UpdateOperateScan extends AbstractOpIterator {
         @Override
         protected Record fetchNext() throws DbException {
             Record record = null;
-            while (iterator.hasNext()) {
-                RecordId next = iterator.next();
+            while (cursor.hasNext()) {
+                RecordId next = cursor.next();
                 HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, next.getPid(), Permissions.READ_ONLY);
-                record = page.readRecord(next);
-                // 如果记录可见并且已经被删除，则过滤
-                if (super.readView.isVisible(record) && !record.isValid()) {
+                record = page.readRecordIfPresent(next);
+                // 如果记录已被回收，或者记录可见并且已经被删除，则过滤
+                if (record == null || super.readView.isVisible(record) && !record.isValid()) {
                     continue;
                 }
                 // 其他情况下直接返回
@@ -248,12 +249,12 @@ public class UpdateOperateScan extends AbstractOpIterator {
         @Override
         protected Record fetchNext() throws DbException {
             Record record = null;
-            while (iterator.hasNext()) {
-                RecordId next = iterator.next();
+            while (cursor.hasNext()) {
+                RecordId next = cursor.next();
                 HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, next.getPid(), Permissions.READ_ONLY);
-                record = page.readRecord(next);
-                // 如果记录可见并且已经被删除，则过滤
-                if (super.readView.isVisible(record) && !record.isValid()) {
+                record = page.readRecordIfPresent(next);
+                // 如果记录已被回收，或者记录可见并且已经被删除，则过滤
+                if (record == null || super.readView.isVisible(record) && !record.isValid()) {
                     continue;
                 }
                 // 其他情况下直接返回
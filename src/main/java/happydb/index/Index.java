@@ -7,6 +7,7 @@ import happydb.storage.RecordId;
 import happydb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -34,12 +35,30 @@ public interface Index {
     void delete(TransactionId tid, Field key, RecordId recordId) throws DbException;
 
     /**
-     * 查找符合条件的条目
+     * 打开一个游标，按需迭代符合条件的条目，条件决定了游标的上下界
+     *
+     * @param tid
+     * @param op      操作符，允许为空，为空则全表扫描
+     * @param operand 操作数，允许为空，为空则全表扫描
+     * @return 游标，使用完毕后应该关闭
+     */
+    IndexCursor cursor(TransactionId tid, Predicate.Op op, Field operand) throws DbException;
+
+    /**
+     * 查找符合条件的条目，此方法会遍历游标并将所有结果物化为列表，大范围的查询应直接使用 {@link #cursor(TransactionId, Predicate.Op, Field)}
      *
      * @param tid
      * @param op      操作符，允许为空，为空则全表扫描
      * @param operand 操作数，允许为空，为空则全表扫描
      * @return 返回指定的条目
      */
-    List<RecordId> search(TransactionId tid, Predicate.Op op, Field operand) throws DbException;
+    default List<RecordId> search(TransactionId tid, Predicate.Op op, Field operand) throws DbException {
+        List<RecordId> ans = new ArrayList<>();
+        try (IndexCursor cursor = cursor(tid, op, operand)) {
+            while (cursor.hasNext()) {
+                ans.add(cursor.next());
+            }
+        }
+        return ans;
+    }
 }
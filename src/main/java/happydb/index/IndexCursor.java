@@ -0,0 +1,44 @@
+package happydb.index;
+
+import happydb.storage.Field;
+import happydb.storage.RecordId;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 索引游标，按需从索引中读取符合条件的记录 ID，而不是一次性将所有结果物化为列表
+ * <P>游标在创建时确定上下界，{@link #next()} 返回的条目总是落在上下界之内；{@link #seek(Field)} 可以在上下界之内重新定位游标</P>
+ * <P>游标每次从索引中读入一小批条目并缓存在内存中，读取一批条目时才会锁定索引页面，读取完成后立即释放，
+ * 因此两次调用之间不持有任何页面锁，也不保证看到这期间其他事务对索引的修改，可见性仍由上层的读视图决定</P>
+ * <P>迭代过程中发生的 {@link happydb.exception.DbException} 会被包装为 {@link RuntimeException} 抛出</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/3/18
+ * @Email happysnaker@foxmail.com
+ */
+public interface IndexCursor extends Iterator<RecordId>, AutoCloseable {
+    /**
+     * 重新定位游标，之后返回的条目是第一个键不小于 key 的条目，仍然受游标上下界的约束，可以向前或向后定位
+     * <P>哈希索引是无序的，定位等价于以 key 重新进行等值查找</P>
+     *
+     * @param key 定位的键
+     */
+    void seek(Field key);
+
+    /**
+     * 返回游标当前缓存的一批条目，用于预读这些记录所在的堆页面，列表只允许读取，游标读入下一批条目时会返回新的列表
+     */
+    List<RecordId> batch();
+
+    /**
+     * 下一次 {@link #next()} 返回的条目在 {@link #batch()} 中的位置
+     */
+    int batchPosition();
+
+    /**
+     * 关闭游标并丢弃缓存的条目，关闭后 {@link #hasNext()} 总是返回假
+     */
+    @Override
+    void close();
+}
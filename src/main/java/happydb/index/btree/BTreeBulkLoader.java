@@ -0,0 +1,431 @@
+package happydb.index.btree;
+
+import happydb.common.ByteArray;
+import happydb.common.ByteList;
+import happydb.common.Catalog;
+import happydb.common.Database;
+import happydb.common.DbFile;
+import happydb.common.Permissions;
+import happydb.exception.DbException;
+import happydb.index.Index;
+import happydb.index.IndexCursor;
+import happydb.index.IndexType;
+import happydb.storage.*;
+import happydb.storage.Record;
+import happydb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * B+ 树批量构建器，自底向上地构建一棵 B+ 树，用于为已有的表建立索引以及批量导入，
+ * 代价是一次排序加上按页号顺序写入每个页面一次，而逐条插入的每个条目都要从根节点下降，并随机地弄脏和拆分页面
+ * <P>通过 {@link #add(Field, RecordId)} 添加的条目无需有序，构建器在内存中缓存至多 {@link #SORT_BUFFER_SIZE} 个条目，
+ * 缓存满时排序并写入一个临时的归并段文件，构建时对所有归并段进行多路归并，因此内存占用与条目总数无关</P>
+ * <P>{@link #build()} 根据条目总数算出每一层的节点数，一次性分配页号连续的页面，然后自底向上逐层写入：
+ * 每个节点按 {@link #FILL_FACTOR} 填充，为之后的插入留出空间，如果最后一个节点少于下限，则与它的左兄弟平分条目；
+ * 每个节点的第一个键作为上一层的分隔键，父节点的页号在写入之前就已经确定，因此每个页面只需写入一次</P>
+ * <P>页面直接写入文件而不经过缓冲池，构建期间持有超级页的写锁，其他事务无法访问这棵树。<strong>只有空树才能批量构建</strong>，
+ * 如果构建时树已经不为空，则按键的顺序逐条插入</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/3/20
+ * @Email happysnaker@foxmail.com
+ */
+public class BTreeBulkLoader implements AutoCloseable {
+    /**
+     * 节点的填充率
+     */
+    public static double FILL_FACTOR = 0.9;
+
+    /**
+     * 内存中缓存的最大条目数，超过此数量时写出一个归并段
+     */
+    public static int SORT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * 从归并段中一次读取的条目数
+     */
+    private static final int RUN_READ_BATCH = 1024;
+
+    /**
+     * 条目按键排序，键相同时按记录 ID 排序
+     */
+    private static final Comparator<BTreeLeafEntry> ORDER = (a, b) -> {
+        int c = BTreePage.compareKey(a.getKey(), b.getKey());
+        if (c != 0) {
+            return c;
+        }
+        c = Integer.compare(a.getRecordId().getPid().getPageNumber(), b.getRecordId().getPid().getPageNumber());
+        return c != 0 ? c : Integer.compare(a.getRecordId().getRecordNumber(), b.getRecordId().getRecordNumber());
+    };
+
+    private final BTreeIndex index;
+    private final TransactionId tid;
+
+    /**
+     * 是否为唯一索引，唯一索引中出现重复的键时构建失败
+     */
+    private final boolean unique;
+    private final Type type;
+
+    /**
+     * 索引对应的表名，用于解析归并段中的记录 ID
+     */
+    private final String tableName;
+    private final int entrySize;
+
+    private List<BTreeLeafEntry> buffer = new ArrayList<>();
+    private final List<Run> runs = new ArrayList<>();
+    private int size;
+
+    /**
+     * 一个已经排序并写入临时文件的归并段
+     */
+    private static class Run {
+        final File file;
+        final DbFile dbFile;
+        final int size;
+
+        Run(File file, DbFile dbFile, int size) {
+            this.file = file;
+            this.dbFile = dbFile;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param index  待构建的索引
+     * @param tid    事务 ID
+     * @param unique 是否为唯一索引
+     */
+    public BTreeBulkLoader(BTreeIndex index, TransactionId tid, boolean unique) {
+        this.index = index;
+        this.tid = tid;
+        this.unique = unique;
+        this.type = Catalog.getFieldTypeFromIndexTableName(index.getIndexTableName());
+        this.tableName = Catalog.getTableNameFromIndexTableName(index.getIndexTableName());
+        this.entrySize = type.getLen() + 8;
+    }
+
+    /**
+     * 为已有的表构建索引，通过主键索引的游标遍历表中所有的行记录，包括被逻辑删除的记录，这与逐条插入时建立的索引是一致的
+     *
+     * @param tid   事务 ID
+     * @param index 待构建的索引，不能是主键索引
+     */
+    public static void buildFromTable(TransactionId tid, BTreeIndex index) throws DbException, IOException {
+        String tableName = Catalog.getTableNameFromIndexTableName(index.getIndexTableName());
+        int fieldIndex = Catalog.getFieldIndexFromIndexTableName(index.getIndexTableName());
+        TableDesc td = Database.getCatalog().getTableDesc(tableName);
+        if (fieldIndex == td.getPrimaryKeyFieldIndex()) {
+            throw new DbException("主键索引无法从表中构建");
+        }
+        boolean unique = IndexType.intToIndexSet(td.getIndexType(fieldIndex)).contains(IndexType.BTREE_UNIQUE);
+        Index primary = Database.getCatalog().getIndex(tableName, td.getPrimaryKeyFieldIndex(), IndexType.BTREE);
+        try (BTreeBulkLoader loader = new BTreeBulkLoader(index, tid, unique);
+             IndexCursor cursor = primary.cursor(tid, null, null)) {
+            while (cursor.hasNext()) {
+                RecordId rid = cursor.next();
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPid(), Permissions.READ_ONLY,
+                        ReplacementPolicy.AccessType.SCAN);
+                Record record = page.readRecordIfPresent(rid);
+                if (record != null) {
+                    loader.add(record.getField(fieldIndex), rid);
+                }
+            }
+            loader.build();
+        }
+    }
+
+    /**
+     * 添加一个条目
+     */
+    public void add(Field key, RecordId recordId) throws IOException {
+        buffer.add(new BTreeLeafEntry(key, recordId));
+        size++;
+        if (buffer.size() >= SORT_BUFFER_SIZE) {
+            spill();
+        }
+    }
+
+    /**
+     * 返回已经添加的条目数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 将缓存的条目排序后写入一个新的归并段
+     */
+    private void spill() throws IOException {
+        buffer.sort(ORDER);
+        File file = File.createTempFile("bulk-load-", ".run", new File(Database.REPOSITORY_DIR));
+        DbFile dbFile = new DbFile(file);
+        runs.add(new Run(file, dbFile, buffer.size()));
+        ByteList bytes = new ByteList();
+        for (BTreeLeafEntry entry : buffer) {
+            bytes.writeByteArray(entry.serialized());
+        }
+        dbFile.append(bytes, false);
+        buffer = new ArrayList<>();
+    }
+
+    /**
+     * 按顺序读取一个归并段
+     */
+    private class RunIterator implements Iterator<BTreeLeafEntry> {
+        private final Run run;
+        private int read;
+        private final Deque<BTreeLeafEntry> batch = new ArrayDeque<>();
+
+        RunIterator(Run run) {
+            this.run = run;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (batch.isEmpty() && read < run.size) {
+                int n = Math.min(RUN_READ_BATCH, run.size - read);
+                try {
+                    ByteArray bytes = run.dbFile.read((long) read * entrySize, n * entrySize);
+                    for (int i = 0; i < n; i++) {
+                        batch.add(BTreeLeafEntry.parse(bytes, type, tableName));
+                    }
+                } catch (IOException | ParseException e) {
+                    throw new RuntimeException(e);
+                }
+                read += n;
+            }
+            return !batch.isEmpty();
+        }
+
+        @Override
+        public BTreeLeafEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.poll();
+        }
+    }
+
+    /**
+     * 返回所有条目的有序迭代器，没有写出归并段时直接在内存中排序，否则将内存中剩余的条目也写出，然后多路归并
+     */
+    private Iterator<BTreeLeafEntry> sorted() throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort(ORDER);
+            return buffer.iterator();
+        }
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        PriorityQueue<Map.Entry<BTreeLeafEntry, RunIterator>> heap =
+                new PriorityQueue<>((a, b) -> ORDER.compare(a.getKey(), b.getKey()));
+        for (Run run : runs) {
+            RunIterator it = new RunIterator(run);
+            if (it.hasNext()) {
+                heap.add(new AbstractMap.SimpleEntry<>(it.next(), it));
+            }
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heap.isEmpty();
+            }
+
+            @Override
+            public BTreeLeafEntry next() {
+                Map.Entry<BTreeLeafEntry, RunIterator> top = heap.poll();
+                if (top == null) {
+                    throw new NoSuchElementException();
+                }
+                if (top.getValue().hasNext()) {
+                    heap.add(new AbstractMap.SimpleEntry<>(top.getValue().next(), top.getValue()));
+                }
+                return top.getKey();
+            }
+        };
+    }
+
+    /**
+     * 将 n 个条目（或子节点）分配到若干个节点中，每个节点至多 cap 个，最后一个节点少于 min 个时与左兄弟平分
+     *
+     * @return 每个节点的条目数
+     */
+    private static int[] distribute(int n, int cap, int min) {
+        int[] sizes = new int[(n + cap - 1) / cap];
+        Arrays.fill(sizes, cap);
+        int last = sizes.length - 1;
+        sizes[last] = n - cap * last;
+        if (last > 0 && sizes[last] < min) {
+            int total = sizes[last - 1] + sizes[last];
+            sizes[last - 1] = total - total / 2;
+            sizes[last] = total / 2;
+        }
+        return sizes;
+    }
+
+    private static ByteArray emptyPageData(byte category) {
+        ByteArray byteAr = ByteArray.allocate(BufferPool.getPageSize());
+        byteAr.set(0, category);
+        return byteAr;
+    }
+
+    /**
+     * 构建索引，此方法只能调用一次
+     *
+     * @return 如果批量构建了一棵新树，返回真；如果树已经不为空而逐条插入，返回假
+     * @throws DbException 如果唯一索引中存在重复的键，此时树保持为空
+     */
+    public boolean build() throws DbException, IOException {
+        Iterator<BTreeLeafEntry> it = sorted();
+        BTreePageHolder holder = new BTreePageHolder(index.getSuperPage(), tid);
+        boolean empty;
+        try {
+            BTreeSuperPage sp = holder.getSuperPage(Permissions.READ_WRITE);
+            empty = sp.getBtreeRootPageId().getPageNumber() == 0;
+            if (empty && size > 0) {
+                sp.setBtreeRootPageId(writeTree(sp, it));
+                sp.markDirty(true);
+            }
+        } finally {
+            holder.releaseAllPages();
+        }
+        if (!empty) {
+            while (it.hasNext()) {
+                BTreeLeafEntry entry = it.next();
+                index.insert(tid, entry.getKey(), entry.getRecordId());
+            }
+        }
+        return empty;
+    }
+
+    /**
+     * 自底向上写入整棵树，返回根节点
+     */
+    private PageId writeTree(BTreeSuperPage sp, Iterator<BTreeLeafEntry> it) throws DbException, IOException {
+        String indexTableName = index.getIndexTableName();
+        PageManager pm = Database.getCatalog().getPageManager(indexTableName);
+        PageId nullPid = new PageId(indexTableName, 0);
+
+        BTreeLeafPage leafTemplate = new BTreeLeafPage(emptyPageData(BTreePage.LEAF), nullPid);
+        BTreeInternalPage internalTemplate = new BTreeInternalPage(emptyPageData(BTreePage.INTERNAL), nullPid);
+        int leafCap = Math.max(1, (int) (leafTemplate.getMaxNumEntries() * FILL_FACTOR));
+        int childCap = Math.max(2, (int) (internalTemplate.getMaxNumEntries() * FILL_FACTOR) + 1);
+
+        // 每一层的节点大小，第 0 层是叶子节点，最后一层只有根节点
+        List<int[]> levels = new ArrayList<>();
+        levels.add(distribute(size, leafCap, leafTemplate.getMinNumEntries()));
+        int total = levels.get(0).length;
+        while (levels.get(levels.size() - 1).length > 1) {
+            int[] level = distribute(levels.get(levels.size() - 1).length, childCap, internalTemplate.getMinNumEntries() + 1);
+            levels.add(level);
+            total += level.length;
+        }
+        int[] starts = new int[levels.size()];
+        starts[0] = sp.mallocContiguous(total);
+        for (int l = 1; l < levels.size(); l++) {
+            starts[l] = starts[l - 1] + levels.get(l - 1).length;
+        }
+
+        try {
+            // 每个节点子树中的最小键，作为上一层的分隔键
+            int[] leaves = levels.get(0);
+            Field[] firstKeys = new Field[leaves.length];
+            ParentAssigner parents = new ParentAssigner(levels, starts, 0, indexTableName);
+            BTreeLeafEntry prev = null;
+            for (int j = 0; j < leaves.length; j++) {
+                PageId pid = new PageId(indexTableName, starts[0] + j);
+                BTreeLeafPage leaf = new BTreeLeafPage(emptyPageData(BTreePage.LEAF), pid);
+                for (int k = 0; k < leaves[j]; k++) {
+                    BTreeLeafEntry entry = it.next();
+                    if (unique && prev != null && BTreePage.compareKey(prev.getKey(), entry.getKey()) == 0) {
+                        throw new DbException("Duplicated insert val " + entry.getKey());
+                    }
+                    if (k == 0) {
+                        firstKeys[j] = entry.getKey();
+                    }
+                    leaf.insertEntry(new BTreeLeafEntry(entry.getKey(), entry.getRecordId()));
+                    prev = entry;
+                }
+                leaf.setLeftSibling(j == 0 ? 0 : pid.getPageNumber() - 1);
+                leaf.setRightSibling(j == leaves.length - 1 ? 0 : pid.getPageNumber() + 1);
+                leaf.setParent(parents.next());
+                pm.writePage(leaf);
+            }
+
+            for (int l = 1; l < levels.size(); l++) {
+                int[] nodes = levels.get(l);
+                Field[] keys = new Field[nodes.length];
+                parents = new ParentAssigner(levels, starts, l, indexTableName);
+                int child = starts[l - 1], c = 0;
+                for (int j = 0; j < nodes.length; j++) {
+                    PageId pid = new PageId(indexTableName, starts[l] + j);
+                    BTreeInternalPage page = new BTreeInternalPage(emptyPageData(BTreePage.INTERNAL), pid);
+                    for (int k = 1; k < nodes[j]; k++) {
+                        page.insertEntry(new BTreeInternalEntry(firstKeys[c + k],
+                                new PageId(indexTableName, child + c + k - 1), new PageId(indexTableName, child + c + k)));
+                    }
+                    keys[j] = firstKeys[c];
+                    c += nodes[j];
+                    page.setParent(parents.next());
+                    pm.writePage(page);
+                }
+                firstKeys = keys;
+            }
+        } catch (DbException | RuntimeException e) {
+            for (int i = 0; i < total; i++) {
+                sp.free(new PageId(indexTableName, starts[0] + i));
+            }
+            throw e;
+        }
+        return new PageId(indexTableName, starts[levels.size() - 1]);
+    }
+
+    /**
+     * 按顺序为某一层的节点分配父节点
+     */
+    private static class ParentAssigner {
+        private final int[] parents;
+        private final int start;
+        private final String indexTableName;
+        private int idx;
+        private int used;
+
+        ParentAssigner(List<int[]> levels, int[] starts, int level, String indexTableName) {
+            boolean root = level == levels.size() - 1;
+            this.parents = root ? null : levels.get(level + 1);
+            this.start = root ? 0 : starts[level + 1];
+            this.indexTableName = indexTableName;
+        }
+
+        PageId next() {
+            if (parents == null) {
+                return new PageId(indexTableName, 0);
+            }
+            if (used == parents[idx]) {
+                idx++;
+                used = 0;
+            }
+            used++;
+            return new PageId(indexTableName, start + idx);
+        }
+    }
+
+    /**
+     * 删除所有的归并段文件
+     */
+    @Override
+    public void close() {
+        for (Run run : runs) {
+            run.dbFile.close();
+            run.file.delete();
+        }
+        runs.clear();
+        buffer = new ArrayList<>();
+    }
+}
@@ -5,15 +5,19 @@ import happydb.common.Permissions;
 import happydb.exception.DbException;
 import happydb.execution.Predicate;
 import happydb.index.Index;
+import happydb.index.IndexCursor;
 import happydb.storage.Field;
 import happydb.storage.Page;
 import happydb.storage.PageId;
+import happydb.storage.ReadAhead;
 import happydb.storage.RecordId;
+import happydb.storage.ReplacementPolicy;
 import happydb.transaction.TransactionId;
 import lombok.Getter;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -43,52 +47,78 @@ public class BTreeIndex implements Index {
 
 
     /**
-     * 递归搜索<strong>可能</strong>包含字段 field 的最左侧的页面，对沿途的页面以 perm 权限锁定，并严格参照蟹行协议释放父页面的锁定
-     * <P>如果父页面是 null，那么它必须要释放 {@link #superPage} 上的锁定</P>
+     * 搜索<strong>可能</strong>包含字段 field 的最左侧的页面，对沿途的页面以 perm 权限锁定，并严格参照蟹行协议释放祖先页面的锁定：
+     * <ul>
+     *     <li>只读权限：获得子节点的锁后立即释放父节点，包括 {@link #superPage}，因此任一时刻至多持有两个页面的读锁</li>
+     *     <li>读写权限：用于悲观插入，如果子节点未满，则此次插入引起的拆分不会传播到子节点之上，此时释放所有仍被锁定的祖先节点，
+     *     而不仅仅是直接父节点</li>
+     * </ul>
+     * <P>调用前必须以相同的权限锁定 {@link #superPage}</P>
      *
      * @param holder  本次操作的页面 holder
-     * @param currPid 当前递归搜索到的 PID
-     * @param parent  父节点页面，在适当的情况释放它身上的锁定，如果为 null 则为根节点页面
+     * @param rootPid 根节点 ID
      * @param f       搜索字段，允许 null，null 表示返回最左侧的页面
-     * @param perm    权限，如果是只读权限，则应该立即释放父节点的锁，否则，需要根据 delete 字段判断是否是插入寻找还是删除寻找，从而运行蟹行协议
-     * @param insert  指示本次查找是为了插入做准备还是删除 —— 仅在 perm 为读写权限时生效
+     * @param perm    权限
      * @return 返回可能包含字段 field 的页面
      */
-    private BTreeLeafPage findLeafPage(BTreePageHolder holder, PageId currPid, Page parent, Field f,
-                                       Permissions perm, boolean insert) throws DbException {
-        BTreePage p = holder.getBTreePage(currPid, perm);
-
-        // 蟹行协议，尝试释放锁
-        if (perm == Permissions.READ_WRITE) {
-            if (insert && p.getEmptySlots().size() > 0) {
-                // 如果页面非满，则此页不会分裂，因此可以释放父节点
-                if (parent == null) {
-                    holder.releasePageIfHolder(superPage, perm);
-                } else {
-                    holder.releasePageIfHolder(parent, perm);
+    private BTreeLeafPage findLeafPage(BTreePageHolder holder, PageId rootPid, Field f, Permissions perm)
+            throws DbException {
+        // 仍被锁定的祖先节点，自上而下
+        List<Page> ancestors = new ArrayList<>();
+        ancestors.add(superPage);
+        PageId pid = rootPid;
+        while (true) {
+            BTreePage p = holder.getBTreePage(pid, perm);
+            if (perm == Permissions.READ_ONLY || !p.isFull()) {
+                for (Page ancestor : ancestors) {
+                    holder.releasePageIfHolder(ancestor, perm);
                 }
-                // 请思考，蟹行协议是否有不足之处？
-                // 是的，我们没能做到递归向上解锁，这是一个针对蟹行协议的优化点
+                ancestors.clear();
+            }
+            if (p.getCategory() == BTreePage.LEAF) {
+                return (BTreeLeafPage) p;
             }
+            if (p.numEntries() == 0) {
+                throw new DbException("内部节点为空");
+            }
+            ancestors.add(p);
+            pid = ((BTreeInternalPage) p).childToSearch(f);
         }
+    }
 
-        if (p.getCategory() == BTreePage.LEAF) {
-            return (BTreeLeafPage) p;
+    /**
+     * 以读锁蟹行下降到<strong>可能</strong>包含字段 f 的最左侧的叶子节点，并以写模式锁定叶子节点，返回时不持有任何其他页面的锁
+     * <P>叶子节点的读锁不会被直接升级，以免两个事务互相等待对方释放读锁，而是先释放读锁再获取写锁，
+     * 由于此期间仍持有父节点的读锁，而拆分或合并叶子节点都需要父节点的写锁，因此叶子节点仍然是 f 所在的页面</P>
+     *
+     * @param holder 本次操作的页面 holder
+     * @param f      搜索字段
+     * @return 以写模式锁定的叶子节点，如果树为空，返回 null
+     */
+    private BTreeLeafPage findLeafPageForUpdate(BTreePageHolder holder, Field f) throws DbException {
+        BTreeSuperPage sp = holder.getSuperPage(Permissions.READ_ONLY);
+        if (sp.getBtreeRootPageId().getPageNumber() == 0) {
+            holder.releasePageIfHolder(sp, Permissions.READ_ONLY);
+            return null;
         }
-        BTreeInternalPage page = (BTreeInternalPage) p;
-        BTreeInternalEntry[] entryAr = page.getEntryAr();
-
-        if (entryAr.length == 0)
-            throw new DbException("内部节点为空");
-
-        for (BTreeInternalEntry it : entryAr) {
-            // 因为要找到最左节点，所以相等也一律递归左孩子，即 f <= next.key
-            if (f == null || f.compare(Predicate.Op.LESS_THAN_OR_EQ, it.getKey())) {
-                return findLeafPage(holder, it.getLeftChild(), page, f, perm, insert);
+        Page parent = sp;
+        PageId pid = sp.getBtreeRootPageId();
+        while (true) {
+            BTreePage p = holder.getBTreePage(pid, Permissions.READ_ONLY);
+            if (p.getCategory() == BTreePage.LEAF) {
+                holder.releasePageIfHolder(p, Permissions.READ_ONLY);
+                p = holder.getBTreePage(pid, Permissions.READ_WRITE);
+            }
+            holder.releasePageIfHolder(parent, Permissions.READ_ONLY);
+            if (p.getCategory() == BTreePage.LEAF) {
+                return (BTreeLeafPage) p;
+            }
+            if (p.numEntries() == 0) {
+                throw new DbException("内部节点为空");
             }
+            parent = p;
+            pid = ((BTreeInternalPage) p).childToSearch(f);
         }
-        // f 大于全部 entry 的 key，则返沪最右的指针
-        return findLeafPage(holder, entryAr[entryAr.length - 1].getRightChild(), page, f, perm, insert);
     }
 
     /**
@@ -192,12 +222,14 @@ public class BTreeIndex implements Index {
 
         // 中间的节点向上提，左指针为 page，右指针为 newPage
         midEntry.setLeftChild(page.getPageId());
-        midEntry.setRightChild(newPage.getParent());
+        midEntry.setRightChild(newPage.getPageId());
 
         // 递归向上插入
         Field midField = midEntry.getKey();
         BTreeInternalPage parent = getParentWithEmptySlot(holder, page.getParent(), midField);
         parent.insertEntry(midEntry);
+        safeUpdateParentPointer(holder, parent.getPageId(), page.getPageId());
+        safeUpdateParentPointer(holder, parent.getPageId(), newPage.getPageId());
 
         // 新页的孩子应该修改他们的 parent 指向
         safeUpdateParentPointers(holder, newPage);
@@ -248,7 +280,7 @@ public class BTreeIndex implements Index {
         }
 
         // 递归向上拆分
-        if (parent.getEmptySlots().size() == 0) {
+        if (parent.isFull()) {
             parent = splitInternalPage(holder, parent, field);
         }
         return parent;
@@ -325,9 +357,26 @@ public class BTreeIndex implements Index {
         }
     }
 
+    /**
+     * 插入条目，首先乐观地假设叶子节点不会拆分：以读锁下降，只对叶子节点加写锁，叶子节点未满时直接插入，
+     * 此时并发插入只会在叶子节点上互斥，根节点与超级页上都只有读锁
+     * <P>如果树为空或者叶子节点已满，则释放所有锁，从超级页开始以写锁悲观地重新下降，
+     * 沿途遇到未满的节点时释放其上的所有祖先，然后自底向上拆分</P>
+     */
     @Override
     public void insert(TransactionId tid, Field key, RecordId recordId) throws DbException, IOException {
         BTreePageHolder holder = new BTreePageHolder(superPage, tid);
+        try {
+            BTreeLeafPage leafPage = findLeafPageForUpdate(holder, key);
+            if (leafPage != null && !leafPage.isFull()) {
+                leafPage.insertEntry(new BTreeLeafEntry(key, recordId));
+                leafPage.markDirty(true);
+                return;
+            }
+        } finally {
+            holder.releaseAllPages();
+        }
+
         // 先锁定超级页，然后读取根节点
         BTreeSuperPage sp = holder.getSuperPage(Permissions.READ_WRITE);
         PageId rootPid = sp.getBtreeRootPageId();
@@ -343,9 +392,9 @@ public class BTreeIndex implements Index {
             sp.markDirty(true);
         }
 
-        BTreeLeafPage leafPage = findLeafPage(holder, rootPid, null, key, Permissions.READ_WRITE, true);
+        BTreeLeafPage leafPage = findLeafPage(holder, rootPid, key, Permissions.READ_WRITE);
 
-        if (leafPage.getEmptySlots().size() == 0) {
+        if (leafPage.isFull()) {
             leafPage = splitLeafPage(holder, leafPage, key);
         }
 
@@ -358,64 +407,156 @@ public class BTreeIndex implements Index {
         }
     }
 
+    /**
+     * 删除叶子节点中的条目，分为两个阶段：
+     * <ol>
+     *     <li>通过 {@link #findLeafPageForUpdate(BTreePageHolder, Field)} 以读锁下降到可能包含 key 的最左侧叶子，只在叶子上加写锁，
+     *     然后沿叶子链表向右查找并删除条目，向右移动时先锁定右兄弟再释放当前叶子</li>
+     *     <li>如果删除后叶子节点的条目数少于下限，则调用 {@link #rebalance(TransactionId, PageId)} 重新平衡，
+     *     这一阶段需要修改父节点，因此会重新从根节点以写锁下降</li>
+     * </ol>
+     * <P>绝大多数删除不会导致下溢，因此只需要第一阶段，且任一时刻至多持有两个页面的锁</P>
+     */
     @Override
-    public void delete(TransactionId tid, Field key, RecordId recordId) {
-        throw new RuntimeException("没实现这个功能");
+    public void delete(TransactionId tid, Field key, RecordId recordId) throws DbException {
+        BTreePageHolder holder = new BTreePageHolder(superPage, tid);
+        PageId underflow = null;
+        try {
+            BTreeLeafPage leafPage = findLeafPageForUpdate(holder, key);
+            if (leafPage == null) {
+                return;
+            }
+            while (true) {
+                for (var it = leafPage.iterator(leafPage.lowerBound(key)); it.hasNext(); ) {
+                    BTreeLeafEntry entry = it.next();
+                    if (entry.getKey().compare(Predicate.Op.GREATER_THAN, key)) {
+                        return;
+                    }
+                    if (entry.getKey().compare(Predicate.Op.EQUALS, key) && entry.getRecordId().equals(recordId)) {
+                        leafPage.deleteEntry(entry);
+                        leafPage.markDirty(true);
+                        if (isUnderflow(leafPage)) {
+                            underflow = leafPage.getPageId();
+                        }
+                        return;
+                    }
+                }
+                if (leafPage.getRightSibling() == 0) {
+                    return;
+                }
+                BTreeLeafPage right = (BTreeLeafPage) holder.getBTreePage(
+                        new PageId(indexTableName, leafPage.getRightSibling()), Permissions.READ_WRITE);
+                holder.releasePageIfHolder(leafPage, Permissions.READ_WRITE);
+                leafPage = right;
+            }
+        } finally {
+            try {
+                holder.releaseAllPages();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (underflow != null) {
+                rebalance(tid, underflow);
+            }
+        }
     }
 
+    /**
+     * 判断页面是否需要重新平衡，根节点没有条目数下限，只有叶子根节点为空或内部根节点没有键时才需要处理
+     */
+    private static boolean isUnderflow(BTreePage page) {
+        if (page.getParent().getPageNumber() == 0) {
+            return page.numEntries() == 0;
+        }
+        return page.numEntries() < page.getMinNumEntries();
+    }
 
-    @Override
-    public List<RecordId> search(TransactionId tid, Predicate.Op op, Field operand) throws DbException {
+    /**
+     * 判断页面失去一个条目后是否仍然不会下溢，重新平衡不会越过这样的页面向上传播
+     */
+    private static boolean isSafeForDelete(BTreePage page) {
+        if (page.getParent().getPageNumber() == 0) {
+            return page.numEntries() > 1;
+        }
+        return page.numEntries() > page.getMinNumEntries();
+    }
+
+    /**
+     * 重新平衡下溢的叶子节点：向同一父节点下的兄弟节点借用条目，或与之合并，合并导致父节点下溢时继续向上处理，
+     * 直到遇到不下溢的节点或者根节点，根节点没有键时由其唯一的孩子取代，合并掉的页面通过 {@link BTreePageHolder#freePage(BTreePage)} 回收
+     * <P>首先以每次至多一把读锁的方式沿父指针向上收集从叶子到根的路径，然后从超级页开始以写锁沿路径下降，并验证路径上的父子关系仍然成立，
+     * 如果路径已被并发的拆分或合并改变，则放弃本次平衡，B+ 树仍然是正确的，只是叶子节点暂时不满</P>
+     * <P>下降时遇到失去一个键也不会下溢的节点，说明平衡不会传播到它的上方，此时释放它上方的所有页面。
+     * 所有加锁都遵循自上而下、同层自左向右的顺序：如果叶子节点需要与左兄弟平衡，则在锁定叶子之前先锁定左兄弟，
+     * 因此不会与沿叶子链表向右扫描的操作形成循环等待</P>
+     *
+     * @param tid 事务
+     * @param pid 下溢的叶子节点
+     */
+    private void rebalance(TransactionId tid, PageId pid) throws DbException {
         BTreePageHolder holder = new BTreePageHolder(superPage, tid);
-        List<RecordId> ans = new ArrayList<>();
         try {
-            // 先锁定超级页，然后读取根节点，防止根节点被改变
-            BTreeSuperPage sp = holder.getSuperPage(Permissions.READ_ONLY);
-
-            // 树还没被建立
-            if (sp.getBtreeRootPageId().getPageNumber() == 0) {
-                return ans;
-            }
-            // 某些谓词需要从头遍历
-            BTreeLeafPage leafPage = shouldFindFromLeft(op) ?
-                    findLeafPage(holder, sp.getBtreeRootPageId(), null, null, Permissions.READ_ONLY, true) :
-                    findLeafPage(holder, sp.getBtreeRootPageId(), null, operand, Permissions.READ_ONLY, true);
-
-            Iterator<BTreeLeafEntry> iterator = new LeafPageScan(leafPage, holder);
-
-            out:
-            while (iterator.hasNext()) {
-                BTreeLeafEntry next = iterator.next();
-                // 全表扫描
-                if (op == null) {
-                    ans.add(next.getRecordId());
-                    continue;
+            // 沿父指针收集路径，任一时刻只持有一把读锁
+            List<PageId> path = new ArrayList<>();
+            for (PageId cur = pid; cur.getPageNumber() != 0; ) {
+                if (path.contains(cur)) {
+                    return;
                 }
-                switch (op) {
-                    case NOT_EQUALS, GREATER_THAN, GREATER_THAN_OR_EQ -> {
-                        // 这种必须从扫描项遍历到末尾
-                        // 其中 NOT_EQUALS 从头遍历，GREATER_THAN 是从 operand 开始遍历的
-                        if (next.getKey().compare(op, operand)) {
-                            ans.add(next.getRecordId());
-                        }
+                path.add(cur);
+                BTreePage page = holder.getBTreePage(cur, Permissions.READ_ONLY);
+                cur = page.getParent();
+                holder.releasePageIfHolder(page, Permissions.READ_ONLY);
+            }
+            Collections.reverse(path);
+
+            BTreeSuperPage sp = holder.getSuperPage(Permissions.READ_WRITE);
+            if (!sp.getBtreeRootPageId().equals(path.get(0))) {
+                return;
+            }
+            List<Page> locked = new ArrayList<>();
+            locked.add(sp);
+            BTreePage[] nodes = new BTreePage[path.size()];
+            for (int i = 0; i < path.size(); i++) {
+                if (i > 0) {
+                    BTreeInternalPage parent = (BTreeInternalPage) nodes[i - 1];
+                    int idx = childIndex(parent, path.get(i));
+                    if (idx == -1) {
+                        return;
                     }
-                    case EQUALS, LIKE -> {
-                        // 这种是从 operand 最左页面扫描，碰到第一个大于 operand 的时候就不需要继续遍历了，后面肯定都是大于的
-                        if (next.getKey().compare(op, operand)) {
-                            ans.add(next.getRecordId());
-                        }
-                        if (next.getKey().compare(Predicate.Op.GREATER_THAN, operand)) {
-                            break out;
-                        }
+                    if (i == path.size() - 1 && idx > 0 && idx == parent.numEntries()) {
+                        // 最右侧的叶子只能与左兄弟平衡，先锁定左兄弟
+                        holder.getBTreePage(parent.getEntryAr()[idx - 1].getLeftChild(), Permissions.READ_WRITE);
                     }
-                    case LESS_THAN, LESS_THAN_OR_EQ -> {
-                        // 这种是从头扫描的，因为是小于或小于等于，符合的都是前面的，碰到第一个不符合的记录就可以退出了
-                        if (next.getKey().compare(op, operand)) {
-                            ans.add(next.getRecordId());
-                        } else {
-                            break out;
-                        }
+                }
+                nodes[i] = holder.getBTreePage(path.get(i), Permissions.READ_WRITE);
+                if (i > 0 && !nodes[i].getParent().equals(path.get(i - 1))) {
+                    return;
+                }
+                if (i < path.size() - 1 && nodes[i].getCategory() == BTreePage.LEAF) {
+                    return;
+                }
+                if (i < path.size() - 1 && isSafeForDelete(nodes[i])) {
+                    for (Page page : locked) {
+                        holder.releasePageIfHolder(page, Permissions.READ_WRITE);
                     }
+                    locked.clear();
+                }
+                locked.add(nodes[i]);
+            }
+
+            for (int i = nodes.length - 1; i >= 0 && isUnderflow(nodes[i]); i--) {
+                if (i == 0) {
+                    collapseRoot(holder, sp, nodes[0]);
+                    break;
+                }
+                BTreeInternalPage parent = (BTreeInternalPage) nodes[i - 1];
+                if (!holder.isHoldLock(parent.getPageId(), Permissions.READ_WRITE) || parent.numEntries() == 0) {
+                    break;
+                }
+                if (nodes[i].getCategory() == BTreePage.LEAF) {
+                    rebalanceLeafPage(holder, parent, (BTreeLeafPage) nodes[i]);
+                } else {
+                    rebalanceInternalPage(holder, parent, (BTreeInternalPage) nodes[i]);
                 }
             }
         } finally {
@@ -425,59 +566,370 @@ public class BTreeIndex implements Index {
                 throw new RuntimeException(e);
             }
         }
-        return ans;
     }
 
-    public boolean shouldFindFromLeft(Predicate.Op op) {
-        return op == Predicate.Op.NOT_EQUALS ||
-                op == Predicate.Op.LESS_THAN ||
-                op == Predicate.Op.LESS_THAN_OR_EQ;
+    /**
+     * 返回子节点在父节点中的下标，第 i 个子节点是第 i 个条目的左孩子，最后一个子节点是最后一个条目的右孩子，不存在返回 -1
+     */
+    private static int childIndex(BTreeInternalPage parent, PageId child) {
+        if (parent.numEntries() == 0) {
+            return parent.getFirstChild().equals(child) ? 0 : -1;
+        }
+        BTreeInternalEntry[] entryAr = parent.getEntryAr();
+        for (int i = 0; i < entryAr.length; i++) {
+            if (entryAr[i].getLeftChild().equals(child)) {
+                return i;
+            }
+        }
+        return entryAr[entryAr.length - 1].getRightChild().equals(child) ? entryAr.length : -1;
+    }
 
+    /**
+     * 返回父节点中分隔 page 与其平衡对象的条目，优先选择右兄弟，page 是最右侧的孩子时选择左兄弟
+     */
+    private static BTreeInternalEntry separatorOf(BTreeInternalPage parent, PageId page) throws DbException {
+        int idx = childIndex(parent, page);
+        if (idx == -1) {
+            throw new DbException("父节点中不存在此子节点");
+        }
+        BTreeInternalEntry[] entryAr = parent.getEntryAr();
+        return idx < entryAr.length ? entryAr[idx] : entryAr[idx - 1];
+    }
+
+    /**
+     * 平衡下溢的叶子节点：两页条目之和放得下一页时，将右页合并到左页并删除父节点中的分隔条目，否则在两页之间平分条目并更新分隔键
+     */
+    private void rebalanceLeafPage(BTreePageHolder holder, BTreeInternalPage parent, BTreeLeafPage page)
+            throws DbException {
+        BTreeInternalEntry separator = separatorOf(parent, page.getPageId());
+        BTreeLeafPage left = (BTreeLeafPage) holder.getBTreePage(separator.getLeftChild(), Permissions.READ_WRITE);
+        BTreeLeafPage right = (BTreeLeafPage) holder.getBTreePage(separator.getRightChild(), Permissions.READ_WRITE);
+        int nl = left.numEntries(), nr = right.numEntries();
+
+        if (nl + nr <= left.getMaxNumEntries()) {
+            for (BTreeLeafEntry entry : right.getEntryAr()) {
+                right.deleteEntry(entry);
+                left.insertEntry(entry);
+            }
+            left.setRightSibling(right.getRightSibling());
+            if (right.getRightSibling() != 0) {
+                BTreeLeafPage next = (BTreeLeafPage) holder.getBTreePage(
+                        new PageId(indexTableName, right.getRightSibling()), Permissions.READ_WRITE);
+                next.setLeftSibling(left.getPageId().getPageNumber());
+                next.markDirty(true);
+            }
+            parent.deleteKeyAndRightChild(separator);
+            holder.freePage(right);
+        } else {
+            if (nl > nr) {
+                BTreeLeafEntry[] entryAr = left.getEntryAr();
+                for (int i = 0; i < (nl - nr) / 2; i++) {
+                    BTreeLeafEntry entry = entryAr[entryAr.length - 1 - i];
+                    left.deleteEntry(entry);
+                    right.insertEntry(entry);
+                }
+            } else {
+                BTreeLeafEntry[] entryAr = right.getEntryAr();
+                for (int i = 0; i < (nr - nl) / 2; i++) {
+                    right.deleteEntry(entryAr[i]);
+                    left.insertEntry(entryAr[i]);
+                }
+            }
+            separator.setKey(right.getEntryAr()[0].getKey());
+            parent.updateEntry(separator);
+            right.markDirty(true);
+        }
+        left.markDirty(true);
+        parent.markDirty(true);
+    }
+
+    /**
+     * 平衡下溢的内部节点：能够合并时，将父节点中的分隔键拉下来与右页的全部条目一起并入左页，否则经由父节点逐个旋转条目，
+     * 被移动的子节点需要更新父指针
+     */
+    private void rebalanceInternalPage(BTreePageHolder holder, BTreeInternalPage parent, BTreeInternalPage page)
+            throws DbException {
+        BTreeInternalEntry separator = separatorOf(parent, page.getPageId());
+        BTreeInternalPage left = (BTreeInternalPage) holder.getBTreePage(separator.getLeftChild(), Permissions.READ_WRITE);
+        BTreeInternalPage right = (BTreeInternalPage) holder.getBTreePage(separator.getRightChild(), Permissions.READ_WRITE);
+        int nl = left.numEntries(), nr = right.numEntries();
+
+        if (nl + nr + 1 <= left.getMaxNumEntries()) {
+            List<PageId> moved = new ArrayList<>();
+            moved.add(right.getFirstChild());
+            left.insertEntry(new BTreeInternalEntry(separator.getKey(), left.getLastChild(), right.getFirstChild()));
+            for (BTreeInternalEntry entry : right.getEntryAr()) {
+                left.insertEntry(new BTreeInternalEntry(entry.getKey(), entry.getLeftChild(), entry.getRightChild()));
+                moved.add(entry.getRightChild());
+            }
+            parent.deleteKeyAndRightChild(separator);
+            for (PageId child : moved) {
+                safeUpdateParentPointer(holder, left.getPageId(), child);
+            }
+            holder.freePage(right);
+        } else if (nl > nr) {
+            for (int i = 0; i < (nl - nr) / 2; i++) {
+                BTreeInternalEntry[] entryAr = left.getEntryAr();
+                BTreeInternalEntry last = entryAr[entryAr.length - 1];
+                PageId child = last.getRightChild();
+                right.insertEntry(new BTreeInternalEntry(separator.getKey(), child, right.getFirstChild()));
+                left.deleteKeyAndRightChild(last);
+                separator.setKey(last.getKey());
+                parent.updateEntry(separator);
+                safeUpdateParentPointer(holder, right.getPageId(), child);
+            }
+        } else {
+            for (int i = 0; i < (nr - nl) / 2; i++) {
+                BTreeInternalEntry first = right.getEntryAr()[0];
+                PageId child = first.getLeftChild();
+                left.insertEntry(new BTreeInternalEntry(separator.getKey(), left.getLastChild(), child));
+                right.deleteKeyAndLeftChild(first);
+                separator.setKey(first.getKey());
+                parent.updateEntry(separator);
+                safeUpdateParentPointer(holder, left.getPageId(), child);
+            }
+        }
+        left.markDirty(true);
+        right.markDirty(true);
+        parent.markDirty(true);
+    }
+
+    /**
+     * 处理下溢的根节点：空的叶子根节点被回收，树变为空树；没有键的内部根节点由其唯一的孩子取代
+     */
+    private void collapseRoot(BTreePageHolder holder, BTreeSuperPage sp, BTreePage root) throws DbException {
+        if (!holder.isHoldLock(sp.getPageId(), Permissions.READ_WRITE)) {
+            throw new DbException("未能正确实现蟹行协议规范");
+        }
+        PageId newRoot = root.getCategory() == BTreePage.LEAF ?
+                new PageId(indexTableName, 0) : ((BTreeInternalPage) root).getFirstChild();
+        if (newRoot.getPageNumber() != 0) {
+            BTreePage child = holder.getBTreePage(newRoot, Permissions.READ_WRITE);
+            child.setParent(new PageId(indexTableName, 0));
+            child.markDirty(true);
+        }
+        sp.setBtreeRootPageId(newRoot);
+        sp.markDirty(true);
+        holder.freePage(root);
+    }
+
+
+    @Override
+    public IndexCursor cursor(TransactionId tid, Predicate.Op op, Field operand) throws DbException {
+        if (op == null) {
+            return new RangeCursor(tid, null, false, null, false, null, null);
+        }
+        return switch (op) {
+            case EQUALS -> new RangeCursor(tid, operand, true, operand, true, null, null);
+            case GREATER_THAN -> new RangeCursor(tid, operand, false, null, false, null, null);
+            case GREATER_THAN_OR_EQ -> new RangeCursor(tid, operand, true, null, false, null, null);
+            case LESS_THAN -> new RangeCursor(tid, null, false, operand, false, null, null);
+            case LESS_THAN_OR_EQ -> new RangeCursor(tid, null, false, operand, true, null, null);
+            // 不等于无法利用索引的有序性，只能从头遍历并过滤
+            case NOT_EQUALS -> new RangeCursor(tid, null, false, null, false, op, operand);
+            // 能够匹配 LIKE 的键必然位于 operand 所在的位置，与原先从 operand 开始扫描到第一个大于 operand 的键为止一致
+            case LIKE -> new RangeCursor(tid, operand, true, operand, true, op, operand);
+        };
+    }
+
+    /**
+     * 打开一个范围游标，返回键位于 [lower, upper] 之间的条目，上下界允许为 null，表示无界
+     *
+     * @param tid            事务 ID
+     * @param lower          下界
+     * @param lowerInclusive 是否包含下界
+     * @param upper          上界
+     * @param upperInclusive 是否包含上界
+     * @return 游标
+     */
+    public IndexCursor cursor(TransactionId tid, Field lower, boolean lowerInclusive, Field upper, boolean upperInclusive) {
+        return new RangeCursor(tid, lower, lowerInclusive, upper, upperInclusive, null, null);
     }
 
-    private static class LeafPageScan implements Iterator<BTreeLeafEntry> {
+    /**
+     * B+ 树的范围游标，沿叶子节点链表按键的顺序返回条目
+     * <P>游标每次从根节点下降到下一个待读取的位置，读取一个叶子节点中的条目作为一批，随后释放所有页面锁，
+     * 因此内存中至多缓存一个叶子节点的条目，返回第一条记录的代价只是一次从根到叶子的下降，与表的大小无关</P>
+     * <P>下一批从哪里开始由键而不是页面位置决定，因为两批之间叶子节点可能被拆分、合并甚至被回收复用，
+     * 为了不遗漏跨越叶子节点的重复键，一批总是读完同一个键的所有条目才结束，下一批则从严格大于此键的位置开始</P>
+     */
+    private class RangeCursor implements IndexCursor {
+        private final TransactionId tid;
+        private final Field lower;
+        private final boolean lowerInclusive;
+        private final Field upper;
+        private final boolean upperInclusive;
+
+        /**
+         * 无法用上下界表示的过滤条件，例如 NOT_EQUALS，为 null 表示不过滤
+         */
+        private final Predicate.Op filterOp;
+        private final Field filterOperand;
+
+        /**
+         * 下一批开始的键，为 null 表示从最左侧的叶子节点开始；excludeFrom 为真时跳过等于 from 的条目
+         */
+        private Field from;
+        private boolean excludeFrom;
+
+        private List<RecordId> batch = new ArrayList<>();
+        private int pos;
+        private boolean exhausted;
+
+        /**
+         * 沿叶子节点链表预读右兄弟
+         */
+        private final ReadAhead readAhead = new ReadAhead();
+
+        RangeCursor(TransactionId tid, Field lower, boolean lowerInclusive, Field upper, boolean upperInclusive,
+                    Predicate.Op filterOp, Field filterOperand) {
+            this.tid = tid;
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+            this.filterOp = filterOp;
+            this.filterOperand = filterOperand;
+            this.from = lower;
+            this.excludeFrom = lower != null && !lowerInclusive;
+        }
 
-        private BTreeLeafPage currPage;
-        private final BTreePageHolder holder;
+        @Override
+        public void seek(Field key) {
+            if (lower != null && BTreePage.compareKey(key, lower) <= 0) {
+                from = lower;
+                excludeFrom = !lowerInclusive;
+            } else {
+                from = key;
+                excludeFrom = false;
+            }
+            batch = new ArrayList<>();
+            pos = 0;
+            exhausted = false;
+        }
 
-        public LeafPageScan(BTreeLeafPage leafPage, BTreePageHolder holder) {
-            this.currPage = leafPage;
-            this.holder = holder;
-            this.iterator = leafPage.iterator();
+        @Override
+        public List<RecordId> batch() {
+            return batch;
         }
 
-        BTreeLeafEntry nextToReturn;
-        Iterator<BTreeLeafEntry> iterator = null;
+        @Override
+        public int batchPosition() {
+            return pos;
+        }
 
         @Override
         public boolean hasNext() {
-            if (nextToReturn != null) {
-                return true;
-            }
-            while (!iterator.hasNext()) {
-                if (currPage.getRightSibling() == 0) {
+            while (pos == batch.size()) {
+                if (exhausted) {
                     return false;
                 }
                 try {
-                    currPage = (BTreeLeafPage) holder.getBTreePage(new PageId(
-                            currPage.getPageId().getTableName(), currPage.getRightSibling()), Permissions.READ_ONLY);
-                    iterator = currPage.iterator();
+                    fill();
                 } catch (DbException e) {
                     throw new RuntimeException(e);
                 }
             }
-            nextToReturn = iterator.next();
             return true;
         }
 
         @Override
-        public BTreeLeafEntry next() {
-            if (nextToReturn == null && !hasNext()) {
+        public RecordId next() {
+            if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            var ret = nextToReturn;
-            nextToReturn = null;
-            return ret;
+            return batch.get(pos++);
+        }
+
+        @Override
+        public void close() {
+            batch = new ArrayList<>();
+            pos = 0;
+            exhausted = true;
+        }
+
+        private boolean beyondUpper(Field key) {
+            if (upper == null) {
+                return false;
+            }
+            int c = BTreePage.compareKey(key, upper);
+            return c > 0 || c == 0 && !upperInclusive;
+        }
+
+        private boolean accept(Field key) {
+            if (lower != null) {
+                int c = BTreePage.compareKey(key, lower);
+                if (c < 0 || c == 0 && !lowerInclusive) {
+                    return false;
+                }
+            }
+            return filterOp == null || key.compare(filterOp, filterOperand);
+        }
+
+        /**
+         * 从 from 开始读入下一批条目，读到一批非空的条目、越过上界或者到达最右侧的叶子节点时返回，返回时不持有任何页面锁
+         */
+        private void fill() throws DbException {
+            batch = new ArrayList<>();
+            pos = 0;
+            BTreePageHolder holder = new BTreePageHolder(superPage, tid);
+            try {
+                BTreeSuperPage sp = holder.getSuperPage(Permissions.READ_ONLY);
+                // 树还没被建立
+                if (sp.getBtreeRootPageId().getPageNumber() == 0) {
+                    exhausted = true;
+                    return;
+                }
+                BTreeLeafPage leaf = findLeafPage(holder, sp.getBtreeRootPageId(), from, Permissions.READ_ONLY);
+                int i = from == null ? 0 : excludeFrom ? leaf.upperBound(from) : leaf.lowerBound(from);
+                Field last = null;
+                while (true) {
+                    Iterator<BTreeLeafEntry> it = leaf.iterator(i);
+                    while (it.hasNext()) {
+                        BTreeLeafEntry entry = it.next();
+                        if (beyondUpper(entry.getKey())) {
+                            exhausted = true;
+                            return;
+                        }
+                        last = entry.getKey();
+                        if (accept(last)) {
+                            batch.add(entry.getRecordId());
+                        }
+                    }
+                    if (last != null) {
+                        from = last;
+                        excludeFrom = true;
+                    }
+                    if (leaf.getRightSibling() == 0) {
+                        exhausted = true;
+                        return;
+                    }
+                    PageId right = new PageId(indexTableName, leaf.getRightSibling());
+                    BTreeLeafPage next = (BTreeLeafPage) holder.getBTreePage(right, Permissions.READ_ONLY,
+                            ReplacementPolicy.AccessType.SCAN);
+                    holder.releasePageIfHolder(leaf, Permissions.READ_ONLY);
+                    if (readAhead.access(right, true) && next.getRightSibling() != 0) {
+                        readAhead.prefetchChain(new PageId(indexTableName, next.getRightSibling()),
+                                page -> page instanceof BTreeLeafPage l ? l.getRightSibling() : 0);
+                    }
+                    // 右兄弟的第一个键与本批最后一个键相等时，重复键跨越了叶子节点，必须继续读完
+                    Field first = next.numEntries() == 0 ? null : next.iterator().next().getKey();
+                    if (!batch.isEmpty() && first != null && BTreePage.compareKey(first, last) > 0) {
+                        // 下一批直接从右兄弟的第一个键开始，省去再次读取当前叶子节点
+                        from = first;
+                        excludeFrom = false;
+                        return;
+                    }
+                    leaf = next;
+                    i = 0;
+                }
+            } finally {
+                try {
+                    holder.releaseAllPages();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
         }
     }
 }
@@ -15,6 +15,11 @@ import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
+ * B+ 树内部节点，第 0 个槽位只存储最左侧的子指针，其余槽位存储一个键以及它的右孩子
+ * <P>另外维护一个按键有序的槽位目录 {@link #slots}，第 i 个键的左孩子是目录中前一个槽位的子指针（i 为 0 时是第 0 个槽位的子指针）。
+ * 向下搜索与插入都在目录上二分查找，插入与删除只需移动目录中的整数，条目不会移动，因此迭代得到的条目的 entryId 在页面内始终有效。
+ * 序列化时条目按目录顺序紧凑写入，因此磁盘上已使用的槽位总是按键有序的，加载时按槽位顺序即可重建目录</P>
+ *
  * @Author happysnaker
  * @Date 2022/11/21
  * @Email happysnaker@foxmail.com
@@ -25,6 +30,13 @@ public class BTreeInternalPage extends BTreePage {
     private final Field[] keys;
     private final int[] children;
 
+    /**
+     * 槽位目录，slots[0, numKeys) 是按键排序的存储键的槽位
+     */
+    private final int[] slots;
+
+    private int numKeys;
+
     public BTreeInternalPage(ByteArray byteAr, PageId pid) {
         super(byteAr.readByte(), new PageId(pid.getTableName(), byteAr.readInt()), pid);
 
@@ -32,6 +44,7 @@ public class BTreeInternalPage extends BTreePage {
         header = new byte[getHeaderSize()];
         keys = new Field[numSlots];
         children = new int[numSlots];
+        slots = new int[numSlots];
 
         for (int i = 0; i < header.length; i++) {
             header[i] = byteAr.readByte();
@@ -41,6 +54,7 @@ public class BTreeInternalPage extends BTreePage {
         for (int i = 1; i < keys.length; i++) {
             ByteArray data = byteAr.readByteArray(type.getLen());
             if (isSlotUsed(i, header)) {
+                slots[numKeys++] = i;
                 try {
                     keys[i] = type.parse(data);
                 } catch (ParseException e) {
@@ -64,20 +78,29 @@ public class BTreeInternalPage extends BTreePage {
     public ByteArray serialized() {
         ByteArray byteAr = ByteArray.allocate(BufferPool.getPageSize());
         byteAr.writeByte(super.category).writeInt(super.parent.getPageNumber());
-        for (byte b : header) {
+        // 按目录顺序紧凑写入，第 i 个键写入第 i + 1 个槽位
+        byte[] compact = new byte[header.length];
+        int used = isSlotUsed(0, header) ? numKeys + 1 : 0;
+        for (int i = 0; i < used; i++) {
+            compact[i / 8] |= (byte) (1 << (i % 8));
+        }
+        for (byte b : compact) {
             byteAr.writeByte(b);
         }
         for (int i = 1; i < keys.length; i++) {
-            var key = keys[i];
-            if (key != null) {
-                byteAr.writeByteArray(key.serialized());
+            if (i <= numKeys) {
+                byteAr.writeByteArray(keys[slots[i - 1]].serializedFixed());
             } else {
                 // padding
                 byteAr.writeByteArray(ByteArray.allocate(type.getLen()));
             }
         }
-        for (int child : children) {
-            byteAr.writeInt(child);
+        for (int i = 0; i < children.length; i++) {
+            if (i == 0) {
+                byteAr.writeInt(children[0]);
+            } else {
+                byteAr.writeInt(i <= numKeys ? children[slots[i - 1]] : 0);
+            }
         }
         return byteAr;
     }
@@ -125,6 +148,77 @@ public class BTreeInternalPage extends BTreePage {
         return ans;
     }
 
+    @Override
+    public int numEntries() {
+        return numKeys;
+    }
+
+    /**
+     * 返回目录中第 i 个键的左孩子所在的槽位
+     */
+    private int leftChildSlot(int i) {
+        return i == 0 ? 0 : slots[i - 1];
+    }
+
+    /**
+     * 返回第一个键大于等于 key 的目录下标，不存在则返回 numKeys
+     */
+    private int lowerBound(Field key) {
+        int lo = 0, hi = numKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKey(keys[slots[mid]], key) >= 0) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 返回第一个键大于 key 的目录下标，不存在则返回 numKeys
+     */
+    private int upperBound(Field key) {
+        int lo = 0, hi = numKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKey(keys[slots[mid]], key) > 0) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 返回槽位在目录中的下标，相等的键可能有多个，因此在相等键的范围内查找
+     */
+    private int indexOfSlot(int slot) throws DbException {
+        for (int i = lowerBound(keys[slot]); i < numKeys; i++) {
+            if (slots[i] == slot) {
+                return i;
+            }
+        }
+        throw new DbException("槽位目录已损坏");
+    }
+
+    /**
+     * 二分查找<strong>可能</strong>包含字段 f 的最左侧的子节点，即第一个大于等于 f 的键的左孩子，
+     * 因为要找到最左节点，所以与 f 相等的键一律走左孩子
+     *
+     * @param f 搜索字段，null 表示最左侧的子节点
+     * @throws NoSuchElementException 如果页面为空
+     */
+    public PageId childToSearch(Field f) throws NoSuchElementException {
+        if (!isSlotUsed(0, header)) {
+            throw new NoSuchElementException();
+        }
+        int i = f == null ? 0 : lowerBound(f);
+        return new PageId(pid.getTableName(), children[leftChildSlot(i)]);
+    }
+
     /**
      * 从页面中删除指定条目（键+1个子指针）。 recordId 用于查找指定条目，因此不能为空。删除后，条目的 recordId 应设置为 null，以反映它不再存储在任何页面上。
      *
@@ -140,18 +234,14 @@ public class BTreeInternalPage extends BTreePage {
             throw new DbException("tried to delete entry on invalid page or table");
         if (!isSlotUsed(eid.getEntryNumber(), header))
             throw new DbException("tried to delete null entry.");
-        if (deleteRightChild) {
-            markSlotUsed(eid.getEntryNumber(), false, header);
-        } else {
-            // 页面的左边指针可能已经被删除了
-            for (int i = eid.getEntryNumber() - 1; i >= 0; i--) {
-                if (isSlotUsed(i, header)) {
-                    children[i] = children[eid.getEntryNumber()];
-                    markSlotUsed(eid.getEntryNumber(), false, header);
-                    break;
-                }
-            }
+        int slot = eid.getEntryNumber(), i = indexOfSlot(slot);
+        if (!deleteRightChild) {
+            // 左孩子被删除，右孩子取代它的位置
+            children[leftChildSlot(i)] = children[slot];
         }
+        System.arraycopy(slots, i + 1, slots, i, numKeys - i - 1);
+        numKeys--;
+        markSlotUsed(slot, false, header);
         e.setEntryId(null);
     }
 
@@ -171,25 +261,16 @@ public class BTreeInternalPage extends BTreePage {
         if (!isSlotUsed(eid.getEntryNumber(), header))
             throw new DbException("tried to update null entry.");
 
-        for (int i = eid.getEntryNumber() + 1; i < keys.length; i++) {
-            if (isSlotUsed(i, header)) {
-                if (keys[i].compare(Predicate.Op.LESS_THAN, e.getKey())) {
-                    throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-                            " HINT: updated key must be less than or equal to keys on the right");
-                }
-                break;
-            }
+        int i = indexOfSlot(eid.getEntryNumber());
+        if (i + 1 < numKeys && keys[slots[i + 1]].compare(Predicate.Op.LESS_THAN, e.getKey())) {
+            throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+                    " HINT: updated key must be less than or equal to keys on the right");
         }
-        for (int i = eid.getEntryNumber() - 1; i >= 0; i--) {
-            if (isSlotUsed(i, header)) {
-                if (i > 0 && keys[i].compare(Predicate.Op.GREATER_THAN, e.getKey())) {
-                    throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-                            " HINT: updated key must be greater than or equal to keys on the left");
-                }
-                children[i] = e.getLeftChild().getPageNumber();
-                break;
-            }
+        if (i > 0 && keys[slots[i - 1]].compare(Predicate.Op.GREATER_THAN, e.getKey())) {
+            throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+                    " HINT: updated key must be greater than or equal to keys on the left");
         }
+        children[leftChildSlot(i)] = e.getLeftChild().getPageNumber();
         children[eid.getEntryNumber()] = e.getRightChild().getPageNumber();
         keys[eid.getEntryNumber()] = e.getKey();
     }
@@ -209,12 +290,14 @@ public class BTreeInternalPage extends BTreePage {
             throw new DbException("table id mismatch in insertEntry");
 
         // if this is the first entry, add it and return
-        if (getEmptySlots().size() == getMaxNumEntries()) {
+        if (numKeys == 0) {
             children[0] = e.getLeftChild().getPageNumber();
             children[1] = e.getRightChild().getPageNumber();
             keys[1] = e.getKey();
             markSlotUsed(0, true, header);
             markSlotUsed(1, true, header);
+            slots[0] = 1;
+            numKeys = 1;
             e.setEntryId(new EntryId(pid, 1));
             return;
         }
@@ -231,35 +314,14 @@ public class BTreeInternalPage extends BTreePage {
         if (emptySlot == -1)
             throw new DbException("called insertEntry on page with no empty slots.");
 
-        // find the child pointer matching the left or right child in this entry
+        // 新条目的左孩子或右孩子必须是页面中已有的子指针，并且此子指针左侧的键小于等于新键、右侧的键大于等于新键，
+        // 即它是目录中 [lowerBound, upperBound] 范围内某个键的左孩子（下标为 numKeys 时表示最右侧的子指针），键不重复时此范围只有一个
         int lessOrEqKey = -1;
-        for (int i = 0; i < keys.length; i++) {
-            if (isSlotUsed(i, header)) {
-                if (children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
-                    if (i > 0 && keys[i].compare(Predicate.Op.GREATER_THAN, e.getKey())) {
-                        throw new DbException("attempt to insert invalid entry with left child " +
-                                e.getLeftChild().getPageNumber() + ", right child " +
-                                e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-                                " HINT: one of these children must match an existing child on the page" +
-                                " and this key must be correctly ordered in between that child's" +
-                                " left and right keys");
-                    }
-                    lessOrEqKey = i;
-                    if (children[i] == e.getRightChild().getPageNumber()) {
-                        children[i] = e.getLeftChild().getPageNumber();
-                    }
-                } else if (lessOrEqKey != -1) {
-                    // 验证下一个键是否大于或等于我们正在插入的键
-                    if (keys[i].compare(Predicate.Op.LESS_THAN, e.getKey())) {
-                        throw new DbException("attempt to insert invalid entry with left child " +
-                                e.getLeftChild().getPageNumber() + ", right child " +
-                                e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-                                " HINT: one of these children must match an existing child on the page" +
-                                " and this key must be correctly ordered in between that child's" +
-                                " left and right keys");
-                    }
-                    break;
-                }
+        for (int i = lowerBound(e.getKey()), hi = upperBound(e.getKey()); i <= hi; i++) {
+            int child = children[leftChildSlot(i)];
+            if (child == e.getLeftChild().getPageNumber() || child == e.getRightChild().getPageNumber()) {
+                lessOrEqKey = i;
+                break;
             }
         }
 
@@ -271,41 +333,44 @@ public class BTreeInternalPage extends BTreePage {
                     " and this key must be correctly ordered in between that child's" +
                     " left and right keys");
         }
-
-        // 向后或向前移动条目以填充空槽并为新条目腾出空间，同时保持条目按排序顺序
-        int goodSlot = -1;
-        if (emptySlot < lessOrEqKey) {
-            for (int i = emptySlot; i < lessOrEqKey; i++) {
-                moveEntry(i + 1, i);
-            }
-            goodSlot = lessOrEqKey;
-        } else {
-            for (int i = emptySlot; i > lessOrEqKey + 1; i--) {
-                moveEntry(i - 1, i);
-            }
-            goodSlot = lessOrEqKey + 1;
+        if (children[leftChildSlot(lessOrEqKey)] == e.getRightChild().getPageNumber()) {
+            children[leftChildSlot(lessOrEqKey)] = e.getLeftChild().getPageNumber();
         }
 
-        // insert new entry into the correct spot in sorted order
-        markSlotUsed(goodSlot, true, header);
-        keys[goodSlot] = e.getKey();
-        children[goodSlot] = e.getRightChild().getPageNumber();
-        e.setEntryId(new EntryId(pid, goodSlot));
+        // 新条目成为目录中的第 lessOrEqKey 个键
+        System.arraycopy(slots, lessOrEqKey, slots, lessOrEqKey + 1, numKeys - lessOrEqKey);
+        slots[lessOrEqKey] = emptySlot;
+        numKeys++;
+
+        markSlotUsed(emptySlot, true, header);
+        keys[emptySlot] = e.getKey();
+        children[emptySlot] = e.getRightChild().getPageNumber();
+        e.setEntryId(new EntryId(pid, emptySlot));
     }
 
     /**
-     * 将条目从一个插槽移动到另一个插槽，并更新相应的标头
+     * 返回最左侧的子指针，内部节点即使没有键也至少有一个子指针
+     *
+     * @throws NoSuchElementException 如果页面为空
      */
-    private void moveEntry(int from, int to) {
-        if (!isSlotUsed(to, header) && isSlotUsed(from, header)) {
-            markSlotUsed(to, true, header);
-            keys[to] = keys[from];
-            children[to] = children[from];
-            markSlotUsed(from, false, header);
+    public PageId getFirstChild() throws NoSuchElementException {
+        if (!isSlotUsed(0, header)) {
+            throw new NoSuchElementException();
         }
+        return new PageId(pid.getTableName(), children[0]);
     }
 
-
+    /**
+     * 返回最右侧的子指针
+     *
+     * @throws NoSuchElementException 如果页面为空
+     */
+    public PageId getLastChild() throws NoSuchElementException {
+        if (!isSlotUsed(0, header)) {
+            throw new NoSuchElementException();
+        }
+        return new PageId(pid.getTableName(), children[leftChildSlot(numKeys)]);
+    }
 
     /**
      * 从页面中删除指定条目（键+右子指针）。 recordId 用于查找指定条目，因此不能为空。删除后，条目的 recordId 应设置为 null，以反映它不再存储在任何页面上。
@@ -332,80 +397,22 @@ public class BTreeInternalPage extends BTreePage {
      * 迭代器，用以迭代页内 Entry
      */
     private class BTreeInternalPageIterator implements Iterator<BTreeInternalEntry> {
-        int curEntry = 1;
-        PageId prevChildId = null;
-        BTreeInternalEntry nextToReturn = null;
-
-        protected PageId getChildId(int i) throws NoSuchElementException {
-            if (i < 0 || i >= children.length)
-                throw new NoSuchElementException();
-
-            try {
-                if (!isSlotUsed(i, header)) {
-                    return null;
-                }
-                return new PageId(pid.getTableName(), children[i]);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                throw new NoSuchElementException();
-            }
-        }
-
-        protected Field getKey(int i) throws NoSuchElementException {
-            if (i <= 0 || i >= keys.length)
-                throw new NoSuchElementException();
-
-            try {
-                if (!isSlotUsed(i, header)) {
-                    return null;
-                }
-                return keys[i];
-
-            } catch (ArrayIndexOutOfBoundsException e) {
-                throw new NoSuchElementException();
-            }
-        }
+        int curEntry = 0;
 
         public boolean hasNext() {
-            if (nextToReturn != null)
-                return true;
-
-            try {
-                if (prevChildId == null) {
-                    prevChildId = getChildId(0);
-                    if (prevChildId == null) {
-                        return false;
-                    }
-                }
-                while (true) {
-                    int entry = curEntry++;
-                    Field key = getKey(entry);
-                    PageId childId = getChildId(entry);
-                    if (key != null && childId != null) {
-                        nextToReturn = new BTreeInternalEntry(key, prevChildId, childId);
-                        nextToReturn.setEntryId(new EntryId(pid, entry));
-                        prevChildId = childId;
-                        return true;
-                    }
-                }
-            } catch (NoSuchElementException e) {
-                return false;
-            }
+            return curEntry < numKeys;
         }
 
         public BTreeInternalEntry next() {
-            BTreeInternalEntry next = nextToReturn;
-
-            if (next == null) {
-                if (hasNext()) {
-                    next = nextToReturn;
-                    nextToReturn = null;
-                    return next;
-                } else
-                    throw new NoSuchElementException();
-            } else {
-                nextToReturn = null;
-                return next;
-            }
+            if (!hasNext())
+                throw new NoSuchElementException();
+            int slot = slots[curEntry];
+            BTreeInternalEntry next = new BTreeInternalEntry(keys[slot],
+                    new PageId(pid.getTableName(), children[leftChildSlot(curEntry)]),
+                    new PageId(pid.getTableName(), children[slot]));
+            next.setEntryId(new EntryId(pid, slot));
+            curEntry++;
+            return next;
         }
 
         public void remove() {
@@ -37,7 +37,7 @@ public class BTreeLeafEntry implements DbSerializable {
     @Override
     public ByteArray serialized() {
         return new ByteList()
-                .writeByteArray(key.serialized())
+                .writeByteArray(key.serializedFixed())
                 .writeInt(recordId.getPid().getPageNumber())
                 .writeInt(recordId.getRecordNumber());
     }
@@ -51,7 +51,7 @@ public class BTreeLeafEntry implements DbSerializable {
      * @return 返回条目
      */
     public static BTreeLeafEntry parse(ByteArray byteAr, Type type, String tableName) throws ParseException {
-        Field key = type.parse(byteAr);
+        Field key = type.parseFixed(byteAr);
         int pageNumber = byteAr.readInt();
         int recordNumber = byteAr.readInt();
         return new BTreeLeafEntry(key, new RecordId(new PageId(tableName, pageNumber), recordNumber));
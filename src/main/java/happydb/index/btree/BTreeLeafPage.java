@@ -3,7 +3,6 @@ package happydb.index.btree;
 import happydb.common.ByteArray;
 import happydb.common.Catalog;
 import happydb.exception.DbException;
-import happydb.execution.Predicate;
 import happydb.index.EntryId;
 import happydb.storage.BufferPool;
 import happydb.storage.Field;
@@ -18,6 +17,11 @@ import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
+ * B+ 树叶子节点
+ * <P>条目存储在固定的槽位中，另外维护一个按键有序的槽位目录 {@link #slots}，插入与定位都在目录上二分查找，
+ * 插入与删除只需移动目录中的整数，条目本身不会移动，因此条目的 entryId 在页面内始终有效。
+ * 序列化时条目按目录顺序紧凑写入，因此磁盘上已使用的槽位总是按键有序的，加载时按槽位顺序即可重建目录</P>
+ *
  * @Author happysnaker
  * @Date 2022/11/21
  * @Email happysnaker@foxmail.com
@@ -26,6 +30,13 @@ public class BTreeLeafPage extends BTreePage {
     private final byte[] header;
     private final BTreeLeafEntry[] entries;
 
+    /**
+     * 槽位目录，slots[0, numUsed) 是按键排序的已使用槽位
+     */
+    private final int[] slots;
+
+    private int numUsed;
+
     @Getter
     @Setter
     private int leftSibling;
@@ -45,6 +56,7 @@ public class BTreeLeafPage extends BTreePage {
 
         this.header = new byte[getHeaderSize()];
         this.entries = new BTreeLeafEntry[numSlots];
+        this.slots = new int[numSlots];
 
         for (int i = 0; i < header.length; i++) {
             header[i] = byteAr.readByte();
@@ -56,6 +68,9 @@ public class BTreeLeafPage extends BTreePage {
             } catch (ParseException e) {
                 throw new RuntimeException(e);
             }
+            if (isSlotUsed(i, header)) {
+                slots[numUsed++] = i;
+            }
         }
     }
 
@@ -66,11 +81,21 @@ public class BTreeLeafPage extends BTreePage {
                 .writeInt(parent.getPageNumber())
                 .writeInt(leftSibling)
                 .writeInt(rightSibling);
-        for (byte b : header) {
+        // 按目录顺序紧凑写入
+        byte[] compact = new byte[header.length];
+        for (int i = 0; i < numUsed; i++) {
+            compact[i / 8] |= (byte) (1 << (i % 8));
+        }
+        for (byte b : compact) {
             byteAr.writeByte(b);
         }
-        for (BTreeLeafEntry entry : entries) {
-            byteAr.writeByteArray(entry.serialized());
+        for (int i = 0; i < numUsed; i++) {
+            byteAr.writeByteArray(entries[slots[i]].serialized());
+        }
+        for (int i = 0; i < entries.length; i++) {
+            if (!isSlotUsed(i, header)) {
+                byteAr.writeByteArray(entries[i].serialized());
+            }
         }
         return byteAr;
     }
@@ -110,6 +135,43 @@ public class BTreeLeafPage extends BTreePage {
         return ans;
     }
 
+    @Override
+    public int numEntries() {
+        return numUsed;
+    }
+
+    /**
+     * 返回第一个键大于等于 key 的条目在目录中的下标，不存在则返回 {@link #numEntries()}
+     */
+    public int lowerBound(Field key) {
+        int lo = 0, hi = numUsed;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKey(entries[slots[mid]].getKey(), key) >= 0) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 返回第一个键大于 key 的条目在目录中的下标，不存在则返回 {@link #numEntries()}
+     */
+    public int upperBound(Field key) {
+        int lo = 0, hi = numUsed;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKey(entries[slots[mid]].getKey(), key) > 0) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
 
     /**
      * 从页面中删除指定的元组；应该更新元组以反映它不再存储在任何页面上。
@@ -123,6 +185,13 @@ public class BTreeLeafPage extends BTreePage {
             throw new DbException("tried to delete tuple on invalid page or table");
         if (!isSlotUsed(eid.getEntryNumber(), header))
             throw new DbException("tried to delete null tuple.");
+        // 在相等键的范围内定位槽位
+        int i = lowerBound(entries[eid.getEntryNumber()].getKey());
+        while (slots[i] != eid.getEntryNumber()) {
+            i++;
+        }
+        System.arraycopy(slots, i + 1, slots, i, numUsed - i - 1);
+        numUsed--;
         markSlotUsed(eid.getEntryNumber(), false, header);
         t.setEntryId(null);
     }
@@ -130,6 +199,7 @@ public class BTreeLeafPage extends BTreePage {
 
     /**
      * 将指定的元组添加到页面，以便所有记录保持排序顺序；应该更新元组以反映它现在存储在该页面上。
+     * <P>元组被插入到最后一个小于等于它的键之后，位置由二分查找确定</P>
      *
      * @param t 要添加的元组。
      * @throws DbException 如果页面已满（没有空槽）或 tupledesc 不匹配。
@@ -150,103 +220,33 @@ public class BTreeLeafPage extends BTreePage {
         if (emptySlot == -1)
             throw new DbException("called addBTreeLeafEntry on page with no empty slots.");
 
-        // find the last key less than or equal to the key being inserted
-        int lessOrEqKey = -1;
-        Field key = t.getKey();
-        for (int i = 0; i < entries.length; i++) {
-            if (isSlotUsed(i, header)) {
-                if (entries[i].getKey().compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-                    lessOrEqKey = i;
-                else
-                    break;
-            }
-        }
-
-
-        int goodSlot = -1;
-        if (emptySlot < lessOrEqKey) {
-            for (int i = emptySlot; i < lessOrEqKey; i++) {
-                moveEntry(i + 1, i);
-            }
-            goodSlot = lessOrEqKey;
-        } else {
-            for (int i = emptySlot; i > lessOrEqKey + 1; i--) {
-                moveEntry(i - 1, i);
-            }
-            goodSlot = lessOrEqKey + 1;
-        }
+        int pos = upperBound(t.getKey());
+        System.arraycopy(slots, pos, slots, pos + 1, numUsed - pos);
+        slots[pos] = emptySlot;
+        numUsed++;
 
-        // insert new record into the correct spot in sorted order
-        markSlotUsed(goodSlot, true, header);
-        EntryId id = new EntryId(pid, goodSlot);
-        t.setEntryId(id);
-        entries[goodSlot] = t;
-    }
-
-    /**
-     * 将记录从一个槽移动到另一个槽，并更新相应的表头和 EntryId
-     */
-    private void moveEntry(int from, int to) {
-        if (!isSlotUsed(to, header) && isSlotUsed(from, header)) {
-            markSlotUsed(to, true, header);
-            EntryId id = new EntryId(pid, to);
-            entries[to] = entries[from];
-            entries[to].setEntryId(id);
-            markSlotUsed(from, false, header);
-        }
+        markSlotUsed(emptySlot, true, header);
+        t.setEntryId(new EntryId(pid, emptySlot));
+        entries[emptySlot] = t;
     }
 
 
     class BTreeLeafPageIterator implements Iterator<BTreeLeafEntry> {
-        int curBTreeLeafEntry = 0;
-        BTreeLeafEntry nextToReturn = null;
+        int curBTreeLeafEntry;
         final BTreeLeafPage p = BTreeLeafPage.this;
 
-        BTreeLeafEntry getEntry(int i) throws NoSuchElementException {
-
-            if (i >= entries.length)
-                throw new NoSuchElementException();
-
-            try {
-                if (!isSlotUsed(i, header)) {
-                    return null;
-                }
-                return entries[i];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                throw new NoSuchElementException();
-            }
+        BTreeLeafPageIterator(int from) {
+            this.curBTreeLeafEntry = from;
         }
 
-
         public boolean hasNext() {
-            if (nextToReturn != null)
-                return true;
-
-            try {
-                while (true) {
-                    nextToReturn = getEntry(curBTreeLeafEntry++);
-                    if (nextToReturn != null)
-                        return true;
-                }
-            } catch (NoSuchElementException e) {
-                return false;
-            }
+            return curBTreeLeafEntry < numUsed;
         }
 
         public BTreeLeafEntry next() {
-            BTreeLeafEntry next = nextToReturn;
-
-            if (next == null) {
-                if (hasNext()) {
-                    next = nextToReturn;
-                    nextToReturn = null;
-                    return next;
-                } else
-                    throw new NoSuchElementException();
-            } else {
-                nextToReturn = null;
-                return next;
-            }
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return entries[slots[curBTreeLeafEntry++]];
         }
 
         public void remove() {
@@ -260,7 +260,14 @@ public class BTreeLeafPage extends BTreePage {
      * 获取业内有效 Entry 的迭代器
      */
     public Iterator<BTreeLeafEntry> iterator() {
-        return new BTreeLeafPageIterator();
+        return new BTreeLeafPageIterator(0);
+    }
+
+    /**
+     * 获取从目录中第 from 个条目开始的迭代器，通常与 {@link #lowerBound(Field)} 配合使用
+     */
+    public Iterator<BTreeLeafEntry> iterator(int from) {
+        return new BTreeLeafPageIterator(from);
     }
 
     /**
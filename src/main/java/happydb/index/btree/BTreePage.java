@@ -1,7 +1,10 @@
 package happydb.index.btree;
 
 import happydb.common.Catalog;
+import happydb.execution.Predicate;
 import happydb.storage.AbstractPage;
+import happydb.storage.Field;
+import happydb.storage.IntField;
 import happydb.storage.PageId;
 import happydb.storage.Type;
 import lombok.Data;
@@ -39,4 +42,39 @@ public abstract class BTreePage extends AbstractPage {
         this.category = category;
         this.type = Catalog.getFieldTypeFromIndexTableName(pid.getTableName());
     }
+
+    /**
+     * 返回页面中的条目数，对于内部节点是键的数目
+     */
+    public int numEntries() {
+        return getMaxNumEntries() - getEmptySlots().size();
+    }
+
+    /**
+     * 页面是否已满，已满的页面插入前需要拆分
+     */
+    public boolean isFull() {
+        return numEntries() >= getMaxNumEntries();
+    }
+
+    /**
+     * 返回页面允许的最少条目数，非根节点的条目数少于此值时需要向兄弟节点借用或与之合并
+     */
+    public int getMinNumEntries() {
+        return getMaxNumEntries() / 2;
+    }
+
+    /**
+     * 比较两个键，返回负数、零或正数，页内二分查找使用此方法
+     * <P>整数键直接比较原始值，避免经由 {@link Field#compare(Predicate.Op, Field)} 的分派，其余类型至多调用两次 compare</P>
+     */
+    protected static int compareKey(Field a, Field b) {
+        if (a instanceof IntField x && b instanceof IntField y) {
+            return Integer.compare(x.value(), y.value());
+        }
+        if (a.compare(Predicate.Op.LESS_THAN, b)) {
+            return -1;
+        }
+        return a.compare(Predicate.Op.EQUALS, b) ? 0 : 1;
+    }
 }
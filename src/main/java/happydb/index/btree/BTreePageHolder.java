@@ -7,6 +7,7 @@ import happydb.storage.BufferPool;
 import happydb.storage.Page;
 import happydb.storage.PageId;
 import happydb.storage.PageManager;
+import happydb.storage.ReplacementPolicy;
 import happydb.transaction.TransactionId;
 import lombok.Getter;
 
@@ -36,6 +37,11 @@ public class BTreePageHolder {
 
     private final HashSet<Page> pages = new HashSet<>();
 
+    /**
+     * 本次操作中被合并掉的页面，操作结束时归还给超级页
+     */
+    private final HashSet<Page> freedPages = new HashSet<>();
+
     /**
      * 构造 BTreePageHolder
      *
@@ -96,6 +102,19 @@ public class BTreePageHolder {
      * @throws DbException
      */
     public BTreePage getBTreePage(PageId pid, Permissions perm) throws DbException {
+        return getBTreePage(pid, perm, ReplacementPolicy.AccessType.NORMAL);
+    }
+
+    /**
+     * 以某种权限获取 B+ 树页，并告知缓冲池此次访问的方式，沿叶子节点链表的顺序扫描应该使用 {@link ReplacementPolicy.AccessType#SCAN}
+     *
+     * @param pid        页面 ID
+     * @param perm       权限
+     * @param accessType 访问方式
+     * @return 锁定的页面
+     * @throws DbException
+     */
+    public BTreePage getBTreePage(PageId pid, Permissions perm, ReplacementPolicy.AccessType accessType) throws DbException {
         if (!pid.getTableName().equals(superPage.getPageId().getTableName())) {
             throw new DbException("模式不匹配");
         }
@@ -106,7 +125,7 @@ public class BTreePageHolder {
             throw new DbException("请调用 getSuperPage 获取超级页");
         }
 
-        BTreePage page = (BTreePage) pool.getPage(tid, pid, perm);
+        BTreePage page = (BTreePage) pool.getPage(tid, pid, perm, accessType);
         pages.add(page);
         return page;
     }
@@ -145,20 +164,47 @@ public class BTreePageHolder {
     }
 
     /**
-     * 操作结束，释放所有的锁，并将自己弄脏的脏页(持有写锁)刷盘
+     * 标记页面已被回收，页面必须以写模式被锁定，并且已经不再被任何页面引用
+     * <P>页面不会被写回磁盘，操作结束释放锁后，页面会从缓冲池中移除并通过 {@link BTreeSuperPage#free(PageId)} 归还，
+     * 由于持有写锁期间其他操作无法通过父节点或兄弟节点到达此页面，释放锁后也就不会再有人访问它</P>
+     *
+     * @param page 页面
+     * @throws DbException 如果页面未被写锁定
+     */
+    public void freePage(BTreePage page) throws DbException {
+        if (!isHoldLock(page.getPageId(), Permissions.READ_WRITE)) {
+            throw new DbException("页面未能被正确锁定");
+        }
+        page.markDirty(false);
+        freedPages.add(page);
+    }
+
+    /**
+     * 操作结束，释放所有的锁，并将自己弄脏的脏页(持有写锁)刷盘，被回收的页面会在释放锁之后归还给超级页
      */
     public void releaseAllPages() throws IOException {
+        for (Page page : freedPages) {
+            page.markDirty(false);
+        }
         HashSet<Page> set = new HashSet<>(pages);
         for (Page page : set) {
             if (page.isDirty() && page.hasWriteLock(tid)) {
-                synchronized (Database.getBufferPool()) {
-                    pm.writePage(page);
-                    page.markDirty(false);
-                }
+                // 持有写锁，写回期间页面不会被修改，也不会被缓冲池并发地刷新
+                pm.writePage(page);
+                page.markDirty(false);
             }
 
             releasePageIfHolder(page, Permissions.READ_ONLY);
             releasePageIfHolder(page, Permissions.READ_WRITE);
         }
+        for (Page page : freedPages) {
+            pool.unsafeDiscardPage(page.getPageId());
+            try {
+                superPage.free(page.getPageId());
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        freedPages.clear();
     }
 }
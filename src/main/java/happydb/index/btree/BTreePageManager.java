@@ -2,7 +2,7 @@ package happydb.index.btree;
 
 import happydb.common.ByteArray;
 import happydb.common.Catalog;
-import happydb.common.DbFile;
+import happydb.common.PageFile;
 import happydb.exception.DbException;
 import happydb.storage.*;
 import lombok.Data;
@@ -18,21 +18,21 @@ import java.io.IOException;
 public class BTreePageManager implements PageManager {
     private String tableName;
 
-    private DbFile dbFile;
+    private PageFile dbFile;
 
 
-    public BTreePageManager(String tableName, DbFile dbFile) throws DbException, IOException {
+    public BTreePageManager(String tableName, PageFile dbFile) throws DbException, IOException {
         this.tableName = tableName;
         this.dbFile = dbFile;
     }
 
 
     @Override
-    public synchronized Page readPage(PageId pid) throws IOException {
+    public Page readPage(PageId pid) throws IOException {
         if (pid.getPageNumber() == 0) {
             return readSuperPage();
         }
-        ByteArray read = dbFile.read((long) pid.getPageNumber() * BufferPool.getPageSize(), BufferPool.getPageSize());
+        ByteArray read = dbFile.readPage((long) pid.getPageNumber() * BufferPool.getPageSize(), BufferPool.getPageSize());
         return switch (read.readByte(0)) {
             case BTreePage.INTERNAL -> new BTreeInternalPage(read, pid);
             case BTreePage.LEAF -> new BTreeLeafPage(read, pid);
@@ -43,7 +43,7 @@ public class BTreePageManager implements PageManager {
     }
 
 
-    private Page readSuperPage() throws IOException {
+    private synchronized Page readSuperPage() throws IOException {
         // 初始化超级页
         if (dbFile.getLength() < BufferPool.getPageSize()) {
             Page page = new BTreeSuperPage(BTreeSuperPage.createEmptyPageData(
@@ -53,12 +53,12 @@ public class BTreePageManager implements PageManager {
             writePage(page);
             return page;
         }
-        return new BTreeSuperPage(dbFile.read(0, BufferPool.getPageSize()), new PageId(tableName, 0));
+        return new BTreeSuperPage(dbFile.readPage(0, BufferPool.getPageSize()), new PageId(tableName, 0));
     }
 
 
     @Override
-    public synchronized void writePage(Page page) throws IOException {
+    public void writePage(Page page) throws IOException {
         dbFile.write((long) page.getPageId().getPageNumber() * BufferPool.getPageSize(), page.serialized());
     }
 
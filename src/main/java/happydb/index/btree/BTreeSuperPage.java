@@ -70,6 +70,9 @@ public class BTreeSuperPage extends AbstractPage {
             case 2 -> {
                 this.type = Type.STRING_TYPE;
             }
+            case 3 -> {
+                this.type = Type.VARCHAR_TYPE;
+            }
             default -> {
                 throw new RuntimeException("无法解析的类型");
             }
@@ -93,6 +96,7 @@ public class BTreeSuperPage extends AbstractPage {
             case INT_TYPE -> byteArray.writeByte((byte) 0);
             case DOUBLE_TYPE -> byteArray.writeByte((byte) 1);
             case STRING_TYPE -> byteArray.writeByte((byte) 2);
+            case VARCHAR_TYPE -> byteArray.writeByte((byte) 3);
         }
         return byteArray;
     }
@@ -106,6 +110,7 @@ public class BTreeSuperPage extends AbstractPage {
             case INT_TYPE -> byteArray.writeByte((byte) 0);
             case DOUBLE_TYPE -> byteArray.writeByte((byte) 1);
             case STRING_TYPE -> byteArray.writeByte((byte) 2);
+            case VARCHAR_TYPE -> byteArray.writeByte((byte) 3);
         }
 
         byteArray.writeInt(getBtreeRootPageId().getPageNumber());
@@ -168,6 +173,8 @@ public class BTreeSuperPage extends AbstractPage {
                 // 向磁盘中写入空页，仅设置页的类别
                 PageId pageId = new PageId(pid.getTableName(), i);
                 pm.writePage(new EmptyBTreePage(pageId, (byte) category));
+                // 页面可能是被回收后复用的，缓冲池中不能残留旧的内容
+                Database.getBufferPool().unsafeDiscardPage(pageId);
                 pm.writePage(this);
                 return pageId;
             }
@@ -177,7 +184,34 @@ public class BTreeSuperPage extends AbstractPage {
 
 
     /**
-     * 回收一个页面, <strong>语义与 malloc 相反</strong>
+     * 获取 count 个页号连续的空页，用于 {@link BTreeBulkLoader} 批量构建，使得页面可以按页号顺序写入
+     * <p>与 {@link #malloc(byte)} 不同，此方法不会写入空页，调用者必须随后写入这些页面的实际内容，超级页自身的槽位变化只写入一次</p>
+     *
+     * @param count 页面数量
+     * @return 第一个页面的页号
+     */
+    public synchronized int mallocContiguous(int count) throws IOException {
+        int start = 1;
+        while (start + count <= getMaxNumEntries()) {
+            int end = start;
+            while (end < start + count && !isSlotUsed(end, header)) {
+                end++;
+            }
+            if (end == start + count) {
+                for (int i = start; i < end; i++) {
+                    markSlotUsed(i, true, header);
+                    Database.getBufferPool().unsafeDiscardPage(new PageId(pid.getTableName(), i));
+                }
+                Database.getCatalog().getPageManager(pid.getTableName()).writePage(this);
+                return start;
+            }
+            start = end + 1;
+        }
+        throw new RuntimeException("空间已耗尽");
+    }
+
+    /**
+     * 回收一个页面, <strong>语义与 malloc 相反</strong>，回收的槽位会被之后的 {@link #malloc(byte)} 优先复用
      *
      * @param pid 待回收的页面
      */
@@ -40,7 +40,7 @@ public class HashEntry implements DbSerializable {
     @Override
     public ByteArray serialized() {
         return new ByteList()
-                .writeByteArray(key.serialized())
+                .writeByteArray(key.serializedFixed())
                 .writeInt(recordId.getPid().getPageNumber())
                 .writeInt(recordId.getRecordNumber());
     }
@@ -54,7 +54,7 @@ public class HashEntry implements DbSerializable {
      * @return 返回条目
      */
     public static HashEntry parse(ByteArray byteAr, Type type, String tableName) throws ParseException {
-        Field key = type.parse(byteAr);
+        Field key = type.parseFixed(byteAr);
         int pageNumber = byteAr.readInt();
         int recordNumber = byteAr.readInt();
         return new HashEntry(key, new RecordId(new PageId(tableName, pageNumber), recordNumber));
@@ -7,6 +7,7 @@ import happydb.exception.DbException;
 import happydb.execution.Predicate;
 import happydb.index.EntryId;
 import happydb.index.Index;
+import happydb.index.IndexCursor;
 import happydb.index.IndexType;
 import happydb.storage.*;
 import happydb.transaction.TransactionId;
@@ -172,14 +173,21 @@ public class HashIndex implements Index {
     }
 
     @Override
-    public List<RecordId> search(TransactionId tid, Predicate.Op op, Field operand) throws DbException {
+    public IndexCursor cursor(TransactionId tid, Predicate.Op op, Field operand) throws DbException {
         if (op != Predicate.Op.EQUALS) {
             throw new DbException("Hash index only support equals op, but not " + op);
         }
+        return new HashCursor(tid, operand);
+    }
+
+    /**
+     * 查找键等于 key 的所有条目
+     */
+    private List<RecordId> search(TransactionId tid, Field key) throws DbException {
         HashPageHolder holder = new HashPageHolder(tid, tableName);
         holder.init();
         try {
-            return doSearch(operand, holder);
+            return doSearch(key, holder);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -212,4 +220,64 @@ public class HashIndex implements Index {
         }
         return ret;
     }
+
+    /**
+     * 哈希索引的游标，哈希索引只支持等值查找，同一个键的条目位于同一条探测序列上，数量与表的大小无关，
+     * 因此游标在第一次迭代时才进行查找，并将这一个键的所有条目作为一批缓存
+     */
+    private class HashCursor implements IndexCursor {
+        private final TransactionId tid;
+        private Field key;
+        private List<RecordId> batch;
+        private int pos;
+
+        HashCursor(TransactionId tid, Field key) {
+            this.tid = tid;
+            this.key = key;
+        }
+
+        @Override
+        public void seek(Field key) {
+            this.key = key;
+            this.batch = null;
+            this.pos = 0;
+        }
+
+        @Override
+        public List<RecordId> batch() {
+            return batch == null ? Collections.emptyList() : batch;
+        }
+
+        @Override
+        public int batchPosition() {
+            return pos;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (batch == null) {
+                try {
+                    batch = key == null ? new ArrayList<>() : search(tid, key);
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return pos < batch.size();
+        }
+
+        @Override
+        public RecordId next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.get(pos++);
+        }
+
+        @Override
+        public void close() {
+            key = null;
+            batch = new ArrayList<>();
+            pos = 0;
+        }
+    }
 }
@@ -143,10 +143,9 @@ public class HashPageHolder {
         HashSet<Page> set = new HashSet<>(pages);
         for (Page page : set) {
             if (page.isDirty() && page.hasWriteLock(tid)) {
-                synchronized (Database.getBufferPool()) {
-                    pm.writePage(page);
-                    page.markDirty(false);
-                }
+                // 持有写锁，写回期间页面不会被修改，也不会被缓冲池并发地刷新
+                pm.writePage(page);
+                page.markDirty(false);
             }
 
             releasePageIfHolder(page, Permissions.READ_ONLY);
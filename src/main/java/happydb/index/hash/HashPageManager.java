@@ -3,7 +3,7 @@ package happydb.index.hash;
 import happydb.common.ByteArray;
 import happydb.common.ByteList;
 import happydb.common.Catalog;
-import happydb.common.DbFile;
+import happydb.common.PageFile;
 import happydb.exception.DbException;
 import happydb.storage.BufferPool;
 import happydb.storage.Page;
@@ -27,25 +27,25 @@ public class HashPageManager implements PageManager {
 
     private String tableName;
 
-    private DbFile dbFile;
+    private PageFile dbFile;
 
 
-    public HashPageManager(String tableName, DbFile dbFile) throws DbException, IOException {
+    public HashPageManager(String tableName, PageFile dbFile) throws DbException, IOException {
         this.tableName = tableName;
         this.dbFile = dbFile;
     }
 
     @Override
-    public synchronized Page readPage(PageId pid) throws IOException {
+    public Page readPage(PageId pid) throws IOException {
         long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
         if (dbFile.getLength() < offset + BufferPool.getPageSize()) {
             throw new NoSuchElementException();
         }
-        return new HashPage(dbFile.read(offset, BufferPool.getPageSize()), pid);
+        return new HashPage(dbFile.readPage(offset, BufferPool.getPageSize()), pid);
     }
 
     @Override
-    public synchronized void writePage(Page page) throws IOException {
+    public void writePage(Page page) throws IOException {
         dbFile.write((long) page.getPageId().getPageNumber() * BufferPool.getPageSize(), page.serialized());
     }
 
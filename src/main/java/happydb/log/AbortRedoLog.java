@@ -130,8 +130,8 @@ public class AbortRedoLog implements RedoLog{
         @Override
         protected Record fetchNext() throws DbException {
             Record record = null;
-            while (iterator.hasNext()) {
-                RecordId next = iterator.next();
+            while (cursor.hasNext()) {
+                RecordId next = cursor.next();
                 HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, next.getPid(), Permissions.READ_ONLY);
                 try {
                     record = page.readRecord(next);
@@ -145,7 +145,7 @@ public class AbortRedoLog implements RedoLog{
                     page.insertRecord(next, deleteRecord);
 
                     HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager(tableName);
-                    pm.malloc(next);
+                    pm.malloc(next, deleteRecord.getSerializedLen());
 
                     try {
                         // flush
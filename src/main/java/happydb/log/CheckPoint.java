@@ -35,8 +35,10 @@ public class CheckPoint {
         while (it.hasNext()) {
             Pair<Long, DataPage> next = it.next();
             try {
-                Database.getBufferPool().unsafeFlushPage(next.getVal().getPageId());
-                // 如果失败，无法继续走下去
+                // 如果失败或页面正被其他事务锁定，无法继续走下去
+                if (!Database.getBufferPool().unsafeFlushPage(next.getVal().getPageId())) {
+                    break;
+                }
                 ckp = next.getKey();
                 if (random.nextInt(2) == 0) {
                     break;
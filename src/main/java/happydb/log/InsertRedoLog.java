@@ -124,7 +124,7 @@ public class InsertRedoLog implements RedoLog {
 
                 // 分配池移除
                 HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager(pid.getTableName());
-                pm.malloc(new RecordId(pid, dataId));
+                pm.malloc(new RecordId(pid, dataId), record.getSerializedLen());
             } catch (DbException ignore) {
                 // 由于 fuzzle ckp 可能落后，因此页面可能已被刷回，因此可能插入位置非空
             }
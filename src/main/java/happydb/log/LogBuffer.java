@@ -8,7 +8,11 @@ import happydb.transaction.TransactionId;
 import lombok.Getter;
 import lombok.NonNull;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -24,21 +28,73 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class LogBuffer {
 
-    public static final int HEAD_SIZE = 24;
+    /**
+     * 清单文件的大小，清单文件依次记录日志末尾、检查点、最早的日志段号与日志段大小
+     */
+    public static final int HEAD_SIZE = 32;
 
     /**
-     * 当检查点推进多少字节时截断日志
+     * 旧版本单文件日志的文件头大小，文件头依次记录日志末尾、检查点与已截断的长度，之后紧跟着截断之后的所有日志，
+     * LSN 为 lsn 的日志位于文件的 lsn + LEGACY_HEAD_SIZE - truncate 处
      */
-    public static int TRUNCATE_HOLDER = 0;
+    private static final int LEGACY_HEAD_SIZE = 24;
 
+    /**
+     * 内存中环形日志缓冲区的大小，至少能容纳 4 个页面
+     */
+    public static int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * 新建日志时每个日志段文件的大小，LSN 为 lsn 的日志位于第 lsn / SEGMENT_SIZE 个日志段的 lsn % SEGMENT_SIZE 处
+     * <P>段大小在创建日志时写入清单文件，之后再次打开日志总是使用清单中的值，修改此参数只对新建的日志生效</P>
+     */
+    public static int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * 恢复时每次从日志段中读取的大小
+     */
+    public static int READ_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * 清单文件
+     */
     private final DbFile dbFile;
 
+    /**
+     * 已打开的日志段，键为段号
+     */
+    private final Map<Long, DbFile> segments = new ConcurrentHashMap<>();
+
+    /**
+     * 自上一次刷盘以来写入过的日志段，值为段的写入次数，由自身锁保护
+     * <P>日志段只有在刷盘成功后才会被移除，并且只有刷盘期间没有被再次写入时才会被移除</P>
+     */
+    private final Map<Long, Long> unflushedSegments = new HashMap<>();
+
+    /**
+     * 此日志使用的段大小，在创建时确定并记录在清单文件中
+     */
+    private final int segmentSize;
+
+    /**
+     * 重做日志由一个清单文件与若干固定大小的日志段文件组成，日志段文件与清单文件位于同一目录，以清单文件名加段号命名
+     * <P>检查点推进时，整个位于检查点之前的日志段会被删除，因此截断的代价与日志的大小无关</P>
+     * <P>打开旧版本的单文件日志时，会先将其中的日志迁移到日志段中，见 {@link #migrateLegacyLog(long)}</P>
+     *
+     * @param dbFile 清单文件
+     */
     public LogBuffer(DbFile dbFile) {
         this.dbFile = dbFile;
         ByteArray data;
         try {
-            if (dbFile.getLength() == 0) {
-                dbFile.write(0, ByteArray.allocate(HEAD_SIZE));
+            long length = dbFile.getLength();
+            if (length == 0) {
+                dbFile.write(0, ByteArray.allocate(HEAD_SIZE).writeLong(0).writeLong(0).writeLong(0).writeLong(SEGMENT_SIZE));
+            } else if (length == LEGACY_HEAD_SIZE && !isEmptyLegacyLog()) {
+                // 分段之初的清单文件没有记录段大小
+                dbFile.write(HEAD_SIZE - Long.BYTES, new ByteArray((long) SEGMENT_SIZE));
+            } else if (length != HEAD_SIZE) {
+                migrateLegacyLog(length);
             }
             data = dbFile.read(0, HEAD_SIZE);
         } catch (IOException e) {
@@ -46,7 +102,62 @@ public class LogBuffer {
         }
         maxLsn = new AtomicLong(data.readLong());
         checkPoint = data.readLong();
-        truncate = data.readLong();
+        firstSegment = data.readLong();
+        segmentSize = (int) data.readLong();
+        if (segmentSize <= 0) {
+            throw new IllegalStateException("清单文件中的日志段大小非法: " + segmentSize);
+        }
+        readyUpTo = writtenUpTo = flushedUpTo = maxLsn.get();
+        ring = new byte[Math.max(BUFFER_SIZE, BufferPool.getPageSize() * 4)];
+        deleteSegmentsBefore(firstSegment);
+    }
+
+    /**
+     * 长度恰好为 {@link #LEGACY_HEAD_SIZE} 的文件可能是没有段大小的清单文件，也可能是不含任何日志的旧版本日志文件，
+     * 后者的日志末尾等于已截断的长度，而清单文件中最早的段号总是小于日志末尾（两者都为 0 时按哪种格式解释都是一样的）
+     */
+    private boolean isEmptyLegacyLog() throws IOException {
+        ByteArray head = dbFile.read(0, LEGACY_HEAD_SIZE);
+        long end = head.readLong();
+        head.readLong();
+        return end > 0 && end == head.readLong();
+    }
+
+    /**
+     * 将旧版本的单文件日志迁移为日志段，并将文件改写为清单文件
+     * <P>日志先被拷贝到日志段中并刷盘，新的清单写入临时文件后再原子地替换旧的日志文件，
+     * 迁移中途崩溃时旧的日志文件保持不变，下一次打开时重新迁移即可</P>
+     *
+     * @param length 旧日志文件的长度
+     */
+    private void migrateLegacyLog(long length) throws IOException {
+        ByteArray head = dbFile.read(0, LEGACY_HEAD_SIZE);
+        long end = head.readLong(), ckp = head.readLong(), truncate = head.readLong();
+        if (truncate < 0 || ckp < truncate || ckp > end) {
+            throw new IllegalStateException(String.format("无法识别的重做日志文件 %s：末尾 %d，检查点 %d，截断 %d",
+                    dbFile.getFile(), end, ckp, truncate));
+        }
+        // 文件头在日志之后写入，崩溃时文件中可能有未记录在末尾之内的日志，也可能缺少末尾之前的日志
+        long len = Math.min(end - truncate, length - LEGACY_HEAD_SIZE);
+        for (long done = 0; done < len; ) {
+            long lsn = truncate + done;
+            int n = (int) Math.min(len - done, Math.min(READ_CHUNK_SIZE, SEGMENT_SIZE - lsn % SEGMENT_SIZE));
+            segment(lsn / SEGMENT_SIZE).write(lsn % SEGMENT_SIZE, dbFile.read(LEGACY_HEAD_SIZE + done, n), false);
+            done += n;
+        }
+        for (DbFile segment : segments.values()) {
+            segment.force();
+        }
+
+        File tmp = new File(dbFile.getFile().getPath() + ".tmp");
+        DbFile manifest = new DbFile(tmp);
+        manifest.write(0, ByteArray.allocate(HEAD_SIZE)
+                .writeLong(truncate + len).writeLong(Math.min(ckp, truncate + len))
+                .writeLong(truncate / SEGMENT_SIZE).writeLong(SEGMENT_SIZE));
+        manifest.setLength(HEAD_SIZE);
+        manifest.close();
+        dbFile.close();
+        Files.move(tmp.toPath(), dbFile.getFile().toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 
     /**
@@ -61,62 +172,321 @@ public class LogBuffer {
     private volatile long checkPoint;
 
     /**
-     * 当前日志已截断的总数
+     * 最早的日志段号，之前的日志段都已被删除
      */
     @Getter
-    private volatile long truncate;
+    private volatile long firstSegment;
+
+    /**
+     * 已生成的重做日志数量，用于估算重做日志的生成速率
+     */
+    private final AtomicLong redoCount = new AtomicLong();
+
+    /**
+     * 两次采样重做日志生成速率的最小间隔（纳秒）
+     */
+    private static final long REDO_RATE_SAMPLE_NANOS = 100_000_000L;
+
+    private final Object redoRateLock = new Object();
+    private long redoRateSampleTime = System.nanoTime();
+    private long redoRateSampleCount = 0;
+    private double redoRate = 0;
+
+    /**
+     * 环形日志缓冲区，LSN 为 lsn 的字节位于 ring[lsn % ring.length]
+     * <P>日志的生成只需要预留 LSN 并拷贝到缓冲区中，缓冲区中的日志按 LSN 顺序连续地写入文件，有三个单调递增的水位：
+     * <ul>
+     *     <li>{@link #readyUpTo}：此 LSN 之前的日志都已经拷贝到缓冲区中，由于多个线程并发拷贝，先完成拷贝的日志要等待之前的日志完成才能推进水位</li>
+     *     <li>{@link #writtenUpTo}：此 LSN 之前的日志都已经写入文件（但不一定刷盘），缓冲区中此水位之前的空间可以被复用</li>
+     *     <li>{@link #flushedUpTo}：此 LSN 之前的日志都已经刷盘</li>
+     * </ul></P>
+     */
+    private final byte[] ring;
+    private volatile long readyUpTo;
+    private volatile long writtenUpTo;
+    private volatile long flushedUpTo;
 
+    /**
+     * 已完成拷贝但还不能推进 {@link #readyUpTo} 的日志区间，键为起始 LSN，值为结束 LSN，由自身锁保护
+     */
+    private final TreeMap<Long, Long> copied = new TreeMap<>();
+
+    /**
+     * 组提交：同一时刻只有一个领导者写入并刷新日志
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * 领导者写入或刷盘失败的原因，由 {@link #flushLock} 保护
+     * <P>刷盘失败后操作系统可能已经丢弃了脏的日志页，再次刷盘成功也不能说明之前的日志已经落盘，
+     * 因此失败是永久的：{@link #flushedUpTo} 不再推进，等待这一批以及之后任何一批的提交者都会收到此异常</P>
+     */
+    private Throwable flushFailure;
+
+    /**
+     * 组提交的指标：提交次数、刷盘次数、提交延迟的总和与最大值（纳秒）
+     */
+    private final AtomicLong commitCount = new AtomicLong();
+    private final AtomicLong fsyncCount = new AtomicLong();
+    private final AtomicLong commitLatencyNanos = new AtomicLong();
+    private final AtomicLong maxCommitLatencyNanos = new AtomicLong();
 
     final Map<TransactionId, List<RedoLog>> redoLogMap = new ConcurrentHashMap<>();
     final Map<TransactionId, List<UndoLog>> undoLogMap = new ConcurrentHashMap<>();
     final Set<DataPage> flushSet = new HashSet<>();
 
     /**
-     * 获取写入或读取偏移
+     * 返回日志段文件
      */
-    private long getOffset(long lsn) {
-        return lsn + HEAD_SIZE - truncate;
+    private File segmentFile(long segment) {
+        return new File(String.format("%s.%06d", dbFile.getFile().getPath(), segment));
     }
 
     /**
-     * 写入日志文件持久化
+     * 获取日志段，如果文件不存在则创建它
      */
-    private synchronized void writeRedoLog(RedoLog log) throws IOException {
-        if (log.getLsn() < checkPoint) {
-            // 当这些日志还在内存中，检查点发生了，因此这些日志可以丢弃，否则文件被截断，偏移可能计算出错
+    private DbFile segment(long segment) {
+        return segments.computeIfAbsent(segment, n -> {
+            try {
+                return new DbFile(segmentFile(n));
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * 删除段号小于 segment 的所有日志段文件
+     */
+    private void deleteSegmentsBefore(long segment) {
+        String prefix = dbFile.getFile().getName() + ".";
+        File[] files = dbFile.getFile().getAbsoluteFile().getParentFile().listFiles(
+                (dir, name) -> name.startsWith(prefix));
+        if (files == null) {
             return;
         }
-        dbFile.write(getOffset(log.getLsn()), log.serialized());
+        for (File file : files) {
+            long n;
+            try {
+                n = Long.parseLong(file.getName().substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (n < segment) {
+                DbFile seg = segments.remove(n);
+                if (seg != null) {
+                    seg.close();
+                }
+                if (!file.delete()) {
+                    Debug.log("删除日志段 %s 失败", file);
+                }
+            }
+        }
     }
 
     /**
-     * 一些通用的方法，设置 LSN，写入占位符，写入 MAX_LSN，写入 redoLogMap，
-     * 更新对应页的 LSN
+     * 将从 lsn 开始的数据写入日志段，数据可能跨越多个日志段，此方法不会刷盘
      */
-    private RedoLog processRedoLog(RedoLog redoLog) throws DbException {
-        TransactionId tid = redoLog.xid();
-        int size = redoLog.size();
-        redoLog.setLsn(maxLsn.getAndAdd(size));
-        long newMaxLsn = redoLog.getLsn() + size;
+    private void writeSegments(long lsn, ByteArray data) throws IOException {
+        int written = 0;
+        while (written < data.length()) {
+            long segment = (lsn + written) / segmentSize;
+            int offset = (int) ((lsn + written) % segmentSize);
+            int len = Math.min(data.length() - written, segmentSize - offset);
+            segment(segment).write(offset, data.subArray(written, written + len), false);
+            synchronized (unflushedSegments) {
+                unflushedSegments.merge(segment, 1L, Long::sum);
+            }
+            written += len;
+        }
+    }
+
+    /**
+     * 将日志拷贝到环形缓冲区中，如果缓冲区空间不足，会先将缓冲区中已就绪的日志写入文件
+     *
+     * @param lsn           日志预留的 LSN
+     * @param data          日志的内容
+     * @param interruptible 等待缓冲区空间时能否被中断，不可中断时中断标志会在返回前恢复
+     */
+    private void append(long lsn, byte[] data, boolean interruptible) throws IOException {
+        int size = data.length;
+        if (size > ring.length) {
+            throw new IllegalStateException("重做日志大于日志缓冲区");
+        }
+        boolean interrupted = false;
         try {
-            synchronized (this) {
-                if (maxLsn.get() <= newMaxLsn) {
-                    dbFile.write(0, new ByteArray(newMaxLsn));
+            while (lsn + size - writtenUpTo > ring.length) {
+                if (writeRing() == writtenUpTo) {
+                    // 之前的日志还没有拷贝完成，等待它们
+                    synchronized (copied) {
+                        if (readyUpTo == writtenUpTo) {
+                            try {
+                                copied.wait(1);
+                            } catch (InterruptedException e) {
+                                if (interruptible) {
+                                    throw new RuntimeException(e);
+                                }
+                                interrupted = true;
+                            }
+                        }
+                    }
                 }
-                if (dbFile.getLength() < getOffset(redoLog.getLsn()) + size) {
-                    dbFile.write(getOffset(redoLog.getLsn()), ByteArray.allocate(size));
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int pos = (int) (lsn % ring.length);
+        int first = Math.min(size, ring.length - pos);
+        System.arraycopy(data, 0, ring, pos, first);
+        System.arraycopy(data, first, ring, 0, size - first);
+
+        synchronized (copied) {
+            copied.put(lsn, lsn + size);
+            while (!copied.isEmpty() && copied.firstKey() == readyUpTo) {
+                readyUpTo = copied.pollFirstEntry().getValue();
+            }
+            copied.notifyAll();
+        }
+    }
+
+    /**
+     * 用一条 {@link RedoLog#SPACE_REDO} 占位日志填满已预留但拷贝失败的 LSN 区间，否则 {@link #readyUpTo} 将永远停在这个空洞之前，
+     * 之后所有的日志生成与刷盘都会被阻塞；恢复时占位日志会被跳过
+     *
+     * @param lsn  预留的 LSN
+     * @param size 预留的大小，任何日志都大于占位日志的头部
+     */
+    private void pad(long lsn, int size) throws IOException {
+        byte[] space = new byte[size];
+        byte[] head = new ByteList().writeInt(size - Integer.BYTES).writeByte(RedoLog.SPACE_REDO).getByteArray();
+        System.arraycopy(head, 0, space, 0, head.length);
+        append(lsn, space, false);
+    }
+
+    /**
+     * 将缓冲区中所有已就绪的日志按顺序写入文件，但不刷盘，同时将 {@link #writtenUpTo} 作为日志末尾写入文件头
+     *
+     * @return 新的 {@link #writtenUpTo}
+     */
+    private synchronized long writeRing() throws IOException {
+        // 检查点之前的日志已经不再需要，否则文件被截断，偏移可能计算出错
+        long from = Math.max(writtenUpTo, checkPoint), to = readyUpTo;
+        if (from >= to) {
+            return writtenUpTo;
+        }
+        int pos = (int) (from % ring.length);
+        int len = (int) (to - from);
+        int first = Math.min(len, ring.length - pos);
+        writeSegments(from, new ByteArray(ring, pos, pos + first));
+        if (first < len) {
+            writeSegments(from + first, new ByteArray(ring, 0, len - first));
+        }
+        writtenUpTo = to;
+        dbFile.write(0, new ByteArray(writtenUpTo), false);
+        return writtenUpTo;
+    }
+
+    /**
+     * 组提交，保证 lsn 之前的日志都已经刷盘
+     * <P>第一个发现日志尚未刷盘的线程成为领导者，它将缓冲区中所有已就绪的日志连续写入文件并只刷盘一次，
+     * 其余线程在 {@link #flushLock} 上等待，获得锁后发现自己已被 {@link #flushedUpTo} 覆盖便直接返回；
+     * 领导者刷盘期间生成的日志会组成下一批</P>
+     *
+     * @param lsn 需要持久化的日志末尾
+     */
+    public void flush(long lsn) throws IOException {
+        long start = System.nanoTime();
+        forceUpTo(lsn);
+        long latency = System.nanoTime() - start;
+        commitCount.incrementAndGet();
+        commitLatencyNanos.addAndGet(latency);
+        maxCommitLatencyNanos.accumulateAndGet(latency, Math::max);
+    }
+
+    /**
+     * 先写日志：数据页写回磁盘之前调用，保证最后一条修改页面的日志已经刷盘，否则崩溃后磁盘上可能存在无法回滚的修改
+     * <P>页面的 LSN 是最后一条修改它的日志的起始 LSN，日志总是整条地就绪，因此刷新到 LSN + 1 即可覆盖这条日志；
+     * 从未被日志修改过的页面 LSN 为 0，此时没有需要刷新的日志。此方法不计入组提交的指标</P>
+     *
+     * @param pageLsn 待写回页面的 LSN
+     */
+    public void flushForPage(long pageLsn) throws IOException {
+        forceUpTo(Math.min(pageLsn + 1, maxLsn.get()));
+    }
+
+    /**
+     * 组提交的实现，保证 lsn 之前的日志都已经刷盘
+     */
+    private void forceUpTo(long lsn) throws IOException {
+        if (flushedUpTo < lsn) {
+            synchronized (copied) {
+                while (readyUpTo < lsn) {
+                    try {
+                        copied.wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+            synchronized (flushLock) {
+                if (flushedUpTo < lsn) {
+                    if (flushFailure != null) {
+                        throw new IOException("重做日志刷盘曾经失败，无法保证 LSN " + lsn + " 之前的日志已经持久化", flushFailure);
+                    }
+                    try {
+                        long upTo = writeRing();
+                        Map<Long, Long> unflushed;
+                        synchronized (unflushedSegments) {
+                            unflushed = new HashMap<>(unflushedSegments);
+                        }
+                        for (Map.Entry<Long, Long> it : unflushed.entrySet()) {
+                            segment(it.getKey()).force();
+                            synchronized (unflushedSegments) {
+                                unflushedSegments.remove(it.getKey(), it.getValue());
+                            }
+                        }
+                        dbFile.force();
+                        fsyncCount.incrementAndGet();
+                        flushedUpTo = upTo;
+                    } catch (IOException | RuntimeException e) {
+                        flushFailure = e;
+                        throw e;
+                    }
                 }
+            }
+        }
+    }
 
-                // 占位
-                dbFile.write(getOffset(redoLog.getLsn()), ByteArray.allocate(5)
-                        .writeInt(size - 4)  // 不包括自身 4 字节
-                        .writeByte(RedoLog.SPACE_REDO));
+    /**
+     * 一些通用的方法，设置 LSN，将日志拷贝到日志缓冲区，写入 redoLogMap，
+     * 更新对应页的 LSN
+     * <P>生成日志是一次纯内存的操作，日志在组提交或缓冲区空间不足时才会写入文件</P>
+     */
+    private RedoLog processRedoLog(RedoLog redoLog) throws DbException {
+        TransactionId tid = redoLog.xid();
+        // 预留 LSN 之前先完成所有可能失败的检查，LSN 一经预留就必须被填满
+        int size = redoLog.serialized().length();
+        if (size > ring.length) {
+            throw new DbException("重做日志大小 " + size + " 超过日志缓冲区大小 " + ring.length);
+        }
+        long lsn = maxLsn.getAndAdd(size);
+        redoLog.setLsn(lsn);
+        try {
+            // LSN 是定长字段，设置后日志的大小不变
+            append(lsn, redoLog.serialized().getByteArray(), true);
+        } catch (IOException | RuntimeException e) {
+            try {
+                pad(lsn, size);
+            } catch (IOException | RuntimeException ex) {
+                e.addSuppressed(ex);
             }
-        } catch (IOException e) {
             throw new DbException(e);
         }
         redoLogMap.putIfAbsent(tid, new ArrayList<>());
         redoLogMap.get(tid).add(redoLog);
+        redoCount.incrementAndGet();
         if (!(redoLog instanceof AbortRedoLog)) {
             DataPage data = (DataPage) Database.getBufferPool().getPage(
                     redoLog.xid(), redoLog.getPageId(), Permissions.READ_ONLY);
@@ -208,6 +578,21 @@ public class LogBuffer {
         return (DeleteRedoLog) processRedoLog(new DeleteRedoLog(delete, tid));
     }
 
+    /**
+     * 创建一条关于清理的重做日志，清理不属于任何用户事务，它的日志无需等待提交，会在页面写回之前随之刷盘
+     *
+     * @param tid  Purge 线程使用的事务
+     * @param pid  被清理数据所属的页
+     * @param slot 被清理数据的插槽
+     * @return 清理的重做日志
+     * @throws DbException
+     */
+    public PurgeRedoLog createPurgeRedoLog(@NonNull TransactionId tid, @NonNull PageId pid, int slot) throws DbException {
+        PurgeRedoLog redoLog = (PurgeRedoLog) processRedoLog(new PurgeRedoLog(pid, slot, tid));
+        redoLogMap.remove(tid);
+        return redoLog;
+    }
+
     /**
      * 创建一条关于事务取消语句的重做日志
      *
@@ -301,6 +686,7 @@ public class LogBuffer {
 
     /**
      * 事务提交时，<strong>将 redo log 刷盘，并且将事务 undo log 与删除的记录交由 {@link Purge} 线程清理</strong>
+     * <P>刷盘通过组提交完成，并发提交的多个事务共享一次刷盘，详见 {@link #flush(long)}</P>
      *
      * @param tid 事务
      * @throws DbException
@@ -309,12 +695,13 @@ public class LogBuffer {
         if (!redoLogMap.containsKey(tid) && !undoLogMap.containsKey(tid)) {
             return;
         }
-        for (RedoLog redoLog : redoLogMap.getOrDefault(tid, new ArrayList<>())) {
+        List<RedoLog> redoLogs = redoLogMap.getOrDefault(tid, new ArrayList<>());
+        for (RedoLog redoLog : redoLogs) {
             if (redoLog instanceof DeleteRedoLog del) {
                 Purge.addLogicalDeleteRecord(del.getRecordId());
             }
-            writeRedoLog(redoLog);
         }
+        flush(endOf(redoLogs));
         for (UndoLog undoLog : undoLogMap.getOrDefault(tid, new ArrayList<>())) {
             Purge.addLogicalDeleteUndoLog(undoLog.getId());
         }
@@ -339,43 +726,101 @@ public class LogBuffer {
             undoLog.undo();
         }
         createAbortRedoLog(tid);
-        for (RedoLog redoLog : redoLogMap.getOrDefault(tid, new ArrayList<>())) {
-            writeRedoLog(redoLog);
-        }
+        flush(endOf(redoLogMap.getOrDefault(tid, new ArrayList<>())));
         redoLogMap.remove(tid);
         undoLogMap.remove(tid);
     }
 
-    static PriorityQueue<RedoLog> queue = new PriorityQueue<RedoLog>((a, b) -> (int) (a.getLsn() - b.getLsn()));
+    /**
+     * 返回一组日志的最大结束 LSN
+     */
+    private static long endOf(List<RedoLog> logs) {
+        long end = 0;
+        for (RedoLog log : logs) {
+            end = Math.max(end, log.getLsn() + log.size());
+        }
+        return end;
+    }
 
     /**
-     * 推进检查点，并决定是否丢弃检查点之前(不包括)的数据
-     * <P>如果检查点推进很少，此方法不会截断日志文件，因为截断是个非常耗时的工作</P>
+     * 推进检查点，并删除完全位于检查点之前(不包括)的日志段
+     * <P>先将新的检查点与最早的段号写入清单文件，再删除日志段，崩溃后遗留的日志段会在下一次启动时被删除</P>
      *
      * @param ckp 新的检查点
-     * @see #TRUNCATE_HOLDER
      */
     public synchronized void pushCheckPoint(long ckp) throws IOException {
-        long offset = getOffset(ckp);
-        long length = dbFile.getLength();
-        if (offset <= HEAD_SIZE || length < offset) {
+        // 检查点之前的日志可能还在缓冲区中
+        writeRing();
+        if (ckp < firstSegment * segmentSize || ckp > writtenUpTo) {
             return;
         }
         this.checkPoint = ckp;
+        this.firstSegment = ckp / segmentSize;
+        ByteArray byteAr = new ByteList();
+        byteAr.writeLong(writtenUpTo).writeLong(checkPoint).writeLong(firstSegment);
+        dbFile.write(0, byteAr);
+        deleteSegmentsBefore(firstSegment);
+    }
 
-        // 需要截断的长度
-        long len = offset - HEAD_SIZE;
-        if (len < TRUNCATE_HOLDER) {
-            dbFile.write(8, new ByteArray(this.checkPoint));
-            return;
+    /**
+     * 返回重做日志的生成速率（条/秒），这是一个经过指数平滑的估计值，后台刷脏线程据此调整每批刷新的页数
+     */
+    public double getRedoRate() {
+        synchronized (redoRateLock) {
+            long now = System.nanoTime();
+            long elapsed = now - redoRateSampleTime;
+            if (elapsed >= REDO_RATE_SAMPLE_NANOS) {
+                long count = redoCount.get();
+                double current = (count - redoRateSampleCount) * 1e9 / elapsed;
+                redoRate = redoRate * 0.5 + current * 0.5;
+                redoRateSampleTime = now;
+                redoRateSampleCount = count;
+            }
+            return redoRate;
         }
-        this.truncate += len;
-        ByteArray byteAr = new ByteList();
-        byteAr.writeLong(maxLsn.get()).writeLong(checkPoint).writeLong(truncate);
-        byteAr.writeByteArray(dbFile.read(offset, (int) (length - offset)));
+    }
 
-        dbFile.write(0, byteAr);
-        dbFile.setLength(byteAr.length());
+    /**
+     * 返回已写入文件的日志末尾
+     */
+    public long getWrittenUpTo() {
+        return writtenUpTo;
+    }
+
+    /**
+     * 返回已刷盘的日志末尾
+     */
+    public long getFlushedUpTo() {
+        return flushedUpTo;
+    }
+
+    /**
+     * 返回通过组提交持久化的提交（包括回滚）次数
+     */
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    /**
+     * 返回组提交的刷盘次数，提交次数与刷盘次数之比即为平均每组的大小
+     */
+    public long getFsyncCount() {
+        return fsyncCount.get();
+    }
+
+    /**
+     * 返回平均提交延迟（微秒），即从进入组提交到日志持久化的时间
+     */
+    public double getAvgCommitLatencyMicros() {
+        long count = commitCount.get();
+        return count == 0 ? 0 : commitLatencyNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * 返回最大提交延迟（微秒）
+     */
+    public double getMaxCommitLatencyMicros() {
+        return maxCommitLatencyNanos.get() / 1000.0;
     }
 
     /**
@@ -386,31 +831,106 @@ public class LogBuffer {
     }
 
     /**
-     * 返回从检查点开始之后的有效的日志迭代器
+     * 返回从检查点开始之后的有效的日志迭代器，迭代器按顺序流式地读取各个日志段，同一时刻最多只会缓存 {@link #READ_CHUNK_SIZE} 大小的日志
      * <P>此函数仅供恢复使用，他不是线程安全的</P>
      *
      * @return 迭代器
      */
     public Iterator<RedoLog> iterator() throws IOException {
-        List<RedoLog> ans = new ArrayList<>();
-        long l = checkPoint, r = maxLsn.get();
-        if (l >= r) {
-            return ans.iterator();
+        return new LogIterator(checkPoint, writeRing());
+    }
+
+    /**
+     * 流式读取 [lsn, end) 范围内的日志
+     */
+    private class LogIterator implements Iterator<RedoLog> {
+        private long lsn;
+        private final long end;
+
+        /**
+         * 当前缓存的日志窗口，从 LSN 为 cacheStart 处开始，大小不超过 {@link #READ_CHUNK_SIZE}
+         */
+        private long cacheStart = -1;
+        private ByteArray cached;
+
+        private RedoLog next;
+
+        LogIterator(long lsn, long end) {
+            this.lsn = lsn;
+            this.end = end;
         }
-        ByteArray byteAr = dbFile.read(getOffset(l), (int) (r - l));
-        while (true) {
+
+        @Override
+        public boolean hasNext() {
             try {
-                RedoLog parse = RedoLog.parse(byteAr);
-                if (parse != null) {
-                    ans.add(parse);
+                while (next == null && lsn < end) {
+                    // 每条日志都以不包括自身的 4 字节长度开头
+                    int size = read(lsn, Integer.BYTES).readInt() + Integer.BYTES;
+                    ByteArray data = read(lsn, size);
+                    lsn += size;
+                    next = RedoLog.parse(data);
                 }
-            } catch (ParseException e) {
+            } catch (IOException | ParseException e) {
                 throw new RuntimeException(e);
             } catch (NoSuchElementException e) {
-                break;
+                // 日志末尾不完整，之后的内容无效
+                lsn = end;
+            }
+            return next != null;
+        }
+
+        @Override
+        public RedoLog next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            RedoLog ret = next;
+            next = null;
+            return ret;
+        }
+
+        /**
+         * 读取从 lsn 开始的 len 个字节，它们可能跨越多个缓存窗口或日志段
+         */
+        private ByteArray read(long lsn, int len) throws IOException {
+            if (len < 0 || lsn + len > end) {
+                throw new NoSuchElementException();
+            }
+            if (!cached(lsn, len)) {
+                load(lsn);
             }
+            if (cached(lsn, len)) {
+                // 日志的解析依赖从 0 开始的下标，因此拷贝一份而不是共享子数组
+                int from = (int) (lsn - cacheStart);
+                return new ByteArray(cached.subArray(from, from + len).getByteArray());
+            }
+            ByteArray ans = new ByteList();
+            int read = 0;
+            while (read < len) {
+                load(lsn + read);
+                int from = (int) (lsn + read - cacheStart);
+                int n = Math.min(len - read, cached.length() - from);
+                ans.writeByteArray(cached.subArray(from, from + n));
+                read += n;
+            }
+            return ans;
+        }
+
+        private boolean cached(long lsn, int len) {
+            return cached != null && cacheStart <= lsn && lsn + len <= cacheStart + cached.length();
         }
 
-        return ans.iterator();
+        /**
+         * 从 lsn 开始读取一个窗口，窗口不会跨越日志段，也不会超过日志末尾
+         */
+        private void load(long lsn) throws IOException {
+            if (cached(lsn, 1)) {
+                return;
+            }
+            int offset = (int) (lsn % segmentSize);
+            int len = (int) Math.min(Math.min(READ_CHUNK_SIZE, segmentSize - offset), end - lsn);
+            cached = segment(lsn / segmentSize).read(offset, len);
+            cacheStart = lsn;
+        }
     }
 }
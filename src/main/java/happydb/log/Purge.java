@@ -1,23 +1,279 @@
 package happydb.log;
 
+import happydb.common.Database;
+import happydb.common.Debug;
+import happydb.common.Permissions;
+import happydb.exception.DbException;
+import happydb.exception.TimeoutException;
+import happydb.index.Index;
+import happydb.index.IndexType;
+import happydb.storage.*;
 import happydb.storage.Record;
-import happydb.storage.RecordId;
+import happydb.transaction.ReadView;
+import happydb.transaction.TransactionId;
+import happydb.transaction.TransactionManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Purge 线程，负责清理逻辑删除的行记录和 undo log
- * <P>此类的实现不是必要的，旨在学习 MVCC 与逻辑删除之间的关系</P>
+ * <P>事务提交时，它产生的 undo log 与它逻辑删除的记录会被放入清理队列；事务回滚时，回滚插入留下的无效记录同样会被放入队列，
+ * 而回滚事务的 undo log 需要保留，恢复时 {@link AbortRedoLog} 仍然需要它们。
+ * 只有当产生修改的事务对所有的读视图都可见时，修改之前的版本才不再被需要，清理的上界由 {@link #purgeLimit()} 计算：
+ * 它是所有活跃事务、下一个待分配的事务 ID 以及最旧的读视图 {@link ReadView#getEarliestReadView()} 可见上界中的最小值</P>
+ * <P>对于 undo log，直接从页面中删除并将插槽归还给 {@link UndoLogPageManager}；
+ * 对于行记录，先删除它在所有 B+ 树索引中的条目，再从页面中删除并将插槽归还给 {@link HeapPageManager}，
+ * 行记录的清理会改变页面结构，因此需要在页面上获取写锁，获取失败的条目会在下一轮重试</P>
+ * <P>物理删除会产生 {@link PurgeRedoLog} 并推进页面 LSN，否则崩溃后被清理的数据会残留在页面上，复用其插槽的插入将无法重做</P>
+ * <P>清理队列只保存在内存中，重启后尚未清理的条目将不会被清理；包含哈希索引的表不会清理行记录，因为哈希索引不支持删除条目</P>
+ *
  * @Author happysnaker
  * @Date 2022/11/29
  * @Email happysnaker@foxmail.com
  */
-public class Purge {
+public class Purge implements Runnable {
+    /**
+     * Purge 线程数量
+     */
+    public static int NUM_PURGE_THREADS = 1;
 
-    public static void addLogicalDeleteRecord(RecordId record) {
+    /**
+     * 每轮清理的间隔（毫秒）
+     */
+    public static long INTERVAL_MILLIS = 100;
+
+    /**
+     * 每轮每个线程最多处理的条目数
+     */
+    public static int BATCH = 256;
+
+    /**
+     * 在堆页面上获取写锁的超时时间（毫秒）
+     */
+    public static long LOCK_TIMEOUT_MILLIS = 10;
+
+    /**
+     * Purge 线程使用的事务 ID 从此值开始递减
+     */
+    private static final long PURGE_TRANSACTION_BASE = -6144;
+
+    private static final Queue<RecordId> records = new ConcurrentLinkedQueue<>();
+
+    private static final Queue<UndoLogId> undoLogs = new ConcurrentLinkedQueue<>();
 
+    private static volatile List<Thread> workers = null;
+
+    /**
+     * 此线程获取页面时使用的事务
+     */
+    private final TransactionId tid;
+
+    public Purge(int id) {
+        this.tid = new TransactionId(PURGE_TRANSACTION_BASE - id);
     }
 
+    /**
+     * 添加一条被逻辑删除的记录，记录会在删除它的事务对所有读视图可见后被物理删除
+     */
+    public static void addLogicalDeleteRecord(RecordId record) {
+        records.add(record);
+    }
 
+    /**
+     * 添加一条已结束事务的 undo log，日志会在产生它的事务对所有读视图可见后被删除
+     */
     public static void addLogicalDeleteUndoLog(UndoLogId log) {
+        undoLogs.add(log);
+    }
+
+    /**
+     * 返回尚未清理的记录数与 undo log 数
+     */
+    public static int pending() {
+        return records.size() + undoLogs.size();
+    }
+
+    /**
+     * 清空清理队列，数据库重新打开时调用，队列中的条目属于上一个数据库实例
+     */
+    public static void clear() {
+        records.clear();
+        undoLogs.clear();
+    }
+
+    /**
+     * 启动 Purge 线程，线程只会被启动一次，它们是守护线程，并且只在数据库开启时工作
+     */
+    public static synchronized void start() {
+        if (workers != null) {
+            return;
+        }
+        workers = new ArrayList<>();
+        for (int i = 0; i < NUM_PURGE_THREADS; i++) {
+            Thread thread = new Thread(new Purge(i), "purge-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (Database.open) {
+                try {
+                    purge();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 计算清理上界，事务 ID 小于此值的修改对当前以及将来的所有读视图都可见
+     * <P>必须先读取事务管理器再读取读视图：之后创建的读视图，其可见上界不会小于此时活跃事务的最小 ID</P>
+     */
+    public static long purgeLimit() {
+        TransactionManager tm = Database.getTransactionManager();
+        long limit = tm.getLowLimitId();
+        for (TransactionId active : tm.getActiveTransactions()) {
+            limit = Math.min(limit, active.getXid());
+        }
+        ReadView rv = ReadView.getEarliestReadView();
+        if (rv != null) {
+            limit = Math.min(limit, rv.visibleLimit());
+        }
+        return limit;
+    }
+
+    /**
+     * 执行一轮清理，尚不能清理的条目会被重新放回队列
+     *
+     * @return 本轮清理的条目数
+     */
+    public int purge() throws DbException {
+        if (pending() == 0) {
+            return 0;
+        }
+        long limit = purgeLimit();
+        int purged = 0;
+        List<UndoLogId> retryLogs = new ArrayList<>();
+        List<RecordId> retryRecords = new ArrayList<>();
+        try {
+            // 先清理记录，记录的清理不依赖 undo log
+            for (int i = 0; i < BATCH; i++) {
+                RecordId rid = records.poll();
+                if (rid == null) {
+                    break;
+                }
+                Boolean done = purgeRecord(rid, limit);
+                if (done == null) {
+                    retryRecords.add(rid);
+                } else if (done) {
+                    purged++;
+                }
+            }
+            for (int i = 0; i < BATCH; i++) {
+                UndoLogId uid = undoLogs.poll();
+                if (uid == null) {
+                    break;
+                }
+                Boolean done = purgeUndoLog(uid, limit);
+                if (done == null) {
+                    retryLogs.add(uid);
+                } else if (done) {
+                    purged++;
+                }
+            }
+        } finally {
+            Database.getBufferPool().transactionReleaseLock(tid);
+            records.addAll(retryRecords);
+            undoLogs.addAll(retryLogs);
+        }
+        if (purged > 0) {
+            Debug.log("purge %s purged %d entries", tid, purged);
+        }
+        return purged;
+    }
+
+    /**
+     * 清理一条被逻辑删除的记录
+     *
+     * @return 清理成功返回真，记录无需清理返回假，需要稍后重试返回 null
+     */
+    private Boolean purgeRecord(RecordId rid, long limit) throws DbException {
+        BufferPool pool = Database.getBufferPool();
+        HeapPage page = (HeapPage) pool.getPage(tid, rid.getPid(), Permissions.READ_ONLY);
+        try {
+            pool.lockPage(tid, page, Permissions.READ_WRITE, LOCK_TIMEOUT_MILLIS);
+        } catch (TimeoutException e) {
+            return null;
+        }
+        try {
+            // 释放读锁到获取写锁之间页面可能被驱逐
+            if (pool.pagePool.get(rid.getPid()) != page) {
+                return null;
+            }
+            Record record = page.readRecordIfPresent(rid);
+            // 记录已经被回收，或者删除被回滚
+            if (record == null || record.isValid()) {
+                return false;
+            }
+            if (record.getLastModify().getXid() >= limit || Database.getLockTable().holdLock(rid) != null) {
+                return null;
+            }
+
+            TableDesc td = Database.getCatalog().getTableDesc(rid.getPid().getTableName());
+            for (int i = 0; i < td.numFields(); i++) {
+                if (IndexType.intToIndexSet(td.getIndexType(i)).contains(IndexType.HASH)) {
+                    return false;
+                }
+            }
+            // 必须先删除索引条目，再回收插槽，否则插槽可能被重新分配给其他记录
+            for (int i = 0; i < td.numFields(); i++) {
+                if (IndexType.intToIndexSet(td.getIndexType(i)).contains(IndexType.BTREE)) {
+                    Index index = Database.getCatalog().getIndex(td.getTableName(), i, IndexType.BTREE);
+                    index.delete(tid, record.getField(i), rid);
+                }
+            }
+            // 先修改页面再记录日志，日志会推进页面 LSN，之后才能归还插槽，复用插槽的插入日志总是位于清理日志之后
+            page.deleteRecord(rid);
+            Database.getLogBuffer().createPurgeRedoLog(tid, rid.getPid(), rid.getRecordNumber());
+            ((HeapPageManager) Database.getCatalog().getPageManager(td.getTableName())).free(rid);
+            return true;
+        } finally {
+            pool.unsafeReleasePage(tid, page, Permissions.READ_WRITE);
+        }
+    }
 
+    /**
+     * 清理一条 undo log，对所有读视图都可见的修改不会再沿着日志指针读取之前的版本，因此日志可以直接删除
+     *
+     * @return 清理成功返回真，日志无需清理返回假，需要稍后重试返回 null
+     */
+    private Boolean purgeUndoLog(UndoLogId uid, long limit) throws DbException {
+        UndoLogPage page = (UndoLogPage) Database.getBufferPool().getPage(tid, uid.pid(), Permissions.READ_ONLY);
+        UndoLog log;
+        try {
+            log = page.readUndoLog(uid);
+        } catch (DbException e) {
+            return false;
+        }
+        if (log.getTid().getXid() >= limit) {
+            return null;
+        }
+        page.deleteUndoLog(uid);
+        Database.getLogBuffer().createPurgeRedoLog(tid, uid.pid(), uid.getUndoLogNumber());
+        ((UndoLogPageManager) Database.getCatalog().getPageManager(uid.pid().getTableName())).free(uid);
+        return true;
     }
 }
@@ -0,0 +1,138 @@
+package happydb.log;
+
+import happydb.common.ByteArray;
+import happydb.common.ByteList;
+import happydb.common.Database;
+import happydb.common.Permissions;
+import happydb.exception.DbException;
+import happydb.storage.HeapPage;
+import happydb.storage.HeapPageManager;
+import happydb.storage.PageId;
+import happydb.storage.RecordId;
+import happydb.transaction.TransactionId;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * {@link Purge} 物理删除一条记录或 undo log 时产生的重做日志
+ * <P>清理释放的插槽可能立即被其他事务复用，如果清理不产生日志，崩溃后页面上仍然残留着被清理的数据，
+ * 复用插槽的插入在重做时会发现插槽非空而被跳过。因此清理必须记录日志并推进页面 LSN，重做时先清空插槽并归还给页面管理器</P>
+ * <P>根据页面所属的表名区分 undo log 页面与堆页面</P>
+ *
+ * @Author happysnaker
+ * @Date 2022/11/29
+ * @Email happysnaker@foxmail.com
+ */
+public class PurgeRedoLog implements RedoLog {
+    /**
+     * 被清理数据所属的页
+     */
+    private final PageId pid;
+    /**
+     * 在页内的插槽
+     */
+    @Getter
+    private final int dataId;
+    /**
+     * 执行清理的 Purge 线程使用的事务 ID
+     */
+    private final TransactionId tid;
+    /**
+     * 日志的 LSN
+     */
+    @Setter
+    @Getter
+    private long lsn = -1;
+
+    public PurgeRedoLog(PageId pid, int dataId, TransactionId tid) {
+        this.pid = pid;
+        this.dataId = dataId;
+        this.tid = tid;
+    }
+
+    public PurgeRedoLog(ByteArray byteAr) throws ParseException {
+        byteAr = byteAr.readByteArray(byteAr.readInt());
+
+        byte type = byteAr.readByte();
+        if (type != PURGE_REDO) {
+            throw new IllegalStateException("不合法的类型，日志类型与此类型不符合");
+        }
+
+        setLsn(byteAr.readLong());
+        this.tid = new TransactionId(byteAr.readLong());
+
+        int tableNameLen = byteAr.readInt();
+        String tableName = byteAr.readString(tableNameLen);
+        this.pid = new PageId(tableName, byteAr.readInt());
+        this.dataId = byteAr.readInt();
+    }
+
+    @Override
+    public ByteArray serialized() {
+        ByteArray byteAr = new ByteList();
+        byteAr.writeByte(getType())
+                .writeLong(getLsn())
+                .writeLong(xid().getXid())
+                .writeInt(pid.getTableName().getBytes(StandardCharsets.UTF_8).length)
+                .writeString(pid.getTableName())
+                .writeInt(pid.getPageNumber())
+                .writeInt(dataId);
+        return new ByteList()
+                .writeInt(byteAr.length())
+                .writeByteArray(byteAr);
+    }
+
+    @Override
+    public byte getType() {
+        return PURGE_REDO;
+    }
+
+    @Override
+    public int size() {
+        return this.serialized().length();
+    }
+
+    @Override
+    public void redoIfNecessary() throws DbException {
+        if (pid.getTableName().endsWith(UndoLogId.UNDO_LOG_TABLE_NAME_SUFFIX)) {
+            UndoLogPage page = (UndoLogPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.getLsn() >= this.lsn) {
+                return;
+            }
+            UndoLogId uid = new UndoLogId(pid, dataId);
+            try {
+                page.deleteUndoLog(uid);
+                ((UndoLogPageManager) Database.getCatalog().getPageManager(pid.getTableName())).free(uid);
+            } catch (DbException ignore) {
+                // 已经被清理
+            }
+            page.markDirty(true);
+            return;
+        }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        if (page.getLsn() >= this.lsn) {
+            return;
+        }
+        RecordId rid = new RecordId(pid, dataId);
+        try {
+            page.deleteRecord(rid);
+            ((HeapPageManager) Database.getCatalog().getPageManager(pid.getTableName())).free(rid);
+        } catch (DbException ignore) {
+            // 已经被清理
+        }
+        page.markDirty(true);
+    }
+
+    @Override
+    public TransactionId xid() {
+        return tid;
+    }
+
+    @Override
+    public PageId getPageId() {
+        return pid;
+    }
+}
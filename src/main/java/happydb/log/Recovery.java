@@ -8,13 +8,30 @@ import happydb.transaction.TransactionManager;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
+ * 崩溃恢复
+ * <P>重做阶段由恢复线程流式地读取日志，并按照 {@link RedoLog#getPageId()} 将日志分派给 {@link #RECOVERY_THREADS} 个重做线程，
+ * 同一页面的日志总是由同一个线程按 LSN 顺序重做，而 {@link RedoLog#redoIfNecessary()} 对于每个页面都是幂等的，因此不同页面的重做可以并行进行</P>
+ * <P>{@link AbortRedoLog} 会涉及多个页面，它是一个屏障：恢复线程等待之前的日志全部重做完成后，再亲自重做它</P>
+ * <P>每个重做线程的队列都是有界的，恢复线程读取日志的速度不会超过重做的速度，因此恢复时的内存占用与日志的大小无关</P>
+ *
  * @Author happysnaker
  * @Date 2022/11/30
  * @Email happysnaker@foxmail.com
  */
 public class Recovery {
+    /**
+     * 重做线程数
+     */
+    public static int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 每个重做线程队列的容量
+     */
+    public static int QUEUE_SIZE = 1024;
 
     /**
      * 恢复例程
@@ -24,11 +41,29 @@ public class Recovery {
         Set<TransactionId> set = new HashSet<>();
 
         // 重做所有页 LSN 小于 redo LSN 的页，由 redoIfNecessary 驱动
-        Iterator<RedoLog> it = Database.getLogBuffer().iterator();
-        while (it.hasNext()) {
-            RedoLog next = it.next();
-            next.redoIfNecessary();
-            set.add(next.xid());
+        RedoWorker[] workers = new RedoWorker[Math.max(1, RECOVERY_THREADS)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RedoWorker(i);
+            workers[i].start();
+        }
+        try {
+            Iterator<RedoLog> it = Database.getLogBuffer().iterator();
+            while (it.hasNext()) {
+                RedoLog next = it.next();
+                set.add(next.xid());
+                if (next instanceof AbortRedoLog) {
+                    // 回滚涉及多个页面，必须等待之前的日志全部重做完成
+                    awaitAll(workers);
+                    next.redoIfNecessary();
+                } else {
+                    workers[Math.floorMod(next.getPageId().hashCode(), workers.length)].submit(next);
+                }
+            }
+            awaitAll(workers);
+        } finally {
+            for (RedoWorker worker : workers) {
+                worker.interrupt();
+            }
         }
 
 
@@ -53,4 +88,78 @@ public class Recovery {
         // 执行一次模糊检查点推进
         Database.getCheckPoint().fuzzleCheckPoint();
     }
+
+    /**
+     * 等待所有重做线程完成已分派的日志
+     */
+    private static void awaitAll(RedoWorker[] workers) throws Exception {
+        for (RedoWorker worker : workers) {
+            worker.await();
+        }
+    }
+
+    /**
+     * 重做线程，按顺序重做分派给它的日志
+     */
+    private static class RedoWorker extends Thread {
+        private final BlockingQueue<RedoLog> queue = new ArrayBlockingQueue<>(Math.max(1, QUEUE_SIZE));
+
+        /**
+         * 已分派与已完成的日志数，分派只由恢复线程进行
+         */
+        private long submitted = 0;
+        private long done = 0;
+
+        /**
+         * 重做时抛出的第一个异常，之后的日志将被跳过
+         */
+        private volatile Exception error;
+
+        RedoWorker(int id) {
+            super("redo-worker-" + id);
+            setDaemon(true);
+        }
+
+        void submit(RedoLog log) throws Exception {
+            checkError();
+            submitted++;
+            queue.put(log);
+        }
+
+        synchronized void await() throws Exception {
+            while (done < submitted) {
+                wait();
+            }
+            checkError();
+        }
+
+        private void checkError() throws Exception {
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                RedoLog log;
+                try {
+                    log = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (error == null) {
+                    try {
+                        log.redoIfNecessary();
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                }
+                synchronized (this) {
+                    done++;
+                    notifyAll();
+                }
+            }
+        }
+    }
 }
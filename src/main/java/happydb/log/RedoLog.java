@@ -41,6 +41,10 @@ public interface RedoLog extends DbSerializable {
      * 标识一个事务回滚
      */
     byte TRANSACTION_ABORT = 5;
+    /**
+     * 由 {@link Purge} 物理删除记录或 undo log 产生的重做日志
+     */
+    byte PURGE_REDO = 6;
 
     /**
      * 设置此日志的 LSN
@@ -116,6 +120,7 @@ public interface RedoLog extends DbSerializable {
             case UPDATE_REDO -> new UpdateRedoLog(byteArray);
             case DELETE_REDO -> new DeleteRedoLog(byteArray);
             case TRANSACTION_ABORT -> new AbortRedoLog(byteArray);
+            case PURGE_REDO -> new PurgeRedoLog(byteArray);
             default -> throw new IllegalStateException("Unexpected value: " + type);
         };
     }
@@ -78,7 +78,7 @@ public class UndoLog implements DbSerializable {
 
             HeapPageManager pm = (HeapPageManager) Database.getCatalog()
                     .getPageManager(record.getRecordId().getPid().getTableName());
-            pm.malloc(recordId);
+            pm.malloc(recordId, record.getSerializedLen());
         }
         page.markDirty(true);
     }
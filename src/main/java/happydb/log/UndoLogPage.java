@@ -99,6 +99,10 @@ public class UndoLogPage extends AbstractPage implements DataPage, DbSerializabl
 //                Debug.log(array.length() + " <==> " + logSize);
             }
             byteAr.writeByteArray(array);
+            if (array.length() < logSize) {
+                // 含有变长字段的记录短于插槽，补齐到插槽大小
+                byteAr.writeByteArray(ByteArray.allocate(logSize - array.length()));
+            }
 
         }
         int zeroLen = BufferPool.getPageSize() - byteAr.getWritePos();
@@ -110,16 +114,30 @@ public class UndoLogPage extends AbstractPage implements DataPage, DbSerializabl
     }
 
     private int getHeaderSize() {
-        return (int) Math.ceil(getMaxNumEntries() / 8f);
+        return headerSize(td);
     }
 
     @Override
     public int getMaxNumEntries() {
+        return numSlots(td);
+    }
+
+    /**
+     * 返回表的 undo 页面中插槽的数量
+     */
+    static int numSlots(TableDesc td) {
         int pageSize = BufferPool.getPageSize();
         int logSize = td.getRecordSize() + HIDDEN_SIZE + EXTRA_SIZE;
         return (int) Math.floor(((pageSize - 8) * 8f) / (logSize * 8f + 1));
     }
 
+    /**
+     * 返回表的 undo 页面中插槽位图的字节数，位图紧跟在页面开头的 LSN 之后
+     */
+    static int headerSize(TableDesc td) {
+        return (int) Math.ceil(numSlots(td) / 8f);
+    }
+
     @Override
     public List<Integer> getEmptySlots() {
         List<Integer> ans = new ArrayList<>();
@@ -138,7 +156,7 @@ public class UndoLogPage extends AbstractPage implements DataPage, DbSerializabl
      * @param log
      * @throws DbException 插入位置非空
      */
-    public void insertUndoLog(int i, UndoLog log) throws DbException {
+    public synchronized void insertUndoLog(int i, UndoLog log) throws DbException {
         if (i < 0 || i >= logs.length) {
             throw new IndexOutOfBoundsException();
         }
@@ -171,7 +189,7 @@ public class UndoLogPage extends AbstractPage implements DataPage, DbSerializabl
      * @param recordId
      * @throws DbException
      */
-    public void deleteUndoLog(UndoLogId recordId) throws DbException {
+    public synchronized void deleteUndoLog(UndoLogId recordId) throws DbException {
         int i = recordId.getUndoLogNumber();
         if (i < 0 || i >= logs.length) {
             throw new IndexOutOfBoundsException();
@@ -232,12 +250,10 @@ public class UndoLogPage extends AbstractPage implements DataPage, DbSerializabl
     }
 
     @Override
-    public void markDirty(boolean dirty) {
-        synchronized (Database.getBufferPool()) {
-            if (!isDirty() && dirty) {
-                this.firstDirtyLsn = getLsn();
-            }
-            super.markDirty(dirty);
+    public synchronized void markDirty(boolean dirty) {
+        if (!isDirty() && dirty) {
+            this.firstDirtyLsn = getLsn();
         }
+        super.markDirty(dirty);
     }
 }
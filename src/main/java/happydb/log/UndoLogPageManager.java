@@ -12,7 +12,6 @@ import lombok.Getter;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 此类实现与 {@link HeapPageManager} 基本一致
@@ -27,12 +26,27 @@ public class UndoLogPageManager implements PageManager {
     @Getter
     private DbFile dbFile;
 
-    private final Set<UndoLogId> pool;
+    /**
+     * 已加载页面的空闲插槽位图，位为 1 表示插槽空闲
+     */
+    private final Map<Integer, BitSet> freeSlots;
+
+    /**
+     * 已加载且仍有空闲插槽的页面
+     */
+    private final TreeSet<Integer> freePages;
+
+    /**
+     * 顺序加载的游标，页号小于此值的页面都已经加载，第 0 页是超级页
+     */
+    private int scanCursor;
 
     public UndoLogPageManager(String tableName, DbFile dbFile) throws DbException, IOException {
         this.tableName = tableName;
         this.dbFile = dbFile;
-        this.pool = ConcurrentHashMap.newKeySet();
+        this.freeSlots = new HashMap<>();
+        this.freePages = new TreeSet<>();
+        this.scanCursor = 1;
     }
 
     /**
@@ -44,26 +58,33 @@ public class UndoLogPageManager implements PageManager {
     }
 
     @Override
-    public synchronized Page readPage(PageId pid) throws IOException {
+    public Page readPage(PageId pid) throws IOException {
         long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
         if (pid.getPageNumber() == 0) {
-            UndoLogSuperPage page = null;
-            if (dbFile.getLength() < BufferPool.getPageSize()) {
-                page = new UndoLogSuperPage(ByteArray.allocate(BufferPool.getPageSize()), pid);
-                writePage(page);
-            } else {
-                page = new UndoLogSuperPage(dbFile.read(offset, BufferPool.getPageSize()), pid);
-            }
-            return page;
+            return readSuperPage(pid);
         }
         if (offset >= dbFile.getLength()) {
             throw new NoSuchElementException();
         }
-        return new UndoLogPage(dbFile.read(offset, BufferPool.getPageSize()), pid);
+        return new UndoLogPage(dbFile.readPage(offset, BufferPool.getPageSize()), pid);
+    }
+
+    /**
+     * 读取超级页，如果超级页尚未创建则初始化它，初始化需要互斥
+     */
+    private synchronized Page readSuperPage(PageId pid) throws IOException {
+        UndoLogSuperPage page = null;
+        if (dbFile.getLength() < BufferPool.getPageSize()) {
+            page = new UndoLogSuperPage(ByteArray.allocate(BufferPool.getPageSize()), pid);
+            writePage(page);
+        } else {
+            page = new UndoLogSuperPage(dbFile.readPage(0, BufferPool.getPageSize()), pid);
+        }
+        return page;
     }
 
     @Override
-    public synchronized void writePage(Page page) throws IOException {
+    public void writePage(Page page) throws IOException {
         dbFile.write((long) page.getPageId().getPageNumber() * BufferPool.getPageSize(), page.serialized());
     }
 
@@ -73,51 +94,67 @@ public class UndoLogPageManager implements PageManager {
     }
 
     /**
-     * 初始化空闲空间，此方法必须要等到 {@link happydb.common.Catalog} 初始化完毕后调用
+     * 从磁盘读取页面头部的插槽位图，加载页面的空闲插槽，如果页面已经加载则什么也不做
      *
-     * @throws IOException
+     * @param pageNo 页号
      */
-    public void loadFreePage() throws IOException {
-        int numPages = (int) (dbFile.getLength() / BufferPool.getPageSize());
-        for (int i = 1; i < numPages; i++) {
-            Page page = readPage(new PageId(tableName, i));
-            List<Integer> emptySlots = page.getEmptySlots();
-            if (emptySlots.size() > 0) {
-                pool.addAll(toUndoLogIdSet(emptySlots, page.getPageId()));
+    private void loadPage(int pageNo) throws IOException {
+        if (freeSlots.containsKey(pageNo)) {
+            return;
+        }
+        TableDesc td = Database.getCatalog().getTableDesc(tableName);
+        int n = UndoLogPage.numSlots(td);
+        if (pageNo < 1 || pageNo >= numPages()) {
+            throw new NoSuchElementException("页面 " + pageNo + " 不存在");
+        }
+        ByteArray byteAr = dbFile.read((long) pageNo * BufferPool.getPageSize(), 8 + UndoLogPage.headerSize(td));
+        byteAr.readLong();
+        BitSet free = new BitSet(n);
+        free.set(0, n);
+        for (int i = 0; i < n; i += 8) {
+            byte b = byteAr.readByte();
+            for (int j = 0; j < 8 && i + j < n; j++) {
+                if (((b >> j) & 1) == 1) {
+                    free.clear(i + j);
+                }
             }
         }
-    }
-
-    public Set<UndoLogId> toUndoLogIdSet(List<Integer> emptySlots, PageId pageId) {
-        Set<UndoLogId> set = new HashSet<>();
-        for (Integer emptySlot : emptySlots) {
-            set.add(new UndoLogId(pageId, emptySlot));
+        freeSlots.put(pageNo, free);
+        if (!free.isEmpty()) {
+            freePages.add(pageNo);
         }
-        return set;
     }
 
 
     /**
-     * 分配一个空闲的插槽，如果插槽数不够，则新建一个页面
+     * 分配一个空闲的插槽，优先选择页号最小的页面，如果已加载的页面中没有空闲插槽，则加载下一个页面，所有页面都已满时新建一个页面
      *
-     * @return Pair<PageId, Integer>
+     * @return 空闲插槽
      */
     public synchronized UndoLogId malloc() throws IOException {
-        if (pool.isEmpty()) {
+        while (freePages.isEmpty()) {
             if (dbFile.getLength() == 0) {
                 // 先创建超级页
                 readPage(new PageId(tableName, 0));
             }
-            createNewPage();
-            return malloc();
+            int numPages = numPages();
+            while (scanCursor < numPages && freeSlots.containsKey(scanCursor)) {
+                scanCursor++;
+            }
+            if (scanCursor < numPages) {
+                loadPage(scanCursor++);
+            } else {
+                createNewPage();
+            }
         }
-        UndoLogId rid = null;
-        for (UndoLogId recordId : pool) {
-            rid = recordId;
-            break;
+        int pageNo = freePages.first();
+        BitSet free = freeSlots.get(pageNo);
+        int slot = free.nextSetBit(0);
+        free.clear(slot);
+        if (free.isEmpty()) {
+            freePages.remove(pageNo);
         }
-        pool.remove(rid);
-        return rid;
+        return new UndoLogId(new PageId(tableName, pageNo), slot);
     }
 
     /**
@@ -126,20 +163,25 @@ public class UndoLogPageManager implements PageManager {
      * @param rid
      */
     public synchronized void free(UndoLogId rid) {
-        pool.add(rid);
+        int pageNo = rid.pid().getPageNumber();
+        try {
+            loadPage(pageNo);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        freeSlots.get(pageNo).set(rid.undoLogNumber());
+        freePages.add(pageNo);
     }
 
 
     private synchronized void createNewPage() throws IOException {
-        int numPages = (int) (dbFile.getLength() / BufferPool.getPageSize());
+        int numPages = numPages();
         UndoLogPage page = new UndoLogPage(UndoLogPage.createEmptyPageData(), new PageId(tableName, numPages));
         writePage(page);
-        for (UndoLogId recordId : toUndoLogIdSet(page.getEmptySlots(), page.getPageId())) {
-            if (pool.contains(recordId)) {
-                throw new RuntimeException("异常错误");
-            }
-            pool.add(recordId);
+        if (freeSlots.containsKey(numPages)) {
+            throw new RuntimeException("异常错误");
         }
+        loadPage(numPages);
     }
 
 
@@ -156,7 +198,22 @@ public class UndoLogPageManager implements PageManager {
         return pages.iterator();
     }
 
-    public void malloc(UndoLogId id) {
-        pool.remove(id);
+    /**
+     * 将指定的插槽标记为已分配，用于恢复时重新写入 undo log
+     *
+     * @param id 插槽
+     */
+    public synchronized void malloc(UndoLogId id) {
+        int pageNo = id.pid().getPageNumber();
+        try {
+            loadPage(pageNo);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        BitSet free = freeSlots.get(pageNo);
+        free.clear(id.undoLogNumber());
+        if (free.isEmpty()) {
+            freePages.remove(pageNo);
+        }
     }
 }
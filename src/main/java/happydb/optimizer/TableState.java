@@ -59,12 +59,13 @@ public class TableState {
         OpIterator iterator = new BTreeSeqScan(TABLE_STATE_SUPER_TRANSACTION, tableName, null, null);
         iterator.open();
         Record[] records = iterator.getRecordAr();
-
+        // 超级事务不会提交，必须主动释放页面上的读锁，否则这些页面再也无法获取写锁
+        Database.getBufferPool().transactionReleaseLock(TABLE_STATE_SUPER_TRANSACTION);
 
         Map<Integer, double[]> minMaxMap = new HashMap<>();
         for (Record record : records) {
             for (int i = 0; i < record.getNumFields(); i++) {
-                if (record.getTableDesc().getFieldType(i) == Type.STRING_TYPE) {
+                if (record.getTableDesc().getFieldType(i).isString()) {
                     this.histogramMap.put(i, new StringHistogram(NUM_HIST_BINS));
                     continue;
                 }
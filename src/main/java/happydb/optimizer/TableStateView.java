@@ -50,6 +50,14 @@ public class TableStateView {
         return instance;
     }
 
+    /**
+     * 清空所有表状态，数据库重新打开时调用，表状态属于上一个数据库实例
+     */
+    public synchronized void clear() {
+        tableStateMap.clear();
+        modifyCountMap.clear();
+    }
+
     /**
      * 根据表名，获取 {@link TableState}，由此函数自行决定是否需要重建 {@link TableState}
      *
@@ -104,10 +112,10 @@ public class TableStateView {
     private void updateTableState(String tableName, Record record, boolean insert) throws DbException {
         TableState state = getTableState(tableName);
 
-        modifyCountMap.put(tableName, modifyCountMap.getOrDefault(tableName, 0) + 1);
-        if (modifyCountMap.get(tableName) == MODIFY_THRESHOLD) {
+        // 插入可以并发执行，计数必须是原子的，并且可能越过阈值
+        if (modifyCountMap.merge(tableName, 1, Integer::sum) >= MODIFY_THRESHOLD) {
             synchronized (this) {
-                if (modifyCountMap.get(tableName) == MODIFY_THRESHOLD) {
+                if (modifyCountMap.getOrDefault(tableName, 0) >= MODIFY_THRESHOLD) {
                     tableStateMap.remove(tableName);
                     state = getTableState(tableName);
                     assert state != null;
@@ -42,6 +42,30 @@ public class CreateParser {
         }
     }
 
+    /**
+     * 解析表选项中的 ROW_FORMAT，ROW_FORMAT=COMPRESSED 表示开启页面压缩，其他表选项被忽略
+     */
+    private static boolean parseRowFormat(List<String> options) throws ParseException {
+        if (options == null) {
+            return false;
+        }
+        for (int i = 0; i < options.size(); i++) {
+            if (!options.get(i).equalsIgnoreCase("ROW_FORMAT")) {
+                continue;
+            }
+            int j = i + 1 < options.size() && options.get(i + 1).equals("=") ? i + 2 : i + 1;
+            if (j >= options.size()) {
+                throw new ParseException("Row format can only be compressed or dynamic.");
+            }
+            String format = options.get(j).toUpperCase(Locale.ROOT);
+            if (!format.equals("COMPRESSED") && !format.equals("DYNAMIC")) {
+                throw new ParseException("Row format can only be compressed or dynamic.");
+            }
+            return format.equals("COMPRESSED");
+        }
+        return false;
+    }
+
     /**
      * 解析创建表的 SQL
      */
@@ -61,6 +85,7 @@ public class CreateParser {
         int n = columnDefinitions.size();
         String[] fieldNameAr = new String[n];
         Type[] fieldTypeAr = new Type[n];
+        int[] maxLengthAr = new int[n];
         Set<IndexType>[] setAr = new Set[n];
         for (int i = 0; i < setAr.length; i++) {
             setAr[i] = new HashSet<>();
@@ -81,6 +106,21 @@ public class CreateParser {
                 case "INT" -> fieldTypeAr[i] = Type.INT_TYPE;
                 case "DOUBLE" -> fieldTypeAr[i] = Type.DOUBLE_TYPE;
                 case "CHAR" -> fieldTypeAr[i] = Type.STRING_TYPE;
+                case "VARCHAR" -> {
+                    List<String> args = cd.getColDataType().getArgumentsStringList();
+                    maxLengthAr[i] = Type.STRING_LEN;
+                    if (args != null && !args.isEmpty()) {
+                        try {
+                            maxLengthAr[i] = Integer.parseInt(args.get(0));
+                        } catch (NumberFormatException e) {
+                            throw new ParseException("Illegal length of varchar: " + args.get(0));
+                        }
+                        if (maxLengthAr[i] < 0 || maxLengthAr[i] > Type.STRING_LEN) {
+                            throw new ParseException("The max length of varchar is " + Type.STRING_LEN + ".");
+                        }
+                    }
+                    fieldTypeAr[i] = Type.VARCHAR_TYPE;
+                }
                 default -> {
                     throw new ParseException("Not support type named " + cd.getColDataType());
                 }
@@ -160,6 +200,12 @@ public class CreateParser {
 
 
         TableDesc td = new TableDesc(tableName, fieldNameAr, fieldTypeAr, indexTypeAr);
+        for (int i = 0; i < n; i++) {
+            if (fieldTypeAr[i] == Type.VARCHAR_TYPE) {
+                td.setMaxLength(i, maxLengthAr[i]);
+            }
+        }
+        td.setCompressed(parseRowFormat(createTable.getTableOptionsStrings()));
         try {
             Database.getCatalog().createTable(td);
         } catch (IOException | DuplicateValueException e) {
@@ -40,7 +40,7 @@ public class InsertParser {
         return switch (type) {
             case INT_TYPE -> input == null ? new IntField(0) : new IntField(Integer.parseInt(input));
             case DOUBLE_TYPE -> input == null ? new DoubleField(0) : new DoubleField(Double.parseDouble(input));
-            case STRING_TYPE -> input == null ? new StringField("") : new StringField(input);
+            case STRING_TYPE, VARCHAR_TYPE -> input == null ? new StringField("", type) : new StringField(input, type);
         };
     }
 
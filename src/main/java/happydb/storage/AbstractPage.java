@@ -1,6 +1,5 @@
 package happydb.storage;
 
-import happydb.common.Database;
 import happydb.transaction.TransactionId;
 import lombok.Getter;
 import lombok.Setter;
@@ -177,10 +176,8 @@ public abstract class AbstractPage implements Page {
     }
 
     @Override
-    public void markDirty(boolean dirty) {
-        synchronized (Database.getBufferPool()) {
-            this.dirty = dirty;
-        }
+    public synchronized void markDirty(boolean dirty) {
+        this.dirty = dirty;
     }
 
     @Override
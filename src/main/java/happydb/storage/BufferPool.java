@@ -5,17 +5,25 @@ import happydb.common.Debug;
 import happydb.common.Permissions;
 import happydb.exception.DbException;
 import happydb.exception.TimeoutException;
+import happydb.log.DataPage;
+import happydb.log.LogBuffer;
 import happydb.transaction.TransactionId;
 import lombok.Getter;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
 
 /**
  * 页面池，事务获取页面的唯一入口，提供以特定权限获取页面的接口，以及遵循两相锁定统一释放事务获取的页
  * BufferPool 管理页面从磁盘到内存的读写。访问方法调用它来检索页面，然后它从适当的位置获取页面。
  * <p> BufferPool 还负责锁定；当事务获取页面时，BufferPool 会检查事务是否具有适当的锁来读写页面。
+ * <p> 缓冲池被划分为多个分区，缺页时仅锁定页面所在的分区，并且磁盘读取在锁外进行；同一页面的并发缺页只会有一个线程真正读取磁盘。
+ * <p> 缓冲池没有全局的锁，刷新页面时只锁定被刷新的页面，缺页驱逐脏页时也只持有分区锁与被驱逐页面的写锁。
  *
  * @Threadsafe all fields are final
  * @Author happysnaker
@@ -28,6 +36,11 @@ public class BufferPool {
      */
     public static final TransactionId BUFFER_POOL_EVICT_TRANSACTION = new TransactionId(-4096);
 
+    /**
+     * 刷新页面时以写锁锁定页面所用的事务 ID 从此值开始递增，每次刷新使用不同的 ID，以免并发的刷新误以为重入了其他刷新持有的锁
+     */
+    private static final AtomicLong flushXid = new AtomicLong(Long.MIN_VALUE);
+
     /**
      * 每页字节数
      */
@@ -39,12 +52,41 @@ public class BufferPool {
      * 传递给构造函数的默认页数。这被其他类使用。 BufferPool 应该改为使用构造函数的 numPages 参数。
      */
     public static int DEFAULT_PAGES = 250;
+
+    /**
+     * 缓冲池的默认分区数，实际分区数不会超过最大页数
+     */
+    public static int DEFAULT_PARTITIONS = 8;
+
+    /**
+     * 创建页面置换策略的工厂，参数为每个分区的最大页数，默认使用 {@link ClockReplacementPolicy}
+     */
+    public static IntFunction<ReplacementPolicy> replacementPolicyFactory = ClockReplacementPolicy::new;
+
+    /**
+     * 是否为缓冲池预先分配堆外页帧，开启后堆页面的数据将直接读入堆外内存中
+     */
+    public static boolean enableFrameArena = true;
     /**
      * 最大缓冲数量
      */
+    @Getter
     private final int numPages;
+
+    /**
+     * 缓冲池分区，页面按照 {@link PageId} 散列到某个分区中，每个分区拥有独立的页数配额、锁以及置换策略，
+     * 不同分区的缺页处理与驱逐可以并行进行
+     */
+    private final Partition[] partitions;
+
     /**
-     * 缓冲池中的页面
+     * 堆外页帧池，未开启时为 null
+     */
+    @Getter
+    private final FrameArena frameArena;
+
+    /**
+     * 缓冲池中的页面，所有分区共享此表，命中时无需获取任何分区的锁
      */
     @Getter
     public final ConcurrentHashMap<PageId, Page> pagePool;
@@ -55,14 +97,63 @@ public class BufferPool {
     private final ConcurrentHashMap<TransactionId, Set<Page>> transactionLockMap;
 
     /**
-     * 创建一个缓存最多 numPages 页的 BufferPool。
+     * 缓冲池的一个分区，分区对象本身即是分区的锁，缺页时的页面放置与驱逐都在此锁内进行，但读取磁盘不在锁内
+     */
+    private static class Partition {
+        /**
+         * 此分区最多缓存的页数
+         */
+        final int capacity;
+
+        /**
+         * 此分区的置换策略，它同时记录了此分区中缓存的页面
+         */
+        final ReplacementPolicy policy;
+
+        /**
+         * 正在从磁盘加载的页面，同一页面同时只会有一个加载者，其他线程等待加载者的结果
+         */
+        final ConcurrentHashMap<PageId, CompletableFuture<Page>> loading = new ConcurrentHashMap<>();
+
+        Partition(int capacity) {
+            this.capacity = capacity;
+            this.policy = replacementPolicyFactory.apply(capacity);
+        }
+    }
+
+    /**
+     * 创建一个缓存最多 numPages 页的 BufferPool，使用 {@link #DEFAULT_PARTITIONS} 个分区。
      *
      * @param numPages 此缓冲池中的最大页数。
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * 创建一个缓存最多 numPages 页的 BufferPool，页数被平均分配到每个分区中。
+     *
+     * @param numPages      此缓冲池中的最大页数。
+     * @param numPartitions 分区数，实际分区数不会超过 numPages
+     */
+    public BufferPool(int numPages, int numPartitions) {
         this.numPages = numPages;
         this.transactionLockMap = new ConcurrentHashMap<>();
         this.pagePool = new ConcurrentHashMap<>(numPages);
+        numPartitions = Math.max(1, Math.min(numPartitions, numPages));
+        this.partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            this.partitions[i] = new Partition((numPages + numPartitions - 1) / numPartitions);
+        }
+        this.frameArena = enableFrameArena ? new FrameArena(numPartitions * partitions[0].capacity, pageSize) : null;
+    }
+
+    /**
+     * 获取页面所在的分区，同一张表相邻的页面会被轮流分配到不同的分区中
+     */
+    private Partition partitionOf(PageId pid) {
+        int hash = pid.getTableName().hashCode() * 31 + pid.getPageNumber();
+        return partitions[Math.floorMod(hash, partitions.length)];
     }
 
     public static int getPageSize() {
@@ -92,6 +183,21 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws DbException {
+        return getPage(tid, pid, perm, ReplacementPolicy.AccessType.NORMAL);
+    }
+
+    /**
+     * 检索具有关联权限的指定页面，并告知置换策略此次访问的方式
+     * <P>顺序扫描应该以 {@link ReplacementPolicy.AccessType#SCAN} 的方式获取页面，以免大量只访问一次的页面将热点页面挤出缓冲池</P>
+     *
+     * @param tid        请求页面的交易ID
+     * @param pid        请求页面的ID
+     * @param perm       页面上请求的权限
+     * @param accessType 访问方式
+     * @see #getPage(TransactionId, PageId, Permissions)
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ReplacementPolicy.AccessType accessType)
+            throws DbException {
         assert tid != null;
         if (tid.getXid() >= 0 && !Database.open)
             throw new DbException("Database is closed");
@@ -101,34 +207,31 @@ public class BufferPool {
         // 也有可能这里获取了页面但是还没上锁，缓存就驱逐了它，因此最需要双重验证
         Page page = pagePool.get(pid);
         if (page == null) {
-            synchronized (pagePool) {
-                // 双重验证
-                if (pagePool.containsKey(pid)) {
+            Partition partition = partitionOf(pid);
+            CompletableFuture<Page> future = new CompletableFuture<>();
+            CompletableFuture<Page> loader = partition.loading.putIfAbsent(pid, future);
+            if (loader != null) {
+                // 其他线程正在加载此页面，等待它加载完成，之后与命中一样需要双重验证
+                page = loader.join();
+                if (page == null) {
+                    // 预读放弃了加载，自行重新加载
+                    return getPage(tid, pid, perm, accessType);
+                }
+            } else {
+                try {
+                    // 双重验证，可能在放入 future 之前，上一个加载者刚刚完成了加载
                     page = pagePool.get(pid);
-                } else {
-                    PageManager pm = Database.getCatalog().getPageManager(pid.getTableName());
-                    try {
-                        page = pm.readPage(pid);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+                    if (page == null) {
+                        page = loadPage(tid, pid, perm, accessType, partition);
+                        future.complete(page);
+                        return page;
                     }
-                    while (this.pagePool.size() >= numPages) {
-                        Debug.log("缓冲池满，尝试驱逐页面...");
-                        try {
-                            evictPage(1, false, false, true);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                    // 在 pagePool 同步机制内，页面无法驱逐
-                    // 并且没人跟他竞争，总能获取锁
-                    try {
-                        lockPage(tid, page, perm, 0);
-                    } catch (TimeoutException e) {
-                        throw new RuntimeException(e);
-                    }
-                    this.pagePool.put(pid, page);
-                    return page;
+                    future.complete(page);
+                } catch (RuntimeException | DbException e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    partition.loading.remove(pid, future);
                 }
             }
         }
@@ -141,14 +244,117 @@ public class BufferPool {
                 // 页面不相等，已经被驱逐了
                 Debug.log("驱逐啦啦啦");
                 this.transactionLockMap.get(tid).remove(page);
-                return getPage(tid, pid, perm);
+                return getPage(tid, pid, perm, accessType);
             }
+            partitionOf(pid).policy.access(pid, accessType);
             return page;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * 预读页面，将页面读入缓冲池但不锁定它，由 {@link ReadAhead} 在后台线程中调用
+     * <P>预读是尽力而为的：如果页面已在缓冲池中或正在被其他线程加载，直接返回；如果分区已满并且没有可以直接驱逐的干净页面，
+     * 则放弃预读而不是同步刷新脏页。任何异常都不会抛出，而是返回 null</P>
+     *
+     * @param pid 页面 ID
+     * @return 缓冲池中的页面，如果页面正在被其他线程加载或放弃了预读，返回 null
+     */
+    public Page prefetchPage(PageId pid) {
+        if (!Database.open) {
+            return null;
+        }
+        Page page = pagePool.get(pid);
+        if (page != null) {
+            return page;
+        }
+        Partition partition = partitionOf(pid);
+        CompletableFuture<Page> future = new CompletableFuture<>();
+        if (partition.loading.putIfAbsent(pid, future) != null) {
+            return null;
+        }
+        try {
+            page = pagePool.get(pid);
+            if (page == null) {
+                page = loadPage(null, pid, null, ReplacementPolicy.AccessType.SCAN, partition);
+            }
+        } catch (Exception e) {
+            Debug.log("预读页面 %s 失败：%s", pid, e.getMessage());
+            page = null;
+        } finally {
+            // 放弃预读时以 null 完成，等待者会自行重新加载
+            future.complete(page);
+            partition.loading.remove(pid, future);
+        }
+        return page;
+    }
+
+    /**
+     * 从磁盘读取页面并放入分区中，读取磁盘时不持有任何锁，因此不同页面的缺页可以并行加载
+     * <P>调用方需要保证同一页面同时只有一个加载者</P>
+     * <P>tid 为 null 表示预读，此时页面不会被锁定，并且分区已满时仅会驱逐干净的页面，无法驱逐时返回 null</P>
+     */
+    private Page loadPage(TransactionId tid, PageId pid, Permissions perm, ReplacementPolicy.AccessType accessType,
+                          Partition partition) throws DbException {
+        PageManager pm = Database.getCatalog().getPageManager(pid.getTableName());
+        Page page;
+        try {
+            page = pm.readPage(pid, frameArena);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        boolean admitted = false;
+        try {
+            synchronized (partition) {
+                while (partition.policy.size() >= partition.capacity) {
+                    Debug.log("缓冲池满，尝试驱逐页面...");
+                    try {
+                        // 优先驱逐干净的页面，以免在用户线程上同步刷盘，脏页通常已经被 PageCleaner 提前刷新
+                        if (evictPage(partition, 1, 1, false) > 0) {
+                            continue;
+                        }
+                        // 预读不值得同步刷盘
+                        if (tid == null) {
+                            return null;
+                        }
+                        if (evictPage(partition, 1, 1, true) == 0) {
+                            throw new DbException("内存已满，且无法驱逐页面");
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                // 在分区同步机制内，页面无法驱逐
+                // 并且没人跟他竞争，总能获取锁
+                if (tid != null) {
+                    try {
+                        lockPage(tid, page, perm, 0);
+                    } catch (TimeoutException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                this.pagePool.put(pid, page);
+                partition.policy.admit(pid, accessType);
+                admitted = true;
+                return page;
+            }
+        } finally {
+            if (!admitted) {
+                releaseFrame(page);
+            }
+        }
+    }
+
+    /**
+     * 页面离开缓冲池后，归还它持有的堆外页帧
+     */
+    private static void releaseFrame(Page page) {
+        if (page instanceof HeapPage heapPage) {
+            heapPage.releaseFrame();
+        }
+    }
+
 
     /**
      * 事务以某种权限锁定页面，这可能会造成堵塞
@@ -271,17 +477,99 @@ public class BufferPool {
 
     /**
      * 将所有脏页刷新到磁盘。
+     * <P>此方法不锁定页面，调用方需要保证刷新期间不会有页面被修改，见 {@link happydb.log.CheckPoint#sharkCheckPoint()}</P>
      */
-    public synchronized void flushAllDirtyPages() throws IOException {
-        for (Page page : new HashSet<>(this.pagePool.values())) {
+    public void flushAllDirtyPages() throws IOException {
+        writeDirtyPages(this.pagePool.values());
+    }
+
+    /**
+     * 将给定页面中的脏页刷新到磁盘，干净的页面将被忽略
+     * <P>每个页面在序列化与清除脏标记期间都持有页面的写锁，修改页面的事务总是持有页面上的锁，因此这期间页面不会被修改；
+     * 锁被其他事务持有的页面会被跳过并保持为脏页，等待下一次刷新</P>
+     *
+     * @param pages 待刷新的页面
+     */
+    public void flushPages(Collection<? extends Page> pages) throws IOException {
+        TransactionId tid = new TransactionId(flushXid.getAndIncrement());
+        List<Page> locked = new ArrayList<>();
+        try {
+            for (Page page : new HashSet<>(pages)) {
+                if (page.isDirty() && page.tryWriteLock(tid, 1)) {
+                    locked.add(page);
+                }
+            }
+            writeDirtyPages(locked);
+        } finally {
+            for (Page page : locked) {
+                page.writeUnLock(tid);
+            }
+        }
+    }
+
+    /**
+     * 将给定页面中的脏页写回磁盘并清除脏标记，调用方需要保证这期间页面不会被修改
+     */
+    private void writeDirtyPages(Collection<? extends Page> pages) throws IOException {
+        // 按表分组，以便页面管理器能够将相邻的页合并为一次聚集写
+        Map<String, List<Page>> dirtyPages = new HashMap<>();
+        for (Page page : new HashSet<>(pages)) {
             if (page.isDirty()) {
-                var pm = Database.getCatalog().getPageManager(page.getPageId().getTableName());
-                pm.writePage(page);
+                dirtyPages.computeIfAbsent(page.getPageId().getTableName(), k -> new ArrayList<>()).add(page);
+            }
+        }
+        flushLogFor(dirtyPages.values().stream().flatMap(List::stream).toList());
+        for (Map.Entry<String, List<Page>> it : dirtyPages.entrySet()) {
+            Database.getCatalog().getPageManager(it.getKey()).writePages(it.getValue());
+            for (Page page : it.getValue()) {
                 page.markDirty(false);
             }
         }
     }
 
+    /**
+     * 先写日志：写回页面之前，保证修改这些页面的重做日志都已经刷盘
+     *
+     * @see LogBuffer#flushForPage(long)
+     */
+    private static void flushLogFor(Collection<? extends Page> pages) throws IOException {
+        long lsn = -1;
+        for (Page page : pages) {
+            if (page instanceof DataPage data) {
+                lsn = Math.max(lsn, data.getLsn());
+            }
+        }
+        if (lsn >= 0) {
+            Database.getLogBuffer().flushForPage(lsn);
+        }
+    }
+
+    /**
+     * 返回缓冲池的分区数
+     */
+    public int numPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * 为指定分区保留空闲页帧，如果分区中空闲页帧数小于 reserve，则驱逐一些<strong>干净的</strong>页面，此方法绝不会刷新脏页
+     *
+     * @param index   分区下标
+     * @param reserve 期望的空闲页帧数
+     * @return 驱逐的页面数量
+     * @see PageCleaner
+     */
+    public int reserveFreeFrames(int index, int reserve) throws IOException {
+        Partition partition = partitions[index];
+        synchronized (partition) {
+            int free = partition.capacity - partition.policy.size();
+            if (free >= reserve) {
+                return 0;
+            }
+            return evictPage(partition, 1, reserve - free, false);
+        }
+    }
+
     /**
      * 不安全的驱逐一个页面
      *
@@ -289,21 +577,44 @@ public class BufferPool {
      * @see #evictPage(long, boolean, boolean, boolean)
      */
     public void unsafeDiscardPage(PageId pid) {
-        synchronized (pagePool) {
-            this.pagePool.remove(pid);
+        Partition partition = partitionOf(pid);
+        synchronized (partition) {
+            Page page = this.pagePool.remove(pid);
+            partition.policy.remove(pid);
+            if (page != null) {
+                releaseFrame(page);
+            }
         }
     }
 
     /**
-     * 将某个页面刷新到磁盘
+     * 将某个页面刷新到磁盘，刷新期间持有页面的写锁，如果锁被其他事务持有则放弃刷新
      *
      * @param pid 指示要刷新的页面的 ID
+     * @return 页面是否已经不是脏页，放弃刷新时返回假
      */
-    public synchronized void unsafeFlushPage(PageId pid) throws IOException {
+    public boolean unsafeFlushPage(PageId pid) throws IOException {
         Page page = this.pagePool.get(pid);
-        if (page == null)
-            return;
+        if (page == null || !page.isDirty())
+            return true;
+        TransactionId tid = new TransactionId(flushXid.getAndIncrement());
+        if (!page.tryWriteLock(tid, 1)) {
+            return false;
+        }
+        try {
+            flushPage(page);
+        } finally {
+            page.writeUnLock(tid);
+        }
+        return true;
+    }
+
+    /**
+     * 将页面写回磁盘并清除脏标记，调用方必须持有页面的写锁
+     */
+    private void flushPage(Page page) throws IOException {
         if (page.isDirty()) {
+            flushLogFor(List.of(page));
             var pm = Database.getCatalog().getPageManager(page.getPageId().getTableName());
             pm.writePage(page);
             page.markDirty(false);
@@ -313,6 +624,7 @@ public class BufferPool {
 
     /**
      * 从缓冲池中丢弃一些页面。将页面刷新到磁盘以确保脏页在磁盘上得到更新。
+     * <P>各分区依次驱逐，分区内候选页面的顺序由分区的 {@link ReplacementPolicy} 决定</P>
      * <P><strong>驱逐将获取页面上的写锁以保证没有其他事务引用它</strong></P>
      *
      * @param timeoutMillis      获取锁时等待的时间，为 0 表示无限等待，个位数表示立即返回
@@ -322,44 +634,81 @@ public class BufferPool {
      * @throws DbException 如果无法驱逐至少一个页面
      */
     public void evictPage(long timeoutMillis, boolean many, boolean random, boolean evictDirtyAndFlush) throws DbException, IOException {
+        // 随机驱逐时，每驱逐一个页面便有 1/4 的概率停止，等价于预先按几何分布决定驱逐的数量
+        int limit = 1;
+        if (many) {
+            if (random) {
+                while (Math.random() >= 0.25)
+                    limit++;
+            } else {
+                limit = Integer.MAX_VALUE;
+            }
+        }
+        boolean evict = false;
+        // 从随机的分区开始，避免总是驱逐同一个分区
+        int start = ThreadLocalRandom.current().nextInt(partitions.length);
+        for (int i = 0; i < partitions.length && limit > 0; i++) {
+            Partition partition = partitions[(start + i) % partitions.length];
+            int n;
+            synchronized (partition) {
+                n = evictPage(partition, timeoutMillis, limit, evictDirtyAndFlush);
+            }
+            if (n > 0) {
+                evict = true;
+                limit -= n;
+            }
+        }
+        if (!evict)
+            throw new DbException("内存已满，且无法驱逐页面");
+    }
+
+    /**
+     * 按照分区置换策略给出的顺序，从分区中驱逐最多 limit 个页面，调用方必须持有分区锁
+     *
+     * @return 驱逐的页面数量，已不在缓冲池中的失效记录也会被计入
+     */
+    private int evictPage(Partition partition, long timeoutMillis, int limit, boolean evictDirtyAndFlush) throws IOException {
         // 页面从缓存驱逐时，需要获取页面上的写锁
         // 试想，如果驱逐获取写锁与此方法获取锁并发发生，可能会导致此页面永远等待驱逐页面上的锁，因此驱逐后必须释放锁
         // 而页面获取锁后，需要双重判断自身是否被驱逐
         // 也有可能这里获取了页面但是还没上锁，缓存就驱逐了它，因此最需要双重验证
-        boolean evict = false;
-        synchronized (pagePool) {
-            for (Map.Entry<PageId, Page> it : new HashSet<>(this.pagePool.entrySet())) {
-                AbstractPage page = (AbstractPage) it.getValue();
-                if (!page.getReaders().isEmpty() && timeoutMillis == 0) {
-                    Debug.log("这个逼不对劲");
-                }
-                if ((evictDirtyAndFlush || !page.isDirty())
-                        && page.tryWriteLock(BUFFER_POOL_EVICT_TRANSACTION, timeoutMillis)) {
-                    try {
-                        if (!evictDirtyAndFlush && page.isDirty())
-                            continue;
-                        if (page.isDirty())
-                            unsafeFlushPage(page.getPageId());
-                        this.pagePool.remove(page.getPageId());
-                    } finally {
-                        page.writeUnLock(BUFFER_POOL_EVICT_TRANSACTION);
-                    }
-
-                    evict = true;
-                    if (!many || (random && Math.random() < 0.25))
-                        return;
+        int evicted = 0;
+        Iterator<PageId> victims = partition.policy.victims();
+        while (evicted < limit && victims.hasNext()) {
+            PageId pid = victims.next();
+            AbstractPage page = (AbstractPage) this.pagePool.get(pid);
+            if (page == null) {
+                partition.policy.remove(pid);
+                evicted++;
+                continue;
+            }
+            if (!page.getReaders().isEmpty() && timeoutMillis == 0) {
+                Debug.log("这个逼不对劲");
+            }
+            if ((evictDirtyAndFlush || !page.isDirty())
+                    && page.tryWriteLock(BUFFER_POOL_EVICT_TRANSACTION, timeoutMillis)) {
+                try {
+                    if (!evictDirtyAndFlush && page.isDirty())
+                        continue;
+                    flushPage(page);
+                    this.pagePool.remove(page.getPageId());
+                    partition.policy.remove(page.getPageId());
+                    releaseFrame(page);
+                } finally {
+                    page.writeUnLock(BUFFER_POOL_EVICT_TRANSACTION);
                 }
+                evicted++;
             }
         }
-        if (!evict)
-            throw new DbException("内存已满，且无法驱逐页面");
+        return evicted;
     }
 
     // for test
     /**
-     * 将所有页刷新到磁盘。
+     * 将所有页刷新到磁盘，与 {@link #flushAllDirtyPages()} 一样不锁定页面
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
+        flushLogFor(this.pagePool.values());
         for (Page page : new HashSet<>(this.pagePool.values())) {
             var pm = Database.getCatalog().getPageManager(page.getPageId().getTableName());
             pm.writePage(page);
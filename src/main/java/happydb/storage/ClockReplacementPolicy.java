@@ -0,0 +1,162 @@
+package happydb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * CLOCK 置换策略，缓冲池中的页面被组织成一个环，每个槽位带有一个引用位
+ * <P>页面命中时仅需设置所在槽位的引用位，这是一个无锁的原子操作；驱逐时时钟指针沿环扫描，
+ * 遇到引用位为 1 的槽位则清零并跳过（给予第二次机会），遇到引用位为 0 的槽位则将其作为候选</P>
+ * <P>以 {@link AccessType#SCAN} 方式访问的页面不会设置引用位，因此全表扫描读入的页面会在时钟指针第一次经过时被淘汰，
+ * 而不会挤出 B+ 树内部节点等热点页面</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/2/8
+ * @Email happysnaker@foxmail.com
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+    /**
+     * 环中的槽位，为 null 表示空闲
+     */
+    private volatile AtomicReferenceArray<PageId> frames;
+
+    /**
+     * 每个槽位的引用位
+     */
+    private volatile AtomicIntegerArray refBits;
+
+    /**
+     * 页面所在的槽位
+     */
+    private final ConcurrentHashMap<PageId, Integer> frameTable = new ConcurrentHashMap<>();
+
+    /**
+     * 空闲槽位
+     */
+    private final Deque<Integer> freeFrames = new ArrayDeque<>();
+
+    /**
+     * 时钟指针
+     */
+    private int hand = 0;
+
+    public ClockReplacementPolicy(int numPages) {
+        numPages = Math.max(numPages, 1);
+        this.frames = new AtomicReferenceArray<>(numPages);
+        this.refBits = new AtomicIntegerArray(numPages);
+        for (int i = 0; i < numPages; i++) {
+            freeFrames.add(i);
+        }
+    }
+
+    @Override
+    public synchronized void admit(PageId pid, AccessType type) {
+        Integer frame = frameTable.get(pid);
+        if (frame == null) {
+            if (freeFrames.isEmpty()) {
+                grow();
+            }
+            frame = freeFrames.poll();
+            frames.set(frame, pid);
+            frameTable.put(pid, frame);
+        }
+        refBits.set(frame, type == AccessType.SCAN ? 0 : 1);
+    }
+
+    @Override
+    public void access(PageId pid, AccessType type) {
+        if (type == AccessType.SCAN) {
+            return;
+        }
+        Integer frame = frameTable.get(pid);
+        // 读取数组引用后再读取槽位，扩容时旧数组中的引用位可能丢失，这只会让页面少一次机会，是可以接受的
+        AtomicIntegerArray bits = refBits;
+        if (frame != null && frame < bits.length()) {
+            bits.set(frame, 1);
+        }
+    }
+
+    @Override
+    public synchronized void remove(PageId pid) {
+        Integer frame = frameTable.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            refBits.set(frame, 0);
+            freeFrames.add(frame);
+        }
+    }
+
+    @Override
+    public int size() {
+        return frameTable.size();
+    }
+
+    @Override
+    public Iterator<PageId> victims() {
+        return new Iterator<>() {
+            /**
+             * 最多扫描两圈，第一圈清除引用位，第二圈必然能遍历到所有页面
+             */
+            int steps = 0;
+            PageId next;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                }
+                synchronized (ClockReplacementPolicy.this) {
+                    int n = frames.length();
+                    while (steps < 2 * n) {
+                        int i = hand;
+                        hand = (hand + 1) % n;
+                        steps++;
+                        PageId pid = frames.get(i);
+                        if (pid == null) {
+                            continue;
+                        }
+                        if (refBits.compareAndSet(i, 1, 0)) {
+                            continue;
+                        }
+                        next = pid;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public PageId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                PageId ans = next;
+                next = null;
+                return ans;
+            }
+        };
+    }
+
+    /**
+     * 缓冲池可能在短时间内超出设定的页数，此时将环扩容为原来的两倍
+     */
+    private void grow() {
+        int n = frames.length();
+        AtomicReferenceArray<PageId> newFrames = new AtomicReferenceArray<>(n * 2);
+        AtomicIntegerArray newRefBits = new AtomicIntegerArray(n * 2);
+        for (int i = 0; i < n; i++) {
+            newFrames.set(i, frames.get(i));
+            newRefBits.set(i, refBits.get(i));
+        }
+        for (int i = n; i < n * 2; i++) {
+            freeFrames.add(i);
+        }
+        frames = newFrames;
+        refBits = newRefBits;
+    }
+}
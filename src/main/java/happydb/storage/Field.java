@@ -36,4 +36,26 @@ public interface Field extends DbSerializable {
      * @return 返回字段的值
      */
     Object getObject();
+
+    /**
+     * 返回字段序列化后的字节数，变长字段返回实际长度
+     * @return 序列化后的字节数
+     */
+    default int getSerializedLen() {
+        return getType().getLen();
+    }
+
+    /**
+     * 将字段序列化并补齐到 {@link Type#getLen()} 字节，用于索引页等要求定长条目的地方，可由 {@link Type#parseFixed(ByteArray)} 解析
+     * @return 长度为 {@link Type#getLen()} 的字节数组
+     */
+    default ByteArray serializedFixed() {
+        ByteArray data = serialized();
+        if (data.length() == getType().getLen()) {
+            return data;
+        }
+        ByteArray byteAr = ByteArray.allocate(getType().getLen());
+        byteAr.writeByteArray(data);
+        return byteAr;
+    }
 }
\ No newline at end of file
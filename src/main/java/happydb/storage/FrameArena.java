@@ -0,0 +1,107 @@
+package happydb.storage;
+
+import happydb.common.ByteArray;
+import happydb.common.MappedByteArray;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 预先分配的堆外页帧池，每个页帧恰好能容纳一页，由缓冲池创建并持有
+ * <P>从磁盘加载的页面数据直接读入页帧，页面按需从页帧中解析记录，避免每次加载页面都在堆上分配页面大小的数组，
+ * 页面被驱逐时归还页帧，页帧会被下一次加载复用</P>
+ * <P>堆外内存被切分为多个块分配，以免单个 {@link ByteBuffer} 超过 2GB 的上限。页帧耗尽时 {@link #allocate()} 返回 null，
+ * 调用方应该退化为堆内存</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/2/10
+ * @Email happysnaker@foxmail.com
+ */
+public class FrameArena {
+    /**
+     * 每个堆外内存块包含的页帧数
+     */
+    private static final int FRAMES_PER_CHUNK = 1024;
+
+    /**
+     * 页帧大小
+     */
+    private final int frameSize;
+
+    private final ByteBuffer[] chunks;
+
+    private final Deque<Integer> freeFrames = new ArrayDeque<>();
+
+    /**
+     * 页帧，持有一段堆外内存，使用完毕后必须调用 {@link #release()} 归还
+     */
+    public class Frame {
+        private final int index;
+        private final ByteArray data;
+        private boolean released = false;
+
+        private Frame(int index) {
+            this.index = index;
+            ByteBuffer chunk = chunks[index / FRAMES_PER_CHUNK];
+            this.data = new MappedByteArray(chunk.slice((index % FRAMES_PER_CHUNK) * frameSize, frameSize));
+        }
+
+        /**
+         * 页帧的数据，读写都直接作用于堆外内存
+         */
+        public ByteArray getData() {
+            return data;
+        }
+
+        /**
+         * 归还页帧，重复归还会被忽略
+         */
+        public void release() {
+            synchronized (FrameArena.this) {
+                if (!released) {
+                    released = true;
+                    freeFrames.push(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * 创建堆外页帧池
+     *
+     * @param numFrames 页帧数量
+     * @param frameSize 页帧大小，通常为 {@link BufferPool#getPageSize()}
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        int numChunks = (numFrames + FRAMES_PER_CHUNK - 1) / FRAMES_PER_CHUNK;
+        this.chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(FRAMES_PER_CHUNK, numFrames - i * FRAMES_PER_CHUNK);
+            chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        for (int i = 0; i < numFrames; i++) {
+            freeFrames.add(i);
+        }
+    }
+
+    /**
+     * 分配一个页帧，页帧中的内容是未定义的
+     *
+     * @return 页帧，如果页帧已经耗尽或页面大小已经改变，返回 null
+     */
+    public synchronized Frame allocate() {
+        if (freeFrames.isEmpty() || frameSize != BufferPool.getPageSize()) {
+            return null;
+        }
+        return new Frame(freeFrames.pop());
+    }
+
+    /**
+     * 返回空闲页帧数量
+     */
+    public synchronized int available() {
+        return freeFrames.size();
+    }
+}
@@ -2,6 +2,7 @@ package happydb.storage;
 
 import happydb.common.ByteArray;
 import happydb.common.Database;
+import happydb.common.MappedByteArray;
 import happydb.exception.DbException;
 import happydb.log.DataPage;
 import lombok.Getter;
@@ -17,6 +18,13 @@ import static happydb.storage.Record.HIDDEN_SIZE;
 
 /**
  * 堆文件页，存储行记录，此页提供了对记录的增删改查操作，<strong>但请注意，此类绝不修改或检查记录的有效位（隐藏字段）</strong>
+ * <P>多个事务可以在只持有页面读锁的情况下并发地修改同一页面中的不同记录（由行锁保证互斥），插槽位图的修改因此由页面自身的监视器保护</P>
+ * <P>从字节数组构造页面时，记录不会被立即反序列化，而是在第一次访问时才从页面数据中按偏移解析，
+ * 序列化时未被访问过的记录直接拷贝原始字节。页面数据可以位于缓冲池的堆外页帧中，见 {@link FrameArena}</P>
+ * <P>含有变长字段的表使用分槽页面：页面开头是 LSN 与插槽目录，目录项记录插槽预留的容量与记录的实际长度，记录按插槽顺序紧凑地存放在目录之后。
+ * 插槽的容量在记录存活期间只增不减，因此回滚到更短的旧版本后再次回滚到更长的版本时总能放下；
+ * 原地更新使记录变长时，需要先向 {@link HeapPageManager} 预留额外的空间，页面中的空间不足时更新失败。
+ * 不含变长字段的表仍然使用定长的插槽位图布局</P>
  *
  * @Author happysnaker
  * @Date 2022/11/17
@@ -24,16 +32,52 @@ import static happydb.storage.Record.HIDDEN_SIZE;
  */
 @NoArgsConstructor
 public class HeapPage extends AbstractPage implements Cloneable, DataPage {
+    /**
+     * 分槽页面中每个目录项的字节数：两字节的预留容量与两字节的实际长度
+     */
+    public static final int SLOT_SIZE = 2 + 2;
+
+    /**
+     * 分槽页面的固定头部：八字节的 LSN 与两字节的目录项数
+     */
+    public static final int SLOTTED_HEADER_SIZE = 8 + 2;
 
     /**
      * 存储槽位，表示 tuple 是否存在，由于一字节有八位，因此最后一字节可能会有些位数未使用
      */
     byte[] header;
     /**
-     * 存储页中的元组
+     * 存储页中已经解析或被修改过的元组，槽位被使用但此处为 null 表示记录尚未从 {@link #data} 中解析
      */
     Record[] records;
+
+    /**
+     * 页面中记录区域的原始数据，为 null 表示页面不是从字节数组构造的
+     */
+    private volatile ByteArray data;
+
+    /**
+     * 原始数据所在的堆外页帧，页面被驱逐时需要归还
+     */
+    private FrameArena.Frame frame;
+
     TableDesc td;
+
+    /**
+     * 是否为分槽页面
+     */
+    private boolean slotted;
+
+    /**
+     * 分槽页面中每个插槽预留的容量，0 表示插槽为空
+     */
+    private int[] capacities;
+
+    /**
+     * 分槽页面中尚未解析的记录在 {@link #data} 中的偏移与长度
+     */
+    private int[] offsets, lengths;
+
     @Getter
     private volatile long lsn;
 
@@ -49,19 +93,48 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
         this.pid = pid;
         this.td = Database.getCatalog().getTableDesc(pid.getTableName());
         this.lsn = byteAr.readLong();
+        this.slotted = td.isVariableLength();
 
         header = new byte[getHeaderSize()];
+        records = new Record[getMaxNumEntries()];
+        if (slotted) {
+            capacities = new int[records.length];
+            offsets = new int[records.length];
+            lengths = new int[records.length];
+            int n = byteAr.readShort() & 0xFFFF, offset = 0;
+            for (int i = 0; i < n; i++) {
+                capacities[i] = byteAr.readShort() & 0xFFFF;
+                lengths[i] = byteAr.readShort() & 0xFFFF;
+                offsets[i] = offset;
+                offset += lengths[i];
+                if (capacities[i] > 0) {
+                    markSlotUsed(i, true, header);
+                }
+            }
+            data = byteAr.readByteArray(offset);
+            if (data instanceof MappedByteArray) {
+                // 映射区域是文件的实时视图，而分槽页面每次写回都会重新排列记录，因此必须拷贝到堆内存中
+                data = new ByteArray(data.getByteArray());
+            }
+            return;
+        }
+
         for (int i = 0; i < header.length; i++)
             header[i] = byteAr.readByte();
 
-        records = new Record[getMaxNumEntries()];
-        try {
-            // 分配并读取该页的实际记录
-            for (int i = 0; i < records.length; i++)
-                records[i] = readNextRecord(byteAr, i);
-        } catch (NoSuchElementException | ParseException e) {
-            e.printStackTrace();
-        }
+        // 记录延迟到第一次访问时解析
+        int recordSize = td.getRecordSize() + HIDDEN_SIZE;
+        data = byteAr.readByteArray(recordSize * records.length);
+    }
+
+    /**
+     * 从堆外页帧中初始化页，页面持有此页帧直到 {@link #releaseFrame()} 被调用
+     *
+     * @param frame 包含一页数据的页帧
+     */
+    public HeapPage(FrameArena.Frame frame, PageId pid) {
+        this(frame.getData(), pid);
+        this.frame = frame;
     }
 
     /**
@@ -71,8 +144,12 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
     public HeapPage(PageId pid) {
         this.pid = pid;
         this.td = Database.getCatalog().getTableDesc(pid.getTableName());
+        this.slotted = td.isVariableLength();
         header = new byte[getHeaderSize()];
         records = new Record[getMaxNumEntries()];
+        if (slotted) {
+            capacities = new int[records.length];
+        }
         Arrays.fill(header, (byte) 0);
     }
 
@@ -81,21 +158,100 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
         return ByteArray.allocate(BufferPool.getPageSize());
     }
 
-    private Record readNextRecord(ByteArray data, int i) throws ParseException {
-        int recordSize = td.getRecordSize() + HIDDEN_SIZE;
-        ByteArray byteAr = data.readByteArray(recordSize);
-
-        if (isSlotUsed(i, header)) {
+    /**
+     * 返回指定槽位的记录，如果记录尚未解析，则从原始数据中解析它
+     * <P>记录在页面监视器内解析并发布，读取也必须在监视器内进行，否则读线程可能看到未完全构造的记录</P>
+     * @throws DbException 原始数据无法被解析为记录
+     */
+    private synchronized Record getRecord(int i) throws DbException {
+        if (records[i] == null && data != null) {
             Record record = new Record(td);
-            record.deserialize(byteAr);
-            return record;
+            try {
+                record.deserialize(rawRecord(i));
+            } catch (NoSuchElementException | ParseException e) {
+                throw new DbException("页面 " + pid + " 槽位 " + i + " 的记录已损坏", e);
+            }
+            records[i] = record;
+        }
+        return records[i];
+    }
+
+    /**
+     * 归还页面持有的堆外页帧，未解析的记录会被拷贝到堆内存中，因此归还后页面仍然是可用的
+     * <P>缓冲池驱逐页面后调用此方法，此时可能仍有线程持有此页面的引用</P>
+     */
+    public synchronized void releaseFrame() {
+        if (frame == null) {
+            return;
+        }
+        data = new ByteArray(data.getByteArray());
+        frame.release();
+        frame = null;
+    }
+
+
+    /**
+     * 返回尚未解析的记录的原始字节
+     */
+    private ByteArray rawRecord(int i) {
+        if (slotted) {
+            return data.subArray(offsets[i], offsets[i] + lengths[i]);
         }
-        return null;
+        int recordSize = td.getRecordSize() + HIDDEN_SIZE;
+        return data.subArray(i * recordSize, (i + 1) * recordSize);
     }
 
+    /**
+     * 分槽页面的序列化，目录只包含到最后一个非空插槽为止的目录项
+     * <P>序列化会重新排列记录，因此尚未解析的记录改为指向序列化结果中的位置，调用方不得修改返回的字节数组</P>
+     */
+    private ByteArray serializedSlotted() {
+        int n = 0;
+        for (int i = records.length - 1; i >= 0; i--) {
+            if (isSlotUsed(i, header)) {
+                n = i + 1;
+                break;
+            }
+        }
+        ByteArray[] arrays = new ByteArray[n];
+        int total = SLOTTED_HEADER_SIZE + SLOT_SIZE * n;
+        for (int i = 0; i < n; i++) {
+            if (isSlotUsed(i, header)) {
+                arrays[i] = records[i] == null ? rawRecord(i) : records[i].serialized();
+                total += arrays[i].length();
+            }
+        }
+        if (total > BufferPool.getPageSize()) {
+            throw new IllegalStateException("页面 " + pid + " 溢出");
+        }
+        ByteArray byteAr = ByteArray.allocate(BufferPool.getPageSize());
+        byteAr.writeLong(lsn);
+        byteAr.writeShort((short) n);
+        for (int i = 0; i < n; i++) {
+            byteAr.writeShort((short) (arrays[i] == null ? 0 : Math.max(capacities[i], arrays[i].length())));
+            byteAr.writeShort((short) (arrays[i] == null ? 0 : arrays[i].length()));
+        }
+        int start = byteAr.getWritePos();
+        for (int i = 0; i < n; i++) {
+            if (arrays[i] != null) {
+                if (records[i] == null) {
+                    offsets[i] = byteAr.getWritePos() - start;
+                    lengths[i] = arrays[i].length();
+                }
+                byteAr.writeByteArray(arrays[i]);
+            }
+        }
+        if (data != null) {
+            data = byteAr.subArray(start, byteAr.getWritePos());
+        }
+        return byteAr;
+    }
 
     @Override
     public synchronized ByteArray serialized() {
+        if (slotted) {
+            return serializedSlotted();
+        }
         int recordSize = td.getRecordSize() + HIDDEN_SIZE;
         ByteArray byteAr = ByteArray.allocate(BufferPool.getPageSize());
         byteAr.writeLong(lsn);
@@ -108,6 +264,9 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
             ByteArray array;
             if (!isSlotUsed(i, header)) {
                 array = ByteArray.allocate(recordSize);
+            } else if (records[i] == null) {
+                // 未被访问过的记录，直接拷贝原始字节
+                array = rawRecord(i);
             } else {
                 array = records[i].serialized();
             }
@@ -123,16 +282,33 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
     }
 
     private int getHeaderSize() {
-        return (int) Math.ceil(getMaxNumEntries() / 8f);
+        return headerSize(td);
     }
 
     @Override
     public int getMaxNumEntries() {
+        return numSlots(td);
+    }
+
+    /**
+     * 返回表的堆页面中插槽的数量，分槽页面按最短的记录计算
+     */
+    static int numSlots(TableDesc td) {
         int pageSize = BufferPool.getPageSize();
+        if (td.isVariableLength()) {
+            return (pageSize - SLOTTED_HEADER_SIZE) / (SLOT_SIZE + td.getMinRecordSize() + HIDDEN_SIZE);
+        }
         int recordSize = td.getRecordSize() + HIDDEN_SIZE;
         return (int) Math.floor(((pageSize - 8) * 8f) / (recordSize * 8f + 1));
     }
 
+    /**
+     * 返回表的堆页面中插槽位图的字节数，位图紧跟在页面开头的 LSN 之后，分槽页面的位图只存在于内存中
+     */
+    static int headerSize(TableDesc td) {
+        return (int) Math.ceil(numSlots(td) / 8f);
+    }
+
     @Override
     public List<Integer> getEmptySlots() {
         List<Integer> ans = new ArrayList<>();
@@ -150,7 +326,7 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
      * @param record 记录
      * @throws DbException 插入位置非空
      */
-    public void insertRecord(int i, Record record) throws DbException {
+    public synchronized void insertRecord(int i, Record record) throws DbException {
         if (i < 0 || i >= records.length) {
             throw new IndexOutOfBoundsException();
         }
@@ -158,6 +334,9 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
             throw new DbException("插入位置非空");
         }
         records[i] = record;
+        if (slotted) {
+            capacities[i] = record.getSerializedLen();
+        }
         record.setRecordId(new RecordId(pid, i));
         // markSlotUsed 不能在 records[i] = record 之前
         markSlotUsed(i, true, header);
@@ -182,7 +361,7 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
      * @param recordId
      * @throws DbException
      */
-    public void deleteRecord(RecordId recordId) throws DbException {
+    public synchronized void deleteRecord(RecordId recordId) throws DbException {
         int i = recordId.getRecordNumber();
         if (i < 0 || i >= records.length) {
             throw new IndexOutOfBoundsException();
@@ -192,6 +371,9 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
         }
         markSlotUsed(i, false, header);
         records[i] = null;
+        if (slotted) {
+            capacities[i] = 0;
+        }
     }
 
     /**
@@ -208,19 +390,37 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
         if (!isSlotUsed(i, header)) {
             throw new DbException("元组不存在");
         }
-        if (records[i].getRecordId() == null) {
-            records[i].setRecordId(new RecordId(pid, i));
+        Record record = getRecord(i);
+        if (record.getRecordId() == null) {
+            record.setRecordId(new RecordId(pid, i));
         }
-        return records[i];
+        return record;
+    }
+
+    /**
+     * 读取指定槽位的记录，如果槽位为空，返回 null 而不是抛出异常
+     * <P>索引条目可能指向已被 {@link happydb.log.Purge} 回收的槽位，扫描应该使用此方法并跳过这些条目</P>
+     * @param recordId 槽位
+     * @return 记录，槽位为空则返回 null
+     */
+    public Record readRecordIfPresent(RecordId recordId) throws DbException {
+        int i = recordId.getRecordNumber();
+        if (i < 0 || i >= records.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (!isSlotUsed(i, header)) {
+            return null;
+        }
+        return readRecord(recordId);
     }
 
     /**
-     * 更新指定槽位的记录
+     * 更新指定槽位的记录，分槽页面中新记录超出插槽容量时会向 {@link HeapPageManager} 预留额外的空间
      * @param recordId
      * @param newRecord
-     * @throws DbException
+     * @throws DbException 记录不存在，或者页面中没有足够的空间存放变长的新记录
      */
-    public void updateRecord(RecordId recordId, Record newRecord) throws DbException {
+    public synchronized void updateRecord(RecordId recordId, Record newRecord) throws DbException {
         int i = recordId.getRecordNumber();
         if (i < 0 || i >= records.length) {
             throw new IndexOutOfBoundsException();
@@ -228,6 +428,16 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
         if (!isSlotUsed(i, header)) {
             throw new DbException("元组不存在");
         }
+        if (slotted) {
+            int len = newRecord.getSerializedLen();
+            if (len > capacities[i]) {
+                HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager(pid.getTableName());
+                if (!pm.reserve(recordId, len)) {
+                    throw new DbException("页面空间不足，无法原地更新记录");
+                }
+                capacities[i] = len;
+            }
+        }
         this.records[i] = newRecord;
     }
 
@@ -248,12 +458,10 @@ public class HeapPage extends AbstractPage implements Cloneable, DataPage {
     }
 
     @Override
-    public void markDirty(boolean dirty) {
-        synchronized (Database.getBufferPool()) {
-            if (!isDirty() && dirty) {
-                this.firstDirtyLsn = getLsn();
-            }
-            super.markDirty(dirty);
+    public synchronized void markDirty(boolean dirty) {
+        if (!isDirty() && dirty) {
+            this.firstDirtyLsn = getLsn();
         }
+        super.markDirty(dirty);
     }
 }
@@ -1,33 +1,66 @@
 package happydb.storage;
 
 import happydb.common.ByteArray;
-import happydb.common.DbFile;
+import happydb.common.Database;
+import happydb.common.PageFile;
 import happydb.exception.DbException;
 import lombok.Data;
 import lombok.Getter;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * 堆文件的页面管理器，负责读写堆页面以及分配空闲插槽
+ * <P>空闲空间由一张空闲空间映射维护：每个已加载的页面对应一个空闲插槽位图，另有一个按页号排序的集合记录仍有空闲插槽的页面。
+ * 页面的空闲插槽位图直接取自磁盘上页面头部的插槽位图，只读取 LSN 与位图这几个字节，不会反序列化页面中的记录。
+ * 启动时不扫描任何页面，只有当已加载的页面中没有空闲插槽时，才按页号顺序加载下一个页面，
+ * 回收或指定分配插槽时则按需加载该插槽所在的页面</P>
+ * <P>分配插槽时总是选择页号最小的有空闲插槽的页面，因此连续的插入会先填满一个页面再移到下一个页面，
+ * 而不是分散在多个页面中</P>
+ * <P>页面只会在第一次被分配、回收或指定分配插槽时加载，而在此之前页面中的插槽不会被修改，因此从磁盘读取的位图总是最新的</P>
+ * <P>对于含有变长字段的表（分槽页面，见 {@link HeapPage}），映射还记录每个插槽预留的容量，空闲插槽位图与容量都取自页面的插槽目录。
+ * 分配插槽时需要给出记录的大小，只有插槽目录与所有插槽的容量之和仍然放得下页面时才会选择该页面，
+ * 记录原地变长时通过 {@link #reserve(RecordId, int)} 预留额外的空间。页面实际存放的记录总是不超过这里预留的容量，因此页面不会溢出。
+ * 新记录只会将页面填充到 {@link #FILL_FACTOR}，剩余的空间留给原地变长的记录</P>
+ *
  * @Author happysnaker
  * @Date 2022/11/17
  * @Email happysnaker@foxmail.com
  */
 @Data
 public class HeapPageManager implements PageManager {
+    /**
+     * 分槽页面的填充因子（百分比），分配新记录时页面的使用量不会超过此比例
+     */
+    public static int FILL_FACTOR = 90;
+
     @Getter
     private String tableName;
     @Getter
-    private DbFile dbFile;
+    private PageFile dbFile;
+
+    /**
+     * 已加载页面的空闲空间
+     */
+    private final Map<Integer, FreeSpace> freeSlots;
 
-    private final Set<RecordId> pool;
+    /**
+     * 已加载且仍有空闲插槽的页面
+     */
+    private final TreeSet<Integer> freePages;
+
+    /**
+     * 顺序加载的游标，页号小于此值的页面都已经加载
+     */
+    private int scanCursor;
 
-    public HeapPageManager(String tableName, DbFile dbFile) throws DbException, IOException {
+    public HeapPageManager(String tableName, PageFile dbFile) throws DbException, IOException {
         this.tableName = tableName;
         this.dbFile = dbFile;
-        this.pool = ConcurrentHashMap.newKeySet();
+        this.freeSlots = new HashMap<>();
+        this.freePages = new TreeSet<>();
+        this.scanCursor = 0;
     }
 
     /**
@@ -39,67 +72,269 @@ public class HeapPageManager implements PageManager {
     }
 
     @Override
-    public synchronized Page readPage(PageId pid) throws IOException {
+    public Page readPage(PageId pid) throws IOException {
         long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
         if (offset >= dbFile.getLength()) {
             throw new NoSuchElementException();
         }
-        return new HeapPage(dbFile.read(offset, BufferPool.getPageSize()), pid);
+        return new HeapPage(dbFile.readPage(offset, BufferPool.getPageSize()), pid);
+    }
+
+    /**
+     * 将页面数据读入堆外页帧中，如果开启了内存映射或页帧已经耗尽，则退化为 {@link #readPage(PageId)}
+     */
+    @Override
+    public Page readPage(PageId pid, FrameArena arena) throws IOException {
+        FrameArena.Frame frame;
+        if (Database.enableMmap || arena == null || (frame = arena.allocate()) == null) {
+            return readPage(pid);
+        }
+        try {
+            long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
+            if (offset >= dbFile.getLength()) {
+                throw new NoSuchElementException();
+            }
+            dbFile.read(offset, frame.getData());
+            return new HeapPage(frame, pid);
+        } catch (IOException | RuntimeException e) {
+            frame.release();
+            throw e;
+        }
     }
 
     @Override
-    public synchronized void writePage(Page page) throws IOException {
+    public void writePage(Page page) throws IOException {
         ByteArray serialized = page.serialized();
         assert serialized.length() == BufferPool.getPageSize();
         dbFile.write((long) page.getPageId().getPageNumber() * BufferPool.getPageSize(), serialized);
     }
 
+    /**
+     * 按页号排序后，将页号连续的页面合并为一次聚集写，并且仅在最后刷新一次缓冲
+     */
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        List<Page> sorted = new ArrayList<>(pages);
+        sorted.sort(Comparator.comparingInt(p -> p.getPageId().getPageNumber()));
+        int i = 0;
+        while (i < sorted.size()) {
+            int j = i + 1;
+            while (j < sorted.size() && sorted.get(j).getPageId().getPageNumber()
+                    == sorted.get(j - 1).getPageId().getPageNumber() + 1) {
+                j++;
+            }
+            ByteArray[] run = new ByteArray[j - i];
+            for (int k = i; k < j; k++) {
+                run[k - i] = sorted.get(k).serialized();
+            }
+            dbFile.writeVectored((long) sorted.get(i).getPageId().getPageNumber() * BufferPool.getPageSize(),
+                    false, run);
+            i = j;
+        }
+        dbFile.force();
+    }
+
     @Override
     public void close() {
         dbFile.close();
     }
 
     /**
-     * 初始化空闲空间，此方法必须要等到 {@link happydb.common.Catalog} 初始化完毕后调用
-     *
-     * @throws IOException
+     * 一个已加载页面的空闲空间
      */
-    public void loadFreePage() throws IOException {
-        int numPages = (int) (dbFile.getLength() / BufferPool.getPageSize());
-        for (int i = 0; i < numPages; i++) {
-            Page page = readPage(new PageId(tableName, i));
-            List<Integer> emptySlots = page.getEmptySlots();
-            if (emptySlots.size() > 0) {
-                pool.addAll(toRecordIdSet(emptySlots, page.getPageId()));
+    private static class FreeSpace {
+        /**
+         * 空闲插槽，位为 1 表示插槽空闲
+         */
+        final BitSet free;
+        /**
+         * 分槽页面中每个插槽预留的容量，定长页面为 null
+         */
+        final int[] capacities;
+        /**
+         * 分槽页面中所有插槽预留的容量之和
+         */
+        int reserved;
+
+        FreeSpace(BitSet free, int[] capacities) {
+            this.free = free;
+            this.capacities = capacities;
+            if (capacities != null) {
+                for (int capacity : capacities) {
+                    reserved += capacity;
+                }
+            }
+        }
+
+        /**
+         * 判断插槽的容量扩大到 size 后页面的使用量是否仍然不超过 limit，定长页面总是放得下
+         */
+        boolean fits(int slot, int size, int limit) {
+            if (capacities == null) {
+                return true;
+            }
+            int directory = slot + 1;
+            for (int i = capacities.length - 1; i > slot; i--) {
+                if (capacities[i] > 0) {
+                    directory = i + 1;
+                    break;
+                }
+            }
+            int bytes = HeapPage.SLOTTED_HEADER_SIZE + HeapPage.SLOT_SIZE * directory
+                    + reserved - capacities[slot] + Math.max(capacities[slot], size);
+            return bytes <= limit;
+        }
+
+        /**
+         * 将插槽的容量设置为 size，只增不减
+         */
+        void occupy(int slot, int size) {
+            free.clear(slot);
+            if (capacities != null && capacities[slot] < size) {
+                reserved += size - capacities[slot];
+                capacities[slot] = size;
             }
         }
+
+        void release(int slot) {
+            free.set(slot);
+            if (capacities != null) {
+                reserved -= capacities[slot];
+                capacities[slot] = 0;
+            }
+        }
+    }
+
+    /**
+     * 返回分槽页面中最短记录的大小，定长页面返回 0
+     */
+    private int minRecordSize() {
+        TableDesc td = Database.getCatalog().getTableDesc(tableName);
+        return td.isVariableLength() ? td.getMinRecordSize() + Record.HIDDEN_SIZE : 0;
+    }
+
+    /**
+     * 分配新记录时页面使用量的上限
+     */
+    private static int fillLimit() {
+        return (int) ((long) BufferPool.getPageSize() * FILL_FACTOR / 100);
     }
 
-    public Set<RecordId> toRecordIdSet(List<Integer> emptySlots, PageId pageId) {
-        Set<RecordId> set = new HashSet<>();
-        for (Integer emptySlot : emptySlots) {
-            set.add(new RecordId(pageId, emptySlot));
+    /**
+     * 根据页面的空闲空间更新页面是否仍然可以分配，分槽页面连最短的记录都放不下时不再参与分配
+     */
+    private void refresh(int pageNo, FreeSpace space) {
+        int slot = space.free.nextSetBit(0);
+        if (slot >= 0 && space.fits(slot, minRecordSize(), fillLimit())) {
+            freePages.add(pageNo);
+        } else {
+            freePages.remove(pageNo);
+        }
+    }
+
+    /**
+     * 从磁盘读取页面头部的插槽位图或插槽目录，加载页面的空闲空间，如果页面已经加载则什么也不做
+     *
+     * @param pageNo 页号
+     */
+    private void loadPage(int pageNo) throws IOException {
+        if (freeSlots.containsKey(pageNo)) {
+            return;
+        }
+        TableDesc td = Database.getCatalog().getTableDesc(tableName);
+        int n = HeapPage.numSlots(td);
+        if (pageNo >= numPages()) {
+            throw new NoSuchElementException("页面 " + pageNo + " 不存在");
+        }
+        long offset = (long) pageNo * BufferPool.getPageSize();
+        BitSet free = new BitSet(n);
+        free.set(0, n);
+        int[] capacities = null;
+        if (td.isVariableLength()) {
+            capacities = new int[n];
+            ByteArray byteAr = dbFile.read(offset, HeapPage.SLOTTED_HEADER_SIZE);
+            byteAr.readLong();
+            int m = byteAr.readShort() & 0xFFFF;
+            if (m > 0) {
+                byteAr = dbFile.read(offset + HeapPage.SLOTTED_HEADER_SIZE, HeapPage.SLOT_SIZE * m);
+            }
+            for (int i = 0; i < m; i++) {
+                capacities[i] = byteAr.readShort() & 0xFFFF;
+                byteAr.readShort();
+                if (capacities[i] > 0) {
+                    free.clear(i);
+                }
+            }
+        } else {
+            ByteArray byteAr = dbFile.read(offset, 8 + HeapPage.headerSize(td));
+            byteAr.readLong();
+            for (int i = 0; i < n; i += 8) {
+                byte b = byteAr.readByte();
+                for (int j = 0; j < 8 && i + j < n; j++) {
+                    if (((b >> j) & 1) == 1) {
+                        free.clear(i + j);
+                    }
+                }
+            }
         }
-        return set;
+        FreeSpace space = new FreeSpace(free, capacities);
+        freeSlots.put(pageNo, space);
+        refresh(pageNo, space);
     }
 
     /**
-     * 分配一个空闲的插槽，如果插槽数不够，则新建一个页面
+     * 分配一个能够存放任意记录的空闲插槽，见 {@link #malloc(int)}
      *
-     * @return Pair<PageId, Integer>
+     * @return 空闲插槽
      */
     public synchronized RecordId malloc() throws IOException {
-        if (pool.isEmpty()) {
-            createNewPage();
-            return malloc();
+        return malloc(Database.getCatalog().getTableDesc(tableName).getRecordSize() + Record.HIDDEN_SIZE);
+    }
+
+    /**
+     * 分配一个空闲的插槽，优先选择页号最小的放得下记录的页面，如果已加载的页面中都放不下，则加载下一个页面，所有页面都放不下时新建一个页面
+     *
+     * @param size 记录序列化后的大小，见 {@link Record#getSerializedLen()}，定长页面忽略此参数
+     * @return 空闲插槽
+     */
+    public synchronized RecordId malloc(int size) throws IOException {
+        for (int pageNo : freePages) {
+            RecordId rid = tryMalloc(pageNo, size);
+            if (rid != null) {
+                return rid;
+            }
         }
-        RecordId rid = null;
-        for (RecordId recordId : pool) {
-            rid = recordId;
-            break;
+        while (true) {
+            int numPages = numPages();
+            while (scanCursor < numPages && freeSlots.containsKey(scanCursor)) {
+                scanCursor++;
+            }
+            int pageNo;
+            if (scanCursor < numPages) {
+                pageNo = scanCursor++;
+                loadPage(pageNo);
+            } else {
+                pageNo = createNewPage();
+            }
+            RecordId rid = tryMalloc(pageNo, size);
+            if (rid != null) {
+                return rid;
+            }
+            if (pageNo == numPages) {
+                throw new IllegalArgumentException("记录过大，空页面也无法存放 " + size + " 字节的记录");
+            }
         }
-        pool.remove(rid);
-        return rid;
+    }
+
+    private RecordId tryMalloc(int pageNo, int size) {
+        FreeSpace space = freeSlots.get(pageNo);
+        int slot = space.free.nextSetBit(0);
+        if (slot < 0 || !space.fits(slot, size, fillLimit())) {
+            return null;
+        }
+        space.occupy(slot, size);
+        refresh(pageNo, space);
+        return new RecordId(new PageId(tableName, pageNo), slot);
     }
 
     /**
@@ -108,24 +343,78 @@ public class HeapPageManager implements PageManager {
      * @param rid
      */
     public synchronized void free(RecordId rid) {
-        pool.add(rid);
+        int pageNo = rid.getPid().getPageNumber();
+        FreeSpace space = load(pageNo);
+        space.release(rid.getRecordNumber());
+        refresh(pageNo, space);
     }
 
 
-    private synchronized void createNewPage() throws IOException {
-        int numPages = (int) (dbFile.getLength() / BufferPool.getPageSize());
+    private synchronized int createNewPage() throws IOException {
+        int numPages = numPages();
         HeapPage page = new HeapPage(HeapPage.createEmptyPageData(), new PageId(tableName, numPages));
         writePage(page);
-        for (RecordId recordId : toRecordIdSet(page.getEmptySlots(), page.getPageId())) {
-            if (pool.contains(recordId)) {
-                throw new RuntimeException("异常错误");
-            }
-            pool.add(recordId);
+        if (freeSlots.containsKey(numPages)) {
+            throw new RuntimeException("异常错误");
+        }
+        loadPage(numPages);
+        return numPages;
+    }
+
+    private FreeSpace load(int pageNo) {
+        try {
+            loadPage(pageNo);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+        return freeSlots.get(pageNo);
     }
 
 
+    /**
+     * 将指定的插槽标记为已分配，用于恢复与回滚时重新插入记录，见 {@link #malloc(RecordId, int)}
+     *
+     * @param recordId 插槽
+     */
     public synchronized void malloc(RecordId recordId) {
-        pool.remove(recordId);
+        malloc(recordId, Database.getCatalog().getTableDesc(tableName).getMinRecordSize() + Record.HIDDEN_SIZE);
+    }
+
+    /**
+     * 将指定的插槽标记为已分配，用于恢复与回滚时重新插入记录，记录已经写入页面，因此无论页面是否放得下都会强制预留
+     *
+     * @param recordId 插槽
+     * @param size     记录序列化后的大小
+     */
+    public synchronized void malloc(RecordId recordId, int size) {
+        int pageNo = recordId.getPid().getPageNumber();
+        FreeSpace space = load(pageNo);
+        space.occupy(recordId.getRecordNumber(), size);
+        refresh(pageNo, space);
+    }
+
+    /**
+     * 为分槽页面中已分配的插槽预留更大的容量，用于记录原地变长
+     *
+     * @param recordId 插槽
+     * @param size     新的容量
+     * @return 如果页面放得下返回真，否则返回假且不预留任何空间；定长页面总是返回真
+     */
+    public synchronized boolean reserve(RecordId recordId, int size) {
+        int pageNo = recordId.getPid().getPageNumber();
+        FreeSpace space = load(pageNo);
+        if (!space.fits(recordId.getRecordNumber(), size, BufferPool.getPageSize())) {
+            return false;
+        }
+        space.occupy(recordId.getRecordNumber(), size);
+        refresh(pageNo, space);
+        return true;
+    }
+
+    /**
+     * 返回已经加载空闲插槽的页面数，仅用于测试
+     */
+    synchronized int numLoadedPages() {
+        return freeSlots.size();
     }
 }
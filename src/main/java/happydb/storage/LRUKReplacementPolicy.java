@@ -0,0 +1,108 @@
+package happydb.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU-K 置换策略，驱逐倒数第 K 次访问距今最久的页面，访问次数不足 K 次的页面被视为距离无穷大而优先驱逐，它们之间再按照最近一次访问的先后排序
+ * <P>每个页面维护自己最近 K 次访问的逻辑时间戳，命中时只需获取页面自身历史记录上的锁，不存在全局锁</P>
+ * <P>以 {@link AccessType#SCAN} 方式访问的页面不会记录访问历史，因此全表扫描读入的页面永远只有一次访问记录，会先于热点页面被驱逐</P>
+ * <P>与 {@link ClockReplacementPolicy} 相比，此策略对访问频率的刻画更精确，但驱逐时需要对所有页面排序，适用于缓冲池较小的场景</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/2/8
+ * @Email happysnaker@foxmail.com
+ */
+public class LRUKReplacementPolicy implements ReplacementPolicy {
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+
+    /**
+     * 逻辑时钟，每次访问递增
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    private final Map<PageId, History> histories = new ConcurrentHashMap<>();
+
+    public LRUKReplacementPolicy(int numPages) {
+        this(numPages, DEFAULT_K);
+    }
+
+    public LRUKReplacementPolicy(int numPages, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+    }
+
+    /**
+     * 页面最近 K 次访问的时间戳，以环形数组保存
+     */
+    private class History {
+        final long[] times = new long[k];
+        int count = 0;
+
+        synchronized void record(long time) {
+            times[count % k] = time;
+            count++;
+        }
+
+        /**
+         * 倒数第 K 次访问的时间戳，如果访问次数不足 K 次，返回 -1 表示距离无穷大
+         */
+        synchronized long kthTime() {
+            return count < k ? -1 : times[count % k];
+        }
+
+        synchronized long lastTime() {
+            return times[(count - 1) % k];
+        }
+    }
+
+    @Override
+    public void admit(PageId pid, AccessType type) {
+        History history = new History();
+        history.record(clock.incrementAndGet());
+        histories.put(pid, history);
+    }
+
+    @Override
+    public void access(PageId pid, AccessType type) {
+        if (type == AccessType.SCAN) {
+            return;
+        }
+        History history = histories.get(pid);
+        if (history != null) {
+            history.record(clock.incrementAndGet());
+        }
+    }
+
+    @Override
+    public void remove(PageId pid) {
+        histories.remove(pid);
+    }
+
+    @Override
+    public int size() {
+        return histories.size();
+    }
+
+    @Override
+    public Iterator<PageId> victims() {
+        record Candidate(PageId pid, long kth, long last) {
+        }
+        List<Candidate> candidates = new ArrayList<>(histories.size());
+        for (Map.Entry<PageId, History> it : histories.entrySet()) {
+            History history = it.getValue();
+            candidates.add(new Candidate(it.getKey(), history.kthTime(), history.lastTime()));
+        }
+        candidates.sort(Comparator.comparingLong(Candidate::kth).thenComparingLong(Candidate::last));
+        return candidates.stream().map(Candidate::pid).iterator();
+    }
+}
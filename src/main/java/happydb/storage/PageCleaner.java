@@ -0,0 +1,136 @@
+package happydb.storage;
+
+import happydb.common.Database;
+import happydb.common.Pair;
+import happydb.log.DataPage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 后台刷脏线程，提前将脏页刷新到磁盘，并为缓冲池的每个分区保留一定数量的空闲页帧，使用户线程缺页时几乎不需要同步刷盘
+ * <P>每轮清理分为两步：
+ * <ol>
+ *     <li>按照 {@link DataPage#getFirstDirtyLsn()} 从小到大的顺序刷新一批脏页，这同时也有助于检查点的推进，正被事务锁定的页面会被跳过，见 {@link BufferPool#flushPages(java.util.Collection)}</li>
+ *     <li>对每个分区，如果空闲页帧少于 {@link #FREE_RESERVE_RATIO} 指定的比例，则驱逐一些干净的页面</li>
+ * </ol>
+ * 每批刷新的页数会根据 {@link happydb.log.LogBuffer#getRedoRate()} 自适应调整：重做日志生成得越快，脏页产生得越快，每批需要刷新的页面也就越多</P>
+ * <P>共有 {@link #NUM_CLEANERS} 个线程，每个线程负责一部分分区与脏页，线程总是通过 {@link Database#getBufferPool()} 获取当前的缓冲池</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/2/12
+ * @Email happysnaker@foxmail.com
+ */
+public class PageCleaner implements Runnable {
+    /**
+     * 刷脏线程数量
+     */
+    public static int NUM_CLEANERS = 2;
+
+    /**
+     * 每轮清理的间隔（毫秒）
+     */
+    public static long INTERVAL_MILLIS = 100;
+
+    /**
+     * 每个分区期望保留的空闲页帧比例
+     */
+    public static double FREE_RESERVE_RATIO = 0.1;
+
+    /**
+     * 每批最少、最多刷新的页数
+     */
+    public static int MIN_BATCH = 8, MAX_BATCH = 512;
+
+    private static volatile List<Thread> cleaners = null;
+
+    /**
+     * 此线程的编号
+     */
+    private final int id;
+
+    /**
+     * 线程总数
+     */
+    private final int n;
+
+    public PageCleaner(int id, int n) {
+        this.id = id;
+        this.n = n;
+    }
+
+    /**
+     * 启动刷脏线程，线程只会被启动一次，它们是守护线程，并且只在数据库开启时工作
+     */
+    public static synchronized void start() {
+        if (cleaners != null) {
+            return;
+        }
+        cleaners = new ArrayList<>();
+        for (int i = 0; i < NUM_CLEANERS; i++) {
+            Thread thread = new Thread(new PageCleaner(i, NUM_CLEANERS), "page-cleaner-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            cleaners.add(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (Database.open) {
+                try {
+                    clean();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 计算本轮需要刷新的页数，即一个清理间隔内预计产生的重做日志条数，由所有线程平分
+     */
+    public int batchSize() {
+        double rate = Database.getLogBuffer().getRedoRate();
+        long batch = (long) Math.ceil(rate * INTERVAL_MILLIS / 1000.0 / n);
+        return (int) Math.max(MIN_BATCH, Math.min(MAX_BATCH, batch));
+    }
+
+    /**
+     * 执行一轮清理
+     *
+     * @return 本轮刷新的脏页数量
+     */
+    public int clean() throws IOException {
+        BufferPool pool = Database.getBufferPool();
+
+        // 按照第一次变脏的 LSN 顺序选取属于此线程的脏页
+        int batch = batchSize();
+        List<Page> pages = new ArrayList<>(batch);
+        Iterator<Pair<Long, DataPage>> it = Database.getLogBuffer().getFlushList();
+        while (it.hasNext() && pages.size() < batch) {
+            DataPage page = it.next().getVal();
+            if (Math.floorMod(page.getPageId().hashCode(), n) == id) {
+                pages.add((Page) page);
+            }
+        }
+        if (!pages.isEmpty()) {
+            pool.flushPages(pages);
+        }
+
+        // 为此线程负责的分区保留空闲页帧
+        int reserve = (int) Math.ceil(pool.getNumPages() / (double) pool.numPartitions() * FREE_RESERVE_RATIO);
+        for (int i = id; i < pool.numPartitions(); i += n) {
+            pool.reserveFreeFrames(i, reserve);
+        }
+        return pages.size();
+    }
+}
@@ -5,6 +5,7 @@ import lombok.Getter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @Author happysnaker
@@ -19,12 +20,32 @@ public interface PageManager {
      */
     Page readPage(PageId pid) throws IOException;
 
+    /**
+     * 从磁盘中读取一页，实现类可以将页面数据直接读入缓冲池提供的堆外页帧中，默认实现忽略页帧
+     * @param pid 页 ID
+     * @param arena 缓冲池的页帧池
+     * @return 页
+     */
+    default Page readPage(PageId pid, FrameArena arena) throws IOException {
+        return readPage(pid);
+    }
+
     /**
      * 向磁盘中写入页
      * @param page 待写入的页
      */
     void writePage(Page page) throws IOException;
 
+    /**
+     * 向磁盘中批量写入页，实现类可以将页号相邻的页面合并为一次聚集写
+     * @param pages 待写入的页
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page page : pages) {
+            writePage(page);
+        }
+    }
+
     /**
      * 获取与此类页关联的表
      */
@@ -0,0 +1,204 @@
+package happydb.storage;
+
+import happydb.common.Database;
+import happydb.common.Debug;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * 预读，一次扫描持有一个实例，检测扫描是否在顺序访问页面，如果是，则异步地将之后的页面提前读入缓冲池，
+ * 使扫描线程真正访问这些页面时直接命中缓存，而不是逐页同步等待磁盘
+ * <P>支持两种预读方式：
+ * <ul>
+ *     <li>{@link #prefetchRecords(List, int)}：扫描的记录 ID 列表已知，直接预读之后 {@link #WINDOW} 个不同的堆页面，这些读取并行执行</li>
+ *     <li>{@link #prefetchChain(PageId, ToIntFunction)}：沿页面链表（例如 B+ 树叶子节点的右兄弟）预读，
+ *     下一页的位置只有读到当前页才能知道，因此一条链上的页面只能依次读取</li>
+ * </ul></P>
+ * <P>预读是尽力而为的，所有预读请求共享一个深度为 {@link #QUEUE_DEPTH} 的 IO 队列，队列满时新的请求会被直接丢弃；
+ * 预读的页面不会被加锁，并以 {@link ReplacementPolicy.AccessType#SCAN} 的方式进入缓冲池，缓冲池没有可以直接驱逐的干净页面时也会放弃预读，
+ * 详见 {@link BufferPool#prefetchPage(PageId)}</P>
+ * <P><strong>每个实例都是被串行调用的，因此无需额外的并发控制</strong></P>
+ *
+ * @Author happysnaker
+ * @Date 2023/2/13
+ * @Email happysnaker@foxmail.com
+ */
+public class ReadAhead {
+    /**
+     * 是否开启预读
+     */
+    public static boolean enable = true;
+
+    /**
+     * 同时进行中的预读请求数上限
+     */
+    public static int QUEUE_DEPTH = 16;
+
+    /**
+     * 每次预读的页数
+     */
+    public static int WINDOW = 8;
+
+    /**
+     * 连续顺序访问多少个页面后开始预读，以免点查也触发预读
+     */
+    public static int TRIGGER = 2;
+
+    private static final AtomicInteger inflight = new AtomicInteger();
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 上一次访问的页面
+     */
+    private PageId last;
+
+    /**
+     * 连续顺序访问的页面数
+     */
+    private int sequential;
+
+    /**
+     * 记录 ID 列表中已经发出预读的位置，以及这个位置所属的列表
+     */
+    private int issued;
+    private List<RecordId> issuedList;
+
+    /**
+     * 自上一次沿链表预读以来前进的页数
+     */
+    private int advanced;
+
+    /**
+     * 记录一次页面访问，并判断扫描是否在顺序访问页面
+     *
+     * @param pid     访问的页面
+     * @param chained 指示此页面是否是沿页面链表到达的，链表上的页面号不一定递增，但总是顺序的
+     * @return 如果应该预读，返回真
+     */
+    public boolean access(PageId pid, boolean chained) {
+        if (pid.equals(last)) {
+            return false;
+        }
+        boolean forward = last != null && last.getTableName().equals(pid.getTableName())
+                && (chained || pid.getPageNumber() > last.getPageNumber());
+        sequential = forward ? sequential + 1 : 0;
+        last = pid;
+        return enable && sequential >= TRIGGER;
+    }
+
+    /**
+     * 根据已知的记录 ID 列表，预读从 pos 开始的 {@link #WINDOW} 个不同的页面，已经发出过预读的位置不会重复预读
+     * <P>列表可以是索引游标逐批读入的一批记录，传入新的列表时从头开始计算已经发出预读的位置</P>
+     *
+     * @param rids 扫描的记录 ID 列表
+     * @param pos  扫描当前的位置
+     */
+    public void prefetchRecords(List<RecordId> rids, int pos) {
+        if (rids != issuedList) {
+            issuedList = rids;
+            issued = 0;
+        }
+        int i = Math.max(pos, issued);
+        // 只在已发出的预读窗口消耗过半后才补充，以免频繁地提交请求
+        if (i > pos && countPages(rids, pos, i) > WINDOW / 2) {
+            return;
+        }
+        PageId prev = i > 0 && i <= rids.size() ? rids.get(i - 1).getPid() : null;
+        int pages = 0;
+        for (; i < rids.size() && pages < WINDOW; i++) {
+            PageId pid = rids.get(i).getPid();
+            if (pid.equals(prev)) {
+                continue;
+            }
+            prev = pid;
+            if (!submit(pid, 1, null)) {
+                break;
+            }
+            pages++;
+        }
+        issued = i;
+    }
+
+    private static int countPages(List<RecordId> rids, int from, int to) {
+        int pages = 0;
+        PageId prev = null;
+        for (int i = from; i < to; i++) {
+            PageId pid = rids.get(i).getPid();
+            if (!pid.equals(prev)) {
+                pages++;
+                prev = pid;
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * 沿页面链表从 first 开始预读 {@link #WINDOW} 个页面，每前进 WINDOW / 2 页才会发出一次新的请求
+     *
+     * @param first 链表上的下一个页面
+     * @param next  从页面中读取它的下一个页面号，0 表示链表结束
+     */
+    public void prefetchChain(PageId first, ToIntFunction<Page> next) {
+        if (advanced++ % Math.max(1, WINDOW / 2) != 0) {
+            return;
+        }
+        submit(first, WINDOW, next);
+    }
+
+    /**
+     * 提交一个预读请求
+     *
+     * @param pid   首个页面
+     * @param depth 沿链表预读的页数
+     * @param next  链表的下一个页面号，仅当 depth 大于 1 时使用
+     * @return 如果 IO 队列已满，请求被丢弃，返回假
+     */
+    private static boolean submit(PageId pid, int depth, ToIntFunction<Page> next) {
+        if (inflight.incrementAndGet() > QUEUE_DEPTH) {
+            inflight.decrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    PageId curr = pid;
+                    for (int i = 0; i < depth; i++) {
+                        Page page = Database.getBufferPool().prefetchPage(curr);
+                        if (page == null || next == null) {
+                            break;
+                        }
+                        int pgNo = next.applyAsInt(page);
+                        if (pgNo == 0) {
+                            break;
+                        }
+                        curr = new PageId(curr.getTableName(), pgNo);
+                    }
+                } catch (Exception e) {
+                    Debug.log("预读失败 %s", e.getMessage());
+                } finally {
+                    inflight.decrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            inflight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 返回进行中的预读请求数
+     */
+    public static int inflight() {
+        return inflight.get();
+    }
+}
@@ -88,9 +88,20 @@ public class Record implements DbSerializable, Cloneable {
                 un);
     }
 
+    /**
+     * 返回记录序列化后的字节数（包含隐藏字段），含有变长字段时小于等于 {@link TableDesc#getRecordSize()} 加上隐藏字段大小
+     */
+    public int getSerializedLen() {
+        int len = HIDDEN_SIZE;
+        for (Field field : this.fieldAr) {
+            len += field.getSerializedLen();
+        }
+        return len;
+    }
+
     @Override
     public ByteArray serialized() {
-        ByteArray byteAr = ByteArray.allocate(tableDesc.getRecordSize() + HIDDEN_SIZE);
+        ByteArray byteAr = ByteArray.allocate(getSerializedLen());
         for (Field field : this.fieldAr) {
             byteAr.writeByteArray(field.serialized());
         }
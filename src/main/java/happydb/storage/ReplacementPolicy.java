@@ -0,0 +1,68 @@
+package happydb.storage;
+
+import java.util.Iterator;
+
+/**
+ * 缓冲池的页面置换策略，决定缓冲池满时应该优先驱逐哪些页面
+ * <P>{@link #access(PageId, AccessType)} 处于每次页面命中的热路径上，实现类<strong>不应该</strong>在此方法中获取全局锁；
+ * 而 {@link #admit(PageId, AccessType)}、{@link #remove(PageId)} 与 {@link #victims()} 仅在缓存未命中或驱逐时调用，频率较低</P>
+ * <P>置换策略只跟踪页面 ID，页面能否被驱逐（是否被锁定、是否是脏页）仍然由 {@link BufferPool} 判断</P>
+ *
+ * @Author happysnaker
+ * @Date 2023/2/8
+ * @Email happysnaker@foxmail.com
+ * @see ClockReplacementPolicy
+ * @see LRUKReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * 页面的访问方式，置换策略可以据此区分一次性的顺序扫描与真正的热点访问
+     */
+    enum AccessType {
+        /**
+         * 普通的访问，例如点查以及 B+ 树内部节点的访问
+         */
+        NORMAL,
+        /**
+         * 顺序扫描的访问，扫描的页面通常只会被访问一次，它不应该将热点页面挤出缓冲池
+         */
+        SCAN
+    }
+
+    /**
+     * 页面被加入缓冲池时调用
+     *
+     * @param pid  页面 ID
+     * @param type 引起页面加载的访问方式
+     */
+    void admit(PageId pid, AccessType type);
+
+    /**
+     * 缓冲池中的页面被命中时调用
+     *
+     * @param pid  页面 ID
+     * @param type 访问方式
+     */
+    void access(PageId pid, AccessType type);
+
+    /**
+     * 页面被移出缓冲池时调用，如果页面不在跟踪范围内则静默返回
+     *
+     * @param pid 页面 ID
+     */
+    void remove(PageId pid);
+
+    /**
+     * 按驱逐优先级返回候选页面，调用方会依次尝试驱逐，直到驱逐成功或迭代结束
+     * <P>返回的页面 ID 可能已经不在缓冲池中，调用方需要自行判断</P>
+     *
+     * @return 候选页面的迭代器
+     */
+    Iterator<PageId> victims();
+
+    /**
+     * 返回正在跟踪的页面数量
+     */
+    int size();
+}
@@ -15,11 +15,29 @@ import static happydb.storage.Type.STRING_LEN;
  * @Email happysnaker@foxmail.com
  */
 
-public record StringField(String value) implements Field {
-    public StringField(String value) {
+public record StringField(String value, Type type) implements Field {
+    /**
+     * @param value 字符串
+     * @param type  {@link Type#STRING_TYPE} 或 {@link Type#VARCHAR_TYPE}
+     */
+    public StringField(String value, Type type) {
+        if (!type.isString())
+            throw new IllegalArgumentException("类型不匹配");
         if (value.getBytes(StandardCharsets.UTF_8).length > STRING_LEN)
             throw new IllegalArgumentException("字符串长度超出限制");
         this.value = value;
+        this.type = type;
+    }
+
+    public StringField(String value) {
+        this(value, Type.STRING_TYPE);
+    }
+
+    /**
+     * @return 字符串以 UTF-8 编码后的字节数，字段的长度限制都以字节计算，见 {@link TableDesc#getMaxLength(int)}
+     */
+    public int length() {
+        return value.getBytes(StandardCharsets.UTF_8).length;
     }
 
     @Override
@@ -28,14 +46,37 @@ public record StringField(String value) implements Field {
     }
 
 
+    /**
+     * 定长字符串总是占用 {@link Type#getLen()} 字节，变长字符串只占用长度前缀与实际字节
+     */
     @Override
     public ByteArray serialized() {
-        ByteArray byteAr = ByteArray.allocate(getType().getLen());
+        ByteArray byteAr = ByteArray.allocate(getSerializedLen());
         byteAr.writeInt(value.getBytes(StandardCharsets.UTF_8).length);
         byteAr.writeString(value);
         return byteAr;
     }
 
+    @Override
+    public int getSerializedLen() {
+        return type.isVariableLength() ? 4 + value.getBytes(StandardCharsets.UTF_8).length : type.getLen();
+    }
+
+    /**
+     * 定长与变长字符串只要值相同即相等
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof StringField other)) return false;
+        return value.equals(other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
     /**
      * 将指定字段与此字段的值进行比较。返回语义由 Field.compare 指定
      *
@@ -63,7 +104,7 @@ public record StringField(String value) implements Field {
      * @return 该字段的类型
      */
     public Type getType() {
-        return Type.STRING_TYPE;
+        return type;
     }
 }
 
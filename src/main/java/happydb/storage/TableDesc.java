@@ -5,6 +5,7 @@ import happydb.common.ByteList;
 import happydb.common.DbSerializable;
 import happydb.index.IndexType;
 import lombok.Getter;
+import lombok.Setter;
 
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
@@ -22,7 +23,9 @@ import java.util.NoSuchElementException;
  */
 public class TableDesc implements DbSerializable {
     /**
-     * 4 字节的长度加上一个字符串，字符串形式严格遵循 table_name (field_name field_type index_type) (field_name field_type index_type) ...
+     * 4 字节的长度加上一个字符串，字符串形式严格遵循 table_name (field_name field_type index_type) (field_name field_type index_type) ...，
+     * 声明了更小长度的字符串字段在括号内追加最大长度，形如 (field_name VARCHAR_TYPE index_type max_length)；
+     * 如果表开启了页面压缩，末尾追加 COMPRESSED
      */
     @Override
     public ByteArray serialized() {
@@ -34,8 +37,14 @@ public class TableDesc implements DbSerializable {
                     .append(" ")
                     .append(item.fieldType)
                     .append(" ")
-                    .append(item.indexType)
-                    .append(") ");
+                    .append(item.indexType);
+            if (item.fieldType.isString() && item.maxLength != Type.STRING_LEN) {
+                sb.append(" ").append(item.maxLength);
+            }
+            sb.append(") ");
+        }
+        if (compressed) {
+            sb.append(COMPRESSED);
         }
         String s = sb.toString().trim();
         return new ByteList()
@@ -50,8 +59,13 @@ public class TableDesc implements DbSerializable {
      * @param fieldType 字段类型
      * @param fieldName 字段名称
      * @param indexType 索引类型
+     * @param maxLength 字符串字段允许的最大字节数，例如 VARCHAR(n) 中的 n，非字符串字段为 0
      */
-    public record TDItem(Type fieldType, String fieldName, int indexType) implements Serializable {
+    public record TDItem(Type fieldType, String fieldName, int indexType, int maxLength) implements Serializable {
+        public TDItem(Type fieldType, String fieldName, int indexType) {
+            this(fieldType, fieldName, indexType, fieldType.isString() ? Type.STRING_LEN : 0);
+        }
+
         public String toString() {
             return String.format("%s (%s %d)", fieldType, fieldName, indexType);
         }
@@ -68,6 +82,15 @@ public class TableDesc implements DbSerializable {
     @Getter
     private final String tableName;
 
+    public static final String COMPRESSED = "COMPRESSED";
+
+    /**
+     * 是否以压缩形式存储堆文件与索引文件的页面，见 {@link happydb.common.CompressedDbFile}
+     */
+    @Getter
+    @Setter
+    private boolean compressed = false;
+
     /**
      * @return 一个迭代器，迭代包含在此 TableDesc 中的所有字段 TDItems
      */
@@ -150,6 +173,35 @@ public class TableDesc implements DbSerializable {
     }
 
 
+    /**
+     * 获取此 TableDesc 的第 i 个字段允许的最大字节数，只对字符串字段有意义，未声明长度的字符串字段为 {@link Type#STRING_LEN}
+     *
+     * @param i 字段的索引。它必须是一个有效的索引。
+     * @return 第 i 个字段允许的最大字节数
+     * @throws NoSuchElementException 如果 i 不是一个有效的字段引用。
+     */
+    public int getMaxLength(int i) throws NoSuchElementException {
+        if (i < 0 || i >= this.items.length) {
+            throw new NoSuchElementException();
+        }
+        return this.items[i].maxLength;
+    }
+
+    /**
+     * 设置第 i 个字符串字段允许的最大字节数
+     *
+     * @param i         字段的索引
+     * @param maxLength 最大字节数，不能超过 {@link Type#STRING_LEN}
+     * @throws IllegalArgumentException 如果字段不是字符串类型或长度不合法
+     */
+    public void setMaxLength(int i, int maxLength) {
+        TDItem item = this.items[i];
+        if (!item.fieldType.isString() || maxLength < 0 || maxLength > Type.STRING_LEN) {
+            throw new IllegalArgumentException("字段 " + item.fieldName + " 不能设置最大长度 " + maxLength);
+        }
+        this.items[i] = new TDItem(item.fieldType, item.fieldName, item.indexType, maxLength);
+    }
+
     /**
      * 获取此 TableDesc 的第 i 个字段的索引类型。
      *
@@ -196,7 +248,8 @@ public class TableDesc implements DbSerializable {
     }
 
     /**
-     * 此方法适用于计算页面包含的元组数量，请注意，因为<strong>返回的大小不包含隐藏字段的大小</strong>
+     * 此方法适用于计算页面包含的元组数量，请注意，因为<strong>返回的大小不包含隐藏字段的大小</strong>，
+     * 对于含有变长字段的表，返回的是元组可能的最大大小
      *
      * @return 与此 TableDesc 对应的元组的大小（以字节为单位）
      */
@@ -208,6 +261,31 @@ public class TableDesc implements DbSerializable {
         return size;
     }
 
+    /**
+     * 返回元组可能的最小大小，变长字段按空值计算，<strong>返回的大小不包含隐藏字段的大小</strong>
+     *
+     * @return 元组的最小大小（以字节为单位）
+     */
+    public int getMinRecordSize() {
+        int size = 0;
+        for (TDItem tdItem : this.items) {
+            size += tdItem.fieldType.isVariableLength() ? 4 : tdItem.fieldType.getLen();
+        }
+        return size;
+    }
+
+    /**
+     * @return 表是否含有变长字段，含有变长字段的表使用分槽页面存储，见 {@link HeapPage}
+     */
+    public boolean isVariableLength() {
+        for (TDItem tdItem : this.items) {
+            if (tdItem.fieldType.isVariableLength()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 
     /**
      * 将两个 TableDesc 合并为一个，具有 td1.numFields + td2.numFields 字段，在连接的时候可能有用，合并后的表名将置空
@@ -234,7 +312,10 @@ public class TableDesc implements DbSerializable {
             indexAr[index] = tdItem.indexType;
             index++;
         }
-        return new TableDesc(null, fieldAr, typeAr, indexAr);
+        TableDesc td = new TableDesc(null, fieldAr, typeAr, indexAr);
+        System.arraycopy(td1.items, 0, td.items, 0, td1.items.length);
+        System.arraycopy(td2.items, 0, td.items, td1.items.length, td2.items.length);
+        return td;
     }
 
 
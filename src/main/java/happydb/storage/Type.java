@@ -8,7 +8,10 @@ import java.io.Serializable;
 import java.text.ParseException;
 
 /**
- * 表示 HelloDB 中类型的类。类型是此类定义的静态对象，任何一种类型都是定长的
+ * 表示 HelloDB 中类型的类。类型是此类定义的静态对象
+ * <P>除 {@link #VARCHAR_TYPE} 外的类型都是定长的。{@link #VARCHAR_TYPE} 在行记录中以长度前缀加实际字节的形式变长存储，
+ * {@link #getLen()} 返回它可能的最大长度，索引页与 undo 页等要求定长条目的地方通过 {@link #parseFixed(ByteArray)} 与
+ * {@link Field#serializedFixed()} 按最大长度补齐存储</P>
  *
  * @Author happysnaker
  * @Date 2022/11/16
@@ -54,6 +57,25 @@ public enum Type implements Serializable {
             assert len <= STRING_LEN;
             return new StringField(data.readString(len));
         }
+    }, VARCHAR_TYPE() {
+        @Override
+        public int getLen() {
+            return STRING_LEN + 4;
+        }
+
+        @Override
+        public Field parse(ByteArray byteAr) throws ParseException {
+            int len = byteAr.readInt();
+            if (len < 0 || len > STRING_LEN) {
+                throw new ParseException("字符串长度不合法：" + len, 0);
+            }
+            return new StringField(byteAr.readString(len), VARCHAR_TYPE);
+        }
+
+        @Override
+        public boolean isVariableLength() {
+            return true;
+        }
     };
 
     public static final int STRING_LEN = 256;
@@ -72,4 +94,29 @@ public enum Type implements Serializable {
      * @throws ParseException
      */
     public abstract Field parse(ByteArray byteAr) throws ParseException;
+
+    /**
+     * 从按 {@link #getLen()} 补齐存储的定长条目中解析字段，这会导致读取点向后移动 {@link #getLen()} 个长度
+     *
+     * @param byteAr 字节数组
+     * @return 解析出的字段
+     * @throws ParseException
+     */
+    public Field parseFixed(ByteArray byteAr) throws ParseException {
+        return isVariableLength() ? parse(byteAr.readByteArray(getLen())) : parse(byteAr);
+    }
+
+    /**
+     * @return 此类型在行记录中是否变长存储
+     */
+    public boolean isVariableLength() {
+        return false;
+    }
+
+    /**
+     * @return 此类型是否为字符串类型
+     */
+    public boolean isString() {
+        return this == STRING_TYPE || this == VARCHAR_TYPE;
+    }
 }
@@ -0,0 +1,59 @@
+package happydb.transaction;
+
+/**
+ * 锁模式，用于多粒度加锁：行记录上只使用 S 与 X 锁，表上还可以使用意向锁 IS 与 IX
+ * <P>事务在行记录上加 S 锁之前必须先在表上持有 IS 锁，加 X 锁之前必须先在表上持有 IX 锁，这由 {@link LockTable} 自动完成，
+ * 表上的 S 锁覆盖表中所有行记录上的 S 锁，表上的 X 锁覆盖所有行记录上的任意锁</P>
+ * <P>兼容矩阵如下（此处没有实现 SIX 锁，同时需要 S 与 IX 时直接升级为 X）：</P>
+ * <pre>
+ *        IS   IX   S    X
+ *   IS   √    √    √    ×
+ *   IX   √    √    ×    ×
+ *   S    √    ×    √    ×
+ *   X    ×    ×    ×    ×
+ * </pre>
+ *
+ * @Author happysnaker
+ * @Date 2022/12/3
+ * @Email happysnaker@foxmail.com
+ */
+public enum LockMode {
+    IS, IX, S, X;
+
+    private static final boolean[][] COMPATIBLE = {
+            {true, true, true, false},
+            {true, true, false, false},
+            {true, false, true, false},
+            {false, false, false, false},
+    };
+
+    /**
+     * 判断两个不同事务持有的锁模式是否兼容
+     */
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * 判断持有此模式的锁是否意味着也持有给定模式的锁
+     */
+    public boolean covers(LockMode other) {
+        if (this == other || this == X) {
+            return true;
+        }
+        return other == IS;
+    }
+
+    /**
+     * 返回同时覆盖两种模式的最弱模式，用于锁升级
+     */
+    public LockMode supremum(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        return X;
+    }
+}
@@ -5,150 +5,516 @@ import happydb.storage.RecordId;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * 此类是 Db 中行记录锁获取与释放的入口
+ * 此类是 Db 中行记录锁与表锁获取与释放的入口
+ * <P>锁是多粒度的：行记录上可以加 S 或 X 锁，表上可以加 IS、IX、S 或 X 锁，在行记录上加锁时会自动在表上加对应的意向锁，
+ * 兼容规则见 {@link LockMode}。当事务在一张表上持有的行锁超过 {@link #LOCK_ESCALATION_THRESHOLD} 时，
+ * 会尝试将它们升级为一个表锁，升级成功后释放这些行锁，此后该表上的行记录不再单独加锁，大批量的更新与删除因此不会为每一行创建锁对象</P>
+ * <P>锁表被划分为 {@link #NUM_SHARDS} 个分片，资源按哈希值映射到分片，每个分片由独立的闩锁保护，
+ * 不同资源上的加锁与解锁通常落在不同的分片上，不会相互竞争。分片中只保存正在被持有或等待的锁，
+ * 锁空闲时立即从分片中移除，因此不需要对象池与引用计数</P>
+ * <P>分片闩锁使用 {@link ReentrantLock}，等待者在 {@link ResourceLock} 的 FIFO 队列中通过 park 堵塞，
+ * 释放锁时直接移交给队首等待者，整个过程不使用监视器</P>
  *
  * @Author happysnaker
  * @Date 2022/12/3
  * @Email happysnaker@foxmail.com
  */
 public class LockTable {
+    /**
+     * 锁表的分片数
+     */
+    public static int NUM_SHARDS = 64;
+
+    /**
+     * 是否开启死锁检测，关闭后只依赖等待超时解决死锁
+     */
+    public static boolean DEADLOCK_DETECT = true;
+
+    /**
+     * 事务等待多久（毫秒）之后才运行死锁检测，为 0 表示立即检测
+     */
+    public static long DEADLOCK_DETECT_DELAY_MILLIS = 5;
+
+    /**
+     * 事务等待锁的最长时间（毫秒），超时后视为发生了死锁
+     */
+    public static long LOCK_WAIT_TIMEOUT_MILLIS = 50 * 1000;
+
+    /**
+     * 事务在一张表上持有的行锁超过此数量时，尝试升级为表锁
+     */
+    public static int LOCK_ESCALATION_THRESHOLD = 5000;
+
+    private final Shard[] shards;
     /**
      * 表示事务持有那些锁
      */
-    private final Map<TransactionId, Set<RecordLock>> transactionHoldMap = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Holds> transactionHoldMap = new ConcurrentHashMap<>();
+    /**
+     * 事务正在等待哪些锁
+     */
+    private final Map<TransactionId, ResourceLock.Waiter> waitTable = new ConcurrentHashMap<>();
+
+    /**
+     * 锁等待的指标：进入等待的次数、死锁检测的次数、检测耗时的总和与最大值（纳秒）、牺牲者数量、等待超时次数与锁升级次数
+     */
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong detectCount = new AtomicLong();
+    private final AtomicLong detectNanos = new AtomicLong();
+    private final AtomicLong maxDetectNanos = new AtomicLong();
+    private final AtomicLong victimCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong escalationCount = new AtomicLong();
+
+    public LockTable() {
+        shards = new Shard[Math.max(1, NUM_SHARDS)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
     /**
-     * 表示行记录被哪个事务所占有
+     * 锁表分片，锁的创建、移除与状态修改都必须持有闩锁，读取持有者则不需要
      */
-    private final Map<RecordId, TransactionId> lockTable = new ConcurrentHashMap<>();
+    private static class Shard {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<Object, ResourceLock> locks = new ConcurrentHashMap<>();
+    }
+
     /**
-     * 事务正在等待哪些记录
+     * 事务持有的锁，以及它在每张表上持有的行锁数量
      */
-    private final Map<TransactionId, RecordId> waitTable = new ConcurrentHashMap<>();
+    private static class Holds {
+        final Set<Object> resources = ConcurrentHashMap.newKeySet();
+        final Map<String, AtomicInteger> rowLocks = new ConcurrentHashMap<>();
+    }
+
+    private Shard shardOf(Object resource) {
+        return shards[Math.floorMod(resource.hashCode(), shards.length)];
+    }
+
+    private ResourceLock getLock(Object resource) {
+        return shardOf(resource).locks.get(resource);
+    }
 
 
     /**
-     * 判断当前图中是否存在死锁
-     * <P>由于要获取当前图的一致性快照，因此需要加锁</P>
+     * 查找等待者所在的死锁环
+     * <P>从新加入的等待者出发，沿着等待边深度优先搜索，只访问从它可达的事务，检测的代价与可达部分的大小有关，而与等待者的总数无关。
+     * 新加入的边只可能形成经过该等待者的环，因此无需检测整个等待图</P>
+     * <P>检测不持有任何全局锁，读取的等待表与持有者可能不是同一时刻的快照。由于每个事务都是先写入等待表再检测，
+     * 同时闭合同一个环的两个事务中至少有一个能看见完整的环，极端情况下两者都可能被选为牺牲者，
+     * 而遗漏的死锁最终由等待超时兜底</P>
      *
-     * @return 是否含有死锁
-     */
-    private synchronized boolean hasDeadLock() {
-        // 生成等待图，边 x-> y 表示事务 x 正在等待事务 y
-        // 拓扑排序检测环
-        Map<TransactionId, Set<TransactionId>> graph = new HashMap<>();
-        Map<TransactionId, Integer> degree = new HashMap<>(); // 入度
-        for (Map.Entry<TransactionId, RecordId> it : waitTable.entrySet()) {
-            TransactionId hold = lockTable.get(it.getValue());
-            if (hold != null) {
-                graph.putIfAbsent(it.getKey(), new HashSet<>());
-                graph.putIfAbsent(hold, new HashSet<>());       // 让 graph 存储所有的节点
-                graph.get(it.getKey()).add(hold);
-                degree.put(hold, degree.getOrDefault(hold, 0) + 1);
-            }
-        }
-
-        // 存储所有入度为 0 的节点
-        Deque<TransactionId> stk = new ArrayDeque<>();
-        for (TransactionId tid : graph.keySet()) {
-            if (degree.getOrDefault(tid, 0) == 0) {
-                stk.push(tid);
-            }
-        }
-        int count = 0;
-        while (!stk.isEmpty()) {
-            TransactionId pop = stk.pop();
-            count++;
-            for (TransactionId y : graph.get(pop)) {
-                degree.put(y, degree.getOrDefault(y, 0) - 1);
-                if (degree.get(y) == 0) {
-                    stk.push(y);
+     * @return 环上的所有事务，从等待者开始，如果不存在死锁，返回 null
+     */
+    private List<TransactionId> findDeadLockCycle(ResourceLock.Waiter waiter) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        Set<TransactionId> visited = new HashSet<>();
+        visited.add(waiter.getTid());
+        return findDeadLockCycle(waiter, waiter.getTid(), path, visited) ? new ArrayList<>(path) : null;
+    }
+
+    private boolean findDeadLockCycle(ResourceLock.Waiter waiter, TransactionId target,
+                                      Deque<TransactionId> path, Set<TransactionId> visited) {
+        path.addLast(waiter.getTid());
+        ResourceLock lock = getLock(waiter.getResource());
+        if (lock != null) {
+            for (TransactionId blocker : lock.blockers(waiter)) {
+                if (blocker.equals(target)) {
+                    return true;
                 }
+                if (!visited.add(blocker)) {
+                    continue;
+                }
+                ResourceLock.Waiter next = waitTable.get(blocker);
+                if (next != null && findDeadLockCycle(next, target, path, visited)) {
+                    return true;
+                }
+            }
+        }
+        path.removeLast();
+        return false;
+    }
+
+    /**
+     * 运行一次死锁检测，如果存在死锁，选择环中最年轻（ID 最大）的事务作为牺牲者，它完成的工作最少，回滚代价最小
+     * <P>如果牺牲者不是当前事务，它会被移出等待队列并被唤醒，由它自己的线程抛出 {@link DeadLockException}</P>
+     *
+     * @return 如果当前事务被选为牺牲者，返回真
+     */
+    private boolean detectDeadLock(ResourceLock.Waiter waiter) {
+        long start = System.nanoTime();
+        try {
+            List<TransactionId> cycle = findDeadLockCycle(waiter);
+            if (cycle == null) {
+                return false;
             }
+            TransactionId victim = Collections.max(cycle, Comparator.comparingLong(TransactionId::getXid));
+            if (victim.equals(waiter.getTid())) {
+                return true;
+            }
+            abortWaiter(victim);
+            return false;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            detectCount.incrementAndGet();
+            detectNanos.addAndGet(elapsed);
+            maxDetectNanos.accumulateAndGet(elapsed, Math::max);
         }
-        return count != graph.size();
     }
 
     /**
-     * 事务尝试在行记录上获取一个锁
+     * 将另一个正在等待的事务作为死锁的牺牲者唤醒，如果它已经获得了锁，则什么也不做
+     */
+    private void abortWaiter(TransactionId victim) {
+        ResourceLock.Waiter waiter = waitTable.get(victim);
+        if (waiter != null && cancel(waiter)) {
+            victimCount.incrementAndGet();
+            waiter.abort();
+        }
+    }
+
+    /**
+     * 事务尝试在行记录上获取一个排他锁
      *
      * @param recordId 行记录
-     * @throws DeadLockException 如果检测到死锁
+     * @throws DeadLockException 如果事务被选为死锁的牺牲者或者等待超时
      */
     public void lock(TransactionId tid, RecordId recordId) throws DeadLockException {
-        RecordLock lock = RecordLock.getInstance(recordId, tid);
-        if (lock.tryLock(tid)) {
-            transactionHoldMap.putIfAbsent(tid, new HashSet<>());
-            transactionHoldMap.get(tid).add(lock);
-            lockTable.put(recordId, tid);
+        lock(tid, recordId, LockMode.X);
+    }
+
+    /**
+     * 事务尝试在行记录上获取一个锁，获取之前会先在表上获取对应的意向锁，如果表锁已经覆盖了请求的模式，则不再对行记录加锁
+     *
+     * @param recordId 行记录
+     * @param mode     {@link LockMode#S} 或 {@link LockMode#X}
+     * @throws DeadLockException 如果事务被选为死锁的牺牲者或者等待超时
+     */
+    public void lock(TransactionId tid, RecordId recordId, LockMode mode) throws DeadLockException {
+        if (mode != LockMode.S && mode != LockMode.X) {
+            throw new IllegalArgumentException("行记录只支持 S 锁与 X 锁");
+        }
+        String tableName = recordId.getPid().getTableName();
+        ResourceLock table = getLock(tableName);
+        boolean heldTable = table != null && table.getMode(tid) != null;
+        LockMode tableMode = lockTable(tid, tableName, mode == LockMode.S ? LockMode.IS : LockMode.IX);
+        if (tableMode.covers(mode)) {
             return;
         }
+        try {
+            acquire(tid, recordId, mode);
+        } catch (RuntimeException e) {
+            // 等待被中断或取消（包括死锁与超时）时，释放本次新获取的意向锁，它没有保护任何行记录
+            if (!heldTable) {
+                releaseTable(tid, tableName);
+            }
+            throw e;
+        }
 
-        waitTable.put(tid, recordId);
-        if (hasDeadLock()) {
-            // 死锁发生
-            waitTable.remove(tid);
-            RecordLock.free(recordId, tid);
-            throw new DeadLockException(tid + " try lock " + recordId + ", but deadlock happen.");
+        AtomicInteger rows = transactionHoldMap.get(tid).rowLocks.get(tableName);
+        if (rows != null && rows.get() > LOCK_ESCALATION_THRESHOLD) {
+            tryEscalate(tid, tableName);
         }
+    }
 
-        // 堵塞获取锁
-        lock.lock(tid);
+    /**
+     * 事务尝试在表上获取一个锁
+     *
+     * @param tableName 表名
+     * @param mode      模式
+     * @return 获取成功后事务在表上持有的模式，如果事务之前已经持有更强的模式，则返回更强的模式
+     * @throws DeadLockException 如果事务被选为死锁的牺牲者或者等待超时
+     */
+    public LockMode lockTable(TransactionId tid, String tableName, LockMode mode) throws DeadLockException {
+        acquire(tid, tableName, mode);
+        return getLock(tableName).getMode(tid);
+    }
 
-        // 获取锁成功
-        waitTable.remove(tid);
-        transactionHoldMap.putIfAbsent(tid, new HashSet<>());
-        transactionHoldMap.get(tid).add(lock);
-        lockTable.put(recordId, tid);
+    /**
+     * 在资源上获取锁
+     * <P>获取失败时事务进入等待队列，如果在 {@link #DEADLOCK_DETECT_DELAY_MILLIS} 内未获得锁，则运行一次死锁检测，
+     * 短暂的等待不会产生任何检测开销；如果在 {@link #LOCK_WAIT_TIMEOUT_MILLIS} 内仍未获得锁，则认为发生了死锁</P>
+     */
+    private void acquire(TransactionId tid, Object resource, LockMode mode) throws DeadLockException {
+        Shard shard = shardOf(resource);
+        ResourceLock.Waiter waiter;
+        shard.latch.lock();
+        try {
+            ResourceLock lock = shard.locks.computeIfAbsent(resource, ResourceLock::new);
+            if (lock.tryLock(tid, mode)) {
+                addHold(tid, resource);
+                return;
+            }
+            waiter = lock.enqueue(tid, mode);
+            waitTable.put(tid, waiter);
+        } finally {
+            shard.latch.unlock();
+        }
+        waitCount.incrementAndGet();
+
+        long timeout = TimeUnit.MILLISECONDS.toNanos(LOCK_WAIT_TIMEOUT_MILLIS);
+        try {
+            if (DEADLOCK_DETECT) {
+                long delay = Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(DEADLOCK_DETECT_DELAY_MILLIS));
+                if (!waiter.await(delay)) {
+                    timeout -= delay;
+                    // 检测期间锁可能已经被移交给当前事务，此时取消失败，不存在死锁
+                    if (detectDeadLock(waiter) && cancel(waiter)) {
+                        victimCount.incrementAndGet();
+                        throw new DeadLockException(tid + " try lock " + resource + ", but deadlock happen.");
+                    }
+                }
+            }
+            // 堵塞直到锁被移交，移交时已经更新了等待表与持有表
+            if (!waiter.await(timeout) && cancel(waiter)) {
+                timeoutCount.incrementAndGet();
+                throw new DeadLockException(tid + " try lock " + resource + ", but lock wait timeout.");
+            }
+        } catch (InterruptedException e) {
+            if (cancel(waiter)) {
+                throw new RuntimeException(e);
+            }
+            // 中断与移交同时发生，保留锁并恢复中断状态
+            Thread.currentThread().interrupt();
+        }
+        if (waiter.isAborted()) {
+            throw new DeadLockException(tid + " try lock " + resource + ", but deadlock happen and it is chosen as victim.");
+        }
+    }
+
+    /**
+     * 释放事务在表上持有的锁，并将其从事务的持有表中移除
+     */
+    private void releaseTable(TransactionId tid, String tableName) {
+        Holds holds = transactionHoldMap.get(tid);
+        if (holds != null) {
+            holds.resources.remove(tableName);
+        }
+        release(tid, tableName);
+    }
+
+    /**
+     * 将等待者从等待队列中移除，被移除的等待者可能挡住了后面的等待者，因此需要重新移交
+     *
+     * @return 如果锁已经被移交给等待者或者等待者已经被放弃，返回假
+     */
+    private boolean cancel(ResourceLock.Waiter waiter) {
+        Object resource = waiter.getResource();
+        Shard shard = shardOf(resource);
+        shard.latch.lock();
+        try {
+            ResourceLock lock = shard.locks.get(resource);
+            if (lock == null || !lock.cancel(waiter)) {
+                return false;
+            }
+            waitTable.remove(waiter.getTid(), waiter);
+            handOff(resource, lock.grantWaiters());
+            if (lock.isFree()) {
+                shard.locks.remove(resource);
+            }
+            return true;
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * 尝试将事务在表上持有的行锁升级为表锁，升级不会堵塞，如果表上有其他事务持有不兼容的锁，则放弃升级，之后再次尝试
+     */
+    private void tryEscalate(TransactionId tid, String tableName) {
+        Shard shard = shardOf(tableName);
+        shard.latch.lock();
+        try {
+            ResourceLock lock = shard.locks.get(tableName);
+            LockMode target = lock.getMode(tid) == LockMode.IS ? LockMode.S : LockMode.X;
+            if (!lock.tryLock(tid, target)) {
+                return;
+            }
+        } finally {
+            shard.latch.unlock();
+        }
+        escalationCount.incrementAndGet();
+
+        Holds holds = transactionHoldMap.get(tid);
+        holds.rowLocks.remove(tableName);
+        for (Object resource : holds.resources) {
+            if (resource instanceof RecordId && ((RecordId) resource).getPid().getTableName().equals(tableName)) {
+                holds.resources.remove(resource);
+                release(tid, resource);
+            }
+        }
     }
 
 
     /**
-     * 事务结束时需要释放所有的行记录锁
+     * 事务结束时需要释放所有的锁
      *
      * @param tid 事务
      */
     public void releaseAll(TransactionId tid) {
-        for (var lock : new HashSet<>(transactionHoldMap.getOrDefault(tid, new HashSet<>()))) {
-            lock.unLock(tid);
-            transactionHoldMap.get(tid).remove(lock);
-            lockTable.remove(lock.getRecordId());
-            RecordLock.free(lock.getRecordId(), tid);
+        Holds holds = transactionHoldMap.remove(tid);
+        if (holds == null) {
+            return;
+        }
+        for (Object resource : holds.resources) {
+            release(tid, resource);
         }
     }
 
     /**
-     * 事务释放某个记录上的锁，这是个危险的操作
+     * 事务释放某个记录上的锁，这是个危险的操作，如果记录上的锁已经被表锁覆盖，则什么也不做
      * @param tid 事务
      * @param recordId 记录
      * @throws IllegalMonitorStateException 如果未持有锁
      */
     public void unsafeUnLock(TransactionId tid, RecordId recordId) throws IllegalMonitorStateException {
-        var lock = RecordLock.getInstance(recordId, tid);
-        if (lock.holdLock(tid)) {
+        if (release(tid, recordId)) {
+            Holds holds = transactionHoldMap.get(tid);
+            if (holds != null && holds.resources.remove(recordId)) {
+                holds.rowLocks.get(recordId.getPid().getTableName()).decrementAndGet();
+            }
+            return;
+        }
+        if (!holdLock(tid, recordId)) {
             throw new IllegalMonitorStateException();
         }
-        lock.unLock(tid);
-        transactionHoldMap.get(tid).remove(lock);
-        lockTable.remove(lock.getRecordId());
-        RecordLock.free(lock.getRecordId(), tid);
     }
 
     /**
-     * 事务是否持有锁
+     * 事务是否持有记录上的锁，包括覆盖了记录的表锁
      */
     public boolean holdLock(TransactionId tid, RecordId recordId) {
-        return RecordLock.getInstance(recordId, tid).holdLock(tid);
+        ResourceLock lock = getLock(recordId);
+        if (lock != null && lock.getMode(tid) != null) {
+            return true;
+        }
+        ResourceLock table = getLock(recordId.getPid().getTableName());
+        LockMode mode = table == null ? null : table.getMode(tid);
+        return mode != null && mode.covers(LockMode.S);
     }
 
 
     /**
-     * 行记录被谁锁定
+     * 行记录被谁锁定，包括覆盖了记录的表锁，如果有多个持有者，返回其中任意一个
      * @param recordId 记录
      * @return 锁定的事务，可能 null
      */
     public TransactionId holdLock(RecordId recordId) {
-        return lockTable.get(recordId);
+        ResourceLock lock = getLock(recordId);
+        if (lock != null) {
+            for (TransactionId tid : lock.getHolders().keySet()) {
+                return tid;
+            }
+        }
+        ResourceLock table = getLock(recordId.getPid().getTableName());
+        if (table != null && (table.isHeldIn(LockMode.S) || table.isHeldIn(LockMode.X))) {
+            for (Map.Entry<TransactionId, LockMode> it : table.getHolders().entrySet()) {
+                if (it.getValue().covers(LockMode.S)) {
+                    return it.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 释放锁并将其移交给后续的等待者，锁空闲时从分片中移除
+     *
+     * @return 如果事务未持有锁，返回假
+     */
+    private boolean release(TransactionId tid, Object resource) {
+        Shard shard = shardOf(resource);
+        shard.latch.lock();
+        try {
+            ResourceLock lock = shard.locks.get(resource);
+            if (lock == null || lock.getMode(tid) == null) {
+                return false;
+            }
+            handOff(resource, lock.unLock(tid));
+            if (lock.isFree()) {
+                shard.locks.remove(resource);
+            }
+            return true;
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * 记录锁的移交并唤醒获得锁的等待者，必须在分片闩锁下调用
+     * <P>必须在唤醒之前记录，否则被唤醒的事务可能在记录之前就已经结束并调用了 releaseAll</P>
+     */
+    private void handOff(Object resource, List<ResourceLock.Waiter> granted) {
+        for (ResourceLock.Waiter waiter : granted) {
+            waitTable.remove(waiter.getTid(), waiter);
+            addHold(waiter.getTid(), resource);
+            waiter.grant();
+        }
+    }
+
+    /**
+     * 返回事务因锁冲突进入等待的次数
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * 返回运行死锁检测的次数，在检测延迟内获得锁的等待不会运行检测
+     */
+    public long getDeadLockDetectCount() {
+        return detectCount.get();
+    }
+
+    /**
+     * 返回平均死锁检测耗时（微秒）
+     */
+    public double getAvgDeadLockDetectMicros() {
+        long count = detectCount.get();
+        return count == 0 ? 0 : detectNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * 返回最大死锁检测耗时（微秒）
+     */
+    public double getMaxDeadLockDetectMicros() {
+        return maxDetectNanos.get() / 1000.0;
+    }
+
+    /**
+     * 返回被选为死锁牺牲者的事务数
+     */
+    public long getDeadLockVictimCount() {
+        return victimCount.get();
+    }
+
+    /**
+     * 返回等待超时的次数
+     */
+    public long getLockWaitTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * 返回行锁升级为表锁的次数
+     */
+    public long getEscalationCount() {
+        return escalationCount.get();
+    }
+
+    private void addHold(TransactionId tid, Object resource) {
+        Holds holds = transactionHoldMap.computeIfAbsent(tid, k -> new Holds());
+        if (holds.resources.add(resource) && resource instanceof RecordId) {
+            holds.rowLocks.computeIfAbsent(((RecordId) resource).getPid().getTableName(), k -> new AtomicInteger())
+                    .incrementAndGet();
+        }
     }
 }
@@ -110,15 +110,28 @@ public record ReadView(@Getter Set<TransactionId> trxList, @Getter TransactionId
     }
 
     /**
-     * 获取最早创建并且尚未回收的读视图，供 {@link happydb.log.Purge} 线程使用
+     * 返回此读视图的可见上界，ID 小于此值的事务对此读视图一定是可见的
      */
-    public synchronized ReadView getEarliestReadView() {
-        if (readViewMap.isEmpty()) {
-            return null;
-        }
+    public long visibleLimit() {
+        return upLimitId.getXid() < 0 ? lowLimitId.getXid() : upLimitId.getXid();
+    }
+
+    /**
+     * 获取可见上界最小，即最旧的尚未回收的读视图，供 {@link happydb.log.Purge} 线程使用
+     * <P>任何事务 ID 小于此读视图可见上界的修改都对所有读视图可见，这些修改之前的版本已经不再被需要</P>
+     *
+     * @return 最旧的读视图，如果没有读视图，返回 null
+     */
+    public static synchronized ReadView getEarliestReadView() {
         ReadView rv = null;
-        for (Map.Entry<TransactionId, ReadView> it : readViewMap.entrySet()) {
-            rv = it.getValue();
+        for (ReadView it : readViewMap.values()) {
+            // 超级事务总是读取最新版本
+            if (it.currentId().getXid() < 0) {
+                continue;
+            }
+            if (rv == null || it.visibleLimit() < rv.visibleLimit()) {
+                rv = it;
+            }
         }
         return rv;
     }
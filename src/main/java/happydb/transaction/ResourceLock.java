@@ -0,0 +1,277 @@
+package happydb.transaction;
+
+import happydb.storage.RecordId;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 一个可加锁资源上的锁，资源是行记录 {@link RecordId} 或者表名，由 {@link LockTable} 的分片按需创建，
+ * 当锁既没有持有者也没有等待者时从分片中移除
+ * <P>多个事务可以以相互兼容的模式同时持有锁，见 {@link LockMode}。每把锁维护一个 FIFO 等待队列，
+ * 释放锁时从队首开始依次将锁移交给所有与当前持有者兼容的等待者，直到遇到第一个不兼容的等待者为止，
+ * 新的请求即使与持有者兼容，只要队列非空也必须排队，以免饿死队列中的等待者；已经持有锁的事务请求升级时则排在队首</P>
+ * <P>等待者通过 {@link LockSupport#park(Object)} 堵塞，不会持有任何监视器，因此也可以在虚拟线程中使用</P>
+ * <P><strong>持有者与等待队列可以在没有闩锁的情况下读取，但所有修改都必须在所属分片的闩锁下进行</strong></P>
+ *
+ * @Author happysnaker
+ * @Date 2022/12/3
+ * @Email happysnaker@foxmail.com
+ */
+public class ResourceLock {
+    /**
+     * 资源，行记录 ID 或者表名
+     */
+    @Getter
+    private final Object resource;
+
+    /**
+     * 持有者及其持有的模式
+     */
+    private final Map<TransactionId, LockMode> holders = new ConcurrentHashMap<>();
+
+    /**
+     * 每种模式的持有者数量，兼容性判断因此与持有者数量无关
+     */
+    private final AtomicIntegerArray modeCounts = new AtomicIntegerArray(LockMode.values().length);
+
+    /**
+     * 按到达顺序排列的等待者
+     */
+    private final Deque<Waiter> waiters = new ConcurrentLinkedDeque<>();
+
+    ResourceLock(Object resource) {
+        this.resource = resource;
+    }
+
+    /**
+     * 返回事务持有的模式，未持有返回 null
+     */
+    public LockMode getMode(TransactionId tid) {
+        return holders.get(tid);
+    }
+
+    /**
+     * 返回所有持有者及其模式
+     */
+    public Map<TransactionId, LockMode> getHolders() {
+        return Collections.unmodifiableMap(holders);
+    }
+
+    /**
+     * 是否有事务持有给定模式的锁
+     */
+    public boolean isHeldIn(LockMode mode) {
+        return modeCounts.get(mode.ordinal()) > 0;
+    }
+
+    /**
+     * 判断事务请求的模式是否与其他持有者兼容
+     */
+    private boolean compatibleWithHolders(TransactionId tid, LockMode mode) {
+        LockMode own = holders.get(tid);
+        for (LockMode m : LockMode.values()) {
+            int n = modeCounts.get(m.ordinal()) - (m == own ? 1 : 0);
+            if (n > 0 && !mode.isCompatible(m)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putHolder(TransactionId tid, LockMode mode) {
+        LockMode old = holders.put(tid, mode);
+        if (old != null) {
+            modeCounts.decrementAndGet(old.ordinal());
+        }
+        modeCounts.incrementAndGet(mode.ordinal());
+    }
+
+    /**
+     * 事务尝试以给定模式获取锁，获取失败时返回而不是堵塞，如果事务已经持有更弱的模式，则尝试升级
+     *
+     * @param tid  事务
+     * @param mode 模式
+     * @return 真获取成功，假获取失败
+     */
+    boolean tryLock(TransactionId tid, LockMode mode) {
+        LockMode current = holders.get(tid);
+        if (current != null && current.covers(mode)) {
+            return true;
+        }
+        LockMode target = current == null ? mode : current.supremum(mode);
+        // 升级请求可以越过等待队列，否则必须排在已有等待者之后
+        if ((current != null || waiters.isEmpty()) && compatibleWithHolders(tid, target)) {
+            putHolder(tid, target);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 将事务加入等待队列，升级请求排在队首，其他请求排在队尾，调用者随后应在释放分片闩锁后调用 {@link Waiter#await(long)}
+     *
+     * @param tid  事务
+     * @param mode 模式
+     * @return 等待者
+     */
+    Waiter enqueue(TransactionId tid, LockMode mode) {
+        LockMode current = holders.get(tid);
+        Waiter waiter = new Waiter(tid, current == null ? mode : current.supremum(mode), resource, Thread.currentThread());
+        if (current != null) {
+            waiters.addFirst(waiter);
+        } else {
+            waiters.addLast(waiter);
+        }
+        return waiter;
+    }
+
+    /**
+     * 取消等待，例如等待者被选为死锁的牺牲者，取消后调用者应调用 {@link #grantWaiters()}，因为被取消的等待者可能挡住了后面的等待者
+     *
+     * @return 如果等待者仍在队列中，返回真；如果锁已经移交给它，返回假
+     */
+    boolean cancel(Waiter waiter) {
+        return waiters.remove(waiter);
+    }
+
+    /**
+     * 事务释放锁，并将锁移交给队首所有兼容的等待者
+     *
+     * @param tid 事务
+     * @return 获得锁的等待者
+     * @throws IllegalMonitorStateException 如果事务未持有锁
+     */
+    List<Waiter> unLock(TransactionId tid) throws IllegalMonitorStateException {
+        LockMode old = holders.remove(tid);
+        if (old == null) {
+            throw new IllegalMonitorStateException();
+        }
+        modeCounts.decrementAndGet(old.ordinal());
+        return grantWaiters();
+    }
+
+    /**
+     * 从队首开始将锁移交给所有与持有者兼容的等待者，直到遇到第一个不兼容的等待者
+     * <P>等待者此时尚未被唤醒，调用者完成移交相关的记录后必须调用 {@link Waiter#grant()}</P>
+     *
+     * @return 获得锁的等待者
+     */
+    List<Waiter> grantWaiters() {
+        List<Waiter> granted = null;
+        Waiter head;
+        while ((head = waiters.peekFirst()) != null && compatibleWithHolders(head.tid, head.mode)) {
+            waiters.pollFirst();
+            putHolder(head.tid, head.mode);
+            if (granted == null) {
+                granted = new ArrayList<>();
+            }
+            granted.add(head);
+        }
+        return granted == null ? Collections.emptyList() : granted;
+    }
+
+    /**
+     * 返回等待者正在等待的事务：与它不兼容的持有者，以及排在它之前且与它不兼容的等待者
+     * <P>此方法在没有闩锁的情况下调用，结果不一定是同一时刻的快照</P>
+     */
+    Set<TransactionId> blockers(Waiter waiter) {
+        Set<TransactionId> ans = new HashSet<>();
+        for (Map.Entry<TransactionId, LockMode> it : holders.entrySet()) {
+            if (!it.getKey().equals(waiter.tid) && !waiter.mode.isCompatible(it.getValue())) {
+                ans.add(it.getKey());
+            }
+        }
+        for (Waiter w : waiters) {
+            if (w == waiter) {
+                break;
+            }
+            if (!waiter.mode.isCompatible(w.mode)) {
+                ans.add(w.tid);
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * 锁既没有持有者也没有等待者，可以从分片中移除
+     */
+    boolean isFree() {
+        return holders.isEmpty() && waiters.isEmpty();
+    }
+
+    /**
+     * 等待队列中的一个等待者
+     */
+    static class Waiter {
+        @Getter
+        private final TransactionId tid;
+        /**
+         * 获得锁后持有的模式，对于升级请求是原模式与请求模式的上确界
+         */
+        @Getter
+        private final LockMode mode;
+        @Getter
+        private final Object resource;
+        private final Thread thread;
+        private volatile boolean granted = false;
+        private volatile boolean aborted = false;
+
+        Waiter(TransactionId tid, LockMode mode, Object resource, Thread thread) {
+            this.tid = tid;
+            this.mode = mode;
+            this.resource = resource;
+            this.thread = thread;
+        }
+
+        boolean isGranted() {
+            return granted;
+        }
+
+        boolean isAborted() {
+            return aborted;
+        }
+
+        /**
+         * 唤醒已经获得锁的等待者
+         */
+        void grant() {
+            granted = true;
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * 唤醒已经被移出等待队列的牺牲者，它将放弃获取锁
+         */
+        void abort() {
+            aborted = true;
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * 堵塞直到锁被移交给此等待者、等待者被选为牺牲者或者超时
+         *
+         * @param timeoutNanos 最长等待时间（纳秒）
+         * @return 如果锁已经被移交或者等待者已经被放弃，返回真；超时返回假
+         * @throws InterruptedException 等待期间线程被中断，此时锁可能已经被移交，调用者需要在闩锁下确认
+         */
+        boolean await(long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!granted && !aborted) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -2,8 +2,9 @@ package happydb;
 
 import happydb.common.Database;
 import happydb.log.CheckPoint;
+import happydb.log.Purge;
 import happydb.storage.BufferPool;
-import happydb.transaction.RecordLock;
+import happydb.storage.PageCleaner;
 import org.junit.After;
 import org.junit.Before;
 
@@ -28,10 +29,10 @@ public class TestBase {
         }
         BufferPool.DEFAULT_PAGES = 50;
         CheckPoint.RATE = Integer.MAX_VALUE;
+        PageCleaner.INTERVAL_MILLIS = Integer.MAX_VALUE;
+        Purge.INTERVAL_MILLIS = Integer.MAX_VALUE;
         Database.REPOSITORY_DIR = TEST_TEMP_DIR + "/" + UUID.randomUUID();
         Database.run();
-
-        RecordLock.clear();
     }
 
     @After
@@ -59,8 +59,14 @@ public class CatalogTest extends TestBase {
 
     @Test
     public void testSerializableAndLoad() throws Exception {
+        TableDesc compressed = TestUtil.createTableDesc(0, 0, nums, "compressed", null);
+        compressed.setCompressed(true);
+        catalog.createTable(compressed);
+
         catalog = new Catalog(new DbFile(Database.getDbFile("catalog")));
         catalog.loadCatalog();
+        Assert.assertTrue(catalog.getTableDesc("compressed").isCompressed());
+        Assert.assertFalse(catalog.getTableDesc("0").isCompressed());
         for (int i = nums - 1; i >= 0; i--) {
             String tableName = String.valueOf(i);
             TableDesc tableDesc = catalog.getTableDesc(tableName);
@@ -133,6 +139,36 @@ public class CatalogTest extends TestBase {
         }
     }
 
+    @Test
+    public void testLazyOpen() throws Exception {
+        TableDesc td = TestUtil.createTableDesc(0, 0, nums, "tb", new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer integer) {
+                return integer == 1 ? IndexType.indexSetToInt(Set.of(IndexType.BTREE)) : 0;
+            }
+        });
+        catalog.createTable(td);
+
+        catalog = new Catalog(new DbFile(Database.getDbFile("catalog")));
+        catalog.loadCatalog();
+        Assert.assertFalse(catalog.isOpened("tb"));
+
+        // 获取模式与表名不会打开表
+        Assert.assertEquals("tb", catalog.getTableDesc("tb").getTableName());
+        Assert.assertTrue(catalog.getAllReallyTableName().contains("tb"));
+        Assert.assertFalse(catalog.isOpened("tb"));
+
+        // 访问索引会打开所属的表
+        Assert.assertNotNull(catalog.getIndex("tb", 1, IndexType.BTREE));
+        Assert.assertTrue(catalog.isOpened("tb"));
+        Assert.assertTrue(catalog.isOpened("tb-undo"));
+        Assert.assertFalse(catalog.isOpened("0"));
+
+        // 访问 undo 表同样会打开所属的表
+        Assert.assertEquals("0-undo", catalog.getPageManager("0-undo").getTableName());
+        Assert.assertTrue(catalog.isOpened("0"));
+        Assert.assertEquals(nums + 1, catalog.getAllReallyTableName().size());
+    }
 
     @After
     public void close() {
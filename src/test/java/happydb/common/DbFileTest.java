@@ -2,6 +2,7 @@ package happydb.common;
 
 import happydb.TestBase;
 import happydb.TestUtil;
+import happydb.storage.BufferPool;
 import happydb.transaction.TransactionId;
 import org.junit.After;
 import org.junit.Assert;
@@ -10,8 +11,11 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ReadOnlyBufferException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -50,6 +54,108 @@ public class DbFileTest extends TestBase {
         Assert.assertEquals(byteAr.subArray(0, length / 2), df.read(1024L, length / 2));
     }
 
+    @Test
+    public void testVectoredReadWrite() throws IOException {
+        ByteArray a = new ByteArray(1, 2, 3), b = new ByteArray(4L), c = byteAr.subArray(1, 5);
+        df.writeVectored(16, true, a, b, c);
+        Assert.assertEquals(16 + a.length() + b.length() + c.length(), df.getLength());
+        Assert.assertEquals(new ByteArray(a, b, c), df.read(16, a.length() + b.length() + c.length()));
+
+        ByteArray x = ByteArray.allocate(a.length()), y = ByteArray.allocate(b.length()), z = ByteArray.allocate(c.length());
+        df.readVectored(16, x, y, z);
+        Assert.assertEquals(a, x);
+        Assert.assertEquals(b, y);
+        Assert.assertEquals(c, z);
+
+        // 追加写入总是写到文件末尾
+        df.append(a, false);
+        Assert.assertEquals(a, df.read(df.getLength() - a.length(), a.length()));
+
+        // 关闭后句柄应该能够重新打开
+        df.close();
+        Assert.assertEquals(b, df.read(16 + a.length(), b.length()));
+    }
+
+    @Test
+    public void testMap() throws IOException {
+        int length = byteAr.length();
+        df.setLength(length);
+        df.write(0, byteAr, false);
+        ByteArray mapped = df.map(0, length);
+        Assert.assertEquals(byteAr, mapped);
+        Assert.assertEquals(byteAr.subArray(2, 6), mapped.subArray(2, 6));
+        Assert.assertEquals(byteAr.readInt(1), mapped.readInt(1));
+
+        // 通过通道写入的内容对映射可见，文件增长后末尾的块会被重新映射
+        df.write(length, byteAr, false);
+        Assert.assertEquals(byteAr, df.map(length, length));
+        Assert.assertEquals(byteAr, df.map(0, length));
+
+        Assert.assertThrows(NoSuchElementException.class, () -> df.map(length, length + 1));
+        Assert.assertThrows(ReadOnlyBufferException.class, () -> mapped.set(0, (byte) 1));
+    }
+
+    @Test
+    public void testCompressedFile() throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        CompressedDbFile cf = new CompressedDbFile(df.getFile());
+        ByteArray sample = byteAr.subArray(0, 1000);
+        ByteArray page = ByteArray.allocate(pageSize);
+        page.update(0, sample);
+        page.update(pageSize - sample.length(), sample);
+
+        // 扩展的空页面不占用空间，大部分为零的页面被压缩到几个扇区
+        cf.setLength(4L * pageSize);
+        Assert.assertEquals(0, cf.getPhysicalLength());
+        Assert.assertEquals(ByteArray.allocate(pageSize), cf.read(pageSize, pageSize));
+        cf.write(2L * pageSize, page);
+        Assert.assertEquals(page, cf.read(2L * pageSize, pageSize));
+        Assert.assertTrue(cf.getPhysicalLength() < pageSize / 8);
+
+        // 跨页读取与页内读取
+        Assert.assertEquals(new ByteArray(ByteArray.allocate(pageSize), page), cf.read(pageSize, 2 * pageSize));
+        Assert.assertEquals(sample, cf.read(3L * pageSize - sample.length(), sample.length()));
+
+        // 无法压缩的页面原样存储，页面总是写入新区段，被替换的扇区在刷盘后复用
+        byte[] random = new byte[pageSize];
+        new Random(1).nextBytes(random);
+        cf.write(2L * pageSize, new ByteArray(random));
+        Assert.assertEquals(new ByteArray(random), cf.read(2L * pageSize, pageSize));
+        cf.write(0, page);
+        Assert.assertEquals(page, cf.read(0, pageSize));
+        // 即使原区段放得下也不会原地覆盖
+        long physicalLength = cf.getPhysicalLength();
+        cf.write(0, page);
+        Assert.assertTrue(cf.getPhysicalLength() > physicalLength);
+        Assert.assertEquals(page, cf.read(0, pageSize));
+
+        // 不刷盘的写入只更新内存中的映射，映射在刷盘时才落盘
+        cf.write(pageSize, page, false);
+        Assert.assertEquals(page, cf.read(pageSize, pageSize));
+        CompressedDbFile before = new CompressedDbFile(df.getFile());
+        Assert.assertEquals(ByteArray.allocate(pageSize), before.read(pageSize, pageSize));
+        before.close();
+        cf.force();
+        CompressedDbFile after = new CompressedDbFile(df.getFile());
+        Assert.assertEquals(page, after.read(pageSize, pageSize));
+        after.close();
+
+        // 写入超出末尾的页面会扩展文件，重新打开后映射保持不变
+        cf.write(5L * pageSize, page, true);
+        Assert.assertEquals(6L * pageSize, cf.getLength());
+        cf.close();
+        CompressedDbFile reopened = new CompressedDbFile(df.getFile());
+        Assert.assertEquals(6L * pageSize, reopened.getLength());
+        Assert.assertEquals(page, reopened.read(0, pageSize));
+        Assert.assertEquals(new ByteArray(random), reopened.read(2L * pageSize, pageSize));
+        Assert.assertEquals(page, reopened.read(5L * pageSize, pageSize));
+
+        Assert.assertThrows(IllegalArgumentException.class, () -> reopened.write(1, page));
+        Assert.assertThrows(NoSuchElementException.class, () -> reopened.read(5L * pageSize, pageSize + 1));
+        reopened.close();
+        new File(df.getFile().getPath() + ".map").deleteOnExit();
+    }
+
     /**
      * 多个线程读取不同偏移位置应该互不干扰，此测试可能运行时间较长
      */
@@ -0,0 +1,207 @@
+package happydb.index.btree;
+
+import happydb.TestBase;
+import happydb.TestUtil;
+import happydb.common.Database;
+import happydb.common.Permissions;
+import happydb.exception.DbException;
+import happydb.execution.Insert;
+import happydb.execution.Predicate;
+import happydb.execution.RecordIterator;
+import happydb.index.IndexType;
+import happydb.storage.*;
+import happydb.storage.Record;
+import happydb.transaction.TransactionId;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * @Author happysnaker
+ * @Date 2023/3/20
+ * @Email happysnaker@foxmail.com
+ */
+public class BTreeBulkLoaderTest extends TestBase {
+    private int sortBufferSize;
+    private double fillFactor;
+
+    @Before
+    public void setUp() throws Exception {
+        sortBufferSize = BTreeBulkLoader.SORT_BUFFER_SIZE;
+        fillFactor = BTreeBulkLoader.FILL_FACTOR;
+        // 使用较小的页面，使得少量数据就能构建出多层的 B+ 树
+        BufferPool.setPageSize(256);
+        BufferPool.DEFAULT_PAGES = 1000;
+        Database.REPOSITORY_DIR = TEST_TEMP_DIR + "/" + UUID.randomUUID();
+        Database.reset();
+
+        TableDesc td = TestUtil.createTableDesc(2, 0, 0, "tb",
+                i -> i == 0 ? IndexType.indexSetToInt(Set.of(IndexType.PRIMARY_KEY, IndexType.BTREE, IndexType.BTREE_UNIQUE))
+                        : IndexType.indexSetToInt(Set.of(IndexType.BTREE)));
+        Database.getCatalog().createTable(td);
+    }
+
+    @After
+    public void tearDown() {
+        BTreeBulkLoader.SORT_BUFFER_SIZE = sortBufferSize;
+        BTreeBulkLoader.FILL_FACTOR = fillFactor;
+        BufferPool.resetPageSize();
+    }
+
+    private BTreeIndex getIndex(int field) {
+        return (BTreeIndex) Database.getCatalog().getIndex("tb", field, IndexType.BTREE);
+    }
+
+    private int usedPages(BTreeIndex index) {
+        BTreeSuperPage sp = index.getSuperPage();
+        return sp.getMaxNumEntries() - sp.getEmptySlots().size();
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        // 迫使构建器写出多个归并段
+        BTreeBulkLoader.SORT_BUFFER_SIZE = 100;
+        BTreeIndex index = getIndex(1);
+        int n = 1500;
+        PageId pid = new PageId("tb", 2);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order);
+        try (BTreeBulkLoader loader = new BTreeBulkLoader(index, new TransactionId(0), false)) {
+            for (int i : order) {
+                // 每个键重复 3 次
+                loader.add(new IntField(i / 3), new RecordId(pid, i));
+            }
+            Assert.assertTrue(loader.build());
+        }
+
+        List<RecordId> search = index.search(new TransactionId(0), null, null);
+        Assert.assertEquals(n, search.size());
+        for (int i = 0; i < n; i++) {
+            Assert.assertEquals(new RecordId(pid, i), search.get(i));
+        }
+        for (int k = 0; k < n / 3; k += 37) {
+            search = index.search(new TransactionId(0), Predicate.Op.EQUALS, new IntField(k));
+            Assert.assertEquals(List.of(new RecordId(pid, k * 3), new RecordId(pid, k * 3 + 1), new RecordId(pid, k * 3 + 2)), search);
+        }
+        search = index.search(new TransactionId(0), Predicate.Op.LESS_THAN, new IntField(100));
+        Assert.assertEquals(300, search.size());
+
+        // 叶子节点按填充率紧凑排列
+        BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool()
+                .getPage(new TransactionId(0), new PageId(index.getIndexTableName(), 1), Permissions.READ_ONLY);
+        int leaves = (int) Math.ceil(n / (double) (int) (leaf.getMaxNumEntries() * BTreeBulkLoader.FILL_FACTOR));
+        Assert.assertTrue(usedPages(index) < leaves + leaves / 4 + 3);
+        Database.getBufferPool().transactionReleaseLock(new TransactionId(0));
+
+        // 构建出的树可以继续插入和删除
+        for (int i = n; i < n + 300; i++) {
+            index.insert(new TransactionId(0), new IntField(i / 3), new RecordId(pid, i));
+        }
+        for (int i = 0; i < n + 300; i++) {
+            index.delete(new TransactionId(0), new IntField(i / 3), new RecordId(pid, i));
+        }
+        Assert.assertTrue(index.search(new TransactionId(0), null, null).isEmpty());
+        Assert.assertEquals(1, usedPages(index));
+    }
+
+    @Test
+    public void testBuildUniqueWithDuplicateKey() throws Exception {
+        BTreeIndex index = getIndex(1);
+        PageId pid = new PageId("tb", 2);
+        try (BTreeBulkLoader loader = new BTreeBulkLoader(index, new TransactionId(0), true)) {
+            for (int i = 0; i < 500; i++) {
+                loader.add(new IntField(i == 400 ? 399 : i), new RecordId(pid, i));
+            }
+            Assert.assertThrows(DbException.class, loader::build);
+        }
+        // 构建失败时树保持为空，分配的页面全部被回收
+        Assert.assertEquals(0, index.getSuperPage().getBtreeRootPageId().getPageNumber());
+        Assert.assertEquals(1, usedPages(index));
+    }
+
+    @Test
+    public void testBuildOnNonEmptyTree() throws Exception {
+        BTreeIndex index = getIndex(1);
+        PageId pid = new PageId("tb", 2);
+        index.insert(new TransactionId(0), new IntField(-1), new RecordId(pid, 1000));
+        try (BTreeBulkLoader loader = new BTreeBulkLoader(index, new TransactionId(0), false)) {
+            for (int i = 0; i < 300; i++) {
+                loader.add(new IntField(i), new RecordId(pid, i));
+            }
+            Assert.assertFalse(loader.build());
+        }
+        List<RecordId> search = index.search(new TransactionId(0), null, null);
+        Assert.assertEquals(301, search.size());
+        Assert.assertEquals(new RecordId(pid, 1000), search.get(0));
+        for (int i = 0; i < 300; i++) {
+            Assert.assertEquals(new RecordId(pid, i), search.get(i + 1));
+        }
+    }
+
+    @Test
+    public void testBuildFromTable() throws Exception {
+        int rows = 600;
+        HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager("tb");
+        BTreeIndex primary = getIndex(0);
+        // 只建立主键索引，模拟在已有的表上建立新索引
+        for (int i = 0; i < rows; i++) {
+            Record record = TestUtil.createRecord(2, i, "tb");
+            record.setField(1, new IntField(rows - i));
+            RecordId rid = pm.malloc();
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(new TransactionId(0), rid.getPid(), Permissions.READ_ONLY);
+            page.insertRecord(rid, record);
+            primary.insert(new TransactionId(0), record.getField(0), rid);
+        }
+        BTreeIndex index = getIndex(1);
+        BTreeBulkLoader.buildFromTable(new TransactionId(0), index);
+
+        List<RecordId> search = index.search(new TransactionId(0), null, null);
+        Assert.assertEquals(rows, search.size());
+        for (int i = 0; i < rows; i++) {
+            HeapPage page = (HeapPage) Database.getBufferPool()
+                    .getPage(new TransactionId(0), search.get(i).getPid(), Permissions.READ_ONLY);
+            Assert.assertEquals(new IntField(i + 1), page.readRecord(search.get(i)).getField(1));
+        }
+        Assert.assertThrows(DbException.class, () -> BTreeBulkLoader.buildFromTable(new TransactionId(0), primary));
+    }
+
+    @Test
+    public void testBulkInsert() throws Exception {
+        int rows = 400;
+        TableDesc td = Database.getCatalog().getTableDesc("tb");
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            Record record = new Record(td);
+            record.setField(0, new IntField(rows - i));
+            record.setField(1, new IntField(i % 10));
+            records.add(record);
+        }
+        Insert insert = new Insert(new RecordIterator(td, records), new TransactionId(0), true);
+        insert.open();
+        Assert.assertEquals(new IntField(rows), insert.next().getField(0));
+
+        List<RecordId> search = getIndex(0).search(new TransactionId(0), null, null);
+        Assert.assertEquals(rows, search.size());
+        search = getIndex(1).search(new TransactionId(0), Predicate.Op.EQUALS, new IntField(3));
+        Assert.assertEquals(rows / 10, search.size());
+
+        // 批量导入时唯一索引上重复的键在构建时被发现
+        Database.REPOSITORY_DIR = TEST_TEMP_DIR + "/" + UUID.randomUUID();
+        Database.reset();
+        Database.getCatalog().createTable(td);
+        records.get(rows - 1).setField(0, new IntField(rows));
+        Insert duplicated = new Insert(new RecordIterator(td, records), new TransactionId(0), true);
+        Assert.assertThrows(DbException.class, duplicated::open);
+        Assert.assertEquals(0, getIndex(0).getSuperPage().getBtreeRootPageId().getPageNumber());
+    }
+}
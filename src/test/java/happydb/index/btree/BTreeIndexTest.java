@@ -6,17 +6,22 @@ import happydb.common.Database;
 import happydb.exception.DbException;
 import happydb.execution.Predicate;
 import happydb.index.Index;
+import happydb.index.IndexCursor;
 import happydb.index.IndexType;
 import happydb.storage.*;
 import happydb.transaction.TransactionId;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -39,6 +44,33 @@ public class BTreeIndexTest extends TestBase {
         Database.getCatalog().createTable(td);
     }
 
+    @After
+    public void tearDown() {
+        BufferPool.resetPageSize();
+    }
+
+    /**
+     * 在新的目录中使用较小的页面重建表，使得少量数据就能构建出多层的 B+ 树
+     */
+    private BTreeIndex createSmallPageIndex() throws Exception {
+        BufferPool.setPageSize(256);
+        // 多层的 B+ 树需要更多的缓存页面
+        BufferPool.DEFAULT_PAGES = 1000;
+        Database.REPOSITORY_DIR = TEST_TEMP_DIR + "/" + UUID.randomUUID();
+        Database.reset();
+
+        TableDesc td = TestUtil.createTableDesc(1, 0, 0,
+                "tb",
+                integer -> integer == 0 ? IndexType.indexSetToInt(Set.of(IndexType.BTREE)) : 0);
+        Database.getCatalog().createTable(td);
+        return (BTreeIndex) Database.getCatalog().getIndex("tb", 0, IndexType.BTREE);
+    }
+
+    private int usedPages(BTreeIndex index) {
+        BTreeSuperPage sp = index.getSuperPage();
+        return sp.getMaxNumEntries() - sp.getEmptySlots().size();
+    }
+
     @Test
     public void testFindIndex() {
         Index index = Database.getCatalog().getIndex("tb", 0, IndexType.BTREE);
@@ -177,4 +209,225 @@ public class BTreeIndexTest extends TestBase {
             Assert.assertEquals(new RecordId(pid, i), search.get(i));
         }
     }
+
+
+    @Test
+    public void testDelete() throws Exception {
+        BTreeIndex index = createSmallPageIndex();
+        int n = 2000;
+        PageId pid = new PageId("tb", 2);
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(1));
+        for (int key : keys) {
+            index.insert(new TransactionId(0), new IntField(key), new RecordId(pid, key));
+        }
+        int full = usedPages(index);
+
+        // 删除所有偶数以及一部分奇数，叶子节点会发生借用与合并
+        Collections.shuffle(keys, new Random(2));
+        List<Integer> remain = new ArrayList<>();
+        for (int key : keys) {
+            if (key % 2 == 0 || key % 7 != 1) {
+                index.delete(new TransactionId(0), new IntField(key), new RecordId(pid, key));
+            } else {
+                remain.add(key);
+            }
+        }
+        // 删除不存在的条目不产生任何影响
+        index.delete(new TransactionId(0), new IntField(0), new RecordId(pid, 0));
+        index.delete(new TransactionId(0), new IntField(1), new RecordId(pid, 2));
+        Collections.sort(remain);
+
+        List<RecordId> search = index.search(new TransactionId(0), null, null);
+        Assert.assertEquals(remain.size(), search.size());
+        for (int i = 0; i < remain.size(); i++) {
+            Assert.assertEquals(new RecordId(pid, remain.get(i)), search.get(i));
+        }
+        for (int key : remain) {
+            Assert.assertEquals(List.of(new RecordId(pid, key)),
+                    index.search(new TransactionId(0), Predicate.Op.EQUALS, new IntField(key)));
+        }
+        Assert.assertTrue(index.search(new TransactionId(0), Predicate.Op.EQUALS, new IntField(2)).isEmpty());
+        Assert.assertTrue(usedPages(index) < full / 2);
+
+        // 全部删除后树为空
+        for (int key : remain) {
+            index.delete(new TransactionId(0), new IntField(key), new RecordId(pid, key));
+        }
+        Assert.assertTrue(index.search(new TransactionId(0), null, null).isEmpty());
+        Assert.assertEquals(1, usedPages(index));
+
+        // 回收的页面被再次使用，重新插入不会占用更多的页面
+        for (int key : keys) {
+            index.insert(new TransactionId(0), new IntField(key), new RecordId(pid, key));
+        }
+        Assert.assertTrue(usedPages(index) <= full);
+        search = index.search(new TransactionId(0), null, null);
+        Assert.assertEquals(n, search.size());
+        for (int i = 0; i < n; i++) {
+            Assert.assertEquals(new RecordId(pid, i), search.get(i));
+        }
+    }
+
+    @Test
+    public void testDeleteDuplicateKey() throws Exception {
+        BTreeIndex index = createSmallPageIndex();
+        int n = 600;
+        PageId pid = new PageId("tb", 2);
+        // 相同的键跨越多个叶子节点
+        for (int i = 0; i < n; i++) {
+            index.insert(new TransactionId(0), new IntField(i / 100), new RecordId(pid, i));
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            if (i % 3 != 0) {
+                index.delete(new TransactionId(0), new IntField(i / 100), new RecordId(pid, i));
+            }
+        }
+        for (int k = 0; k < n / 100; k++) {
+            List<RecordId> search = index.search(new TransactionId(0), Predicate.Op.EQUALS, new IntField(k));
+            int expected = 0;
+            for (int i = k * 100; i < (k + 1) * 100; i++) {
+                expected += i % 3 == 0 ? 1 : 0;
+            }
+            Assert.assertEquals(expected, search.size());
+            for (RecordId rid : search) {
+                Assert.assertEquals(0, rid.getRecordNumber() % 3);
+                Assert.assertEquals(k, rid.getRecordNumber() / 100);
+            }
+        }
+    }
+
+    @Test
+    public void testDeleteByManyThread() throws Exception {
+        BTreeIndex index = createSmallPageIndex();
+        int n = 10, task = 100;
+        PageId pid = new PageId("tb", 2);
+        for (int i = 0; i < n * task; i++) {
+            index.insert(new TransactionId(0), new IntField(i), new RecordId(pid, i));
+        }
+        List<TestUtil.TestRunnable> tasks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int t = i;
+            tasks.add(new TestUtil.TestRunnable() {
+                @Override
+                public void run() throws Exception {
+                    // 线程 t 删除所有模 n 余 t 的键中的大部分
+                    for (int j = 0; j < task; j++) {
+                        int key = j * n + t;
+                        if (j % 10 != 0) {
+                            index.delete(new TransactionId(key), new IntField(key), new RecordId(pid, key));
+                        }
+                    }
+                    setDone(true);
+                }
+            });
+        }
+        TestUtil.runManyThread(tasks, 1000 * 60L * 5);
+        List<RecordId> search = index.search(new TransactionId(0), null, null);
+        Assert.assertEquals(n * task / 10, search.size());
+        for (int i = 0; i < search.size(); i++) {
+            Assert.assertEquals(new RecordId(pid, i + (i / n) * n * 9), search.get(i));
+        }
+    }
+
+    @Test
+    public void testInsertAndSplitByManyThread() throws Exception {
+        BTreeIndex index = createSmallPageIndex();
+        int n = 10, task = 200;
+        PageId pid = new PageId("tb", 2);
+        List<TestUtil.TestRunnable> tasks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int t = i;
+            tasks.add(new TestUtil.TestRunnable() {
+                @Override
+                public void run() throws Exception {
+                    // 各线程交错插入，叶子节点与内部节点会被并发地拆分
+                    for (int j = 0; j < task; j++) {
+                        int key = j * n + t;
+                        index.insert(new TransactionId(key), new IntField(key), new RecordId(pid, key));
+                        if (j % 50 == 0) {
+                            index.search(new TransactionId(key), Predicate.Op.EQUALS, new IntField(key));
+                        }
+                    }
+                    setDone(true);
+                }
+            });
+        }
+        TestUtil.runManyThread(tasks, 1000 * 60L * 5);
+        List<RecordId> search = index.search(new TransactionId(0), null, null);
+        Assert.assertEquals(n * task, search.size());
+        for (int i = 0; i < n * task; i++) {
+            Assert.assertEquals(new RecordId(pid, i), search.get(i));
+        }
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        BTreeIndex index = createSmallPageIndex();
+        int n = 600;
+        PageId pid = new PageId("tb", 2);
+        // 每个键重复 7 次，重复键会跨越叶子节点
+        for (int i = 0; i < n; i++) {
+            index.insert(new TransactionId(0), new IntField(i / 7), new RecordId(pid, i));
+        }
+        TransactionId tid = new TransactionId(0);
+        try (IndexCursor cursor = index.cursor(tid, null, null)) {
+            for (int i = 0; i < n; i++) {
+                Assert.assertTrue(cursor.hasNext());
+                Assert.assertEquals(new RecordId(pid, i), cursor.next());
+                // 游标每次只读入一个叶子节点以及跨越叶子节点的重复键，而不是整个索引
+                Assert.assertTrue(cursor.batch().size() < n / 4);
+            }
+            Assert.assertFalse(cursor.hasNext());
+        }
+
+        // 上下界
+        try (IndexCursor cursor = index.cursor(tid, new IntField(10), false, new IntField(20), true)) {
+            for (int i = 11 * 7; i < 21 * 7; i++) {
+                Assert.assertEquals(new RecordId(pid, i), cursor.next());
+            }
+            Assert.assertFalse(cursor.hasNext());
+        }
+
+        try (IndexCursor cursor = index.cursor(tid, Predicate.Op.EQUALS, new IntField(30))) {
+            // 向前与向后定位
+            cursor.seek(new IntField(50));
+            Assert.assertFalse(cursor.hasNext());
+            cursor.seek(new IntField(0));
+            for (int i = 30 * 7; i < 31 * 7; i++) {
+                Assert.assertEquals(new RecordId(pid, i), cursor.next());
+            }
+            Assert.assertFalse(cursor.hasNext());
+        }
+
+        try (IndexCursor cursor = index.cursor(tid, Predicate.Op.LESS_THAN, new IntField(60))) {
+            cursor.seek(new IntField(40));
+            for (int i = 40 * 7; i < 60 * 7; i++) {
+                Assert.assertEquals(new RecordId(pid, i), cursor.next());
+            }
+            Assert.assertFalse(cursor.hasNext());
+        }
+
+        // 游标读取的两批之间，其他事务修改了索引
+        try (IndexCursor cursor = index.cursor(tid, null, null)) {
+            int i = 0;
+            while (cursor.batchPosition() < cursor.batch().size() || i == 0) {
+                Assert.assertEquals(new RecordId(pid, i++), cursor.next());
+            }
+            for (int j = n - 1; j >= i; j--) {
+                if (j % 2 == 0) {
+                    index.delete(new TransactionId(1), new IntField(j / 7), new RecordId(pid, j));
+                }
+            }
+            for (; i < n; i++) {
+                if (i % 2 == 1) {
+                    Assert.assertEquals(new RecordId(pid, i), cursor.next());
+                }
+            }
+            Assert.assertFalse(cursor.hasNext());
+        }
+    }
 }
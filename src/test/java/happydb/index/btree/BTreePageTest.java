@@ -14,7 +14,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.fail;
@@ -196,4 +199,88 @@ public class BTreePageTest extends TestBase {
         Assert.assertEquals(9, entryAr[1].getRightChild().getPageNumber());
     }
 
+    @Test
+    public void testLeafPageSlotDirectory() throws DbException, IOException {
+        BTreeSuperPage superPage = (BTreeSuperPage) pool.getPage(new TransactionId(0),
+                new PageId(tb, 0), Permissions.READ_WRITE);
+        PageId pid = superPage.malloc(BTreePage.LEAF);
+        BTreeLeafPage page = (BTreeLeafPage) pool.getPage(new TransactionId(0), pid, Permissions.READ_WRITE);
+
+        // 每个键插入两次，乱序插入
+        int n = page.getMaxNumEntries() / 2;
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            keys.add(i);
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(0));
+        for (int key : keys) {
+            page.insertEntry(new BTreeLeafEntry(new IntField(key * 2), new RecordId(pid, key)));
+        }
+        Assert.assertTrue(page.isFull());
+        Assert.assertEquals(2, page.lowerBound(new IntField(2)));
+        Assert.assertEquals(4, page.upperBound(new IntField(2)));
+        Assert.assertEquals(4, page.lowerBound(new IntField(3)));
+        Assert.assertEquals(2 * n, page.lowerBound(new IntField(2 * n)));
+
+        // 删除一半的条目，剩余条目的 entryId 仍然有效
+        BTreeLeafEntry[] entryAr = page.getEntryAr();
+        for (int i = 0; i < entryAr.length; i += 2) {
+            page.deleteEntry(entryAr[i]);
+        }
+        for (int i = 1; i < entryAr.length; i += 2) {
+            Assert.assertEquals(pid, entryAr[i].getEntryId().getPid());
+        }
+        Assert.assertEquals(n, page.numEntries());
+        Assert.assertEquals(1, page.lowerBound(new IntField(2)));
+
+        pm.writePage(page);
+        page = (BTreeLeafPage) pm.readPage(page.getPageId());
+        entryAr = page.getEntryAr();
+        Assert.assertEquals(n, entryAr.length);
+        for (int i = 0; i < n; i++) {
+            Assert.assertEquals(new IntField(i * 2), entryAr[i].getKey());
+        }
+        var it = page.iterator(page.lowerBound(new IntField(5)));
+        Assert.assertEquals(new IntField(6), it.next().getKey());
+    }
+
+    @Test
+    public void testInternalPageSlotDirectory() throws DbException, IOException {
+        BTreeSuperPage superPage = (BTreeSuperPage) pool.getPage(new TransactionId(0),
+                new PageId(tb, 0), Permissions.READ_WRITE);
+        PageId pid = superPage.malloc(BTreePage.INTERNAL);
+        BTreeInternalPage page = (BTreeInternalPage) pool.getPage(new TransactionId(0), pid, Permissions.READ_WRITE);
+        String name = pid.getTableName();
+
+        // 键 i * 10 的左孩子是 i + 1，右孩子是 i + 2，从右向左插入使得每次插入都发生在目录的头部
+        int n = page.getMaxNumEntries();
+        for (int i = n - 1; i >= 0; i--) {
+            page.insertEntry(new BTreeInternalEntry(new IntField(i * 10),
+                    new PageId(name, i + 1), new PageId(name, i + 2)));
+        }
+        Assert.assertTrue(page.isFull());
+        Assert.assertEquals(new PageId(name, 1), page.childToSearch(null));
+        Assert.assertEquals(new PageId(name, 1), page.childToSearch(new IntField(0)));
+        Assert.assertEquals(new PageId(name, 2), page.childToSearch(new IntField(1)));
+        Assert.assertEquals(new PageId(name, 2), page.childToSearch(new IntField(10)));
+        Assert.assertEquals(new PageId(name, n + 1), page.childToSearch(new IntField(n * 10)));
+        Assert.assertEquals(new PageId(name, n + 1), page.getLastChild());
+
+        pm.writePage(page);
+        page = (BTreeInternalPage) pm.readPage(page.getPageId());
+        BTreeInternalEntry[] entryAr = page.getEntryAr();
+        Assert.assertEquals(n, entryAr.length);
+        for (int i = 0; i < n; i++) {
+            Assert.assertEquals(new IntField(i * 10), entryAr[i].getKey());
+            Assert.assertEquals(i + 1, entryAr[i].getLeftChild().getPageNumber());
+            Assert.assertEquals(i + 2, entryAr[i].getRightChild().getPageNumber());
+        }
+
+        // 删除第一个条目及其左孩子后，最左侧的子节点变为原来的右孩子
+        page.deleteKeyAndLeftChild(entryAr[0]);
+        Assert.assertEquals(new PageId(name, 2), page.getFirstChild());
+        Assert.assertEquals(new PageId(name, 2), page.childToSearch(new IntField(5)));
+        Assert.assertEquals(new PageId(name, 3), page.childToSearch(new IntField(11)));
+    }
 }
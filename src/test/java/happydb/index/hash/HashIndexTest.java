@@ -6,6 +6,7 @@ import happydb.common.Database;
 import happydb.exception.DbException;
 import happydb.execution.Predicate;
 import happydb.index.Index;
+import happydb.index.IndexCursor;
 import happydb.index.IndexType;
 import happydb.storage.*;
 import happydb.transaction.TransactionId;
@@ -58,4 +59,28 @@ public class HashIndexTest extends TestBase {
             Assert.assertEquals(new RecordId(pid, i * 2), search.get(i));
         }
     }
+
+    @Test
+    public void testCursor() throws IOException, DbException {
+        Index index = Database.getCatalog().getIndex("tb", 0, IndexType.HASH);
+        int n = 10;
+        PageId pid = new PageId("tb", 2);
+        for (int i = 0; i < n; i++) {
+            index.insert(new TransactionId(0), new IntField(i % 2), new RecordId(pid, i));
+        }
+        try (IndexCursor cursor = index.cursor(new TransactionId(0), Predicate.Op.EQUALS, new IntField(0))) {
+            for (int i = 0; i < n / 2; i++) {
+                Assert.assertEquals(new RecordId(pid, i * 2), cursor.next());
+            }
+            Assert.assertFalse(cursor.hasNext());
+            // 定位到另一个键
+            cursor.seek(new IntField(1));
+            for (int i = 0; i < n / 2; i++) {
+                Assert.assertEquals(new RecordId(pid, i * 2 + 1), cursor.next());
+            }
+            Assert.assertFalse(cursor.hasNext());
+        }
+        Assert.assertThrows(DbException.class,
+                () -> index.cursor(new TransactionId(0), Predicate.Op.GREATER_THAN, new IntField(0)));
+    }
 }
@@ -2,7 +2,9 @@ package happydb.log;
 
 import happydb.TestBase;
 import happydb.TestUtil;
+import happydb.common.ByteArray;
 import happydb.common.Catalog;
+import happydb.common.DbFile;
 import happydb.common.Database;
 import happydb.common.Permissions;
 import happydb.exception.DbException;
@@ -16,10 +18,13 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.fail;
 
@@ -80,7 +85,14 @@ public class LogBufferTest extends TestBase {
         insert(1, tid);
         logBuffer.transactionCommit(tid);
 
-        Iterator<RedoLog> iterator = logBuffer.iterator();
+        // 日志缓冲区按 LSN 顺序写入文件，未提交事务 tid1 的日志也会一起写入，恢复时由回滚处理
+        List<RedoLog> logs = new ArrayList<>();
+        logBuffer.iterator().forEachRemaining(log -> {
+            if (log.xid().equals(tid)) {
+                logs.add(log);
+            }
+        });
+        Iterator<RedoLog> iterator = logs.iterator();
         iterator.next(); // 先 undo 在 redi
         Assert.assertEquals(new IntField(0), ((Record) ((InsertRedoLog) iterator.next()).getData()).getField(0));
         iterator.next(); // 先 undo 在 redi
@@ -121,7 +133,6 @@ public class LogBufferTest extends TestBase {
 
     @Test
     public void testPushCkp() throws Exception {
-        LogBuffer.TRUNCATE_HOLDER = 0;
         LogBuffer logBuffer = Database.getLogBuffer();
         TransactionId tid = new TransactionId(0);
 
@@ -192,9 +203,250 @@ public class LogBufferTest extends TestBase {
 
 
     @Test
-    public void testCheckPoint() throws Exception {
-        LogBuffer.TRUNCATE_HOLDER = 100;
+    public void testGroupCommit() throws Exception {
+        BufferPool.DEFAULT_PAGES = 500;
+        Database.reset();
+        LogBuffer logBuffer = Database.getLogBuffer();
+        List<TestUtil.TestRunnable> tasks = new ArrayList<>();
+
+        int n = 32;
+        for (int i = 0; i < n; i++) {
+            int finalI = i;
+            tasks.add(new TestUtil.TestRunnable() {
+                @Override
+                public void run() throws Exception {
+                    TransactionId tid = new TransactionId(finalI);
+                    insert(finalI, tid);
+                    logBuffer.transactionCommit(tid);
+                    setDone(true);
+                }
+            });
+        }
+        TestUtil.runManyThread(tasks, 1000 * 60);
+
+        // 每个事务都产生了一条 undo 的重做日志与一条记录的重做日志
+        Iterator<RedoLog> iterator = logBuffer.iterator();
+        int sum = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            sum++;
+        }
+        Assert.assertEquals(n * 2, sum);
+        Assert.assertEquals(n, logBuffer.getCommitCount());
+        Assert.assertTrue(logBuffer.getFsyncCount() > 0);
+        Assert.assertTrue(logBuffer.getFsyncCount() <= logBuffer.getCommitCount());
+        Assert.assertTrue(logBuffer.getMaxCommitLatencyMicros() >= logBuffer.getAvgCommitLatencyMicros());
+    }
+
+    @Test
+    public void testFlushFailure() throws Exception {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        File file = Database.getDbFile("failing.redo.log");
+        Assert.assertTrue(file.createNewFile());
+        LogBuffer logBuffer = new LogBuffer(new DbFile(file) {
+            @Override
+            public void force() throws IOException {
+                if (fail.get()) {
+                    throw new IOException("模拟刷盘失败");
+                }
+                super.force();
+            }
+        });
+        RedoLog redoLog = logBuffer.createAbortRedoLog(new TransactionId(1));
+        long end = redoLog.getLsn() + redoLog.size();
+        Assert.assertThrows(IOException.class, () -> logBuffer.flush(end));
+
+        // 刷盘失败后，即使之后的刷盘成功，这一批日志也不能被视为已经持久化
+        fail.set(false);
+        Assert.assertThrows(IOException.class, () -> logBuffer.flush(end));
+        Assert.assertEquals(0, logBuffer.getFlushedUpTo());
+    }
+
+    @Test
+    public void testAppendFailure() throws Exception {
+        int bufferSize = LogBuffer.BUFFER_SIZE;
+        LogBuffer.BUFFER_SIZE = 0;
+        try {
+            AtomicBoolean fail = new AtomicBoolean(false);
+            File file = Database.getDbFile("failing.redo.log");
+            Assert.assertTrue(file.createNewFile());
+            // 缓冲区写满后第一次写入文件失败，此时日志已经预留了 LSN
+            LogBuffer logBuffer = new LogBuffer(new DbFile(file) {
+                @Override
+                public void write(long offset, ByteArray data, boolean flush) throws IOException {
+                    if (fail.getAndSet(false)) {
+                        throw new IOException("模拟写入失败");
+                    }
+                    super.write(offset, data, flush);
+                }
+            });
+            fail.set(true);
+            int n = 0;
+            while (true) {
+                try {
+                    logBuffer.createAbortRedoLog(new TransactionId(n + 1));
+                    n++;
+                } catch (DbException e) {
+                    break;
+                }
+            }
+
+            // 预留的 LSN 被占位日志填满，之后的日志与刷盘不会被永远阻塞
+            RedoLog redoLog = logBuffer.createAbortRedoLog(new TransactionId(n + 1));
+            logBuffer.flush(redoLog.getLsn() + redoLog.size());
+            Assert.assertEquals(logBuffer.getCurrentLsn(), logBuffer.getFlushedUpTo());
+
+            Iterator<RedoLog> iterator = logBuffer.iterator();
+            int sum = 0;
+            while (iterator.hasNext()) {
+                iterator.next();
+                sum++;
+            }
+            Assert.assertEquals(n + 1, sum);
+        } finally {
+            LogBuffer.BUFFER_SIZE = bufferSize;
+        }
+    }
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        int bufferSize = LogBuffer.BUFFER_SIZE;
+        LogBuffer.BUFFER_SIZE = 0;
+        BufferPool.DEFAULT_PAGES = 500;
+        try {
+            // 缓冲区仅能容纳 4 个页面，插入足够多的记录使缓冲区回绕多次
+            Database.reset();
+            LogBuffer logBuffer = Database.getLogBuffer();
+            TransactionId tid = new TransactionId(0);
+            int n = 400;
+            for (int i = 0; i < n; i++) {
+                insert(i, tid);
+            }
+            // 生成日志不会刷盘
+            Assert.assertTrue(logBuffer.getFlushedUpTo() < logBuffer.getCurrentLsn());
+            Assert.assertTrue(logBuffer.getCurrentLsn() > BufferPool.getPageSize() * 8L);
+
+            logBuffer.transactionCommit(tid);
+            Assert.assertEquals(logBuffer.getCurrentLsn(), logBuffer.getWrittenUpTo());
+            Assert.assertEquals(logBuffer.getCurrentLsn(), logBuffer.getFlushedUpTo());
+
+            Iterator<RedoLog> iterator = logBuffer.iterator();
+            for (int i = 0; i < n; i++) {
+                iterator.next(); // 先 undo 在 redo
+                Assert.assertEquals(new IntField(i), ((Record) ((InsertRedoLog) iterator.next()).getData()).getField(0));
+            }
+            Assert.assertFalse(iterator.hasNext());
+        } finally {
+            LogBuffer.BUFFER_SIZE = bufferSize;
+        }
+    }
 
+    @Test
+    public void testSegments() throws Exception {
+        int segmentSize = LogBuffer.SEGMENT_SIZE;
+        LogBuffer.SEGMENT_SIZE = 4096;
+        try {
+            // 段大小只对新建的日志生效
+            Database.REPOSITORY_DIR = TEST_TEMP_DIR + "/" + UUID.randomUUID();
+            Database.reset();
+            td = TestUtil.createSimpleAndInsert(0, "tb", null);
+            LogBuffer logBuffer = Database.getLogBuffer();
+            TransactionId tid = new TransactionId(0);
+            int n = 50;
+            for (int i = 0; i < n; i++) {
+                insert(i, tid);
+            }
+            logBuffer.transactionCommit(tid);
+            long segments = logBuffer.getCurrentLsn() / 4096;
+            Assert.assertTrue(segments > 1);
+            Assert.assertTrue(Database.getDbFile(String.format("db.redo.log.%06d", segments)).exists());
+
+            // 日志跨越多个日志段
+            Iterator<RedoLog> iterator = logBuffer.iterator();
+            for (int i = 0; i < n; i++) {
+                iterator.next(); // 先 undo 在 redo
+                Assert.assertEquals(new IntField(i), ((Record) ((InsertRedoLog) iterator.next()).getData()).getField(0));
+            }
+            Assert.assertFalse(iterator.hasNext());
+
+            // 检查点之前的日志段被整体删除
+            Database.getCheckPoint().sharkCheckPoint();
+            Assert.assertEquals(segments, logBuffer.getFirstSegment());
+            Assert.assertFalse(Database.getDbFile("db.redo.log.000000").exists());
+            Assert.assertFalse(logBuffer.iterator().hasNext());
+
+            // 再次打开日志时使用清单中记录的段大小，而不是当前的参数
+            LogBuffer.SEGMENT_SIZE = 8192;
+            Database.reset();
+            logBuffer = Database.getLogBuffer();
+            TransactionId tid1 = new TransactionId(1);
+            for (int i = n; i < n * 2; i++) {
+                insert(i, tid1);
+            }
+            logBuffer.transactionCommit(tid1);
+            Assert.assertTrue(Database.getDbFile(String.format("db.redo.log.%06d", logBuffer.getCurrentLsn() / 4096)).exists());
+            iterator = logBuffer.iterator();
+            for (int i = n; i < n * 2; i++) {
+                iterator.next();
+                Assert.assertEquals(new IntField(i), ((Record) ((InsertRedoLog) iterator.next()).getData()).getField(0));
+            }
+            Assert.assertFalse(iterator.hasNext());
+        } finally {
+            LogBuffer.SEGMENT_SIZE = segmentSize;
+        }
+    }
+
+    @Test
+    public void testLegacyLog() throws Exception {
+        int segmentSize = LogBuffer.SEGMENT_SIZE;
+        LogBuffer.SEGMENT_SIZE = 4096;
+        try {
+            Database.REPOSITORY_DIR = TEST_TEMP_DIR + "/" + UUID.randomUUID();
+            Database.reset();
+            td = TestUtil.createSimpleAndInsert(0, "tb", null);
+            LogBuffer logBuffer = Database.getLogBuffer();
+            TransactionId tid = new TransactionId(0);
+            for (int i = 0; i < 50; i++) {
+                insert(i, tid);
+            }
+            logBuffer.transactionCommit(tid);
+            List<RedoLog> logs = new ArrayList<>();
+            logBuffer.iterator().forEachRemaining(logs::add);
+            long end = logBuffer.getCurrentLsn();
+
+            // 旧版本的日志文件：文件头（末尾、检查点、截断）之后紧跟着截断之后的日志，截断点取在第三个日志处
+            long truncate = logs.get(2).getLsn();
+            ByteArray legacy = ByteArray.allocate((int) (24 + end - truncate)).writeLong(end).writeLong(truncate).writeLong(truncate);
+            for (long lsn = truncate; lsn < end; ) {
+                int n = (int) Math.min(end - lsn, 4096 - lsn % 4096);
+                legacy.writeByteArray(new DbFile(Database.getDbFile(String.format("db.redo.log.%06d", lsn / 4096))).read(lsn % 4096, n));
+                lsn += n;
+            }
+            File file = new File(TEST_TEMP_DIR + "/" + UUID.randomUUID() + "/db.redo.log");
+            file.getParentFile().mkdirs();
+            DbFile dbFile = new DbFile(file);
+            dbFile.write(0, legacy);
+
+            // 打开时日志被迁移到日志段中，文件被改写为清单
+            logBuffer = new LogBuffer(dbFile);
+            Assert.assertEquals(LogBuffer.HEAD_SIZE, file.length());
+            Assert.assertEquals(end, logBuffer.getCurrentLsn());
+            Assert.assertEquals(truncate / 4096, logBuffer.getFirstSegment());
+            Assert.assertTrue(new File(String.format("%s.%06d", file.getPath(), (end - 1) / 4096)).exists());
+            Iterator<RedoLog> iterator = logBuffer.iterator();
+            for (RedoLog log : logs.subList(2, logs.size())) {
+                RedoLog migrated = iterator.next();
+                Assert.assertEquals(log.getLsn(), migrated.getLsn());
+                Assert.assertEquals(log.getType(), migrated.getType());
+            }
+            Assert.assertFalse(iterator.hasNext());
+        } finally {
+            LogBuffer.SEGMENT_SIZE = segmentSize;
+        }
+    }
+
+    @Test
+    public void testCheckPoint() throws Exception {
         TransactionId tid = new TransactionId(0);
         TransactionId tid1 = new TransactionId(1);
         LogBuffer logBuffer = Database.getLogBuffer();
@@ -0,0 +1,143 @@
+package happydb.log;
+
+import happydb.TestBase;
+import happydb.TestUtil;
+import happydb.common.Database;
+import happydb.common.Permissions;
+import happydb.execution.Predicate;
+import happydb.index.Index;
+import happydb.index.IndexType;
+import happydb.parser.Parser;
+import happydb.storage.HeapPage;
+import happydb.storage.IntField;
+import happydb.storage.RecordId;
+import happydb.transaction.ReadView;
+import happydb.transaction.TransactionId;
+import happydb.transaction.TransactionManager;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * @Author happysnaker
+ * @Date 2023/2/16
+ * @Email happysnaker@foxmail.com
+ */
+public class PurgeTest extends TestBase {
+    Index index;
+
+    TransactionManager tm;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.createSimpleAndInsert(10, "tb", null);
+        index = Database.getCatalog().getIndex("tb", 0, IndexType.BTREE);
+        tm = Database.getTransactionManager();
+        Database.ISOLATION_LEVEL = ReadView.READ_REPEAT;
+    }
+
+    private static void execute(String sql, TransactionId tid) throws Exception {
+        Parser.parser(sql, tid).open();
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        return TestUtil.getRecordAr("tb", tid).length;
+    }
+
+    @Test
+    public void testPurgeDeletedRecords() throws Exception {
+        TransactionId A = tm.begin();
+        execute("DELETE FROM tb WHERE x < 5", A);
+        tm.commit(A, false);
+
+        TransactionId B = tm.begin();
+        List<RecordId> deleted = index.search(B, Predicate.Op.LESS_THAN, new IntField(5));
+        Assert.assertEquals(5, deleted.size());
+        Database.getBufferPool().transactionReleaseLock(B);
+
+        // 五条记录与五条 undo log
+        Assert.assertEquals(10, Purge.pending());
+        Assert.assertEquals(10, new Purge(0).purge());
+        Assert.assertEquals(0, Purge.pending());
+
+        // 索引条目与堆记录都已被删除
+        Assert.assertEquals(5, index.search(B, null, null).size());
+        for (RecordId rid : deleted) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(B, rid.getPid(), Permissions.READ_ONLY);
+            Assert.assertNull(page.readRecordIfPresent(rid));
+        }
+        Assert.assertEquals(5, count(B));
+        tm.commit(B, false);
+    }
+
+    @Test
+    public void testReadViewBlocksPurge() throws Exception {
+        TransactionId R = tm.begin();
+        Assert.assertEquals(10, count(R));
+
+        TransactionId A = tm.begin();
+        execute("DELETE FROM tb WHERE x < 5", A);
+        tm.commit(A, false);
+
+        // R 的读视图仍然需要删除之前的版本
+        Purge purge = new Purge(0);
+        Assert.assertEquals(0, purge.purge());
+        Assert.assertEquals(10, Purge.pending());
+        Assert.assertEquals(10, count(R));
+
+        tm.commit(R, false);
+        Assert.assertEquals(10, purge.purge());
+        Assert.assertEquals(0, Purge.pending());
+    }
+
+    @Test
+    public void testPurgeAbortedInsert() throws Exception {
+        TransactionId A = tm.begin();
+        execute("INSERT INTO tb VALUES(100, 1.0, 'a')", A);
+        tm.rollback(A);
+
+        TransactionId B = tm.begin();
+        Assert.assertEquals(1, index.search(B, Predicate.Op.EQUALS, new IntField(100)).size());
+        // 回滚事务的 undo log 在恢复时仍然需要，不会被清理
+        Assert.assertEquals(1, Purge.pending());
+        Assert.assertEquals(1, new Purge(0).purge());
+        Assert.assertEquals(0, index.search(B, Predicate.Op.EQUALS, new IntField(100)).size());
+
+        // 插槽被回收后，同一主键可以再次插入
+        execute("INSERT INTO tb VALUES(100, 1.0, 'a')", B);
+        tm.commit(B, false);
+        TransactionId C = tm.begin();
+        Assert.assertEquals(11, count(C));
+    }
+
+    @Test
+    public void testRecoverReusedSlot() throws Exception {
+        TransactionId A = tm.begin();
+        RecordId rid = index.search(A, Predicate.Op.EQUALS, new IntField(3)).get(0);
+        execute("DELETE FROM tb WHERE x = 3", A);
+        tm.commit(A, false);
+        // 页面在清理之前已经落盘，磁盘上仍然保留着被删除的记录
+        Database.getBufferPool().flushAllPages();
+        Assert.assertEquals(2, new Purge(0).purge());
+
+        // 插入复用被清理的插槽并提交，页面没有刷回，突然宕机
+        TransactionId B = tm.begin();
+        execute("INSERT INTO tb VALUES(100, 1.0, 'a')", B);
+        Assert.assertEquals(List.of(rid), index.search(B, Predicate.Op.EQUALS, new IntField(100)));
+        tm.commit(B, false);
+
+        Database.recoveryTest = true;
+        try {
+            Database.reset();
+            Recovery.recovery();
+        } finally {
+            Database.recoveryTest = false;
+        }
+        TransactionId C = Database.getTransactionManager().begin();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(C, rid.getPid(), Permissions.READ_ONLY);
+        Assert.assertEquals(new IntField(100), page.readRecord(rid).getField(0));
+        Assert.assertEquals(10, count(C));
+    }
+}
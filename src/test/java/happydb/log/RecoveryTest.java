@@ -16,7 +16,6 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.List;
 
-import static org.junit.Assert.fail;
 
 /**
  * @Author happysnaker
@@ -65,11 +64,8 @@ public class RecoveryTest extends TestBase {
         TestUtil.assertRecordEquals(record, TestUtil.getRecordAr("tb", new TransactionId(0))[0], true);
         // crash
         Database.reset();
-        try {
-            System.out.println("TestUtil.getRecordAr(\"tb\", new TransactionId(0)).length = " + TestUtil.getRecordAr("tb", new TransactionId(0)).length);
-            fail();
-        } catch (Exception ignore) {
-        }
+        // 索引存在但页面没有刷回，扫描会跳过插槽为空的索引条目
+        Assert.assertEquals(0, TestUtil.getRecordAr("tb", new TransactionId(0)).length);
         Recovery.recovery();
         TestUtil.assertRecordEquals(record, TestUtil.getRecordAr("tb", new TransactionId(0))[0], true);
     }
@@ -181,17 +177,41 @@ public class RecoveryTest extends TestBase {
         TestUtil.runManyThread(tasks, 1000 * 60);
         Assert.assertEquals(n, TestUtil.getRecordAr("tb", new TransactionId(2048)).length);
         Database.reset();
-        try {
-            TestUtil.getRecordAr("tb", new TransactionId(0));
-            fail();
-        } catch (Exception ignore) {
-            // ignore
-        }
+        Assert.assertEquals(0, TestUtil.getRecordAr("tb", new TransactionId(0)).length);
 
         Recovery.recovery();
         Assert.assertEquals(n, TestUtil.getRecordAr("tb", new TransactionId(0)).length);
     }
 
+    /**
+     * 日志跨越多个页面，多个重做线程并行重做，并且队列很小，恢复线程需要等待重做线程
+     */
+    @Test
+    public void testParallelRedo() throws Exception {
+        int threads = Recovery.RECOVERY_THREADS, queueSize = Recovery.QUEUE_SIZE;
+        Recovery.RECOVERY_THREADS = 4;
+        Recovery.QUEUE_SIZE = 2;
+        BufferPool.DEFAULT_PAGES = 250;
+        try {
+            Database.reset();
+            HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager("tb");
+            int n = 300;
+            for (int i = 0; i < n; i++) {
+                TransactionId tid = Database.getTransactionManager().begin();
+                TestUtil.insertAndRunLog(i, pm.malloc(), tid);
+                Database.getTransactionManager().commit(tid, false);
+            }
+            Assert.assertTrue(pm.numPages() > 1);
+            Database.reset();
+
+            Recovery.recovery();
+            Assert.assertEquals(n, TestUtil.getRecordAr("tb", new TransactionId(0)).length);
+        } finally {
+            Recovery.RECOVERY_THREADS = threads;
+            Recovery.QUEUE_SIZE = queueSize;
+        }
+    }
+
     @Test
     public void testFuzzleCkp() throws Exception {
         BufferPool.DEFAULT_PAGES = 250;
@@ -1,15 +1,18 @@
 package happydb.parser;
 
 import happydb.TestBase;
+import happydb.common.CompressedDbFile;
 import happydb.common.Database;
 import happydb.common.Debug;
 import happydb.exception.DbException;
 import happydb.exception.ParseException;
 import happydb.execution.OpIterator;
 import happydb.index.IndexType;
+import happydb.storage.HeapPageManager;
 import happydb.storage.Record;
 import happydb.storage.TableDesc;
 import happydb.transaction.TransactionId;
+import happydb.transaction.TransactionManager;
 import net.sf.jsqlparser.JSQLParserException;
 import org.junit.Assert;
 import org.junit.Test;
@@ -74,5 +77,132 @@ public class CreateParserTest extends TestBase {
         Assert.assertEquals(1, recordAr.length);
         Debug.log(Arrays.toString(recordAr));
     }
-}
 
+    @Test
+    public void testCreateVarcharTable() throws Exception {
+        String sql = """
+                CREATE TABLE `tb` (
+                	x int,
+                    z varchar(64),
+                    w varchar(200),
+                    PRIMARY KEY(x) USING BTREE,
+                    KEY `z_index` (z)
+                )""";
+        Parser.parser(sql, new TransactionId(-1));
+        TableDesc td = Database.getCatalog().getTableDesc("tb");
+        Assert.assertEquals(VARCHAR_TYPE, td.getFieldType(1));
+        Assert.assertTrue(td.isVariableLength());
+
+        int n = 500;
+        TransactionManager tm = Database.getTransactionManager();
+        TransactionId tid = tm.begin();
+        for (int i = 0; i < n; i++) {
+            Parser.parser(String.format("INSERT INTO tb VALUES(%d, 'v%d', 'w%d')", i, i, i), tid).open();
+        }
+        tm.commit(tid, false);
+
+        // 变长记录紧凑存放，每条约 41 字节，定长存储时每页只能放下约 30 条记录，需要 17 页
+        HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager("tb");
+        Assert.assertEquals(2, pm.numPages());
+
+        // 原地变长与回滚
+        tid = tm.begin();
+        Parser.parser("UPDATE tb SET w = '" + "a".repeat(200) + "' WHERE x = 7", tid).open();
+        Assert.assertEquals("a".repeat(200), query("SELECT * FROM tb WHERE x = 7", tid)[0].getField(2).getObject());
+        tm.rollback(tid);
+
+        // 页面写回磁盘后重新读出
+        Database.getBufferPool().evictPage(0L, true, false, true);
+        tid = tm.begin();
+        Record[] records = query("SELECT * FROM tb", tid);
+        Assert.assertEquals(n, records.length);
+        for (Record record : records) {
+            Assert.assertEquals("v" + record.getField(0).getObject(), record.getField(1).getObject());
+            Assert.assertEquals("w" + record.getField(0).getObject(), record.getField(2).getObject());
+        }
+        Assert.assertEquals(1, query("SELECT * FROM tb WHERE z = 'v7'", tid).length);
+        tm.commit(tid, false);
+    }
+
+    @Test
+    public void testVarcharLength() throws Exception {
+        Parser.parser("CREATE TABLE `tb` (x int, z varchar(10), w varchar, PRIMARY KEY(x))", new TransactionId(-1));
+        TableDesc td = Database.getCatalog().getTableDesc("tb");
+        Assert.assertEquals(10, td.getMaxLength(1));
+        Assert.assertEquals(STRING_LEN, td.getMaxLength(2));
+        Assert.assertThrows(ParseException.class, () -> Parser.parser(
+                "CREATE TABLE `tb2` (x int, z varchar(" + (STRING_LEN + 1) + "), PRIMARY KEY(x))", new TransactionId(-1)));
+
+        // 重新打开后仍然保留声明的长度
+        Database.reset();
+        td = Database.getCatalog().getTableDesc("tb");
+        Assert.assertEquals(10, td.getMaxLength(1));
+        Assert.assertEquals(STRING_LEN, td.getMaxLength(2));
+
+        TransactionManager tm = Database.getTransactionManager();
+        TransactionId tid = tm.begin();
+        Parser.parser("INSERT INTO tb VALUES(1, '" + "a".repeat(10) + "', '" + "b".repeat(100) + "')", tid).open();
+        Assert.assertThrows(DbException.class, () -> Parser.parser(
+                "INSERT INTO tb VALUES(2, '" + "a".repeat(11) + "', 'b')", tid).open());
+        Assert.assertThrows(DbException.class, () -> Parser.parser(
+                "UPDATE tb SET z = '" + "a".repeat(11) + "' WHERE x = 1", tid).open());
+        tm.commit(tid, false);
+
+        TransactionId tid2 = tm.begin();
+        Record[] records = query("SELECT * FROM tb", tid2);
+        Assert.assertEquals(1, records.length);
+        Assert.assertEquals("a".repeat(10), records[0].getField(1).getObject());
+        tm.commit(tid2, false);
+    }
+
+    @Test
+    public void testCreateCompressedTable() throws Exception {
+        Parser.parser("CREATE TABLE `tb` (x int, z char, PRIMARY KEY(x), KEY `z_index` (z)) ROW_FORMAT=COMPRESSED",
+                new TransactionId(-1));
+        Assert.assertTrue(Database.getCatalog().getTableDesc("tb").isCompressed());
+
+        int n = 500;
+        TransactionManager tm = Database.getTransactionManager();
+        TransactionId tid = tm.begin();
+        for (int i = 0; i < n; i++) {
+            Parser.parser(String.format("INSERT INTO tb VALUES(%d, 'v%d')", i, i), tid).open();
+        }
+        tm.commit(tid, false);
+
+        // 定长字符串绝大部分是零填充，压缩后的堆文件远小于逻辑大小
+        Database.getBufferPool().evictPage(0L, true, false, true);
+        HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager("tb");
+        CompressedDbFile file = (CompressedDbFile) pm.getDbFile();
+        Assert.assertTrue(file.getPhysicalLength() * 4 < file.getLength());
+
+        tid = tm.begin();
+        Record[] records = query("SELECT * FROM tb", tid);
+        Assert.assertEquals(n, records.length);
+        for (Record record : records) {
+            Assert.assertEquals("v" + record.getField(0).getObject(), record.getField(1).getObject());
+        }
+        Assert.assertEquals(1, query("SELECT * FROM tb WHERE z = 'v7'", tid).length);
+        tm.commit(tid, false);
+
+        try {
+            Parser.parser("CREATE TABLE `tb2` (x int, PRIMARY KEY(x)) ROW_FORMAT=FIXED", new TransactionId(-1));
+            fail();
+        } catch (ParseException ignore) {
+        }
+    }
+
+    private static Record[] query(String sql, TransactionId tid) throws Exception {
+        OpIterator query = Parser.parser(sql, tid);
+        query.open();
+        return query.getRecordAr();
+    }
+
+    @Test
+    public void testVarcharTooLong() throws Exception {
+        try {
+            Parser.parser("CREATE TABLE `tb` (x int, z varchar(1000), PRIMARY KEY(x))", new TransactionId(-1));
+            fail();
+        } catch (ParseException ignore) {
+        }
+    }
+}
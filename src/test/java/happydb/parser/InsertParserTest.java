@@ -21,7 +21,8 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.util.Arrays;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.fail;
 
@@ -210,4 +211,68 @@ public class InsertParserTest extends TestBase {
         parser.open();
         Assert.assertEquals(1, TestUtil.getRecordAr("tb", B).length);
     }
+
+    /**
+     * 多个事务并发地向同一张表插入不同的键，所有插入都应该成功
+     */
+    @Test
+    public void condition9() throws Exception {
+        TransactionManager tm = Database.getTransactionManager();
+        int n = 8, m = 20;
+        List<TestUtil.TestRunnable> tasks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int base = i * m;
+            tasks.add(new TestUtil.TestRunnable() {
+                @Override
+                public void run() throws Exception {
+                    TransactionId tid = tm.begin();
+                    for (int j = 0; j < m; j++) {
+                        Parser.parser("INSERT INTO tb VALUES(" + (base + j) + ", 1.0, 'a')", tid).open();
+                    }
+                    tm.commit(tid, false);
+                    setDone(true);
+                }
+            });
+        }
+        TestUtil.runManyThread(tasks, 1000 * 60);
+
+        TransactionId tid = tm.begin();
+        Record[] records = TestUtil.getRecordAr("tb", tid);
+        Assert.assertEquals(n * m, records.length);
+        Set<Object> keys = new HashSet<>();
+        for (Record record : records) {
+            keys.add(record.getField(0).getObject());
+        }
+        Assert.assertEquals(n * m, keys.size());
+    }
+
+    /**
+     * 多个事务并发地插入同一个唯一键，只有一个事务能插入成功
+     */
+    @Test
+    public void condition10() throws Exception {
+        TransactionManager tm = Database.getTransactionManager();
+        int n = 8;
+        AtomicInteger success = new AtomicInteger(0);
+        List<TestUtil.TestRunnable> tasks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            tasks.add(new TestUtil.TestRunnable() {
+                @Override
+                public void run() throws Exception {
+                    TransactionId tid = tm.begin();
+                    try {
+                        Parser.parser("INSERT INTO tb VALUES(7, 1.0, 'a')", tid).open();
+                        success.incrementAndGet();
+                    } catch (Exception ignore) {
+                        // 重复的键
+                    } finally {
+                        tm.commit(tid, false);
+                    }
+                    setDone(true);
+                }
+            });
+        }
+        TestUtil.runManyThread(tasks, 1000 * 60);
+        Assert.assertEquals(1, success.get());
+    }
 }
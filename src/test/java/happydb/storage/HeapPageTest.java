@@ -95,4 +95,84 @@ public class HeapPageTest extends TestBase {
             TestUtil.assertRecordEquals(records[i], page1.readRecord(new RecordId(page.getPageId(), i)), true);
         }
     }
+
+    /**
+     * 页面从堆外页帧中构造，记录按需解析，归还页帧后页面仍然可用
+     */
+    @Test
+    public void testFrameArena() throws DbException, IOException {
+        page.deleteRecord(new RecordId(page.getPageId(), 1));
+        PageManager pageManager = Database.getCatalog().getPageManager("tb");
+        pageManager.writePage(page);
+
+        FrameArena arena = new FrameArena(2, BufferPool.getPageSize());
+        HeapPage page1 = (HeapPage) pageManager.readPage(page.getPageId(), arena);
+        Assert.assertEquals(1, arena.available());
+        Assert.assertEquals(List.of(1), page1.getEmptySlots());
+
+        // 修改一条记录，其他记录保持原始字节，序列化结果应该与原页面一致
+        Record record = page1.readRecord(new RecordId(page.getPageId(), 0));
+        TestUtil.assertRecordEquals(records[0], record, true);
+        record.setValid(!record.isValid());
+        records[0].setValid(record.isValid());
+        Assert.assertEquals(page.serialized(), page1.serialized());
+
+        page1.releaseFrame();
+        page1.releaseFrame();
+        Assert.assertEquals(2, arena.available());
+        for (int i = 2; i < records.length; i++) {
+            TestUtil.assertRecordEquals(records[i], page1.readRecord(new RecordId(page.getPageId(), i)), true);
+        }
+        Assert.assertEquals(page.serialized(), page1.serialized());
+    }
+
+    /**
+     * 开启内存映射时，分槽页面写回后重新排列了文件中的记录，尚未解析的记录仍然应该可以正确读取
+     */
+    @Test
+    public void testMmapRewrite() throws DbException, IOException, DuplicateValueException {
+        TableDesc vtd = new TableDesc("vtb", new String[]{"0", "1"},
+                new Type[]{Type.INT_TYPE, Type.VARCHAR_TYPE}, new int[]{0, 0});
+        try {
+            Database.getCatalog().getTableDesc(vtd.getTableName());
+        } catch (NoSuchElementException e) {
+            Database.getCatalog().createTable(vtd);
+        }
+        PageId pid = new PageId("vtb", 0);
+        HeapPage vpage = new HeapPage(pid);
+        Record[] vrecords = new Record[3];
+        for (int i = 0; i < vrecords.length; i++) {
+            vrecords[i] = new Record(vtd);
+            vrecords[i].setField(0, new IntField(i));
+            vrecords[i].setField(1, new StringField(String.valueOf(i).repeat(100), Type.VARCHAR_TYPE));
+            vrecords[i].setValid(true);
+            vpage.insertRecord(i, vrecords[i]);
+        }
+        // 插槽的容量只增不减，记录变短后再变长不需要预留空间
+        Record shorter = new Record(vtd);
+        shorter.setField(0, new IntField(0));
+        shorter.setField(1, new StringField("0", Type.VARCHAR_TYPE));
+        shorter.setValid(true);
+        vpage.updateRecord(new RecordId(pid, 0), shorter);
+        PageManager pageManager = Database.getCatalog().getPageManager("vtb");
+        pageManager.writePage(vpage);
+
+        boolean enableMmap = Database.enableMmap;
+        Database.enableMmap = true;
+        try {
+            HeapPage page1 = (HeapPage) pageManager.readPage(pid);
+            page1.updateRecord(new RecordId(pid, 0), vrecords[0]);
+            pageManager.writePage(page1);
+            for (int i = 1; i < vrecords.length; i++) {
+                TestUtil.assertRecordEquals(vrecords[i], page1.readRecord(new RecordId(pid, i)), true);
+            }
+
+            HeapPage page2 = (HeapPage) pageManager.readPage(pid);
+            for (int i = 0; i < vrecords.length; i++) {
+                TestUtil.assertRecordEquals(vrecords[i], page2.readRecord(new RecordId(pid, i)), true);
+            }
+        } finally {
+            Database.enableMmap = enableMmap;
+        }
+    }
 }
@@ -0,0 +1,73 @@
+package happydb.storage;
+
+import happydb.TestBase;
+import happydb.TestUtil;
+import happydb.common.Database;
+import happydb.common.Permissions;
+import happydb.execution.OpIterator;
+import happydb.parser.Parser;
+import happydb.transaction.TransactionId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @Author happysnaker
+ * @Date 2023/2/12
+ * @Email happysnaker@foxmail.com
+ */
+public class PageCleanerTest extends TestBase {
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.createSimpleAndInsert(0, "tb", null);
+    }
+
+    @Test
+    public void testFlushDirtyPages() throws Exception {
+        TransactionId tid = new TransactionId(0);
+        for (int i = 0; i < 32; i++) {
+            OpIterator it = Parser.parser(String.format("INSERT INTO tb VALUES(%d, 1.0, 'a')", i), tid);
+            it.open();
+        }
+        Assert.assertTrue(Database.getLogBuffer().getFlushList().hasNext());
+        long maxLsn = 0;
+        for (var it = Database.getLogBuffer().getFlushList(); it.hasNext(); ) {
+            maxLsn = Math.max(maxLsn, it.next().getVal().getLsn());
+        }
+
+        PageCleaner cleaner = new PageCleaner(0, 1);
+        Assert.assertTrue(cleaner.batchSize() >= PageCleaner.MIN_BATCH);
+        // 事务仍然锁定着它修改的页面，这些页面可能正在被修改，清理时被跳过
+        cleaner.clean();
+        Assert.assertTrue(Database.getLogBuffer().getFlushList().hasNext());
+
+        Database.getBufferPool().transactionReleaseLock(tid);
+        Assert.assertTrue(cleaner.clean() > 0);
+        // 先写日志：页面写回之前，修改它们的日志已经刷盘
+        Assert.assertTrue(Database.getLogBuffer().getFlushedUpTo() > maxLsn);
+        // 所有脏页都已落盘，刷新列表被惰性清空
+        Assert.assertFalse(Database.getLogBuffer().getFlushList().hasNext());
+    }
+
+    @Test
+    public void testReserveFreeFrames() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        HeapPageManager pm = (HeapPageManager) Database.getCatalog().getPageManager("tb");
+        int capacity = (pool.getNumPages() + pool.numPartitions() - 1) / pool.numPartitions();
+        int n = capacity * pool.numPartitions();
+        for (int i = 0; i < n; i++) {
+            pm.writePage(new HeapPage(new PageId("tb", i)));
+        }
+        TransactionId tid = new TransactionId(0);
+        for (int i = 0; i < n; i++) {
+            pool.getPage(tid, new PageId("tb", i), Permissions.READ_ONLY);
+        }
+        pool.transactionReleaseLock(tid);
+        Assert.assertEquals(n, pool.pagePool.size());
+
+        // 每个分区都已满，清理后每个分区至少保留一个空闲页帧
+        new PageCleaner(0, 1).clean();
+        Assert.assertEquals(n - pool.numPartitions(), pool.pagePool.size());
+    }
+}
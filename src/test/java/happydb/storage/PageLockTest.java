@@ -14,6 +14,8 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.fail;
@@ -111,6 +113,54 @@ public class PageLockTest extends TestBase {
         Assert.assertEquals(numPages, bufferPool.pagePool.size());
     }
 
+    /**
+     * 多个线程同时对同一页面缺页，应该只会加载一次，所有线程拿到同一个页面对象
+     */
+    @Test
+    public void testManyThreadLoadSamePage() throws Exception {
+        List<TestUtil.TestRunnable> tasks = new ArrayList<>();
+        Set<Page> pages = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 64; i++) {
+            int finalI = i;
+            tasks.add(new TestUtil.TestRunnable() {
+                @Override
+                public void run() throws Exception {
+                    TransactionId tid = new TransactionId(finalI);
+                    pages.add(bufferPool.getPage(tid, p1, Permissions.READ_ONLY));
+                    bufferPool.transactionReleaseLock(tid);
+                    setDone(true);
+                }
+            });
+        }
+        TestUtil.runManyThread(tasks, 1000 * 10);
+        Assert.assertEquals(1, pages.size());
+        Assert.assertSame(pages.iterator().next(), bufferPool.pagePool.get(p1));
+    }
+
+    /**
+     * 刷新页面不依赖缓冲池上的全局锁，即使其他线程持有缓冲池的监视器，刷新也能完成
+     */
+    @Test
+    public void testFlushWithoutGlobalMonitor() throws Exception {
+        Page page = bufferPool.getPage(tid1, p1, Permissions.READ_WRITE);
+        page.markDirty(true);
+        bufferPool.transactionReleaseLock(tid1);
+
+        Thread flusher = new Thread(() -> {
+            try {
+                bufferPool.flushPages(List.of(page));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        synchronized (bufferPool) {
+            flusher.start();
+            flusher.join(longTimeoutMills);
+            Assert.assertFalse(flusher.isAlive());
+        }
+        Assert.assertFalse(page.isDirty());
+    }
+
     @Test
     public void acquireWriteLockByManyThread() throws Exception {
         List<TestUtil.TestRunnable> tasks = new ArrayList<>();
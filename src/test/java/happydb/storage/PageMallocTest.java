@@ -133,4 +133,70 @@ public class PageMallocTest extends TestBase {
             bufferPool.transactionReleaseLock(new TransactionId(0));
         }
     }
+
+    @Test
+    public void testFillPageFirst() throws IOException {
+        int slots = HeapPage.numSlots(Database.getCatalog().getTableDesc("tb"));
+        for (int i = 0; i < slots; i++) {
+            RecordId rid = pm.malloc();
+            Assert.assertEquals(0, rid.getPid().getPageNumber());
+            Assert.assertEquals(i, rid.getRecordNumber());
+        }
+        Assert.assertEquals(1, pm.malloc().getPid().getPageNumber());
+
+        // 回收的插槽位于页号更小的页面，优先被分配
+        pm.free(new RecordId(new PageId("tb", 0), 3));
+        Assert.assertEquals(new RecordId(new PageId("tb", 0), 3), pm.malloc());
+        Assert.assertEquals(1, pm.malloc().getPid().getPageNumber());
+    }
+
+    @Test
+    public void testLazyLoad() throws Exception {
+        int slots = HeapPage.numSlots(Database.getCatalog().getTableDesc("tb"));
+        BufferPool bufferPool = Database.getBufferPool();
+        TransactionId tid = new TransactionId(0);
+        for (int i = 0; i < slots + 2; i++) {
+            RecordId rid = pm.malloc();
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, rid.getPid(), Permissions.READ_ONLY);
+            page.insertRecord(rid.getRecordNumber(), TestUtil.createRecord(1, 1, 1, "tb"));
+            page.markDirty(true);
+        }
+        bufferPool.transactionReleaseLock(tid);
+        bufferPool.evictPage(0L, true, false, true);
+
+        // 新的管理器启动时不加载任何页面，第一个页面已满，分配时继续加载下一个页面
+        HeapPageManager reopened = new HeapPageManager("tb", pm.getDbFile());
+        Assert.assertEquals(0, reopened.numLoadedPages());
+        Assert.assertEquals(new RecordId(new PageId("tb", 1), 2), reopened.malloc());
+        Assert.assertEquals(2, reopened.numLoadedPages());
+
+        // 指定分配与回收会按需加载页面
+        reopened.free(new RecordId(new PageId("tb", 0), 5));
+        Assert.assertEquals(new RecordId(new PageId("tb", 0), 5), reopened.malloc());
+    }
+
+    @Test
+    public void testSlottedMalloc() throws Exception {
+        Database.getCatalog().createTable(new TableDesc("vt", new String[]{"x", "s"},
+                new Type[]{Type.INT_TYPE, Type.VARCHAR_TYPE}, new int[]{0, 0}));
+        HeapPageManager vpm = (HeapPageManager) Database.getCatalog().getPageManager("vt");
+
+        // 每条记录连同目录项占用 100 字节，页面只会被填充到填充因子
+        int size = 100 - HeapPage.SLOT_SIZE;
+        int limit = BufferPool.getPageSize() * HeapPageManager.FILL_FACTOR / 100 - HeapPage.SLOTTED_HEADER_SIZE;
+        int perPage = limit / 100;
+        for (int i = 0; i < perPage; i++) {
+            Assert.assertEquals(new RecordId(new PageId("vt", 0), i), vpm.malloc(size));
+        }
+        Assert.assertEquals(new RecordId(new PageId("vt", 1), 0), vpm.malloc(size));
+
+        // 填充因子之外的空间留给原地变长的记录，但不能超出页面
+        RecordId rid = new RecordId(new PageId("vt", 0), 0);
+        Assert.assertTrue(vpm.reserve(rid, size + BufferPool.getPageSize() - limit - HeapPage.SLOTTED_HEADER_SIZE - 100));
+        Assert.assertFalse(vpm.reserve(rid, BufferPool.getPageSize()));
+
+        // 回收的空间可以被更短的记录复用
+        vpm.free(rid);
+        Assert.assertEquals(rid, vpm.malloc(size));
+    }
 }
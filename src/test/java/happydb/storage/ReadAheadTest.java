@@ -0,0 +1,90 @@
+package happydb.storage;
+
+import happydb.TestBase;
+import happydb.TestUtil;
+import happydb.common.Database;
+import happydb.common.Permissions;
+import happydb.transaction.TransactionId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Author happysnaker
+ * @Date 2023/2/13
+ * @Email happysnaker@foxmail.com
+ */
+public class ReadAheadTest extends TestBase {
+    int numPages = 60;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.createSimpleAndInsert(0, "tb", null);
+        PageManager pm = Database.getCatalog().getPageManager("tb");
+        for (int i = 0; i < numPages; i++) {
+            pm.writePage(new HeapPage(new PageId("tb", i)));
+        }
+    }
+
+    private static void awaitReadAhead() throws InterruptedException {
+        while (ReadAhead.inflight() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testDetectSequential() {
+        ReadAhead readAhead = new ReadAhead();
+        Assert.assertFalse(readAhead.access(new PageId("tb", 0), false));
+        Assert.assertFalse(readAhead.access(new PageId("tb", 0), false));
+        Assert.assertFalse(readAhead.access(new PageId("tb", 1), false));
+        Assert.assertTrue(readAhead.access(new PageId("tb", 2), false));
+        // 回退的访问不是顺序的
+        Assert.assertFalse(readAhead.access(new PageId("tb", 1), false));
+        Assert.assertFalse(readAhead.access(new PageId("tb", 7), false));
+        Assert.assertTrue(readAhead.access(new PageId("tb", 3), true));
+    }
+
+    @Test
+    public void testPrefetchRecords() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        List<RecordId> rids = new ArrayList<>();
+        for (int i = 0; i < numPages; i++) {
+            rids.add(new RecordId(new PageId("tb", i), 0));
+            rids.add(new RecordId(new PageId("tb", i), 1));
+        }
+        ReadAhead readAhead = new ReadAhead();
+        readAhead.prefetchRecords(rids, 0);
+        awaitReadAhead();
+        for (int i = 0; i < ReadAhead.WINDOW; i++) {
+            Assert.assertTrue(pool.pagePool.containsKey(new PageId("tb", i)));
+        }
+        Assert.assertFalse(pool.pagePool.containsKey(new PageId("tb", ReadAhead.WINDOW)));
+
+        // 预读的页面没有被锁定，可以正常获取
+        TransactionId tid = new TransactionId(0);
+        Page page = pool.pagePool.get(new PageId("tb", 0));
+        Assert.assertSame(page, pool.getPage(tid, new PageId("tb", 0), Permissions.READ_WRITE));
+        pool.transactionReleaseLock(tid);
+    }
+
+    @Test
+    public void testPrefetchOnFullPool() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        TransactionId tid = new TransactionId(0);
+        int capacity = (pool.getNumPages() + pool.numPartitions() - 1) / pool.numPartitions();
+        int n = capacity * pool.numPartitions();
+        for (int i = 0; i < n; i++) {
+            pool.getPage(tid, new PageId("tb", i), Permissions.READ_WRITE);
+        }
+        // 所有页面都被锁定，预读应该放弃而不是堵塞或抛出异常
+        PageManager pm = Database.getCatalog().getPageManager("tb");
+        pm.writePage(new HeapPage(new PageId("tb", numPages)));
+        Assert.assertNull(pool.prefetchPage(new PageId("tb", numPages)));
+        pool.transactionReleaseLock(tid);
+        Assert.assertNotNull(pool.prefetchPage(new PageId("tb", numPages)));
+    }
+}
@@ -0,0 +1,90 @@
+package happydb.storage;
+
+import happydb.TestBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @Author happysnaker
+ * @Date 2023/2/8
+ * @Email happysnaker@foxmail.com
+ */
+public class ReplacementPolicyTest extends TestBase {
+
+    private static List<PageId> victims(ReplacementPolicy policy, int n) {
+        List<PageId> ans = new ArrayList<>();
+        Iterator<PageId> it = policy.victims();
+        while (it.hasNext() && ans.size() < n) {
+            ans.add(it.next());
+        }
+        return ans;
+    }
+
+    private static PageId pid(int no) {
+        return new PageId("tb", no);
+    }
+
+    @Test
+    public void testClock() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(4);
+        for (int i = 0; i < 4; i++) {
+            policy.admit(pid(i), ReplacementPolicy.AccessType.NORMAL);
+        }
+        // 引用位全为 1 时，第一圈清除引用位，第二圈按顺序淘汰
+        Assert.assertEquals(List.of(pid(0), pid(1)), victims(policy, 2));
+
+        // 被再次访问的页面获得第二次机会
+        policy.access(pid(2), ReplacementPolicy.AccessType.NORMAL);
+        Assert.assertEquals(pid(3), victims(policy, 1).get(0));
+
+        policy.remove(pid(0));
+        policy.remove(pid(1));
+        policy.remove(pid(3));
+        // 超出容量时自动扩容
+        for (int i = 4; i < 10; i++) {
+            policy.admit(pid(i), ReplacementPolicy.AccessType.NORMAL);
+        }
+        Assert.assertEquals(7, new HashSet<>(victims(policy, Integer.MAX_VALUE)).size());
+    }
+
+    @Test
+    public void testLRUK() {
+        ReplacementPolicy policy = new LRUKReplacementPolicy(4, 2);
+        for (int i = 0; i < 4; i++) {
+            policy.admit(pid(i), ReplacementPolicy.AccessType.NORMAL);
+        }
+        policy.access(pid(0), ReplacementPolicy.AccessType.NORMAL);
+        policy.access(pid(1), ReplacementPolicy.AccessType.NORMAL);
+        policy.access(pid(0), ReplacementPolicy.AccessType.NORMAL);
+
+        // 访问不足 K 次的页面优先淘汰，然后按倒数第 K 次访问时间淘汰
+        Assert.assertEquals(List.of(pid(2), pid(3), pid(1), pid(0)), victims(policy, 4));
+
+        policy.remove(pid(2));
+        Assert.assertEquals(pid(3), victims(policy, 1).get(0));
+    }
+
+    /**
+     * 顺序扫描读入的页面不应该挤出热点页面
+     */
+    @Test
+    public void testScanResistance() {
+        for (ReplacementPolicy policy : List.of(new ClockReplacementPolicy(8), new LRUKReplacementPolicy(8))) {
+            PageId hot = pid(0);
+            policy.admit(hot, ReplacementPolicy.AccessType.NORMAL);
+            policy.access(hot, ReplacementPolicy.AccessType.NORMAL);
+            for (int i = 1; i < 8; i++) {
+                policy.admit(pid(i), ReplacementPolicy.AccessType.SCAN);
+                policy.access(pid(i), ReplacementPolicy.AccessType.SCAN);
+            }
+            List<PageId> victims = victims(policy, 7);
+            Assert.assertEquals(7, victims.size());
+            Assert.assertFalse(victims.contains(hot));
+        }
+    }
+}
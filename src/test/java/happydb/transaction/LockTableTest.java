@@ -11,6 +11,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -78,6 +79,58 @@ public class LockTableTest extends TestBase {
     }
 
 
+    /**
+     * 事务 2、3、4 依次等待事务 1 持有的锁，锁应该按照到达顺序逐个移交
+     */
+    @Test
+    public void testFifoHandOff() throws InterruptedException {
+        RecordId r1 = new RecordId(new PageId("t", 1), 1);
+        TransactionId owner = new TransactionId(0);
+        lt.lock(owner, r1);
+
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 1; i <= 3; i++) {
+            TransactionId tid = new TransactionId(i);
+            new Thread(() -> {
+                lt.lock(tid, r1);
+                order.add(tid);
+            }).start();
+            // 保证按顺序进入等待队列
+            Thread.sleep(200);
+        }
+        Assert.assertTrue(order.isEmpty());
+
+        for (int i = 0; i < 3; i++) {
+            TransactionId next = new TransactionId(i + 1);
+            lt.releaseAll(owner);
+            // 锁在释放时就已经移交，而不是等待被唤醒的线程重新竞争
+            Assert.assertEquals(next, lt.holdLock(r1));
+            Thread.sleep(200);
+            Assert.assertEquals(i + 1, order.size());
+            Assert.assertEquals(next, order.get(i));
+            owner = next;
+        }
+        lt.releaseAll(owner);
+        Assert.assertNull(lt.holdLock(r1));
+    }
+
+    /**
+     * 事务放弃一把它未持有的锁时应该失败，释放后其他事务可以获取
+     */
+    @Test
+    public void testUnsafeUnLock() {
+        TransactionId tid1 = new TransactionId(0);
+        TransactionId tid2 = new TransactionId(1);
+        RecordId r1 = new RecordId(new PageId("t", 1), 1);
+
+        lt.lock(tid1, r1);
+        Assert.assertThrows(IllegalMonitorStateException.class, () -> lt.unsafeUnLock(tid2, r1));
+        lt.unsafeUnLock(tid1, r1);
+        Assert.assertFalse(lt.holdLock(tid1, r1));
+        runThreadAndLock(tid2, r1, true);
+    }
+
+
     /**
      * 事务 1 获取 x，事务 2 获取 y，事务 3 获取 z，然后事务 1 获取 y，事务 2 获取 z，事务 3 获取 x，这应该死锁
      */
@@ -113,6 +166,254 @@ public class LockTableTest extends TestBase {
     }
 
 
+    /**
+     * 事务 0 获取 x，事务 2 获取 y，事务 2 等待 x，然后事务 0 等待 y，应该选择更年轻的事务 2 作为牺牲者，
+     * 事务 2 回滚后事务 0 获得 y
+     */
+    @Test
+    public void testDeadLockVictimIsYoungest() throws InterruptedException {
+        TransactionId old = new TransactionId(0);
+        TransactionId young = new TransactionId(2);
+        RecordId r1 = new RecordId(new PageId("t", 1), 1);
+        RecordId r2 = new RecordId(new PageId("t", 1), 2);
+        lt.lock(old, r1);
+        lt.lock(young, r2);
+
+        AtomicInteger youngAborted = new AtomicInteger(0);
+        Thread t = new Thread(() -> {
+            try {
+                lt.lock(young, r1);
+            } catch (DeadLockException e) {
+                youngAborted.incrementAndGet();
+                lt.releaseAll(young);
+            }
+        });
+        t.start();
+        Thread.sleep(200);
+
+        lt.lock(old, r2);
+        t.join(1000);
+        Assert.assertEquals(1, youngAborted.get());
+        Assert.assertTrue(lt.holdLock(old, r2));
+        Assert.assertEquals(1, lt.getDeadLockVictimCount());
+        Assert.assertTrue(lt.getDeadLockDetectCount() >= 1);
+    }
+
+    /**
+     * 关闭死锁检测后，等待超时的事务应该失败
+     */
+    @Test
+    public void testLockWaitTimeout() {
+        boolean detect = LockTable.DEADLOCK_DETECT;
+        long timeout = LockTable.LOCK_WAIT_TIMEOUT_MILLIS;
+        LockTable.DEADLOCK_DETECT = false;
+        LockTable.LOCK_WAIT_TIMEOUT_MILLIS = 200;
+        try {
+            TransactionId tid1 = new TransactionId(0);
+            TransactionId tid2 = new TransactionId(1);
+            RecordId r1 = new RecordId(new PageId("t", 1), 1);
+            lt.lock(tid1, r1);
+            Assert.assertThrows(DeadLockException.class, () -> lt.lock(tid2, r1));
+            Assert.assertEquals(1, lt.getLockWaitTimeoutCount());
+            Assert.assertEquals(0, lt.getDeadLockDetectCount());
+
+            // 超时的事务已经离开等待队列，释放后锁应该空闲
+            lt.releaseAll(tid1);
+            Assert.assertNull(lt.holdLock(r1));
+        } finally {
+            LockTable.DEADLOCK_DETECT = detect;
+            LockTable.LOCK_WAIT_TIMEOUT_MILLIS = timeout;
+        }
+    }
+
+    /**
+     * 在检测延迟内获得锁的等待不应该运行死锁检测
+     */
+    @Test
+    public void testDetectDelay() throws InterruptedException {
+        long delay = LockTable.DEADLOCK_DETECT_DELAY_MILLIS;
+        LockTable.DEADLOCK_DETECT_DELAY_MILLIS = 5000;
+        try {
+            TransactionId tid1 = new TransactionId(0);
+            TransactionId tid2 = new TransactionId(1);
+            RecordId r1 = new RecordId(new PageId("t", 1), 1);
+            lt.lock(tid1, r1);
+            Thread t = new Thread(() -> lt.lock(tid2, r1));
+            t.start();
+            Thread.sleep(200);
+            lt.releaseAll(tid1);
+            t.join(1000);
+
+            Assert.assertTrue(lt.holdLock(tid2, r1));
+            Assert.assertEquals(1, lt.getWaitCount());
+            Assert.assertEquals(0, lt.getDeadLockDetectCount());
+        } finally {
+            LockTable.DEADLOCK_DETECT_DELAY_MILLIS = delay;
+        }
+    }
+
+
+    /**
+     * 多个事务可以同时持有行记录上的 S 锁，X 锁需要等待所有 S 锁释放
+     */
+    @Test
+    public void testSharedLock() throws InterruptedException {
+        TransactionId tid1 = new TransactionId(0);
+        TransactionId tid2 = new TransactionId(1);
+        TransactionId tid3 = new TransactionId(2);
+        RecordId r1 = new RecordId(new PageId("t", 1), 1);
+
+        lt.lock(tid1, r1, LockMode.S);
+        lt.lock(tid2, r1, LockMode.S);
+        Assert.assertTrue(lt.holdLock(tid1, r1));
+        Assert.assertTrue(lt.holdLock(tid2, r1));
+
+        AtomicInteger acquired = new AtomicInteger(0);
+        Thread t = new Thread(() -> {
+            lt.lock(tid3, r1, LockMode.X);
+            acquired.incrementAndGet();
+        });
+        t.start();
+        Thread.sleep(200);
+        Assert.assertEquals(0, acquired.get());
+
+        lt.releaseAll(tid1);
+        Thread.sleep(100);
+        Assert.assertEquals(0, acquired.get());
+        lt.releaseAll(tid2);
+        t.join(1000);
+        Assert.assertEquals(1, acquired.get());
+        Assert.assertTrue(lt.holdLock(tid3, r1));
+    }
+
+    /**
+     * 等待行锁时被中断，事务本次获取的意向锁也应该被释放
+     */
+    @Test
+    public void testInterruptReleasesIntentionLock() throws InterruptedException {
+        TransactionId tid1 = new TransactionId(0);
+        TransactionId tid2 = new TransactionId(1);
+        TransactionId tid3 = new TransactionId(2);
+        RecordId r1 = new RecordId(new PageId("t", 1), 1);
+
+        lt.lock(tid1, r1);
+        AtomicInteger failed = new AtomicInteger(0);
+        Thread waiter = new Thread(() -> {
+            try {
+                lt.lock(tid2, r1);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+            }
+        });
+        waiter.start();
+        Thread.sleep(200);
+        waiter.interrupt();
+        waiter.join(1000);
+        Assert.assertEquals(1, failed.get());
+        Assert.assertFalse(lt.holdLock(tid2, r1));
+
+        // 事务 2 不再持有表上的 IX 锁，事务 1 释放后表上的 X 锁可以立即获得
+        lt.releaseAll(tid1);
+        AtomicInteger acquired = new AtomicInteger(0);
+        Thread t = new Thread(() -> {
+            lt.lockTable(tid3, "t", LockMode.X);
+            acquired.incrementAndGet();
+        });
+        t.start();
+        t.join(1000);
+        Assert.assertEquals(1, acquired.get());
+    }
+
+    /**
+     * 行记录上的锁会在表上加意向锁，表上的 S 锁与 IX 锁不兼容，IS 锁则兼容
+     */
+    @Test
+    public void testIntentionLock() throws InterruptedException {
+        TransactionId tid1 = new TransactionId(0);
+        TransactionId tid2 = new TransactionId(1);
+        RecordId r1 = new RecordId(new PageId("t", 1), 1);
+
+        lt.lock(tid1, r1);
+        Assert.assertEquals(LockMode.IS, lt.lockTable(tid2, "t", LockMode.IS));
+
+        AtomicInteger acquired = new AtomicInteger(0);
+        Thread t = new Thread(() -> {
+            lt.lockTable(tid2, "t", LockMode.S);
+            acquired.incrementAndGet();
+        });
+        t.start();
+        Thread.sleep(200);
+        Assert.assertEquals(0, acquired.get());
+
+        lt.releaseAll(tid1);
+        t.join(1000);
+        Assert.assertEquals(1, acquired.get());
+        // 表上的 S 锁覆盖了所有行记录上的 S 锁
+        Assert.assertTrue(lt.holdLock(tid2, r1));
+        Assert.assertEquals(tid2, lt.holdLock(r1));
+    }
+
+    /**
+     * 事务在一张表上持有的行锁超过阈值后升级为表锁，行锁被释放，其他事务无法再获取该表上的行锁
+     */
+    @Test
+    public void testLockEscalation() {
+        int threshold = LockTable.LOCK_ESCALATION_THRESHOLD;
+        LockTable.LOCK_ESCALATION_THRESHOLD = 3;
+        try {
+            TransactionId tid1 = new TransactionId(0);
+            TransactionId tid2 = new TransactionId(1);
+            for (int i = 0; i < 5; i++) {
+                lt.lock(tid1, new RecordId(new PageId("t", 1), i));
+            }
+            Assert.assertEquals(1, lt.getEscalationCount());
+            Assert.assertEquals(LockMode.X, lt.lockTable(tid1, "t", LockMode.IX));
+
+            // 升级后行记录不再单独加锁，但仍被表锁覆盖
+            RecordId other = new RecordId(new PageId("t", 2), 100);
+            lt.lock(tid1, other);
+            Assert.assertTrue(lt.holdLock(tid1, other));
+            lt.unsafeUnLock(tid1, other);
+            Assert.assertEquals(tid1, lt.holdLock(other));
+            runThreadAndLock(tid2, other, false);
+
+            // 其他表不受影响
+            TransactionId tid3 = new TransactionId(2);
+            lt.lock(tid3, new RecordId(new PageId("t2", 1), 1));
+
+            lt.releaseAll(tid1);
+            Assert.assertNull(lt.holdLock(new RecordId(new PageId("t", 1), 0)));
+        } finally {
+            LockTable.LOCK_ESCALATION_THRESHOLD = threshold;
+        }
+    }
+
+    /**
+     * 两个持有 S 锁的事务同时请求升级为 X 锁，这应该死锁，更年轻的事务被选为牺牲者
+     */
+    @Test
+    public void testUpgradeDeadLock() throws InterruptedException {
+        TransactionId tid1 = new TransactionId(0);
+        TransactionId tid2 = new TransactionId(1);
+        RecordId r1 = new RecordId(new PageId("t", 1), 1);
+        lt.lock(tid1, r1, LockMode.S);
+        lt.lock(tid2, r1, LockMode.S);
+
+        AtomicInteger acquired = new AtomicInteger(0);
+        Thread t = new Thread(() -> {
+            lt.lock(tid1, r1, LockMode.X);
+            acquired.incrementAndGet();
+        });
+        t.start();
+        Thread.sleep(200);
+
+        Assert.assertThrows(DeadLockException.class, () -> lt.lock(tid2, r1, LockMode.X));
+        lt.releaseAll(tid2);
+        t.join(1000);
+        Assert.assertEquals(1, acquired.get());
+    }
+
+
     /**
      * 多线程按顺序获取同一把把锁，不释放，最多只有一个线程能获取锁
      */